@@ -0,0 +1,190 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Diagnostic mode that records the preference operations of an app (reads, puts, removals and writes, with their thread, key, value type and size)
+ * to a compact binary trace, which can be replayed later with {@link TraceReplayer}.
+ * <br>
+ * Once installed with {@link PreferenceHandler#setAccessTracer(AccessTracer)}, the handlers constructed afterwards record their operations.
+ * Records are buffered in memory, and written to the output on a background thread. Recording is serialized, so install it only while collecting a trace.
+ */
+
+public final class AccessTracer {
+    // buffered records are handed to the background thread beyond this size
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+    private final OutputStream output;
+    private final long startNanos;
+    // all guarded by this
+    private final Map<Thread, Integer> threads = new HashMap<>();
+    private final Map<String, Integer> stores = new HashMap<>();
+    private final Map<String, Integer> keys = new HashMap<>();
+    private byte[] buffer = new byte[FLUSH_THRESHOLD + 1024];
+    private int position;
+    private long lastMicros;
+    private boolean closed;
+
+    /**
+     * Create an access tracer.
+     *
+     * @param output Receives the trace. It is closed with the tracer.
+     */
+    public AccessTracer(@NonNull OutputStream output) {
+        this.output = output;
+        this.startNanos = System.nanoTime();
+
+        writeInt(TraceFormat.MAGIC);
+        writeInt(TraceFormat.FORMAT_VERSION);
+        writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Write all the buffered records to the output, in the background.
+     */
+    public synchronized void flush() {
+        if (closed) return;
+        scheduleWrite(false);
+    }
+
+    /**
+     * End the trace, write all the buffered records and close the output, in the background. Operations recorded afterwards are ignored.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        ensureCapacity(1);
+        buffer[position++] = TraceFormat.END;
+        closed = true;
+        scheduleWrite(true);
+    }
+
+    // recording
+
+    /**
+     * Record an operation on a key.
+     *
+     * @param store     Name of the store.
+     * @param operation One of the operations of {@link TraceFormat}.
+     * @param type      One of the value types of {@link TraceFormat}.
+     * @param key       The key.
+     * @param size      Size of the value in bytes, 0 if there is no value.
+     */
+    synchronized void record(@NonNull String store,
+                             int operation,
+                             int type,
+                             @NonNull String key,
+                             int size) {
+        if (closed) return;
+        writeHead(store, operation, type);
+        writeName(keys, key);
+        writeVarint(size);
+        if (position >= FLUSH_THRESHOLD) {
+            scheduleWrite(false);
+        }
+    }
+
+    /**
+     * Record an operation that is not on a single key (a clear, an apply or a commit).
+     */
+    synchronized void record(@NonNull String store, int operation) {
+        if (closed) return;
+        writeHead(store, operation, TraceFormat.TYPE_NONE);
+        if (position >= FLUSH_THRESHOLD) {
+            scheduleWrite(false);
+        }
+    }
+
+    private void writeHead(@NonNull String store, int operation, int type) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) ((operation << 4) | type);
+
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        writeVarint(Math.max(0, micros - lastMicros));
+        lastMicros = Math.max(micros, lastMicros);
+
+        Thread thread = Thread.currentThread();
+        Integer threadIndex = threads.get(thread);
+        if (threadIndex == null) {
+            threads.put(thread, (threadIndex = threads.size()));
+        }
+        writeVarint(threadIndex);
+
+        writeName(stores, store);
+    }
+
+    private void writeName(@NonNull Map<String, Integer> names, @NonNull String name) {
+        Integer index = names.get(name);
+        if (index != null) {
+            writeVarint(index);
+        } else {
+            // first appearance, followed by the name
+            writeVarint(names.size());
+            names.put(name, names.size());
+            byte[] bytes = name.getBytes(TraceFormat.UTF_8);
+            writeVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void ensureCapacity(int length) {
+        if (position + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+        }
+    }
+
+    /**
+     * Hand the buffered records to the background thread, which writes them in order.
+     */
+    private void scheduleWrite(final boolean close) {
+        final byte[] records = Arrays.copyOf(buffer, position);
+        position = 0;
+        PreferenceHandler.getBackgroundExecutor().execute(
+            new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        output.write(records);
+                        if (close) {
+                            output.close();
+                        } else {
+                            output.flush();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        );
+    }
+}
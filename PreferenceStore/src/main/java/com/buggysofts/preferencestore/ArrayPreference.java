@@ -0,0 +1,48 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A preference which holds a primitive array (one of <b>int[]</b>, <b>long[]</b>, <b>float[]</b>, <b>double[]</b> or <b>byte[]</b>), and no default value.
+ * <br>
+ * Arrays are stored in a packed little-endian binary form (wrapped in Base64), and are decoded straight into primitive arrays, without boxing or reflection.
+ */
+
+public class ArrayPreference<T> {
+    private final String key;
+    private final String desc;
+
+    /**
+     * Create an array preference.
+     * <br>
+     *
+     * @param keyName Name of the preference. Should be of the form <b>pref_key_*</b>.
+     * @param desc    Description of the preference, its context, purpose & usability, and any other important information. This is not going to be used anywhere, the purpose of this is to remind the user what it is for and how to use it.
+     * @throws RuntimeException if any contract violation is found.
+     */
+    public ArrayPreference(@NonNull String keyName,
+                           @NonNull String desc) {
+        this.key = keyName;
+        this.desc = desc;
+
+        if (key == null) {
+            throw new RuntimeException("Key must not be null.");
+        }
+    }
+
+    /**
+     * Get key string.
+     */
+    @NonNull
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get description string.
+     */
+    @NonNull
+    public String getDescription() {
+        return desc;
+    }
+}
@@ -0,0 +1,173 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Streaming codec of the store backups.
+ * <br>
+ * A backup starts with a header (magic, format version, schema version of the store), followed by the entries, each as a type tag,
+ * the key and the typed value, and ends with a zero tag. Strings are written as their UTF-8 byte count followed by the bytes.
+ */
+
+final class BackupFormat {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x5053424b;
+    private static final int FORMAT_VERSION = 1;
+
+    // type tags
+    private static final byte END = 0;
+    private static final byte TYPE_STRING = 'S';
+    private static final byte TYPE_INT = 'I';
+    private static final byte TYPE_LONG = 'J';
+    private static final byte TYPE_FLOAT = 'F';
+    private static final byte TYPE_BOOLEAN = 'Z';
+    private static final byte TYPE_STRING_SET = 'T';
+
+    private BackupFormat() {
+    }
+
+    /**
+     * Write the header of a backup.
+     */
+    static void writeHeader(@NonNull DataOutputStream output, int schemaVersion) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeInt(schemaVersion);
+    }
+
+    /**
+     * Write an entry.
+     *
+     * @return false if the value is of an unsupported type, in which case nothing is written.
+     */
+    static boolean writeEntry(@NonNull DataOutputStream output,
+                              @NonNull String key,
+                              @Nullable Object value) throws IOException {
+        if (value instanceof String) {
+            output.writeByte(TYPE_STRING);
+            writeString(output, key);
+            writeString(output, (String) value);
+        } else if (value instanceof Integer) {
+            output.writeByte(TYPE_INT);
+            writeString(output, key);
+            output.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            output.writeByte(TYPE_LONG);
+            writeString(output, key);
+            output.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            output.writeByte(TYPE_FLOAT);
+            writeString(output, key);
+            output.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(TYPE_BOOLEAN);
+            writeString(output, key);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof Set) {
+            Set<?> set = (Set<?>) value;
+            output.writeByte(TYPE_STRING_SET);
+            writeString(output, key);
+            output.writeInt(set.size());
+            for (Object element : set) {
+                writeString(output, (String) element);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the end of a backup.
+     */
+    static void writeEnd(@NonNull DataOutputStream output) throws IOException {
+        output.writeByte(END);
+    }
+
+    /**
+     * Read the header of a backup.
+     *
+     * @return the schema version of the store the backup was taken from.
+     * @throws IOException if the input is not a backup, or if it is of a newer format.
+     */
+    static int readHeader(@NonNull DataInputStream input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a preference backup");
+        }
+        int formatVersion = input.readInt();
+        if (formatVersion > FORMAT_VERSION) {
+            throw new IOException("Unsupported backup format version: " + formatVersion);
+        }
+        return input.readInt();
+    }
+
+    /**
+     * Read the key of the next entry. Call {@link #readValue(DataInputStream, byte)} with the returned tag right after.
+     *
+     * @param tag Receives the type tag of the entry.
+     * @return the key, or null at the end of the backup.
+     */
+    @Nullable
+    static String readKey(@NonNull DataInputStream input, @NonNull byte[] tag) throws IOException {
+        tag[0] = input.readByte();
+        if (tag[0] == END) {
+            return null;
+        }
+        return readString(input);
+    }
+
+    /**
+     * Read the value of the current entry.
+     *
+     * @throws IOException if the type tag is unknown.
+     */
+    @NonNull
+    static Object readValue(@NonNull DataInputStream input, byte tag) throws IOException {
+        switch (tag) {
+            case TYPE_STRING:
+                return readString(input);
+            case TYPE_INT:
+                return input.readInt();
+            case TYPE_LONG:
+                return input.readLong();
+            case TYPE_FLOAT:
+                return input.readFloat();
+            case TYPE_BOOLEAN:
+                return input.readBoolean();
+            case TYPE_STRING_SET:
+                int count = input.readInt();
+                Set<String> set = new HashSet<>();
+                for (int i = 0; i < count; i++) {
+                    set.add(readString(input));
+                }
+                return set;
+            default:
+                throw new IOException("Malformed backup entry of type " + tag);
+        }
+    }
+
+    static void writeString(@NonNull DataOutputStream output, @NonNull String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    @NonNull
+    static String readString(@NonNull DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            throw new IOException("Malformed backup string");
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
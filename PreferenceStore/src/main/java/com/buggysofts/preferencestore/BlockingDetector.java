@@ -0,0 +1,267 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diagnostic mode that finds the preference operations blocking latency sensitive threads (usually the main thread).
+ * <br>
+ * Once installed with {@link PreferenceHandler#setBlockingDetector(BlockingDetector)}, the handlers constructed afterwards time their reads,
+ * writes, json decodes and their own construction. When an operation on a latency sensitive thread takes longer than the threshold, it is reported
+ * to the sink, along with a sampled stack trace. To keep the sink from being flooded, the slow operations of the same kind on the same key are
+ * aggregated, and reported at most once per report interval.
+ */
+
+public final class BlockingDetector {
+    // returned when the current thread is not timed
+    static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private final long thresholdNanos;
+    private final long reportIntervalNanos;
+    private final boolean sampleStacks;
+    private final Sink sink;
+    // copied on write, checked on every operation
+    private volatile Thread[] latencySensitiveThreads = new Thread[0];
+    // aggregates of the slow operations, by operation and key
+    private final ConcurrentHashMap<String, Aggregate> aggregates = new ConcurrentHashMap<>();
+
+    /**
+     * Create a blocking detector.
+     * <br>
+     *
+     * @param thresholdMillis      Operations taking longer than this (in milliseconds) are reported. Must not be negative.
+     * @param reportIntervalMillis Minimum time (in milliseconds) between two reports of the same kind of operation on the same key. Must not be negative.
+     * @param sampleStacks         Whether to sample a stack trace for each report. Sampling costs a few microseconds, on slow operations only.
+     * @param sink                 Receives the reports, on the thread of the reported operation (or on a background thread, for delayed reports).
+     * @throws RuntimeException if any contract violation is found.
+     */
+    public BlockingDetector(@IntRange(from = 0) long thresholdMillis,
+                            @IntRange(from = 0) long reportIntervalMillis,
+                            boolean sampleStacks,
+                            @NonNull Sink sink) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.reportIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis);
+        this.sampleStacks = sampleStacks;
+        this.sink = sink;
+
+        if (thresholdMillis < 0 || reportIntervalMillis < 0) {
+            throw new RuntimeException("Threshold and report interval must not be negative.");
+        }
+        if (sink == null) {
+            throw new RuntimeException("Sink must not be null.");
+        }
+    }
+
+    /**
+     * Mark the specified thread as latency sensitive, usually <b>Looper.getMainLooper().getThread()</b>. Only the operations of such threads are timed.
+     */
+    public synchronized void addLatencySensitiveThread(@NonNull Thread thread) {
+        Thread[] threads = latencySensitiveThreads;
+        for (Thread existing : threads) {
+            if (existing == thread) return;
+        }
+        Thread[] newThreads = Arrays.copyOf(threads, threads.length + 1);
+        newThreads[threads.length] = thread;
+        latencySensitiveThreads = newThreads;
+    }
+
+    /**
+     * Stop treating the specified thread as latency sensitive.
+     */
+    public synchronized void removeLatencySensitiveThread(@NonNull Thread thread) {
+        List<Thread> threads = new ArrayList<>(Arrays.asList(latencySensitiveThreads));
+        if (threads.remove(thread)) {
+            latencySensitiveThreads = threads.toArray(new Thread[0]);
+        }
+    }
+
+    /**
+     * Report all the aggregated slow operations that were not reported yet.
+     */
+    public void flush() {
+        for (Aggregate aggregate : aggregates.values()) {
+            BlockingReport report;
+            synchronized (aggregate) {
+                report = aggregate.drain(System.nanoTime());
+            }
+            if (report != null) {
+                sink.onReport(report);
+            }
+        }
+    }
+
+    // timing
+
+    /**
+     * Start timing an operation.
+     *
+     * @return the start time, or {@link #NOT_TIMED} if the current thread is not latency sensitive.
+     */
+    long startTiming() {
+        Thread current = Thread.currentThread();
+        for (Thread thread : latencySensitiveThreads) {
+            if (thread == current) {
+                return System.nanoTime();
+            }
+        }
+        return NOT_TIMED;
+    }
+
+    /**
+     * Stop timing an operation, and report it if it was slow.
+     *
+     * @param startTime The value returned by {@link #startTiming()}.
+     */
+    void stopTiming(long startTime,
+                    @NonNull BlockingReport.Operation operation,
+                    @NonNull String key) {
+        if (startTime == NOT_TIMED) {
+            return;
+        }
+        long now = System.nanoTime();
+        long duration = now - startTime;
+        if (duration <= thresholdNanos) {
+            return;
+        }
+
+        String aggregateKey = operation.name() + '\u0000' + key;
+        Aggregate aggregate = aggregates.get(aggregateKey);
+        if (aggregate == null) {
+            Aggregate newAggregate = new Aggregate(operation, key);
+            aggregate = aggregates.putIfAbsent(aggregateKey, newAggregate);
+            if (aggregate == null) {
+                aggregate = newAggregate;
+            }
+        }
+
+        BlockingReport report = null;
+        long delay = 0;
+        synchronized (aggregate) {
+            if (aggregate.count == 0) {
+                // one sample per report
+                aggregate.threadName = Thread.currentThread().getName();
+                aggregate.stackTrace = sampleStacks ? sampleStack() : null;
+            }
+            ++aggregate.count;
+            aggregate.totalDuration += duration;
+            aggregate.maxDuration = Math.max(aggregate.maxDuration, duration);
+
+            long sinceLastReport = now - aggregate.lastReportTime;
+            if (!aggregate.reported || sinceLastReport >= reportIntervalNanos) {
+                report = aggregate.drain(now);
+            } else if (!aggregate.flushScheduled) {
+                // report the rest once the interval is over, even if no slow operation follows
+                aggregate.flushScheduled = true;
+                delay = reportIntervalNanos - sinceLastReport;
+            }
+        }
+        if (report != null) {
+            sink.onReport(report);
+        } else if (delay > 0) {
+            final Aggregate scheduledAggregate = aggregate;
+            PreferenceHandler.getBackgroundExecutor().schedule(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        BlockingReport delayedReport;
+                        synchronized (scheduledAggregate) {
+                            scheduledAggregate.flushScheduled = false;
+                            delayedReport = scheduledAggregate.drain(System.nanoTime());
+                        }
+                        if (delayedReport != null) {
+                            sink.onReport(delayedReport);
+                        }
+                    }
+                },
+                delay,
+                TimeUnit.NANOSECONDS
+            );
+        }
+    }
+
+    @NonNull
+    private static StackTraceElement[] sampleStack() {
+        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
+        // skip the frames of the thread, of the detector itself, and of the timing view
+        int start = 0;
+        while (start < stackTrace.length &&
+            (stackTrace[start].getClassName().equals(Thread.class.getName()) ||
+                isClassOrNested(stackTrace[start].getClassName(), BlockingDetector.class) ||
+                isClassOrNested(stackTrace[start].getClassName(), MonitoredSharedPreferences.class))) {
+            ++start;
+        }
+        return Arrays.copyOfRange(stackTrace, start, stackTrace.length);
+    }
+
+    private static boolean isClassOrNested(@NonNull String className, @NonNull Class<?> type) {
+        String typeName = type.getName();
+        return className.startsWith(typeName) &&
+            (className.length() == typeName.length() || className.charAt(typeName.length()) == '$');
+    }
+
+    /**
+     * Slow operations of the same kind on the same key, not reported yet. Guarded by its own lock.
+     */
+    private static final class Aggregate {
+        private final BlockingReport.Operation operation;
+        private final String key;
+        private String threadName;
+        private StackTraceElement[] stackTrace;
+        private int count;
+        private long totalDuration;
+        private long maxDuration;
+        private boolean reported;
+        private long lastReportTime;
+        private boolean flushScheduled;
+
+        private Aggregate(@NonNull BlockingReport.Operation operation, @NonNull String key) {
+            this.operation = operation;
+            this.key = key;
+        }
+
+        /**
+         * Build a report of the aggregated operations, and reset.
+         *
+         * @return the report, or null if there is nothing to report.
+         */
+        @Nullable
+        private BlockingReport drain(long now) {
+            if (count == 0) {
+                return null;
+            }
+            BlockingReport report = new BlockingReport(
+                operation,
+                key,
+                threadName,
+                count,
+                totalDuration,
+                maxDuration,
+                stackTrace
+            );
+            count = 0;
+            totalDuration = 0;
+            maxDuration = 0;
+            stackTrace = null;
+            reported = true;
+            lastReportTime = now;
+            return report;
+        }
+    }
+
+    /**
+     * Receives the reports of the slow operations.
+     */
+    public interface Sink {
+        /**
+         * Called with each report. Keep this cheap, it may be called on a latency sensitive thread.
+         */
+        void onReport(@NonNull BlockingReport report);
+    }
+}
@@ -0,0 +1,118 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Aggregated report of the slow operations of the same kind on the same key, made on latency sensitive threads.
+ *
+ * @see BlockingDetector
+ */
+
+public final class BlockingReport {
+    /**
+     * Kinds of the timed operations.
+     */
+    public enum Operation {
+        /**
+         * A read of the underlying store. The first read waits for the file to be loaded.
+         */
+        READ,
+        /**
+         * A write (apply or commit) to the underlying store.
+         */
+        WRITE,
+        /**
+         * Decoding of a stored json value.
+         */
+        DECODE,
+        /**
+         * Construction of a handler, including migrations and {@link PreferenceHandler#initializePreferenceValues}. The key is the name of the store.
+         */
+        INITIALIZE
+    }
+
+    private final Operation operation;
+    private final String key;
+    private final String threadName;
+    private final int count;
+    private final long totalDurationNanos;
+    private final long maxDurationNanos;
+    private final StackTraceElement[] stackTrace;
+
+    BlockingReport(@NonNull Operation operation,
+                   @NonNull String key,
+                   @NonNull String threadName,
+                   int count,
+                   long totalDurationNanos,
+                   long maxDurationNanos,
+                   @Nullable StackTraceElement[] stackTrace) {
+        this.operation = operation;
+        this.key = key;
+        this.threadName = threadName;
+        this.count = count;
+        this.totalDurationNanos = totalDurationNanos;
+        this.maxDurationNanos = maxDurationNanos;
+        this.stackTrace = stackTrace;
+    }
+
+    /**
+     * Get the kind of the operations.
+     */
+    @NonNull
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Get the key the operations were made on.
+     */
+    @NonNull
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get the name of the thread of the sampled operation.
+     */
+    @NonNull
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * Get the number of slow operations covered by this report.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the total duration (in nanoseconds) of the slow operations covered by this report.
+     */
+    public long getTotalDurationNanos() {
+        return totalDurationNanos;
+    }
+
+    /**
+     * Get the duration (in nanoseconds) of the slowest operation covered by this report.
+     */
+    public long getMaxDurationNanos() {
+        return maxDurationNanos;
+    }
+
+    /**
+     * Get the stack trace sampled from one of the operations, or null if stack sampling is disabled.
+     */
+    @Nullable
+    public StackTraceElement[] getStackTrace() {
+        return stackTrace;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return operation + " of " + key + " blocked " + threadName + " " + count + " time(s), " +
+            (totalDurationNanos / 1000000) + "ms in total, " + (maxDurationNanos / 1000000) + "ms at most";
+    }
+}
@@ -2,6 +2,13 @@ package com.buggysofts.preferencestore;
 
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A preference which with a predefined set of non-null values, and a default value.
@@ -13,6 +20,10 @@ public class BoundedPreference<T> {
     private final T[] allValues;
     private final Integer defaultValueIndex;
 
+    // lookup tables from values (and their json forms) to the instances in the value list, built on first use
+    private volatile Map<Object, T> canonicalValues;
+    private volatile Map<String, T> jsonValues;
+
     /**
      * Create a bounded preference.
      * <br>
@@ -78,6 +89,61 @@ public class BoundedPreference<T> {
         return allValues[defaultValueIndex];
     }
 
+    /**
+     * Get the instance from the value list that is equal to the specified value.
+     *
+     * @return the equal instance from the value list, or the specified value itself if no such instance exists.
+     */
+    @Nullable
+    T getCanonicalValue(@Nullable T value) {
+        T canonicalValue = findValue(value);
+        return canonicalValue != null ? canonicalValue : value;
+    }
+
+    /**
+     * Get the instance from the value list that is equal to the specified value, in constant time.
+     *
+     * @return the equal instance from the value list, or null if no such instance exists.
+     */
+    @Nullable
+    T findValue(@Nullable Object value) {
+        if (value == null) {
+            return null;
+        }
+        Map<Object, T> values = canonicalValues;
+        if (values == null) {
+            values = new HashMap<>();
+            for (int i = allValues.length - 1; i >= 0; i--) {
+                // the first equal instance wins
+                values.put(allValues[i], allValues[i]);
+            }
+            canonicalValues = values;
+        }
+        return values.get(value);
+    }
+
+    /**
+     * Get the instance from the value list whose json form (as written by {@link PreferenceHandler}) is the specified json.
+     *
+     * @return the instance from the value list, or null if no value has the specified json form.
+     */
+    @Nullable
+    T getValueOfJson(@NonNull String json) {
+        Map<String, T> values = jsonValues;
+        if (values == null) {
+            values = new HashMap<>();
+            Gson gson = new Gson();
+            for (int i = allValues.length - 1; i >= 0; i--) {
+                values.put(
+                    gson.toJson(allValues[i], TypeToken.get(allValues[i].getClass()).getType()),
+                    allValues[i]
+                );
+            }
+            jsonValues = values;
+        }
+        return values.get(json);
+    }
+
     /**
      * Get key string.
      */
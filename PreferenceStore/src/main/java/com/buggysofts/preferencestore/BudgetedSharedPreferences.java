@@ -0,0 +1,531 @@
+package com.buggysofts.preferencestore;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A view of a store that keeps track of the sizes of its entries, and enforces a {@link SizeBudget} on the writes made through it.
+ * Values diverted by the budget are kept in blob files, and the store only holds references to them, which are resolved on reads.
+ * <br>
+ * Sizes are loaded once, and then kept up to date with the writes made through this view. Writes made through other views of the same store are not seen.
+ * Blobs that the store does not refer to are deleted by the first view of the store in the process only, as the blobs that other views have
+ * written may not be referred to by what this one sees yet.
+ */
+
+final class BudgetedSharedPreferences implements SharedPreferences {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // marks a removal in an editor
+    private static final Object REMOVED = new Object();
+    // prefix of the values that refer to blob files, can not be produced by the handler
+    private static final String BLOB_REFERENCE_PREFIX = "\u0000blob:";
+    private static final String BLOB_TYPE = "Blob";
+    // blob directories whose unreferenced blobs were deleted in this process
+    private static final Set<String> SWEPT_DIRECTORIES = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final SharedPreferences delegate;
+    private final SizeBudget budget;
+    private final File blobDirectory;
+    private final Object lock = new Object();
+    // sizes of the entries in the store file, by key
+    private final ConcurrentHashMap<String, EntrySize> sizes = new ConcurrentHashMap<>();
+    // contents of the recently used blobs, by file name
+    private final ConcurrentHashMap<String, SoftReference<String>> blobCache = new ConcurrentHashMap<>();
+    // guarded by the lock
+    private long totalBytes;
+
+    BudgetedSharedPreferences(@NonNull SharedPreferences delegate,
+                              @NonNull SizeBudget budget,
+                              @NonNull File blobDirectory) {
+        this.delegate = delegate;
+        this.budget = budget;
+        this.blobDirectory = blobDirectory;
+
+        Set<String> referencedBlobs = new HashSet<>();
+        for (Map.Entry<String, ?> entry : delegate.getAll().entrySet()) {
+            EntrySize size = measure(entry.getKey(), entry.getValue());
+            sizes.put(entry.getKey(), size);
+            totalBytes += size.bytes;
+            if (size.blobName != null) {
+                referencedBlobs.add(size.blobName);
+            }
+        }
+
+        // blobs replaced by applied writes, or written right before a crash, are not referenced by the store anymore
+        File[] blobFiles = SWEPT_DIRECTORIES.add(blobDirectory.getAbsolutePath()) ? blobDirectory.listFiles() : null;
+        if (blobFiles != null) {
+            for (File blobFile : blobFiles) {
+                if (!referencedBlobs.contains(blobFile.getName())) {
+                    blobFile.delete();
+                }
+            }
+        }
+    }
+
+    // getters
+
+    @Override
+    @NonNull
+    public Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<String, Object>(delegate.getAll());
+        for (Map.Entry<String, Object> entry : all.entrySet()) {
+            if (isBlobReference(entry.getValue())) {
+                entry.setValue(readBlob((String) entry.getValue(), null));
+            }
+        }
+        // references to the lost blobs
+        all.values().removeAll(Collections.singleton(null));
+        return all;
+    }
+
+    @Override
+    @Nullable
+    public String getString(String key, @Nullable String defValue) {
+        String value = delegate.getString(key, defValue);
+        return isBlobReference(value) ? readBlob(value, defValue) : value;
+    }
+
+    @Override
+    @Nullable
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        return delegate.getStringSet(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return delegate.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return delegate.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return delegate.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return delegate.getBoolean(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return delegate.contains(key);
+    }
+
+    // editors
+
+    @Override
+    @NonNull
+    public Editor edit() {
+        return wrap(delegate.edit());
+    }
+
+    /**
+     * Get an editor that enforces the budget on the changes, and writes them through the specified editor of the underlying store.
+     */
+    @NonNull
+    Editor wrap(@NonNull Editor editor) {
+        return new BudgetedEditor(editor);
+    }
+
+    // listeners
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        delegate.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        delegate.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    // footprint
+
+    /**
+     * Get the footprint of the store, from the tracked sizes.
+     */
+    @NonNull
+    FootprintReport getFootprintReport() {
+        Map<String, Integer> entrySizes = new HashMap<>();
+        Map<String, String> entryTypes = new HashMap<>();
+        long blobBytes = 0;
+        for (Map.Entry<String, EntrySize> entry : sizes.entrySet()) {
+            entrySizes.put(entry.getKey(), entry.getValue().bytes);
+            entryTypes.put(entry.getKey(), entry.getValue().type);
+            blobBytes += entry.getValue().blobBytes;
+        }
+        return FootprintReport.create(entrySizes, entryTypes, blobBytes);
+    }
+
+    // blobs
+
+    private static boolean isBlobReference(@Nullable Object value) {
+        return value instanceof String && ((String) value).startsWith(BLOB_REFERENCE_PREFIX);
+    }
+
+    @NonNull
+    private static EntrySize measure(@NonNull String key, @Nullable Object value) {
+        if (isBlobReference(value)) {
+            String reference = (String) value;
+            int separator = reference.lastIndexOf(':');
+            return new EntrySize(
+                PreferenceSizes.estimateEntryBytes(key, reference),
+                BLOB_TYPE,
+                reference.substring(BLOB_REFERENCE_PREFIX.length(), separator),
+                Long.parseLong(reference.substring(separator + 1))
+            );
+        }
+        return new EntrySize(
+            PreferenceSizes.estimateEntryBytes(key, value),
+            PreferenceSizes.typeName(value),
+            null,
+            0
+        );
+    }
+
+    /**
+     * Get the content of the blob that the specified reference refers to.
+     *
+     * @return the content, or the specified default value if the blob is lost.
+     */
+    @Nullable
+    private String readBlob(@NonNull String reference, @Nullable String defValue) {
+        String blobName = reference.substring(BLOB_REFERENCE_PREFIX.length(), reference.lastIndexOf(':'));
+        SoftReference<String> cached = blobCache.get(blobName);
+        String content = cached != null ? cached.get() : null;
+        if (content != null) {
+            return content;
+        }
+
+        InputStream input = null;
+        try {
+            input = new FileInputStream(new File(blobDirectory, blobName));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            content = new String(output.toByteArray(), UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return defValue;
+        } finally {
+            closeQuietly(input);
+        }
+        blobCache.put(blobName, new SoftReference<>(content));
+        return content;
+    }
+
+    /**
+     * Write the specified value to a new blob file, durably.
+     *
+     * @return the reference to the blob.
+     */
+    @NonNull
+    private String writeBlob(@NonNull String value) {
+        String blobName = UUID.randomUUID().toString();
+        byte[] bytes = value.getBytes(UTF_8);
+        FileOutputStream output = null;
+        try {
+            if (!blobDirectory.isDirectory() && !blobDirectory.mkdirs() && !blobDirectory.isDirectory()) {
+                throw new IOException("Could not create " + blobDirectory);
+            }
+            output = new FileOutputStream(new File(blobDirectory, blobName));
+            output.write(bytes);
+            // the reference must never reach the disk before the blob does
+            output.getFD().sync();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write the blob of a diverted value.", e);
+        } finally {
+            closeQuietly(output);
+        }
+        blobCache.put(blobName, new SoftReference<>(value));
+        return BLOB_REFERENCE_PREFIX + blobName + ":" + bytes.length;
+    }
+
+    private void deleteBlob(@NonNull String blobName) {
+        blobCache.remove(blobName);
+        new File(blobDirectory, blobName).delete();
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Size of an entry in the store file, and of its blob, if it refers to one.
+     */
+    private static final class EntrySize {
+        private final int bytes;
+        private final String type;
+        private final String blobName;
+        private final long blobBytes;
+
+        private EntrySize(int bytes,
+                          @NonNull String type,
+                          @Nullable String blobName,
+                          long blobBytes) {
+            this.bytes = bytes;
+            this.type = type;
+            this.blobName = blobName;
+            this.blobBytes = blobBytes;
+        }
+    }
+
+    /**
+     * An editor that buffers its changes, and enforces the budget on all of them at once on apply.
+     */
+    private final class BudgetedEditor implements Editor {
+        private final Editor editor;
+        private final Map<String, Object> changes = new LinkedHashMap<>();
+        private boolean clear;
+
+        private BudgetedEditor(@NonNull Editor editor) {
+            this.editor = editor;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putString(String key, @Nullable String value) {
+            changes.put(key, value != null ? value : REMOVED);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putStringSet(String key, @Nullable Set<String> values) {
+            changes.put(key, values != null ? new HashSet<>(values) : REMOVED);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putLong(String key, long value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putFloat(String key, float value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor remove(String key) {
+            changes.put(key, REMOVED);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            List<String> replacedBlobs = write();
+            boolean committed = editor.commit();
+            if (committed) {
+                // the store does not refer to them anymore
+                for (String blobName : replacedBlobs) {
+                    deleteBlob(blobName);
+                }
+            }
+            return committed;
+        }
+
+        @Override
+        public void apply() {
+            // the replaced blobs are deleted by the next process that loads the store, it may still refer to them until the write reaches the disk
+            write();
+            editor.apply();
+        }
+
+        /**
+         * Enforce the budget on the buffered changes, and pass them to the underlying editor.
+         *
+         * @return names of the blobs that the changes replace.
+         * @throws RuntimeException if the changes are rejected by the budget. The buffered changes are discarded then.
+         */
+        @NonNull
+        @SuppressWarnings("unchecked")
+        private synchronized List<String> write() throws RuntimeException {
+            synchronized (lock) {
+                try {
+                    Map<String, EntrySize> newSizes = new LinkedHashMap<>();
+                    long newTotalBytes = clear ? 0 : totalBytes;
+                    String largestKey = null;
+                    for (Map.Entry<String, Object> change : changes.entrySet()) {
+                        String key = change.getKey();
+                        EntrySize oldSize = clear ? null : sizes.get(key);
+                        EntrySize newSize = change.getValue() != REMOVED ? measure(key, change.getValue()) : null;
+                        newTotalBytes += (newSize != null ? newSize.bytes : 0) - (oldSize != null ? oldSize.bytes : 0);
+                        newSizes.put(key, newSize);
+                        if (newSize != null && (largestKey == null || newSize.bytes > newSizes.get(largestKey).bytes)) {
+                            largestKey = key;
+                        }
+                    }
+
+                    // keys over their budgets
+                    Set<String> divertedKeys = new HashSet<>();
+                    for (Map.Entry<String, EntrySize> newSize : newSizes.entrySet()) {
+                        String key = newSize.getKey();
+                        if (newSize.getValue() != null && newSize.getValue().bytes > budget.getKeyBudget(key)) {
+                            if (enforce(key, newSize.getValue().bytes, budget.getKeyBudget(key), false)) {
+                                divertedKeys.add(key);
+                            }
+                        }
+                    }
+
+                    // divert what is needed (and possible) to stay within the store budget
+                    Map<String, String> references = new HashMap<>();
+                    if (largestKey != null && newTotalBytes > budget.getStoreBudget()) {
+                        // reported as the write of the largest entry among the changes
+                        if (enforce(largestKey, newTotalBytes, budget.getStoreBudget(), true)) {
+                            for (Map.Entry<String, EntrySize> newSize : newSizes.entrySet()) {
+                                if (newSize.getValue() != null) {
+                                    divertedKeys.add(newSize.getKey());
+                                }
+                            }
+                        }
+                    }
+                    for (String key : divertedKeys) {
+                        Object value = changes.get(key);
+                        if (value instanceof String && !isBlobReference(value)) {
+                            String reference = writeBlob((String) value);
+                            references.put(key, reference);
+                            newSizes.put(key, measure(key, reference));
+                        }
+                    }
+
+                    // everything is accepted, write it
+                    List<String> replacedBlobs = new ArrayList<>();
+                    if (clear) {
+                        for (EntrySize size : sizes.values()) {
+                            if (size.blobName != null) {
+                                replacedBlobs.add(size.blobName);
+                            }
+                        }
+                        sizes.clear();
+                        totalBytes = 0;
+                        editor.clear();
+                    }
+                    for (Map.Entry<String, Object> change : changes.entrySet()) {
+                        String key = change.getKey();
+                        Object value = references.containsKey(key) ? references.get(key) : change.getValue();
+                        if (value == REMOVED) {
+                            editor.remove(key);
+                        } else if (value instanceof Boolean) {
+                            editor.putBoolean(key, (Boolean) value);
+                        } else if (value instanceof Integer) {
+                            editor.putInt(key, (Integer) value);
+                        } else if (value instanceof Long) {
+                            editor.putLong(key, (Long) value);
+                        } else if (value instanceof Float) {
+                            editor.putFloat(key, (Float) value);
+                        } else if (value instanceof String) {
+                            editor.putString(key, (String) value);
+                        } else {
+                            editor.putStringSet(key, (Set<String>) value);
+                        }
+
+                        EntrySize newSize = newSizes.get(key);
+                        EntrySize oldSize = newSize != null ? sizes.put(key, newSize) : sizes.remove(key);
+                        totalBytes += (newSize != null ? newSize.bytes : 0) - (oldSize != null ? oldSize.bytes : 0);
+                        if (oldSize != null && oldSize.blobName != null) {
+                            replacedBlobs.add(oldSize.blobName);
+                        }
+                    }
+                    return replacedBlobs;
+                } finally {
+                    changes.clear();
+                    clear = false;
+                }
+            }
+        }
+
+        /**
+         * Apply the policy of the budget to an exceeded budget.
+         *
+         * @return true if the value (or values) should be diverted to blobs.
+         * @throws RuntimeException if the policy is to reject.
+         */
+        private boolean enforce(@NonNull String key,
+                                long sizeBytes,
+                                long budgetBytes,
+                                boolean storeBudget) throws RuntimeException {
+            SizeBudget.Listener listener = budget.getListener();
+            if (listener != null) {
+                listener.onBudgetExceeded(key, sizeBytes, budgetBytes, storeBudget, budget.getPolicy());
+            }
+            switch (budget.getPolicy()) {
+                case REJECT:
+                    throw new RuntimeException(
+                        String.format(
+                            "Write of %s rejected, %s size %d exceeds the budget of %d bytes.",
+                            key,
+                            storeBudget ? "store" : "entry",
+                            sizeBytes,
+                            budgetBytes
+                        )
+                    );
+                case DIVERT_TO_BLOB:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+}
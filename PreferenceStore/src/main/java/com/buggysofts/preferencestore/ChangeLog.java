@@ -0,0 +1,397 @@
+package com.buggysofts.preferencestore;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Change log of a store, for syncing it with the stores of other devices.
+ * <br>
+ * Every change of a key made through the versioned editor gets a version: a Lamport clock value and the id of the device that made it,
+ * which order the changes of all the devices (last writer wins), and the local change log position (sequence) at which it was written, which
+ * tells which changes a peer has not seen yet. Versions are kept in the store itself, as internal entries written along with the changes.
+ * Removals leave a versioned tombstone, so that they are synced as well.
+ * <br>
+ * For the keys that have a merge rule, the latest merged version of each device is kept as well, so that a change is merged only once,
+ * however many times it is delivered, and older changes of a device are not merged after newer ones.
+ */
+
+final class ChangeLog {
+    static final String VERSION_KEY_PREFIX = PreferenceHandler.INTERNAL_KEY_PREFIX + "version_";
+    static final String CLOCK_KEY = PreferenceHandler.INTERNAL_KEY_PREFIX + "change_clock";
+    static final String SEQUENCE_KEY = PreferenceHandler.INTERNAL_KEY_PREFIX + "change_sequence";
+    static final String MERGED_KEY_PREFIX = PreferenceHandler.INTERNAL_KEY_PREFIX + "merged_";
+    // marks the version of a removed key
+    private static final char TOMBSTONE = '-';
+
+    private final String deviceId;
+    private final Object lock = new Object();
+    // guarded by the lock
+    private long clock;
+    private long sequence;
+
+    ChangeLog(@NonNull String deviceId,
+              @NonNull SharedPreferences store) {
+        this.deviceId = deviceId;
+        this.clock = store.getLong(CLOCK_KEY, 0);
+        this.sequence = store.getLong(SEQUENCE_KEY, 0);
+    }
+
+    /**
+     * Get the current change log position.
+     */
+    long getSequence() {
+        synchronized (lock) {
+            return sequence;
+        }
+    }
+
+    /**
+     * Get an editor that versions the changes made through the specified editor.
+     */
+    @NonNull
+    SharedPreferences.Editor wrap(@NonNull SharedPreferences.Editor editor) {
+        return new VersionedEditor(editor);
+    }
+
+    /**
+     * Collect the latest changes of the keys changed after the specified position.
+     *
+     * @param peerDeviceId Id of the device the changes are for, whose own changes are left out, as it already has them (or newer ones). May be null.
+     */
+    @NonNull
+    PreferenceDelta getChangesSince(@NonNull SharedPreferences store,
+                                    long fromSequence,
+                                    @Nullable String peerDeviceId) {
+        // everything up to this position is already in the store
+        long toSequence = getSequence();
+        Map<String, ?> all = store.getAll();
+
+        List<PreferenceDelta.Change> changes = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            if (!entry.getKey().startsWith(VERSION_KEY_PREFIX)) continue;
+            Version version = Version.parse(entry.getValue());
+            if (version == null || version.sequence <= fromSequence) continue;
+            if (version.deviceId.equals(peerDeviceId)) continue;
+
+            String key = entry.getKey().substring(VERSION_KEY_PREFIX.length());
+            changes.add(
+                new PreferenceDelta.Change(
+                    key,
+                    version.removed ? null : all.get(key),
+                    version.lamport,
+                    version.deviceId
+                )
+            );
+        }
+        return new PreferenceDelta(fromSequence, toSequence, changes);
+    }
+
+    /**
+     * Apply the changes of a remote delta that win over the local ones, with a single write.
+     *
+     * @param boundedPreferences Declared bounded preferences, whose remote values are applied only if they are among the supported values.
+     * @return the number of changed keys.
+     */
+    int apply(@NonNull SharedPreferences store,
+              @NonNull PreferenceDelta delta,
+              @NonNull Map<String, PreferenceMergeRule> mergeRules,
+              @NonNull Map<String, BoundedPreference<?>> boundedPreferences) {
+        synchronized (lock) {
+            Map<String, ?> all = store.getAll();
+            long newSequence = sequence + 1;
+            for (PreferenceDelta.Change change : delta.getChanges()) {
+                clock = Math.max(clock, change.lamport);
+            }
+            // version of the merged values that are neither the local nor the remote value, taken on first use
+            long mergedLamport = 0;
+
+            SharedPreferences.Editor editor = store.edit();
+            int applied = 0;
+            boolean merged = false;
+            for (PreferenceDelta.Change change : delta.getChanges()) {
+                if (change.key.startsWith(PreferenceHandler.INTERNAL_KEY_PREFIX)) continue;
+                if (change.value != null) {
+                    BoundedPreference<?> boundedPreference = boundedPreferences.get(change.key);
+                    if (boundedPreference != null && !PreferenceHandler.isValueOf(boundedPreference, change.value)) continue;
+                }
+
+                Version local = Version.parse(all.get(VERSION_KEY_PREFIX + change.key));
+                Object localValue = all.get(change.key);
+                PreferenceMergeRule mergeRule = mergeRules.get(change.key);
+
+                Object value;
+                long lamport;
+                String valueDeviceId;
+                if (mergeRule != null) {
+                    // already merged, or older than a merged change of the same device
+                    String mergedKey = getMergedKey(change.deviceId, change.key);
+                    if (change.lamport <= store.getLong(mergedKey, 0)) continue;
+                    editor.putLong(mergedKey, change.lamport);
+                    merged = true;
+
+                    value = mergeRule.merge(change.key, localValue, change.value);
+                    if (equal(value, localValue)) continue;
+                    if (equal(value, change.value)) {
+                        lamport = change.lamport;
+                        valueDeviceId = change.deviceId;
+                    } else {
+                        // a new value, which the remote device has to receive as well
+                        if (mergedLamport == 0) {
+                            mergedLamport = ++clock;
+                        }
+                        lamport = mergedLamport;
+                        valueDeviceId = deviceId;
+                    }
+                } else {
+                    if (local != null && !isNewer(change.lamport, change.deviceId, local)) continue;
+                    value = change.value;
+                    lamport = change.lamport;
+                    valueDeviceId = change.deviceId;
+                }
+
+                if (value != null) {
+                    putRawValue(editor, change.key, value);
+                } else {
+                    editor.remove(change.key);
+                }
+                editor.putString(
+                    VERSION_KEY_PREFIX + change.key,
+                    Version.format(value == null, newSequence, lamport, valueDeviceId)
+                );
+                ++applied;
+            }
+
+            // nothing to write, the advanced clock is written with the next change
+            if (applied == 0 && !merged) {
+                return 0;
+            }
+
+            if (applied > 0) {
+                sequence = newSequence;
+                editor.putLong(CLOCK_KEY, clock);
+                editor.putLong(SEQUENCE_KEY, sequence);
+            }
+            // apply all the changes at once and schedule commit
+            editor.apply();
+            return applied;
+        }
+    }
+
+    /**
+     * Get the key of the latest merged version of the specified device, for the specified key.
+     */
+    @NonNull
+    private static String getMergedKey(@NonNull String deviceId, @NonNull String key) {
+        // prefixed with its length, so that device ids and keys can not run into each other
+        return MERGED_KEY_PREFIX + deviceId.length() + ':' + deviceId + key;
+    }
+
+    private static boolean isNewer(long lamport, @NonNull String deviceId, @NonNull Version than) {
+        if (lamport != than.lamport) {
+            return lamport > than.lamport;
+        }
+        // concurrent changes, the same winner on all the devices
+        return deviceId.compareTo(than.deviceId) > 0;
+    }
+
+    private static boolean equal(@Nullable Object first, @Nullable Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putRawValue(@NonNull SharedPreferences.Editor editor,
+                                    @NonNull String key,
+                                    @NonNull Object value) throws RuntimeException {
+        if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Set) {
+            editor.putStringSet(key, (Set<String>) value);
+        } else {
+            throw new RuntimeException("Unsupported value type: " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Version of a key, stored as <b>[-]sequence,lamport,deviceId</b>, the leading dash marking a removal.
+     */
+    private static final class Version {
+        private final boolean removed;
+        private final long sequence;
+        private final long lamport;
+        private final String deviceId;
+
+        private Version(boolean removed, long sequence, long lamport, @NonNull String deviceId) {
+            this.removed = removed;
+            this.sequence = sequence;
+            this.lamport = lamport;
+            this.deviceId = deviceId;
+        }
+
+        @NonNull
+        private static String format(boolean removed, long sequence, long lamport, @NonNull String deviceId) {
+            return (removed ? String.valueOf(TOMBSTONE) : "") + sequence + ',' + lamport + ',' + deviceId;
+        }
+
+        /**
+         * @return the version, or null if the stored value is not a version.
+         */
+        @Nullable
+        private static Version parse(@Nullable Object stored) {
+            if (!(stored instanceof String)) {
+                return null;
+            }
+            String text = (String) stored;
+            boolean removed = !text.isEmpty() && text.charAt(0) == TOMBSTONE;
+            int start = removed ? 1 : 0;
+            int firstComma = text.indexOf(',', start);
+            int secondComma = firstComma < 0 ? -1 : text.indexOf(',', firstComma + 1);
+            if (secondComma < 0) {
+                return null;
+            }
+            try {
+                return new Version(
+                    removed,
+                    Long.parseLong(text.substring(start, firstComma)),
+                    Long.parseLong(text.substring(firstComma + 1, secondComma)),
+                    text.substring(secondComma + 1)
+                );
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * An editor that writes the versions of the changed keys along with the changes, on apply.
+     * Clearing is not versioned, and is not synced.
+     */
+    private final class VersionedEditor implements SharedPreferences.Editor {
+        private final SharedPreferences.Editor editor;
+        // changed keys, and whether their last change was a removal
+        private final Map<String, Boolean> changes = new LinkedHashMap<>();
+
+        private VersionedEditor(@NonNull SharedPreferences.Editor editor) {
+            this.editor = editor;
+        }
+
+        @Override
+        @NonNull
+        public synchronized SharedPreferences.Editor putString(String key, @Nullable String value) {
+            changed(key, value == null);
+            editor.putString(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized SharedPreferences.Editor putStringSet(String key, @Nullable Set<String> values) {
+            changed(key, values == null);
+            editor.putStringSet(key, values);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized SharedPreferences.Editor putInt(String key, int value) {
+            changed(key, false);
+            editor.putInt(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized SharedPreferences.Editor putLong(String key, long value) {
+            changed(key, false);
+            editor.putLong(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized SharedPreferences.Editor putFloat(String key, float value) {
+            changed(key, false);
+            editor.putFloat(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized SharedPreferences.Editor putBoolean(String key, boolean value) {
+            changed(key, false);
+            editor.putBoolean(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized SharedPreferences.Editor remove(String key) {
+            changed(key, true);
+            editor.remove(key);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized SharedPreferences.Editor clear() {
+            editor.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            synchronized (lock) {
+                stamp();
+                return editor.commit();
+            }
+        }
+
+        @Override
+        public void apply() {
+            synchronized (lock) {
+                stamp();
+                editor.apply();
+            }
+        }
+
+        private void changed(@NonNull String key, boolean removed) {
+            if (!key.startsWith(PreferenceHandler.INTERNAL_KEY_PREFIX)) {
+                changes.put(key, removed);
+            }
+        }
+
+        /**
+         * Put the versions of the changed keys to the underlying editor, all of them at a new position of the change log.
+         */
+        private synchronized void stamp() {
+            if (changes.isEmpty()) return;
+
+            ++sequence;
+            ++clock;
+            for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+                editor.putString(
+                    VERSION_KEY_PREFIX + change.getKey(),
+                    Version.format(change.getValue(), sequence, clock, deviceId)
+                );
+            }
+            editor.putLong(CLOCK_KEY, clock);
+            editor.putLong(SEQUENCE_KEY, sequence);
+            changes.clear();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+import java.util.regex.Pattern;
+
+/**
+ * A preference whose supported values are described by a rule (such as a numeric range, a pattern or a predicate), instead of being listed one by one,
+ * and a default value.
+ * <br>
+ * Use the static factories for the common rules, or the constructor with a custom {@link ValueConstraint}.
+ */
+
+public class ConstrainedPreference<T> {
+    private final String key;
+    private final String desc;
+    private final ValueConstraint<T> constraint;
+    private final T defaultValue;
+
+    /**
+     * Create a constrained preference.
+     * <br>
+     *
+     * @param keyName      Name of the preference. Should be of the form <b>pref_key_*</b>.
+     * @param desc         Description of the preference, its context, purpose & usability, and any other important information. This is not going to be used anywhere, the purpose of this is to remind the user what it is for and how to use it.
+     * @param constraint   Rule that decides the supported values.
+     * @param defaultValue Value that should be used as default. Must be supported by the constraint.
+     * @throws RuntimeException if any contract violation is found.
+     */
+    public ConstrainedPreference(@NonNull String keyName,
+                                 @NonNull String desc,
+                                 @NonNull ValueConstraint<T> constraint,
+                                 @NonNull T defaultValue) {
+        this.key = keyName;
+        this.desc = desc;
+        this.constraint = constraint;
+        this.defaultValue = defaultValue;
+
+        if (key == null) {
+            throw new RuntimeException("Key must not be null.");
+        }
+        if (constraint == null) {
+            throw new RuntimeException("Constraint must not be null.");
+        }
+        if (defaultValue == null || !constraint.accepts(defaultValue)) {
+            throw new RuntimeException("Default value must be supported by the constraint.");
+        }
+    }
+
+    // factories
+
+    /**
+     * Create a preference that supports the integers from <b>min</b> to <b>max</b> (both inclusive), which are <b>step</b> apart starting from <b>min</b>.
+     *
+     * @throws RuntimeException if any contract violation is found.
+     */
+    @NonNull
+    public static ConstrainedPreference<Integer> intRange(@NonNull String keyName,
+                                                          @NonNull String desc,
+                                                          final int min,
+                                                          final int max,
+                                                          @IntRange(from = 1) final int step,
+                                                          int defaultValue) {
+        if (min > max || step <= 0) {
+            throw new RuntimeException("Invalid range. Make sure min <= max, and step > 0.");
+        }
+        return new ConstrainedPreference<>(
+            keyName,
+            desc,
+            new ValueConstraint<Integer>() {
+                @Override
+                public boolean accepts(@NonNull Integer value) {
+                    // widened, so that (value - min) can not overflow
+                    return value >= min && value <= max && ((long) value - min) % step == 0;
+                }
+            },
+            defaultValue
+        );
+    }
+
+    /**
+     * Create a preference that supports the longs from <b>min</b> to <b>max</b> (both inclusive), which are <b>step</b> apart starting from <b>min</b>.
+     *
+     * @throws RuntimeException if any contract violation is found.
+     */
+    @NonNull
+    public static ConstrainedPreference<Long> longRange(@NonNull String keyName,
+                                                        @NonNull String desc,
+                                                        final long min,
+                                                        final long max,
+                                                        @IntRange(from = 1) final long step,
+                                                        long defaultValue) {
+        if (min > max || step <= 0) {
+            throw new RuntimeException("Invalid range. Make sure min <= max, and step > 0.");
+        }
+        return new ConstrainedPreference<>(
+            keyName,
+            desc,
+            new ValueConstraint<Long>() {
+                @Override
+                public boolean accepts(@NonNull Long value) {
+                    // (value - min) overflows for ranges wider than Long.MAX_VALUE, but is still right as an unsigned value
+                    return value >= min && value <= max && remainderUnsigned(value - min, step) == 0;
+                }
+            },
+            defaultValue
+        );
+    }
+
+    /**
+     * Create a preference that supports the floats from <b>min</b> to <b>max</b> (both inclusive).
+     * If <b>step</b> is greater than zero, only the values which are (approximately) a multiple of <b>step</b> apart from <b>min</b> are supported.
+     *
+     * @throws RuntimeException if any contract violation is found.
+     */
+    @NonNull
+    public static ConstrainedPreference<Float> floatRange(@NonNull String keyName,
+                                                          @NonNull String desc,
+                                                          final float min,
+                                                          final float max,
+                                                          final float step,
+                                                          float defaultValue) {
+        if (!(min <= max) || !(step >= 0)) {
+            throw new RuntimeException("Invalid range. Make sure min <= max, and step >= 0.");
+        }
+        return new ConstrainedPreference<>(
+            keyName,
+            desc,
+            new ValueConstraint<Float>() {
+                @Override
+                public boolean accepts(@NonNull Float value) {
+                    // also rejects NaN
+                    if (!(value >= min && value <= max)) {
+                        return false;
+                    }
+                    if (step == 0) {
+                        return true;
+                    }
+                    double steps = ((double) value - min) / step;
+                    return Math.abs(steps - Math.rint(steps)) < 1e-4;
+                }
+            },
+            defaultValue
+        );
+    }
+
+    /**
+     * Create a preference that supports the strings which entirely match the specified pattern.
+     *
+     * @throws RuntimeException if any contract violation is found.
+     */
+    @NonNull
+    public static ConstrainedPreference<String> pattern(@NonNull String keyName,
+                                                        @NonNull String desc,
+                                                        @NonNull final Pattern pattern,
+                                                        @NonNull String defaultValue) {
+        return new ConstrainedPreference<>(
+            keyName,
+            desc,
+            new ValueConstraint<String>() {
+                @Override
+                public boolean accepts(@NonNull String value) {
+                    return pattern.matcher(value).matches();
+                }
+            },
+            defaultValue
+        );
+    }
+
+    /**
+     * Create a preference that supports the strings which are at most <b>maxLength</b> characters long.
+     *
+     * @throws RuntimeException if any contract violation is found.
+     */
+    @NonNull
+    public static ConstrainedPreference<String> maxLength(@NonNull String keyName,
+                                                          @NonNull String desc,
+                                                          @IntRange(from = 0) final int maxLength,
+                                                          @NonNull String defaultValue) {
+        if (maxLength < 0) {
+            throw new RuntimeException("Maximum length must not be negative.");
+        }
+        return new ConstrainedPreference<>(
+            keyName,
+            desc,
+            new ValueConstraint<String>() {
+                @Override
+                public boolean accepts(@NonNull String value) {
+                    return value.length() <= maxLength;
+                }
+            },
+            defaultValue
+        );
+    }
+
+    /**
+     * Whether the specified value is supported by this preference.
+     */
+    public boolean accepts(@NonNull T value) {
+        return value != null && constraint.accepts(value);
+    }
+
+    /**
+     * Get the rule that decides the supported values.
+     */
+    @NonNull
+    public ValueConstraint<T> getConstraint() {
+        return constraint;
+    }
+
+    /**
+     * Get the default value of this preference.
+     */
+    @NonNull
+    public T getDefaultValue() {
+        return defaultValue;
+    }
+
+    /**
+     * Get key string.
+     */
+    @NonNull
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get description string.
+     */
+    @NonNull
+    public String getDescription() {
+        return desc;
+    }
+
+    /**
+     * Get the remainder of the specified unsigned dividend divided by the specified positive divisor.
+     * This serves the purpose of {@code Long.remainderUnsigned()}, which is not available before API 26.
+     */
+    private static long remainderUnsigned(long dividend, long divisor) {
+        if (dividend >= 0) {
+            return dividend % divisor;
+        }
+        // halve the dividend to fit it in a signed long, then correct the remainder of the doubled quotient
+        long remainder = dividend - (((dividend >>> 1) / divisor) << 1) * divisor;
+        return (remainder ^ Long.MIN_VALUE) >= (divisor ^ Long.MIN_VALUE) ? remainder - divisor : remainder;
+    }
+}
@@ -0,0 +1,76 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * A preference which holds a non-decreasing long counter, starting from zero.
+ * Increments are accumulated in memory, and are persisted only after the configured number of increments, after the configured interval, or on flush.
+ */
+
+public class CounterPreference {
+    private final String key;
+    private final String desc;
+    private final long persistThreshold;
+    private final long persistIntervalMillis;
+
+    /**
+     * Create a counter preference.
+     * <br>
+     *
+     * @param keyName               Name of the preference. Should be of the form <b>pref_key_*</b>.
+     * @param desc                  Description of the preference, its context, purpose & usability, and any other important information. This is not going to be used anywhere, the purpose of this is to remind the user what it is for and how to use it.
+     * @param persistThreshold      Amount by which the counter may grow in memory before it is persisted. Use 0 to disable threshold based persisting.
+     * @param persistIntervalMillis Interval (in milliseconds) at which the counter is persisted in the background. Use 0 to disable periodic persisting.
+     * @throws RuntimeException if any contract violation is found.
+     */
+    public CounterPreference(@NonNull String keyName,
+                             @NonNull String desc,
+                             @IntRange(from = 0) long persistThreshold,
+                             @IntRange(from = 0) long persistIntervalMillis) {
+        this.key = keyName;
+        this.desc = desc;
+        this.persistThreshold = persistThreshold;
+        this.persistIntervalMillis = persistIntervalMillis;
+
+        if (key == null) {
+            throw new RuntimeException("Key must not be null.");
+        }
+        if (persistThreshold < 0) {
+            throw new RuntimeException("Persist threshold must not be negative.");
+        }
+        if (persistIntervalMillis < 0) {
+            throw new RuntimeException("Persist interval must not be negative.");
+        }
+    }
+
+    /**
+     * Get the amount by which the counter may grow in memory before it is persisted. 0 means threshold based persisting is disabled.
+     */
+    public long getPersistThreshold() {
+        return persistThreshold;
+    }
+
+    /**
+     * Get the interval (in milliseconds) at which the counter is persisted. 0 means periodic persisting is disabled.
+     */
+    public long getPersistIntervalMillis() {
+        return persistIntervalMillis;
+    }
+
+    /**
+     * Get key string.
+     */
+    @NonNull
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get description string.
+     */
+    @NonNull
+    public String getDescription() {
+        return desc;
+    }
+}
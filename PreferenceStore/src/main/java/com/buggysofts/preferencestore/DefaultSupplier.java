@@ -0,0 +1,18 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Builds the default value of a preference, for {@link PreferenceHandler}'s lazily computed defaults.
+ * It is called only when the preference is not present, at most once per handler and key (unless it throws), so it may be expensive.
+ */
+
+public interface DefaultSupplier<T> {
+    /**
+     * Build the default value.
+     *
+     * @return the default value. Must not be null.
+     */
+    @NonNull
+    T get();
+}
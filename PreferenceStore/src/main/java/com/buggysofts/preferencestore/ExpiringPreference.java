@@ -0,0 +1,62 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * A preference with an unknown value, which stays valid only for a limited amount of time after it was written.
+ * The value is stored together with its expiry time, and once the expiry time is over, the preference behaves as if it was not present.
+ */
+
+public class ExpiringPreference<T> {
+    private final String key;
+    private final String desc;
+    private final long timeToLiveMillis;
+
+    /**
+     * Create an expiring preference.
+     * <br>
+     *
+     * @param keyName          Name of the preference. Should be of the form <b>pref_key_*</b>.
+     * @param desc             Description of the preference, its context, purpose & usability, and any other important information. This is not going to be used anywhere, the purpose of this is to remind the user what it is for and how to use it.
+     * @param timeToLiveMillis Default lifetime (in milliseconds) of a written value. Must be greater than zero.
+     * @throws RuntimeException if any contract violation is found.
+     */
+    public ExpiringPreference(@NonNull String keyName,
+                              @NonNull String desc,
+                              @IntRange(from = 1) long timeToLiveMillis) {
+        this.key = keyName;
+        this.desc = desc;
+        this.timeToLiveMillis = timeToLiveMillis;
+
+        if (key == null) {
+            throw new RuntimeException("Key must not be null.");
+        }
+        if (timeToLiveMillis <= 0) {
+            throw new RuntimeException("Time to live must be greater than zero.");
+        }
+    }
+
+    /**
+     * Get the default lifetime (in milliseconds) of a written value.
+     */
+    public long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    /**
+     * Get key string.
+     */
+    @NonNull
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get description string.
+     */
+    @NonNull
+    public String getDescription() {
+        return desc;
+    }
+}
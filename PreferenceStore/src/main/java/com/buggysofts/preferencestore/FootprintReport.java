@@ -0,0 +1,118 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Footprint of a store, as estimated encoded sizes (in bytes) of its entries, per key, per type, and in total.
+ *
+ * @see PreferenceHandler#getFootprintReport()
+ */
+
+public final class FootprintReport {
+    private final Map<String, Long> keySizes;
+    private final Map<String, Long> typeSizes;
+    private final long totalBytes;
+    private final long blobBytes;
+
+    FootprintReport(@NonNull Map<String, Long> keySizes,
+                    @NonNull Map<String, Long> typeSizes,
+                    long totalBytes,
+                    long blobBytes) {
+        this.keySizes = Collections.unmodifiableMap(keySizes);
+        this.typeSizes = Collections.unmodifiableMap(typeSizes);
+        this.totalBytes = totalBytes;
+        this.blobBytes = blobBytes;
+    }
+
+    /**
+     * Create a report from the sizes and the value types of the entries of a store.
+     *
+     * @param entrySizes Sizes (in bytes) of the entries in the store file, by key.
+     * @param entryTypes Value types of the entries, by key.
+     * @param blobBytes  Total size of the values diverted to blob files.
+     */
+    @NonNull
+    static FootprintReport create(@NonNull Map<String, Integer> entrySizes,
+                                  @NonNull Map<String, String> entryTypes,
+                                  long blobBytes) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(entrySizes.entrySet());
+        Collections.sort(
+            entries,
+            new Comparator<Map.Entry<String, Integer>>() {
+                @Override
+                public int compare(Map.Entry<String, Integer> first, Map.Entry<String, Integer> second) {
+                    return Integer.compare(second.getValue(), first.getValue());
+                }
+            }
+        );
+
+        long totalBytes = 0;
+        Map<String, Long> keySizes = new LinkedHashMap<>();
+        Map<String, Long> typeSizes = new TreeMap<>();
+        for (Map.Entry<String, Integer> entry : entries) {
+            long size = entry.getValue();
+            keySizes.put(entry.getKey(), size);
+            totalBytes += size;
+
+            String type = entryTypes.get(entry.getKey());
+            Long typeSize = typeSizes.get(type);
+            typeSizes.put(type, typeSize != null ? typeSize + size : size);
+        }
+        return new FootprintReport(keySizes, typeSizes, totalBytes, blobBytes);
+    }
+
+    /**
+     * Get the sizes of the entries in the store file, by key, from the largest to the smallest. Diverted values are counted by the size of their references.
+     */
+    @NonNull
+    public Map<String, Long> getKeySizes() {
+        return keySizes;
+    }
+
+    /**
+     * Get the total sizes of the entries in the store file, by value type (<b>Boolean</b>, <b>Integer</b>, <b>Long</b>, <b>Float</b>, <b>String</b>, <b>Set</b> or <b>Blob</b>).
+     */
+    @NonNull
+    public Map<String, Long> getTypeSizes() {
+        return typeSizes;
+    }
+
+    /**
+     * Get the total size of the entries in the store file, which is what every load and commit of the file pays for.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Get the total size of the values diverted to blob files.
+     */
+    public long getBlobBytes() {
+        return blobBytes;
+    }
+
+    /**
+     * Get the keys of the largest entries.
+     *
+     * @param count Maximum number of keys.
+     * @return the keys, from the largest entry to the smallest.
+     */
+    @NonNull
+    public List<String> getLargestKeys(@IntRange(from = 0) int count) {
+        List<String> keys = new ArrayList<>(Math.min(count, keySizes.size()));
+        for (String key : keySizes.keySet()) {
+            if (keys.size() >= count) break;
+            keys.add(key);
+        }
+        return keys;
+    }
+}
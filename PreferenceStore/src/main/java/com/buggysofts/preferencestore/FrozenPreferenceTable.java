@@ -0,0 +1,245 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable table of preference values, indexed by a minimal perfect hash of their keys.
+ * <br>
+ * Each key maps to its own slot with two array reads (hash and displace), and values are held in parallel arrays specialized by type,
+ * so reads neither box nor probe. Keys sharing a {@link String#hashCode()} with another key are left out, and must be read elsewhere.
+ */
+
+final class FrozenPreferenceTable {
+    static final byte TYPE_ABSENT = 0;
+    static final byte TYPE_BOOLEAN = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_FLOAT = 4;
+    static final byte TYPE_OBJECT = 5;
+
+    // displacement search attempts per bucket, before retrying with more buckets
+    private static final int MAX_DISPLACEMENT = 1 << 16;
+
+    private final int[] displacements;
+    private final String[] keys;
+    private final byte[] types;
+    private final int[] ints;
+    private final long[] longs;
+    private final float[] floats;
+    private final boolean[] booleans;
+    private final Object[] objects;
+
+    private FrozenPreferenceTable(int[] displacements, String[] keys) {
+        this.displacements = displacements;
+        this.keys = keys;
+        this.types = new byte[keys.length];
+        this.ints = new int[keys.length];
+        this.longs = new long[keys.length];
+        this.floats = new float[keys.length];
+        this.booleans = new boolean[keys.length];
+        this.objects = new Object[keys.length];
+    }
+
+    /**
+     * Compile the specified keys and their values into a table.
+     *
+     * @param keys     Keys to include in the table. Keys missing from the snapshot are included as absent.
+     * @param snapshot Values of the store.
+     */
+    @NonNull
+    static FrozenPreferenceTable build(@NonNull Collection<String> keys, @NonNull Map<String, ?> snapshot) {
+        // keys with equal hash codes can not be separated by displacement, keep only the first of each
+        Map<Integer, String> uniqueKeys = new HashMap<>();
+        for (String key : keys) {
+            if (!uniqueKeys.containsKey(key.hashCode())) {
+                uniqueKeys.put(key.hashCode(), key);
+            }
+        }
+        String[] keyArray = uniqueKeys.values().toArray(new String[0]);
+
+        FrozenPreferenceTable table = null;
+        for (int bucketCount = Math.max(1, keyArray.length / 2); table == null; bucketCount *= 2) {
+            table = tryBuild(keyArray, bucketCount);
+        }
+        for (int slot = 0; slot < table.keys.length; slot++) {
+            table.setValue(slot, snapshot.get(table.keys[slot]));
+        }
+        return table;
+    }
+
+    @Nullable
+    private static FrozenPreferenceTable tryBuild(@NonNull String[] keys, int bucketCount) {
+        int slotCount = keys.length;
+
+        List<List<String>> buckets = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new ArrayList<String>(4));
+        }
+        for (String key : keys) {
+            buckets.get(bucketOf(key.hashCode(), bucketCount)).add(key);
+        }
+        Integer[] order = new Integer[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            order[i] = i;
+        }
+        final List<List<String>> finalBuckets = buckets;
+        // largest buckets first, while most of the slots are still free
+        Arrays.sort(
+            order,
+            new Comparator<Integer>() {
+                @Override
+                public int compare(Integer first, Integer second) {
+                    return Integer.compare(finalBuckets.get(second).size(), finalBuckets.get(first).size());
+                }
+            }
+        );
+
+        int[] displacements = new int[bucketCount];
+        String[] slots = new String[slotCount];
+        int[] candidateSlots = new int[slotCount];
+        for (Integer bucketIndex : order) {
+            List<String> bucket = buckets.get(bucketIndex);
+            if (bucket.isEmpty()) {
+                break;
+            }
+
+            boolean placed = false;
+            for (int displacement = 0; displacement < MAX_DISPLACEMENT && !placed; displacement++) {
+                placed = true;
+                for (int i = 0; i < bucket.size() && placed; i++) {
+                    int slot = slotOf(bucket.get(i).hashCode(), displacement, slotCount);
+                    if (slots[slot] != null) {
+                        placed = false;
+                    } else {
+                        for (int j = 0; j < i; j++) {
+                            if (candidateSlots[j] == slot) {
+                                placed = false;
+                                break;
+                            }
+                        }
+                    }
+                    candidateSlots[i] = slot;
+                }
+                if (placed) {
+                    for (int i = 0; i < bucket.size(); i++) {
+                        slots[candidateSlots[i]] = bucket.get(i);
+                    }
+                    displacements[bucketIndex] = displacement;
+                }
+            }
+            if (!placed) {
+                return null;
+            }
+        }
+        return new FrozenPreferenceTable(displacements, slots);
+    }
+
+    /**
+     * Get the slot of the specified key.
+     *
+     * @return the slot, or -1 if the key is not in the table.
+     */
+    int slotOf(@NonNull String key) {
+        if (keys.length == 0) {
+            return -1;
+        }
+        int hash = key.hashCode();
+        int slot = slotOf(hash, displacements[bucketOf(hash, displacements.length)], keys.length);
+        String candidate = keys[slot];
+        return candidate.equals(key) ? slot : -1;
+    }
+
+    boolean contains(int slot) {
+        return types[slot] != TYPE_ABSENT;
+    }
+
+    boolean getBoolean(int slot, boolean defaultValue) {
+        return checkType(slot, TYPE_BOOLEAN) ? booleans[slot] : defaultValue;
+    }
+
+    int getInt(int slot, int defaultValue) {
+        return checkType(slot, TYPE_INT) ? ints[slot] : defaultValue;
+    }
+
+    long getLong(int slot, long defaultValue) {
+        return checkType(slot, TYPE_LONG) ? longs[slot] : defaultValue;
+    }
+
+    float getFloat(int slot, float defaultValue) {
+        return checkType(slot, TYPE_FLOAT) ? floats[slot] : defaultValue;
+    }
+
+    @Nullable
+    String getString(int slot, @Nullable String defaultValue) {
+        return checkType(slot, TYPE_OBJECT) ? (String) objects[slot] : defaultValue;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    Set<String> getStringSet(int slot, @Nullable Set<String> defaultValue) {
+        return checkType(slot, TYPE_OBJECT) ? (Set<String>) objects[slot] : defaultValue;
+    }
+
+    /**
+     * @return true if the slot holds a value of the specified type, false if it is absent.
+     * @throws ClassCastException if the slot holds a value of another type, just like the underlying store does.
+     */
+    private boolean checkType(int slot, byte type) throws ClassCastException {
+        byte actualType = types[slot];
+        if (actualType == type) {
+            return true;
+        } else if (actualType == TYPE_ABSENT) {
+            return false;
+        }
+        throw new ClassCastException("Preference " + keys[slot] + " holds a value of another type.");
+    }
+
+    private void setValue(int slot, @Nullable Object value) {
+        if (value == null) {
+            types[slot] = TYPE_ABSENT;
+        } else if (value instanceof Boolean) {
+            types[slot] = TYPE_BOOLEAN;
+            booleans[slot] = (Boolean) value;
+        } else if (value instanceof Integer) {
+            types[slot] = TYPE_INT;
+            ints[slot] = (Integer) value;
+        } else if (value instanceof Long) {
+            types[slot] = TYPE_LONG;
+            longs[slot] = (Long) value;
+        } else if (value instanceof Float) {
+            types[slot] = TYPE_FLOAT;
+            floats[slot] = (Float) value;
+        } else {
+            types[slot] = TYPE_OBJECT;
+            objects[slot] = value;
+        }
+    }
+
+    private static int bucketOf(int hash, int bucketCount) {
+        return (mix(hash) & Integer.MAX_VALUE) % bucketCount;
+    }
+
+    private static int slotOf(int hash, int displacement, int slotCount) {
+        return (mix(hash + displacement * 0x9E3779B9) & Integer.MAX_VALUE) % slotCount;
+    }
+
+    // murmur3 finalizer
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
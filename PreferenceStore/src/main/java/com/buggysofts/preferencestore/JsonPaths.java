@@ -0,0 +1,237 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * Streaming access to single fields of stored json documents, by dot separated paths such as <b>settings.theme.primary</b>.
+ * Numeric path segments index into arrays. Object member names containing dots can not be addressed.
+ */
+
+final class JsonPaths {
+    // thread safe, and caches its type adapters
+    private static final Gson GSON = new Gson();
+
+    private JsonPaths() {
+    }
+
+    /**
+     * Read the value at the specified path. Subtrees off the path are skipped without being materialized,
+     * and reading stops as soon as the value is decoded.
+     *
+     * @return the value, or null if the path doesn't exist or the value is null.
+     * @throws IOException if the document is malformed.
+     */
+    @Nullable
+    static <V> V readField(@NonNull String json,
+                           @NonNull String path,
+                           @NonNull Class<V> type) throws IOException {
+        String[] segments = split(path);
+        JsonReader reader = new JsonReader(new StringReader(json));
+        try {
+            for (String segment : segments) {
+                JsonToken token = reader.peek();
+                if (token == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    boolean found = false;
+                    while (reader.hasNext()) {
+                        if (reader.nextName().equals(segment)) {
+                            found = true;
+                            break;
+                        }
+                        reader.skipValue();
+                    }
+                    if (!found) {
+                        return null;
+                    }
+                } else if (token == JsonToken.BEGIN_ARRAY) {
+                    int index = parseIndex(segment);
+                    reader.beginArray();
+                    for (int i = 0; i < index && reader.hasNext(); i++) {
+                        reader.skipValue();
+                    }
+                    if (index < 0 || !reader.hasNext()) {
+                        return null;
+                    }
+                } else {
+                    return null;
+                }
+            }
+            if (reader.peek() == JsonToken.NULL) {
+                return null;
+            }
+            return GSON.getAdapter(type).read(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Rewrite the document with the value at the specified path replaced, in a single streaming pass.
+     * If the parent of the path exists but the member doesn't, the member is appended to the parent.
+     *
+     * @param value Json form of the new value. A json null removes the member.
+     * @return the rewritten document.
+     * @throws IOException if the document is malformed.
+     * @throws RuntimeException if the parent of the path doesn't exist.
+     */
+    @NonNull
+    static String patchField(@NonNull String json,
+                             @NonNull String path,
+                             @NonNull JsonElement value) throws IOException, RuntimeException {
+        String[] segments = split(path);
+        StringWriter output = new StringWriter(json.length() + 16);
+        JsonReader reader = new JsonReader(new StringReader(json));
+        JsonWriter writer = new JsonWriter(output);
+        try {
+            if (!copy(reader, writer, segments, 0, value)) {
+                throw new RuntimeException("Path not found: " + path);
+            }
+            writer.flush();
+            return output.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Copy the value at the reader to the writer, replacing the value at the remaining path segments on the way.
+     *
+     * @param depth Number of path segments leading to the value being copied.
+     * @return whether the replacement was written.
+     */
+    private static boolean copy(@NonNull JsonReader reader,
+                                @NonNull JsonWriter writer,
+                                @NonNull String[] segments,
+                                int depth,
+                                @NonNull JsonElement value) throws IOException {
+        if (depth == segments.length) {
+            reader.skipValue();
+            GSON.toJson(value, writer);
+            return true;
+        }
+
+        boolean patched = false;
+        String segment = segments[depth];
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    writer.name(name);
+                    if (!patched && name.equals(segment)) {
+                        patched = copy(reader, writer, segments, depth + 1, value);
+                    } else {
+                        copyValue(reader, writer);
+                    }
+                }
+                if (!patched && depth == segments.length - 1) {
+                    // the parent exists, but the member doesn't
+                    writer.name(segment);
+                    GSON.toJson(value, writer);
+                    patched = true;
+                }
+                reader.endObject();
+                writer.endObject();
+                return patched;
+            case BEGIN_ARRAY:
+                int index = parseIndex(segment);
+                reader.beginArray();
+                writer.beginArray();
+                for (int i = 0; reader.hasNext(); i++) {
+                    if (i == index) {
+                        patched = copy(reader, writer, segments, depth + 1, value);
+                    } else {
+                        copyValue(reader, writer);
+                    }
+                }
+                reader.endArray();
+                writer.endArray();
+                return patched;
+            default:
+                copyValue(reader, writer);
+                return false;
+        }
+    }
+
+    /**
+     * Copy the value at the reader to the writer token by token, without materializing it.
+     */
+    private static void copyValue(@NonNull JsonReader reader,
+                                  @NonNull JsonWriter writer) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copyValue(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copyValue(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case STRING:
+                writer.value(reader.nextString());
+                break;
+            case NUMBER:
+                // keep the literal as is, so that no precision is lost
+                writer.jsonValue(reader.nextString());
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            default:
+                throw new IOException("Unexpected token: " + reader.peek());
+        }
+    }
+
+    @NonNull
+    private static String[] split(@NonNull String path) throws RuntimeException {
+        if (path.isEmpty()) {
+            throw new RuntimeException("Path must not be empty.");
+        }
+        return path.split("\\.", -1);
+    }
+
+    /**
+     * @return the array index of the segment, or -1 if it is not a valid index.
+     */
+    private static int parseIndex(@NonNull String segment) {
+        if (segment.isEmpty() || segment.length() > 9) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            index = index * 10 + (c - '0');
+        }
+        return index;
+    }
+}
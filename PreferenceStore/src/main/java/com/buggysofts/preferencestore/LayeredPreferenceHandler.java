@@ -0,0 +1,754 @@
+package com.buggysofts.preferencestore;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves preferences over a stack of stores, such as user overrides, over a remotely pushed config, over the declared defaults.
+ * Like in {@link PreferenceHandler}, a default override passed to a getter wins over the declared default.
+ * <br>
+ * A merged view of all the layers is precomputed, so a read is a single lookup no matter how many layers there are. The view is updated
+ * key by key from the change notifications of the layers, so reloading a layer (writing its new values into its store with a single apply)
+ * recomputes only the keys that actually changed. Writes go to the top layer.
+ */
+
+public class LayeredPreferenceHandler {
+    private final PreferenceHandler topLayer;
+    // underlying stores of the layers, the topmost first
+    private final SharedPreferences[] layers;
+    // stored forms of the declared defaults, below all the layers and the default overrides
+    private final ConcurrentHashMap<String, Object> defaultValues = new ConcurrentHashMap<>();
+    // stored types of the declared preferences, by key
+    private final ConcurrentHashMap<String, Class<?>> declaredTypes = new ConcurrentHashMap<>();
+    // value of every key, from the topmost layer that has it. updates are guarded by the merge lock, reads take no lock
+    private final ConcurrentHashMap<String, Object> mergedValues = new ConcurrentHashMap<>();
+    private final Object mergeLock = new Object();
+    // held strongly here, the underlying stores only keep weak references to it
+    private final SharedPreferences.OnSharedPreferenceChangeListener layerListener =
+        new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                if (key != null) {
+                    updateMergedValue(key);
+                } else {
+                    // a layer was cleared
+                    rebuildMergedValues();
+                }
+            }
+        };
+
+    /**
+     * Create a layered handler.
+     * <br>
+     *
+     * @param layers Handlers of the layers, the topmost first. Writes go to the first one, so it should be in editor mode, unless this is only read.
+     * @throws RuntimeException if no layer is specified.
+     */
+    public LayeredPreferenceHandler(@NonNull PreferenceHandler... layers) throws RuntimeException {
+        if (layers.length == 0) {
+            throw new RuntimeException("At least one layer is required.");
+        }
+
+        this.topLayer = layers[0];
+        this.layers = new SharedPreferences[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            this.layers[i] = layers[i].getSharedPreferences();
+            // listen before the first build, so that no change is missed
+            this.layers[i].registerOnSharedPreferenceChangeListener(layerListener);
+        }
+        rebuildMergedValues();
+    }
+
+    /**
+     * Declare the defaults of the specified preferences as the bottom layer. Their types are also used to read the keys from the layers.
+     */
+    public void declareDefaults(@NonNull BoundedPreference<?>... preferences) {
+        for (BoundedPreference<?> preference : preferences) {
+            Object value = preference.getDefaultValue();
+            boolean nativeValue = value instanceof Boolean ||
+                value instanceof Integer ||
+                value instanceof Long ||
+                value instanceof Float ||
+                value instanceof String ||
+                value instanceof Set;
+            Object storedValue = nativeValue ? value : new Gson().toJson(value, TypeToken.get(value.getClass()).getType());
+            defaultValues.put(preference.getKey(), storedValue);
+            declaredTypes.put(preference.getKey(), getStoredType(storedValue));
+        }
+    }
+
+
+    //////////
+    // getters
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Optional value to return if no layer has the key.
+     *                        Although it is declared as a vararg, you should pass at most one value. Others will be discarded.
+     * @return If any layer has the key, returns its value from the topmost such layer. Otherwise, <b>defaultOverride[0]</b>, the declared default,
+     * or the default of the specified bounded preference is returned, in that order of precedence.
+     */
+    public boolean getPreferenceValue(@NonNull BoundedPreference<Boolean> preference,
+                                      @NonNull boolean... defaultOverride) {
+        Boolean value = (Boolean) mergedValues.get(preference.getKey());
+        if (value != null) {
+            return value;
+        }
+        return defaultOverride.length > 0 ? defaultOverride[0] : getDeclaredDefault(preference);
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Optional value to return if no layer has the key.
+     *                        Although it is declared as a vararg, you should pass at most one value. Others will be discarded.
+     * @return If any layer has the key, returns its value from the topmost such layer. Otherwise, <b>defaultOverride[0]</b>, the declared default,
+     * or the default of the specified bounded preference is returned, in that order of precedence.
+     */
+    public int getPreferenceValue(@NonNull BoundedPreference<Integer> preference,
+                                  @NonNull int... defaultOverride) {
+        Integer value = (Integer) mergedValues.get(preference.getKey());
+        if (value != null) {
+            return value;
+        }
+        return defaultOverride.length > 0 ? defaultOverride[0] : getDeclaredDefault(preference);
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Optional value to return if no layer has the key.
+     *                        Although it is declared as a vararg, you should pass at most one value. Others will be discarded.
+     * @return If any layer has the key, returns its value from the topmost such layer. Otherwise, <b>defaultOverride[0]</b>, the declared default,
+     * or the default of the specified bounded preference is returned, in that order of precedence.
+     */
+    public long getPreferenceValue(@NonNull BoundedPreference<Long> preference,
+                                   @NonNull long... defaultOverride) {
+        Long value = (Long) mergedValues.get(preference.getKey());
+        if (value != null) {
+            return value;
+        }
+        return defaultOverride.length > 0 ? defaultOverride[0] : getDeclaredDefault(preference);
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Optional value to return if no layer has the key.
+     *                        Although it is declared as a vararg, you should pass at most one value. Others will be discarded.
+     * @return If any layer has the key, returns its value from the topmost such layer. Otherwise, <b>defaultOverride[0]</b>, the declared default,
+     * or the default of the specified bounded preference is returned, in that order of precedence.
+     */
+    public float getPreferenceValue(@NonNull BoundedPreference<Float> preference,
+                                    @NonNull float... defaultOverride) {
+        Float value = (Float) mergedValues.get(preference.getKey());
+        if (value != null) {
+            return value;
+        }
+        return defaultOverride.length > 0 ? defaultOverride[0] : getDeclaredDefault(preference);
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Optional value to return if no layer has the key.
+     *                        Although it is declared as a vararg, you should pass at most one value. Others will be discarded.
+     * @return If any layer has the key, returns its value from the topmost such layer. Otherwise, <b>defaultOverride[0]</b>, the declared default,
+     * or the default of the specified bounded preference is returned, in that order of precedence.
+     */
+    @NonNull
+    public String getPreferenceValue(@NonNull BoundedPreference<String> preference,
+                                     @NonNull String... defaultOverride) {
+        String value = (String) mergedValues.get(preference.getKey());
+        if (value == null) {
+            value = defaultOverride.length > 0 ? defaultOverride[0] : getDeclaredDefault(preference);
+        }
+        // return the instance from the value list, so that the same instance is returned on every read
+        return preference.getCanonicalValue(value);
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Optional value to return if no layer has the key.
+     *                        Although it is declared as a vararg, you should pass at most one value. Others will be discarded.
+     * @return If any layer has the key, returns its value from the topmost such layer. Otherwise, <b>defaultOverride[0]</b>, the declared default,
+     * or the default of the specified bounded preference is returned, in that order of precedence.
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    public Set<String> getPreferenceValue(@NonNull BoundedPreference<Set<String>> preference,
+                                          @NonNull Set<String>... defaultOverride) {
+        Set<String> value = (Set<String>) mergedValues.get(preference.getKey());
+        if (value == null) {
+            value = defaultOverride.length > 0 ? defaultOverride[0] : getDeclaredDefault(preference);
+        }
+        // return the instance from the value list, so that the same instance is returned on every read
+        return preference.getCanonicalValue(value);
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference The preference from which we want our value.
+     * @param typeToken  {@link TypeToken} of the return type.
+     * @return If any layer has the key (or a default is declared for it), returns its value, otherwise returns null.
+     */
+    @Nullable
+    public <T extends Serializable> T getPreferenceValue(@NonNull BoundedPreference<T> preference,
+                                                         @NonNull TypeToken<T> typeToken) {
+        String json = (String) mergedValues.get(preference.getKey());
+        if (json == null) {
+            json = (String) defaultValues.get(preference.getKey());
+        }
+        if (json != null) {
+            // stored values are the encoded forms of the values in the value list, so there is nothing to decode
+            T value = preference.getValueOfJson(json);
+            if (value != null) {
+                return value;
+            }
+            return new Gson().fromJson(json, typeToken.getType());
+        }
+        return null;
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Value to return if no layer has the key.
+     * @return If any layer has the key, returns its value from the topmost such layer, otherwise returns <b>defaultOverride</b>.
+     */
+    public boolean getPreferenceValue(@NonNull UnBoundedPreference<Boolean> preference,
+                                      boolean defaultOverride) {
+        Boolean value = (Boolean) mergedValues.get(preference.getKey());
+        return value != null ? value : defaultOverride;
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Value to return if no layer has the key.
+     * @return If any layer has the key, returns its value from the topmost such layer, otherwise returns <b>defaultOverride</b>.
+     */
+    public int getPreferenceValue(@NonNull UnBoundedPreference<Integer> preference,
+                                  int defaultOverride) {
+        Integer value = (Integer) mergedValues.get(preference.getKey());
+        return value != null ? value : defaultOverride;
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Value to return if no layer has the key.
+     * @return If any layer has the key, returns its value from the topmost such layer, otherwise returns <b>defaultOverride</b>.
+     */
+    public long getPreferenceValue(@NonNull UnBoundedPreference<Long> preference,
+                                   long defaultOverride) {
+        Long value = (Long) mergedValues.get(preference.getKey());
+        return value != null ? value : defaultOverride;
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Value to return if no layer has the key.
+     * @return If any layer has the key, returns its value from the topmost such layer, otherwise returns <b>defaultOverride</b>.
+     */
+    public float getPreferenceValue(@NonNull UnBoundedPreference<Float> preference,
+                                    float defaultOverride) {
+        Float value = (Float) mergedValues.get(preference.getKey());
+        return value != null ? value : defaultOverride;
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Value to return if no layer has the key.
+     * @return If any layer has the key, returns its value from the topmost such layer, otherwise returns <b>defaultOverride</b>.
+     */
+    @Nullable
+    public String getPreferenceValue(@NonNull UnBoundedPreference<String> preference,
+                                     @Nullable String defaultOverride) {
+        String value = (String) mergedValues.get(preference.getKey());
+        return value != null ? value : defaultOverride;
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Value to return if no layer has the key.
+     * @return If any layer has the key, returns its value from the topmost such layer, otherwise returns <b>defaultOverride</b>.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public Set<String> getPreferenceValue(@NonNull UnBoundedPreference<Set<String>> preference,
+                                          @Nullable Set<String> defaultOverride) {
+        Set<String> value = (Set<String>) mergedValues.get(preference.getKey());
+        return value != null ? value : defaultOverride;
+    }
+
+    /**
+     * Get value of the specified preference, from the topmost layer that has it.
+     *
+     * @param preference The preference from which we want our value.
+     * @param typeToken  {@link TypeToken} of the return type.
+     * @return If any layer has the key, returns its value from the topmost such layer, otherwise returns null.
+     */
+    @Nullable
+    public <T extends Serializable> T getPreferenceValue(@NonNull UnBoundedPreference<T> preference,
+                                                         @NonNull TypeToken<T> typeToken) {
+        String json = (String) mergedValues.get(preference.getKey());
+        if (json != null) {
+            return new Gson().fromJson(json, typeToken.getType());
+        }
+        return null;
+    }
+
+
+    //////////
+    // setters
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode, if the specified value is unsupported by the specified preference.
+     */
+    @NonNull
+    public Boolean setPreferenceValue(@NonNull BoundedPreference<Boolean> preference,
+                                      @NonNull Boolean value) throws RuntimeException {
+        Boolean setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode, if the specified value is unsupported by the specified preference.
+     */
+    @NonNull
+    public Integer setPreferenceValue(@NonNull BoundedPreference<Integer> preference,
+                                      @NonNull Integer value) throws RuntimeException {
+        Integer setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode, if the specified value is unsupported by the specified preference.
+     */
+    @NonNull
+    public Long setPreferenceValue(@NonNull BoundedPreference<Long> preference,
+                                   @NonNull Long value) throws RuntimeException {
+        Long setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode, if the specified value is unsupported by the specified preference.
+     */
+    @NonNull
+    public Float setPreferenceValue(@NonNull BoundedPreference<Float> preference,
+                                    @NonNull Float value) throws RuntimeException {
+        Float setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode, if the specified value is unsupported by the specified preference.
+     */
+    @NonNull
+    public String setPreferenceValue(@NonNull BoundedPreference<String> preference,
+                                     @NonNull String value) throws RuntimeException {
+        String setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode, if the specified value is unsupported by the specified preference.
+     */
+    @NonNull
+    public Set<String> setPreferenceValue(@NonNull BoundedPreference<Set<String>> preference,
+                                          @NonNull Set<String> value) throws RuntimeException {
+        Set<String> setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode, if the specified value is unsupported by the specified preference.
+     */
+    @NonNull
+    public <T extends Serializable> T setPreferenceValue(@NonNull BoundedPreference<T> preference,
+                                                         @NonNull T value) throws RuntimeException {
+        T setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode.
+     */
+    @NonNull
+    public Boolean setPreferenceValue(@NonNull UnBoundedPreference<Boolean> preference,
+                                      @NonNull Boolean value) throws RuntimeException {
+        Boolean setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode.
+     */
+    @NonNull
+    public Integer setPreferenceValue(@NonNull UnBoundedPreference<Integer> preference,
+                                      @NonNull Integer value) throws RuntimeException {
+        Integer setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode.
+     */
+    @NonNull
+    public Long setPreferenceValue(@NonNull UnBoundedPreference<Long> preference,
+                                   @NonNull Long value) throws RuntimeException {
+        Long setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode.
+     */
+    @NonNull
+    public Float setPreferenceValue(@NonNull UnBoundedPreference<Float> preference,
+                                    @NonNull Float value) throws RuntimeException {
+        Float setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode.
+     */
+    @NonNull
+    public String setPreferenceValue(@NonNull UnBoundedPreference<String> preference,
+                                     @NonNull String value) throws RuntimeException {
+        String setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode.
+     */
+    @NonNull
+    public Set<String> setPreferenceValue(@NonNull UnBoundedPreference<Set<String>> preference,
+                                          @NonNull Set<String> value) throws RuntimeException {
+        Set<String> setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+    /**
+     * Set the specified value to the specified preference, in the top layer.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if the top layer is not in editor mode.
+     */
+    @NonNull
+    public <T extends Serializable> T setPreferenceValue(@NonNull UnBoundedPreference<T> preference,
+                                                         @NonNull T value) throws RuntimeException {
+        T setValue = topLayer.setPreferenceValue(
+            preference,
+            value
+        );
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+        return setValue;
+    }
+
+
+    //////////
+    // removers
+
+    /**
+     * Remove the preference from the top layer, revealing its value in the layers below.
+     */
+    public void remove(@NonNull BoundedPreference<?> preference) {
+        topLayer.remove(preference);
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+    }
+
+    /**
+     * Remove the preference from the top layer, revealing its value in the layers below.
+     */
+    public void remove(@NonNull UnBoundedPreference<?> preference) {
+        topLayer.remove(preference);
+        // reflect our own write right away, the change notification may come later
+        updateMergedValue(preference.getKey());
+    }
+
+
+    //////////
+    // availability check
+
+    /**
+     * Check if any layer (or a declared default) has the specified preference.
+     */
+    public boolean contains(@NonNull BoundedPreference<?> preference) {
+        return mergedValues.containsKey(preference.getKey()) || defaultValues.containsKey(preference.getKey());
+    }
+
+    /**
+     * Check if any layer has the specified preference.
+     */
+    public boolean contains(@NonNull UnBoundedPreference<?> preference) {
+        return mergedValues.containsKey(preference.getKey());
+    }
+
+
+    //////////
+    // releasing
+
+    /**
+     * Stop following the changes of the layers. The merged view is not updated anymore after this.
+     */
+    public void release() {
+        for (SharedPreferences layer : layers) {
+            layer.unregisterOnSharedPreferenceChangeListener(layerListener);
+        }
+    }
+
+
+    //////////
+    // merging
+
+    /**
+     * Get the declared default of the specified preference, or its own default if none is declared.
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    private <T> T getDeclaredDefault(@NonNull BoundedPreference<T> preference) {
+        T value = (T) defaultValues.get(preference.getKey());
+        return value != null ? value : preference.getDefaultValue();
+    }
+
+    /**
+     * Recompute the merged value of a single key.
+     */
+    private void updateMergedValue(@NonNull String key) {
+        synchronized (mergeLock) {
+            // a key rarely changes its type, so the type of the current value is used for undeclared keys
+            Class<?> type = declaredTypes.get(key);
+            if (type == null) {
+                type = getStoredType(mergedValues.get(key));
+            }
+            for (SharedPreferences layer : layers) {
+                Object value = readStoredValue(layer, key, type);
+                if (value != null) {
+                    mergedValues.put(key, value);
+                    return;
+                }
+            }
+            mergedValues.remove(key);
+        }
+    }
+
+    /**
+     * Recompute the whole merged view.
+     */
+    private void rebuildMergedValues() {
+        synchronized (mergeLock) {
+            Map<String, Object> values = new HashMap<String, Object>();
+            for (int i = layers.length - 1; i >= 0; i--) {
+                values.putAll(layers[i].getAll());
+            }
+            mergedValues.keySet().retainAll(values.keySet());
+            mergedValues.putAll(values);
+        }
+    }
+
+    /**
+     * Get the type under which the specified value is stored, or null for no value.
+     */
+    @Nullable
+    private static Class<?> getStoredType(@Nullable Object value) {
+        return value instanceof Set ? Set.class : (value != null ? value.getClass() : null);
+    }
+
+    /**
+     * Read the value of a key from a store.
+     *
+     * @param type Type of the key, or null if it is not known.
+     * @return the value, or null if the store does not have the key.
+     */
+    @Nullable
+    private static Object readStoredValue(@NonNull SharedPreferences layer,
+                                          @NonNull String key,
+                                          @Nullable Class<?> type) {
+        if (!layer.contains(key)) {
+            return null;
+        }
+        if (type == String.class) {
+            return layer.getString(key, null);
+        } else if (type == Integer.class) {
+            return layer.getInt(key, 0);
+        } else if (type == Long.class) {
+            return layer.getLong(key, 0);
+        } else if (type == Float.class) {
+            return layer.getFloat(key, 0);
+        } else if (type == Boolean.class) {
+            return layer.getBoolean(key, false);
+        } else if (type == Set.class) {
+            return layer.getStringSet(key, null);
+        }
+        // an undeclared key we have not seen yet, read it with whatever type it is stored
+        return layer.getAll().get(key);
+    }
+}
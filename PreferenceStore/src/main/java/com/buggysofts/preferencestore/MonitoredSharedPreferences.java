@@ -0,0 +1,234 @@
+package com.buggysofts.preferencestore;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A view of a store that times its reads and writes with a {@link BlockingDetector}.
+ */
+
+final class MonitoredSharedPreferences implements SharedPreferences {
+    // reported as the key of the operations that are not about a single key
+    private static final String ALL_KEYS = "*";
+
+    private final SharedPreferences delegate;
+    private final BlockingDetector detector;
+
+    MonitoredSharedPreferences(@NonNull SharedPreferences delegate,
+                               @NonNull BlockingDetector detector) {
+        this.delegate = delegate;
+        this.detector = detector;
+    }
+
+    // getters
+
+    @Override
+    public Map<String, ?> getAll() {
+        long startTime = detector.startTiming();
+        try {
+            return delegate.getAll();
+        } finally {
+            detector.stopTiming(startTime, BlockingReport.Operation.READ, ALL_KEYS);
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        long startTime = detector.startTiming();
+        try {
+            return delegate.getString(key, defValue);
+        } finally {
+            detector.stopTiming(startTime, BlockingReport.Operation.READ, key);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        long startTime = detector.startTiming();
+        try {
+            return delegate.getStringSet(key, defValues);
+        } finally {
+            detector.stopTiming(startTime, BlockingReport.Operation.READ, key);
+        }
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        long startTime = detector.startTiming();
+        try {
+            return delegate.getInt(key, defValue);
+        } finally {
+            detector.stopTiming(startTime, BlockingReport.Operation.READ, key);
+        }
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        long startTime = detector.startTiming();
+        try {
+            return delegate.getLong(key, defValue);
+        } finally {
+            detector.stopTiming(startTime, BlockingReport.Operation.READ, key);
+        }
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        long startTime = detector.startTiming();
+        try {
+            return delegate.getFloat(key, defValue);
+        } finally {
+            detector.stopTiming(startTime, BlockingReport.Operation.READ, key);
+        }
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        long startTime = detector.startTiming();
+        try {
+            return delegate.getBoolean(key, defValue);
+        } finally {
+            detector.stopTiming(startTime, BlockingReport.Operation.READ, key);
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        long startTime = detector.startTiming();
+        try {
+            return delegate.contains(key);
+        } finally {
+            detector.stopTiming(startTime, BlockingReport.Operation.READ, key);
+        }
+    }
+
+    @Override
+    public Editor edit() {
+        return new MonitoredEditor(delegate.edit());
+    }
+
+    // listeners
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        delegate.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        delegate.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * An editor that times its writes, and reports them on the first key it has changed.
+     */
+    private final class MonitoredEditor implements Editor {
+        private final Editor delegate;
+        // guarded by the editor
+        private String firstKey;
+        private int changeCount;
+
+        private MonitoredEditor(@NonNull Editor delegate) {
+            this.delegate = delegate;
+        }
+
+        private synchronized void onChange(@NonNull String key) {
+            if (changeCount++ == 0) {
+                firstKey = key;
+            }
+        }
+
+        @NonNull
+        private synchronized String takeReportedKey() {
+            String key = changeCount == 0 ? ALL_KEYS : (changeCount == 1 ? firstKey : firstKey + " (+" + (changeCount - 1) + " more)");
+            firstKey = null;
+            changeCount = 0;
+            return key;
+        }
+
+        @Override
+        public Editor putString(String key, @Nullable String value) {
+            onChange(key);
+            delegate.putString(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, @Nullable Set<String> values) {
+            onChange(key);
+            delegate.putStringSet(key, values);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            onChange(key);
+            delegate.putInt(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            onChange(key);
+            delegate.putLong(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            onChange(key);
+            delegate.putFloat(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            onChange(key);
+            delegate.putBoolean(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            onChange(key);
+            delegate.remove(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            onChange(ALL_KEYS);
+            delegate.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            String key = takeReportedKey();
+            long startTime = detector.startTiming();
+            try {
+                return delegate.commit();
+            } finally {
+                detector.stopTiming(startTime, BlockingReport.Operation.WRITE, key);
+            }
+        }
+
+        @Override
+        public void apply() {
+            String key = takeReportedKey();
+            long startTime = detector.startTiming();
+            try {
+                delegate.apply();
+            } finally {
+                detector.stopTiming(startTime, BlockingReport.Operation.WRITE, key);
+            }
+        }
+    }
+}
@@ -0,0 +1,910 @@
+package com.buggysofts.preferencestore;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A store that can be read and written by several processes at once.
+ * <br>
+ * The file starts with a small header, followed by a log of entry records. The header holds two checksummed records (generation, version,
+ * start and end of the log), the current one being the valid one with the higher version. Every write appends the changed entries past
+ * the end of the log, and then publishes them with a single header record of the next version, written over the other (older) record,
+ * while holding an exclusive lock on the header. A crash in the middle of a write thus leaves the current record, and the log it points
+ * to, intact. Other processes check the version through a memory mapping of the header (a single memory read, no system call), and when
+ * it has changed, read only the records appended since their last read, while holding a shared lock. When the log grows much larger than
+ * the live entries, the writer writes a compacted log where it does not overlap the current one (at the start of the file, if it fits
+ * there), and publishes it with a new generation, which makes the readers load the whole log again.
+ * <br>
+ * A header or log that can not be read (left behind by a failing disk, or by a crash while writing a header record) is repaired by
+ * rewriting the log with the entries as of the last successful read.
+ * <br>
+ * Like {@link ScheduledSharedPreferences}, applied changes stay pending in memory (visible to all reads in this process) until they are written,
+ * in merged batches, on a background thread. There is a single instance per file in a process.
+ */
+
+final class MultiProcessSharedPreferences implements SharedPreferences {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // marks a pending removal
+    private static final Object REMOVED = new Object();
+
+    // header layout
+    private static final int MAGIC = 0x50534d50;
+    private static final int FORMAT = 1;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int FORMAT_OFFSET = 4;
+    static final int RECORD_OFFSET = 8;
+    static final int RECORD_SIZE = 40;
+    static final int HEADER_SIZE = RECORD_OFFSET + 2 * RECORD_SIZE;
+    // header record layout, the record of a version is the one at the index of its lowest bit
+    private static final int GENERATION_FIELD = 0;
+    static final int VERSION_FIELD = 8;
+    private static final int START_FIELD = 16;
+    private static final int END_FIELD = 24;
+    private static final int CHECKSUM_FIELD = 32;
+
+    // record operations and value types
+    private static final byte OP_PUT = 'P';
+    private static final byte OP_REMOVE = 'R';
+    private static final byte TYPE_STRING = 'S';
+    private static final byte TYPE_INT = 'I';
+    private static final byte TYPE_LONG = 'J';
+    private static final byte TYPE_FLOAT = 'F';
+    private static final byte TYPE_BOOLEAN = 'Z';
+    private static final byte TYPE_STRING_SET = 'T';
+
+    // the log is not rewritten below this length, nor while it is less than this many times the size of the live entries
+    private static final long COMPACTION_MIN_LENGTH = 64 * 1024;
+    private static final int COMPACTION_RATIO = 4;
+    // how often the version is checked while there are listeners
+    private static final long WATCH_PERIOD_MILLIS = 250;
+
+    // instances by canonical path, a process must not lock the same file through two channels
+    private static final Map<String, MultiProcessSharedPreferences> INSTANCES = new HashMap<>();
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    // orders the file lock holders of this process, as file locks are held on behalf of the whole process
+    private final Object ioLock = new Object();
+    // guards the values, the pending changes, and the log position
+    private final Object lock = new Object();
+    // entries as of the last read (or write) of the log
+    private final Map<String, Object> values = new HashMap<>();
+    private final Map<String, Object> pending = new HashMap<>();
+    private final List<OnSharedPreferenceChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile long version;
+    private long generation;
+    // position of the log in the file
+    private long logStart;
+    private long logEnd;
+    private boolean writeScheduled;
+    private ScheduledFuture<?> watcher;
+
+    private MultiProcessSharedPreferences(@NonNull File path) throws IOException {
+        File directory = path.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.logStart = HEADER_SIZE;
+        this.logEnd = HEADER_SIZE;
+
+        synchronized (ioLock) {
+            FileLock fileLock = channel.lock(0, HEADER_SIZE, false);
+            try {
+                if (channel.size() < HEADER_SIZE) {
+                    // a new file, with an empty log of version 0. the other record is left invalid
+                    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    buffer.putInt(MAGIC_OFFSET, MAGIC);
+                    buffer.putInt(FORMAT_OFFSET, FORMAT);
+                    putHeaderRecord(buffer, new HeaderRecord(0, 0, HEADER_SIZE, HEADER_SIZE));
+                    writeFully(buffer, 0);
+                    channel.force(true);
+                }
+                this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                this.header.order(ByteOrder.LITTLE_ENDIAN);
+                if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(FORMAT_OFFSET) != FORMAT) {
+                    throw new IOException("Not a multi process store: " + path);
+                }
+                catchUp();
+            } finally {
+                fileLock.release();
+            }
+        }
+    }
+
+    /**
+     * Get the instance of the store in the specified file, creating the file if it does not exist.
+     *
+     * @throws RuntimeException if the file can not be opened, or if it is not a multi process store.
+     */
+    @NonNull
+    static MultiProcessSharedPreferences open(@NonNull File path) throws RuntimeException {
+        synchronized (INSTANCES) {
+            try {
+                String canonicalPath = path.getCanonicalPath();
+                MultiProcessSharedPreferences instance = INSTANCES.get(canonicalPath);
+                if (instance == null) {
+                    instance = new MultiProcessSharedPreferences(path);
+                    INSTANCES.put(canonicalPath, instance);
+                }
+                return instance;
+            } catch (IOException e) {
+                throw new RuntimeException("Could not open the multi process store.", e);
+            }
+        }
+    }
+
+    // getters
+
+    @Override
+    @NonNull
+    public Map<String, ?> getAll() {
+        sync();
+        synchronized (lock) {
+            Map<String, Object> all = new HashMap<>(values);
+            for (Map.Entry<String, Object> entry : pending.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    all.remove(entry.getKey());
+                } else {
+                    all.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return all;
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        Object value = get(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    @Nullable
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        Object value = get(key);
+        return value != null ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = get(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = get(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = get(key);
+        return value != null ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = get(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    @Nullable
+    private Object get(@NonNull String key) {
+        sync();
+        synchronized (lock) {
+            Object value = pending.get(key);
+            if (value != null) {
+                return value != REMOVED ? value : null;
+            }
+            return values.get(key);
+        }
+    }
+
+    @Override
+    @NonNull
+    public Editor edit() {
+        return new MultiProcessEditor();
+    }
+
+    // listeners
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.add(listener);
+        synchronized (lock) {
+            // changes of the other processes are noticed by reads, or by watching the version while someone listens
+            if (watcher == null) {
+                watcher = PreferenceHandler.getBackgroundExecutor().scheduleWithFixedDelay(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            sync();
+                        }
+                    },
+                    WATCH_PERIOD_MILLIS,
+                    WATCH_PERIOD_MILLIS,
+                    TimeUnit.MILLISECONDS
+                );
+            }
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.remove(listener);
+        synchronized (lock) {
+            if (listeners.isEmpty() && watcher != null) {
+                watcher.cancel(false);
+                watcher = null;
+            }
+        }
+    }
+
+    // reading
+
+    /**
+     * Read the changes made by the other processes, if the version has changed since the last read. Costs a single memory read otherwise.
+     */
+    private void sync() {
+        if (!isHeaderChanged()) {
+            return;
+        }
+        List<String> changedKeys;
+        synchronized (ioLock) {
+            try {
+                boolean corrupted = false;
+                FileLock fileLock = channel.lock(0, HEADER_SIZE, true);
+                try {
+                    changedKeys = readLog();
+                } catch (CorruptedStoreException e) {
+                    changedKeys = e.salvagedKeys;
+                    corrupted = true;
+                } finally {
+                    fileLock.release();
+                }
+                if (corrupted || isHeaderChanged()) {
+                    // only a writer can repair the store
+                    fileLock = channel.lock(0, HEADER_SIZE, false);
+                    try {
+                        changedKeys.addAll(catchUp());
+                    } finally {
+                        fileLock.release();
+                    }
+                }
+            } catch (IOException e) {
+                // keep serving what we have
+                e.printStackTrace();
+                return;
+            }
+        }
+        notifyListeners(changedKeys);
+    }
+
+    /**
+     * Check if a newer version has been published, with a single memory read. The next version is always published in the other header record.
+     */
+    private boolean isHeaderChanged() {
+        long currentVersion = version;
+        return header.getLong(getRecordOffset(currentVersion + 1) + VERSION_FIELD) > currentVersion;
+    }
+
+    /**
+     * Read the log, and repair the store if it can not be read. Must be called while holding the exclusive lock on the header.
+     *
+     * @return keys whose values have changed.
+     */
+    @NonNull
+    private List<String> catchUp() throws IOException {
+        List<String> changedKeys;
+        try {
+            changedKeys = readLog();
+        } catch (CorruptedStoreException e) {
+            e.printStackTrace();
+            recover();
+            return e.salvagedKeys;
+        }
+        if (isHeaderChanged()) {
+            // a torn record of a newer version, left behind by a crashed writer. it makes every read lock the file until it is overwritten
+            recover();
+        }
+        return changedKeys;
+    }
+
+    /**
+     * Read the records appended since the last read, or the whole log if it was rewritten. Must be called while holding a lock on the header.
+     *
+     * @return keys whose values have changed.
+     * @throws CorruptedStoreException if the header or the log can not be read. Nothing is changed if the header can not be read, and
+     *                                 if a record can not be read, the intact records before it are taken (over the entries of the last read,
+     *                                 if the log was rewritten), but the read is not complete, so the next read reads the log again.
+     */
+    @NonNull
+    private List<String> readLog() throws IOException {
+        HeaderRecord current = getCurrentHeaderRecord();
+        boolean rewritten;
+        long start;
+        synchronized (lock) {
+            if (current.version == version && current.generation == generation) {
+                return new ArrayList<>();
+            }
+            rewritten = current.generation != generation;
+            start = rewritten ? current.start : logEnd;
+        }
+        if (current.end < start) {
+            throw new CorruptedStoreException("The log of generation " + current.generation + " has shrunk");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) (current.end - start)).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(buffer, start);
+        buffer.flip();
+
+        Map<String, Object> changes = new LinkedHashMap<>();
+        CorruptedStoreException corruption = null;
+        try {
+            while (buffer.hasRemaining()) {
+                byte operation = buffer.get();
+                if (operation != OP_PUT && operation != OP_REMOVE) {
+                    throw new CorruptedStoreException("Malformed record of operation " + operation);
+                }
+                String key = readString(buffer);
+                Object value = operation == OP_PUT ? readValue(buffer) : REMOVED;
+                // only whole records
+                changes.put(key, value);
+            }
+        } catch (CorruptedStoreException e) {
+            corruption = e;
+        } catch (BufferUnderflowException e) {
+            corruption = new CorruptedStoreException("Truncated record at " + (start + buffer.position()));
+        }
+
+        List<String> changedKeys = new ArrayList<>();
+        synchronized (lock) {
+            // the entries that a partly read rewritten log does not have are kept, they may be in its unreadable part
+            if (rewritten && corruption == null) {
+                // rewritten, everything not in there is gone
+                for (String key : values.keySet()) {
+                    if (!changes.containsKey(key)) {
+                        changedKeys.add(key);
+                    }
+                }
+                values.keySet().retainAll(changes.keySet());
+            }
+            for (Map.Entry<String, Object> change : changes.entrySet()) {
+                Object oldValue = change.getValue() == REMOVED ?
+                    values.remove(change.getKey()) :
+                    values.put(change.getKey(), change.getValue());
+                // changes hidden by our own pending changes are not visible, yet
+                if (!pending.containsKey(change.getKey()) && !equal(oldValue, change.getValue() == REMOVED ? null : change.getValue())) {
+                    changedKeys.add(change.getKey());
+                }
+            }
+            if (corruption != null) {
+                throw new CorruptedStoreException(corruption.getMessage(), changedKeys);
+            }
+            generation = current.generation;
+            logStart = current.start;
+            logEnd = current.end;
+            version = current.version;
+        }
+        return changedKeys;
+    }
+
+    /**
+     * Get the valid header record of the highest version.
+     *
+     * @throws CorruptedStoreException if no record is valid, or if the valid one points outside the file.
+     */
+    @NonNull
+    private HeaderRecord getCurrentHeaderRecord() throws IOException {
+        HeaderRecord first = getHeaderRecord(header, 0);
+        HeaderRecord second = getHeaderRecord(header, 1);
+        HeaderRecord current = first == null || (second != null && second.version > first.version) ? second : first;
+        if (current == null) {
+            throw new CorruptedStoreException("No valid header record");
+        }
+        if (current.start < HEADER_SIZE || current.end < current.start ||
+            current.end - current.start > Integer.MAX_VALUE || current.end > channel.size()) {
+            throw new CorruptedStoreException("The log of version " + current.version + " is out of the file");
+        }
+        return current;
+    }
+
+    // writing
+
+    /**
+     * Write all the pending changes with a single append (or rewrite) of the log.
+     */
+    private boolean flush() {
+        List<String> changedKeys;
+        synchronized (ioLock) {
+            Map<String, Object> batch;
+            synchronized (lock) {
+                writeScheduled = false;
+                if (pending.isEmpty()) {
+                    return true;
+                }
+                batch = new HashMap<>(pending);
+            }
+
+            try {
+                FileLock fileLock = channel.lock(0, HEADER_SIZE, false);
+                try {
+                    // catch up with the other processes first, so that our log position is the end of the log
+                    changedKeys = catchUp();
+                    writeLog(batch);
+                } finally {
+                    fileLock.release();
+                }
+            } catch (IOException e) {
+                // the changes stay pending, and are retried by the next write
+                e.printStackTrace();
+                return false;
+            }
+
+            synchronized (lock) {
+                // the entries changed again while writing stay pending
+                for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                    if (pending.get(entry.getKey()) == entry.getValue()) {
+                        pending.remove(entry.getKey());
+                    }
+                }
+            }
+        }
+        notifyListeners(changedKeys);
+        return true;
+    }
+
+    /**
+     * Append the specified changes to the log, or write a compacted log with them, and publish the new version. Must be called while holding
+     * the exclusive lock on the header, right after reading the log.
+     */
+    private void writeLog(@NonNull Map<String, Object> batch) throws IOException {
+        Map<String, Object> newValues;
+        synchronized (lock) {
+            newValues = new HashMap<>(values);
+        }
+        for (Map.Entry<String, Object> entry : batch.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                newValues.remove(entry.getKey());
+            } else {
+                newValues.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        ByteBuffer records = encode(batch);
+        long newLength = logEnd - logStart + records.remaining();
+        if (newLength >= COMPACTION_MIN_LENGTH) {
+            ByteBuffer snapshot = encode(newValues);
+            if ((long) snapshot.remaining() * COMPACTION_RATIO < newLength) {
+                // never over the current log, which must stay intact until the compacted one is published
+                long position = HEADER_SIZE + snapshot.remaining() <= logStart ? HEADER_SIZE : logEnd;
+                publish(snapshot, position, new HeaderRecord(generation + 1, version + 1, position, position + snapshot.remaining()), newValues);
+                return;
+            }
+        }
+        publish(records, logEnd, new HeaderRecord(generation, version + 1, logStart, logEnd + records.remaining()), newValues);
+    }
+
+    /**
+     * Rewrite the log with the entries as of the last read, including the intact records of a log that could only be read in part,
+     * dropping whatever could not be read. Must be called while holding the exclusive lock on the header.
+     */
+    private void recover() throws IOException {
+        long maxGeneration = generation;
+        long maxVersion = version;
+        for (int i = 0; i < 2; i++) {
+            HeaderRecord record = getHeaderRecord(header, i);
+            if (record != null) {
+                maxGeneration = Math.max(maxGeneration, record.generation);
+                maxVersion = Math.max(maxVersion, record.version);
+            }
+        }
+        Map<String, Object> snapshotValues;
+        synchronized (lock) {
+            snapshotValues = new HashMap<>(values);
+        }
+        ByteBuffer snapshot = encode(snapshotValues);
+        // past the end of the file, as the current record may still point to an intact log
+        long position = Math.max(channel.size(), HEADER_SIZE);
+        publish(snapshot, position, new HeaderRecord(maxGeneration + 1, maxVersion + 1, position, position + snapshot.remaining()), snapshotValues);
+    }
+
+    /**
+     * Write the specified records at the specified position, and publish the specified header record.
+     */
+    private void publish(@NonNull ByteBuffer records,
+                         long position,
+                         @NonNull HeaderRecord record,
+                         @NonNull Map<String, Object> newValues) throws IOException {
+        writeFully(records, position);
+        // the records must be on disk before the header points to them
+        channel.force(false);
+        // over the other record, so a torn write leaves the current one in place
+        putHeaderRecord(header, record);
+        header.force();
+        if (channel.size() > record.end) {
+            // the previous log, or the remains of a crashed write, are not referenced anymore
+            channel.truncate(record.end);
+        }
+
+        synchronized (lock) {
+            values.clear();
+            values.putAll(newValues);
+            generation = record.generation;
+            logStart = record.start;
+            logEnd = record.end;
+            version = record.version;
+        }
+    }
+
+    private void scheduleWrite() {
+        synchronized (lock) {
+            if (writeScheduled) {
+                return;
+            }
+            writeScheduled = true;
+        }
+        PreferenceHandler.getBackgroundExecutor().execute(
+            new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }
+        );
+    }
+
+    private void notifyListeners(@NonNull List<String> changedKeys) {
+        for (String key : changedKeys) {
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+    }
+
+    // encoding
+
+    @NonNull
+    private static ByteBuffer encode(@NonNull Map<String, Object> entries) {
+        List<byte[]> strings = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            size += 1 + encodedSize(entry.getKey(), strings);
+            Object value = entry.getValue();
+            if (value == REMOVED) {
+                continue;
+            }
+            size += 1;
+            if (value instanceof String) {
+                size += encodedSize((String) value, strings);
+            } else if (value instanceof Integer || value instanceof Float) {
+                size += 4;
+            } else if (value instanceof Long) {
+                size += 8;
+            } else if (value instanceof Boolean) {
+                size += 1;
+            } else {
+                size += 4;
+                for (Object element : (Set<?>) value) {
+                    size += encodedSize((String) element, strings);
+                }
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        int stringIndex = 0;
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            Object value = entry.getValue();
+            buffer.put(value == REMOVED ? OP_REMOVE : OP_PUT);
+            putString(buffer, strings.get(stringIndex++));
+            if (value == REMOVED) {
+                continue;
+            }
+            if (value instanceof String) {
+                buffer.put(TYPE_STRING);
+                putString(buffer, strings.get(stringIndex++));
+            } else if (value instanceof Integer) {
+                buffer.put(TYPE_INT).putInt((Integer) value);
+            } else if (value instanceof Long) {
+                buffer.put(TYPE_LONG).putLong((Long) value);
+            } else if (value instanceof Float) {
+                buffer.put(TYPE_FLOAT).putFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                buffer.put(TYPE_BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+            } else {
+                buffer.put(TYPE_STRING_SET).putInt(((Set<?>) value).size());
+                for (int i = ((Set<?>) value).size(); i > 0; i--) {
+                    putString(buffer, strings.get(stringIndex++));
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int encodedSize(@NonNull String string, @NonNull List<byte[]> strings) {
+        byte[] bytes = string.getBytes(UTF_8);
+        strings.add(bytes);
+        return 4 + bytes.length;
+    }
+
+    private static void putString(@NonNull ByteBuffer buffer, @NonNull byte[] bytes) {
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull ByteBuffer buffer) throws IOException {
+        int size = buffer.getInt();
+        if (size < 0 || size > buffer.remaining()) {
+            throw new CorruptedStoreException("Malformed string of size " + size);
+        }
+        byte[] bytes = new byte[size];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @NonNull
+    private static Object readValue(@NonNull ByteBuffer buffer) throws IOException {
+        byte type = buffer.get();
+        switch (type) {
+            case TYPE_STRING:
+                return readString(buffer);
+            case TYPE_INT:
+                return buffer.getInt();
+            case TYPE_LONG:
+                return buffer.getLong();
+            case TYPE_FLOAT:
+                return buffer.getFloat();
+            case TYPE_BOOLEAN:
+                return buffer.get() != 0;
+            case TYPE_STRING_SET:
+                int count = buffer.getInt();
+                // every element takes at least its size
+                if (count < 0 || count > buffer.remaining() / 4) {
+                    throw new CorruptedStoreException("Malformed set of " + count + " elements");
+                }
+                Set<String> set = new HashSet<>();
+                for (int i = 0; i < count; i++) {
+                    set.add(readString(buffer));
+                }
+                return set;
+            default:
+                throw new CorruptedStoreException("Malformed record of type " + type);
+        }
+    }
+
+    private void readFully(@NonNull ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the log");
+            }
+        }
+    }
+
+    private void writeFully(@NonNull ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position() - start);
+        }
+    }
+
+    private static boolean equal(@Nullable Object a, @Nullable Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // header records
+
+    private static int getRecordOffset(long version) {
+        return RECORD_OFFSET + (int) (version & 1) * RECORD_SIZE;
+    }
+
+    /**
+     * Get the header record at the specified index, or null if its checksum does not match.
+     */
+    @Nullable
+    private static HeaderRecord getHeaderRecord(@NonNull ByteBuffer header, int index) {
+        int offset = RECORD_OFFSET + index * RECORD_SIZE;
+        if (header.getLong(offset + CHECKSUM_FIELD) != getChecksum(header, offset)) {
+            return null;
+        }
+        return new HeaderRecord(
+            header.getLong(offset + GENERATION_FIELD),
+            header.getLong(offset + VERSION_FIELD),
+            header.getLong(offset + START_FIELD),
+            header.getLong(offset + END_FIELD)
+        );
+    }
+
+    /**
+     * Put the specified record in the header, at the index of its version.
+     */
+    private static void putHeaderRecord(@NonNull ByteBuffer header, @NonNull HeaderRecord record) {
+        int offset = getRecordOffset(record.version);
+        header.putLong(offset + GENERATION_FIELD, record.generation);
+        header.putLong(offset + VERSION_FIELD, record.version);
+        header.putLong(offset + START_FIELD, record.start);
+        header.putLong(offset + END_FIELD, record.end);
+        header.putLong(offset + CHECKSUM_FIELD, getChecksum(header, offset));
+    }
+
+    private static long getChecksum(@NonNull ByteBuffer header, int offset) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < CHECKSUM_FIELD; i++) {
+            crc.update(header.get(offset + i));
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * A record of the header, which points to the log of a version.
+     */
+    private static final class HeaderRecord {
+        private final long generation;
+        private final long version;
+        private final long start;
+        private final long end;
+
+        private HeaderRecord(long generation, long version, long start, long end) {
+            this.generation = generation;
+            this.version = version;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Thrown when the header or the log can not be read.
+     */
+    private static final class CorruptedStoreException extends IOException {
+        // keys changed by the intact records read before the corrupted one
+        private final List<String> salvagedKeys;
+
+        private CorruptedStoreException(@NonNull String message) {
+            this(message, new ArrayList<String>());
+        }
+
+        private CorruptedStoreException(@NonNull String message, @NonNull List<String> salvagedKeys) {
+            super(message);
+            this.salvagedKeys = salvagedKeys;
+        }
+    }
+
+    /**
+     * An editor that merges its changes into the pending changes of the store on apply.
+     */
+    private final class MultiProcessEditor implements Editor {
+        private final Map<String, Object> changes = new LinkedHashMap<>();
+        private boolean clear;
+
+        @Override
+        @NonNull
+        public synchronized Editor putString(String key, @Nullable String value) {
+            changes.put(key, value != null ? value : REMOVED);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putStringSet(String key, @Nullable Set<String> values) {
+            changes.put(key, values != null ? new HashSet<>(values) : REMOVED);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putLong(String key, long value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putFloat(String key, float value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor remove(String key) {
+            changes.put(key, REMOVED);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            merge();
+            return flush();
+        }
+
+        @Override
+        public void apply() {
+            if (merge()) {
+                scheduleWrite();
+            }
+        }
+
+        /**
+         * Merge the changes of this editor into the pending changes of the store, and notify the listeners.
+         *
+         * @return whether anything has changed.
+         */
+        private boolean merge() {
+            List<String> changedKeys = new ArrayList<>();
+            synchronized (this) {
+                Set<String> clearedKeys = clear ? getAll().keySet() : Collections.<String>emptySet();
+                synchronized (lock) {
+                    // like the platform editor, clearing happens before the other changes
+                    for (String key : clearedKeys) {
+                        pending.put(key, REMOVED);
+                        changedKeys.add(key);
+                    }
+                    clear = false;
+                    for (Map.Entry<String, Object> change : changes.entrySet()) {
+                        pending.put(change.getKey(), change.getValue());
+                        changedKeys.add(change.getKey());
+                    }
+                    changes.clear();
+                }
+            }
+            notifyListeners(changedKeys);
+            return !changedKeys.isEmpty();
+        }
+    }
+}
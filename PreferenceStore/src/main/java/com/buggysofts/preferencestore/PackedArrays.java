@@ -0,0 +1,137 @@
+package com.buggysofts.preferencestore;
+
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encoding of primitive arrays into a packed form: a single type tag byte, followed by the little-endian elements, all wrapped in Base64.
+ * Encoding and decoding are bulk buffer copies.
+ */
+
+final class PackedArrays {
+    private static final byte TAG_INT = 'I';
+    private static final byte TAG_LONG = 'J';
+    private static final byte TAG_FLOAT = 'F';
+    private static final byte TAG_DOUBLE = 'D';
+    private static final byte TAG_BYTE = 'B';
+
+    private PackedArrays() {
+    }
+
+    // encoders
+
+    @NonNull
+    static String encode(@NonNull int[] values) {
+        ByteBuffer buffer = allocate(TAG_INT, values.length * 4);
+        buffer.asIntBuffer().put(values);
+        return wrap(buffer);
+    }
+
+    @NonNull
+    static String encode(@NonNull long[] values) {
+        ByteBuffer buffer = allocate(TAG_LONG, values.length * 8);
+        buffer.asLongBuffer().put(values);
+        return wrap(buffer);
+    }
+
+    @NonNull
+    static String encode(@NonNull float[] values) {
+        ByteBuffer buffer = allocate(TAG_FLOAT, values.length * 4);
+        buffer.asFloatBuffer().put(values);
+        return wrap(buffer);
+    }
+
+    @NonNull
+    static String encode(@NonNull double[] values) {
+        ByteBuffer buffer = allocate(TAG_DOUBLE, values.length * 8);
+        buffer.asDoubleBuffer().put(values);
+        return wrap(buffer);
+    }
+
+    @NonNull
+    static String encode(@NonNull byte[] values) {
+        ByteBuffer buffer = allocate(TAG_BYTE, values.length);
+        buffer.put(values);
+        return wrap(buffer);
+    }
+
+    // decoders
+
+    @NonNull
+    static int[] decodeIntArray(@NonNull String encoded) throws ClassCastException {
+        ByteBuffer buffer = unwrap(encoded, TAG_INT, 4);
+        int[] values = new int[buffer.remaining() / 4];
+        buffer.asIntBuffer().get(values);
+        return values;
+    }
+
+    @NonNull
+    static long[] decodeLongArray(@NonNull String encoded) throws ClassCastException {
+        ByteBuffer buffer = unwrap(encoded, TAG_LONG, 8);
+        long[] values = new long[buffer.remaining() / 8];
+        buffer.asLongBuffer().get(values);
+        return values;
+    }
+
+    @NonNull
+    static float[] decodeFloatArray(@NonNull String encoded) throws ClassCastException {
+        ByteBuffer buffer = unwrap(encoded, TAG_FLOAT, 4);
+        float[] values = new float[buffer.remaining() / 4];
+        buffer.asFloatBuffer().get(values);
+        return values;
+    }
+
+    @NonNull
+    static double[] decodeDoubleArray(@NonNull String encoded) throws ClassCastException {
+        ByteBuffer buffer = unwrap(encoded, TAG_DOUBLE, 8);
+        double[] values = new double[buffer.remaining() / 8];
+        buffer.asDoubleBuffer().get(values);
+        return values;
+    }
+
+    @NonNull
+    static byte[] decodeByteArray(@NonNull String encoded) throws ClassCastException {
+        ByteBuffer buffer = unwrap(encoded, TAG_BYTE, 1);
+        byte[] values = new byte[buffer.remaining()];
+        buffer.get(values);
+        return values;
+    }
+
+    @NonNull
+    private static ByteBuffer allocate(byte tag, int payloadLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + payloadLength);
+        buffer.put(tag);
+        // views created from here on start after the tag
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @NonNull
+    private static String wrap(@NonNull ByteBuffer buffer) {
+        return Base64.encodeToString(buffer.array(), Base64.NO_WRAP);
+    }
+
+    /**
+     * @return a little-endian buffer positioned after the tag.
+     * @throws ClassCastException if the encoded value is not an array of the expected type, just like the underlying store does for mismatched types.
+     */
+    @NonNull
+    private static ByteBuffer unwrap(@NonNull String encoded, byte tag, int elementSize) throws ClassCastException {
+        byte[] bytes;
+        try {
+            bytes = Base64.decode(encoded, Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            throw new ClassCastException("Value is not a packed array.");
+        }
+        if (bytes.length == 0 || bytes[0] != tag || (bytes.length - 1) % elementSize != 0) {
+            throw new ClassCastException("Value is not a packed array of the requested type.");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(1);
+        // slice, so that the views start at the first element
+        return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
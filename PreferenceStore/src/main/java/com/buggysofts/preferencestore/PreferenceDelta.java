@@ -0,0 +1,194 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes of a store since a position of its change log, as produced by {@link PreferenceHandler#getChangesSince(long)},
+ * to be applied to another store with {@link PreferenceHandler#applyChanges(PreferenceDelta)}.
+ * <br>
+ * A delta holds the latest value (or removal) of each changed key, along with its version, and can be sent over the network
+ * with {@link #writeTo(OutputStream)} and {@link #readFrom(InputStream)}.
+ */
+
+public final class PreferenceDelta {
+    private static final int MAGIC = 0x5053444c;
+    private static final int FORMAT_VERSION = 1;
+
+    private final long fromSequence;
+    private final long toSequence;
+    private final List<Change> changes;
+
+    PreferenceDelta(long fromSequence,
+                    long toSequence,
+                    @NonNull List<Change> changes) {
+        this.fromSequence = fromSequence;
+        this.toSequence = toSequence;
+        this.changes = Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * Get the change log position this delta starts after.
+     */
+    public long getFromSequence() {
+        return fromSequence;
+    }
+
+    /**
+     * Get the change log position this delta reaches. Ask for the changes since this position next time.
+     */
+    public long getToSequence() {
+        return toSequence;
+    }
+
+    /**
+     * Get the number of changed keys.
+     */
+    public int size() {
+        return changes.size();
+    }
+
+    /**
+     * Get the changed keys.
+     */
+    @NonNull
+    public Set<String> getKeys() {
+        Set<String> keys = new LinkedHashSet<>();
+        for (Change change : changes) {
+            keys.add(change.key);
+        }
+        return keys;
+    }
+
+    @NonNull
+    List<Change> getChanges() {
+        return changes;
+    }
+
+    // encoding
+
+    /**
+     * Write this delta to the specified stream. The stream is flushed, but not closed.
+     *
+     * @throws IOException if writing fails.
+     */
+    public void writeTo(@NonNull OutputStream outputStream) throws IOException {
+        // devices are written once, and referred to by index
+        Map<String, Integer> devices = new HashMap<>();
+        List<String> deviceList = new ArrayList<>();
+        for (Change change : changes) {
+            if (!devices.containsKey(change.deviceId)) {
+                devices.put(change.deviceId, deviceList.size());
+                deviceList.add(change.deviceId);
+            }
+        }
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeLong(fromSequence);
+        output.writeLong(toSequence);
+        output.writeInt(deviceList.size());
+        for (String deviceId : deviceList) {
+            BackupFormat.writeString(output, deviceId);
+        }
+        output.writeInt(changes.size());
+        for (Change change : changes) {
+            if (change.value != null) {
+                output.writeBoolean(true);
+                if (!BackupFormat.writeEntry(output, change.key, change.value)) {
+                    throw new IOException("Unsupported value type: " + change.value.getClass().getName());
+                }
+            } else {
+                output.writeBoolean(false);
+                BackupFormat.writeString(output, change.key);
+            }
+            output.writeLong(change.lamport);
+            output.writeInt(devices.get(change.deviceId));
+        }
+        output.flush();
+    }
+
+    /**
+     * Read a delta from the specified stream. The stream is not closed.
+     *
+     * @throws IOException if the input is not a delta, or if it is of a newer format.
+     */
+    @NonNull
+    public static PreferenceDelta readFrom(@NonNull InputStream inputStream) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream));
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a preference delta");
+        }
+        int formatVersion = input.readInt();
+        if (formatVersion > FORMAT_VERSION) {
+            throw new IOException("Unsupported delta format version: " + formatVersion);
+        }
+        long fromSequence = input.readLong();
+        long toSequence = input.readLong();
+        String[] devices = new String[input.readInt()];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = BackupFormat.readString(input);
+        }
+
+        int count = input.readInt();
+        List<Change> changes = new ArrayList<>();
+        byte[] tag = new byte[1];
+        for (int i = 0; i < count; i++) {
+            String key;
+            Object value = null;
+            if (input.readBoolean()) {
+                key = BackupFormat.readKey(input, tag);
+                if (key == null) {
+                    throw new IOException("Malformed delta entry");
+                }
+                value = BackupFormat.readValue(input, tag[0]);
+            } else {
+                key = BackupFormat.readString(input);
+            }
+            long lamport = input.readLong();
+            int device = input.readInt();
+            if (device < 0 || device >= devices.length) {
+                throw new IOException("Malformed delta device index");
+            }
+            changes.add(new Change(key, value, lamport, devices[device]));
+        }
+        return new PreferenceDelta(fromSequence, toSequence, changes);
+    }
+
+    /**
+     * The latest value of a key, and its version.
+     */
+    static final class Change {
+        final String key;
+        // null if removed
+        final Object value;
+        final long lamport;
+        final String deviceId;
+
+        Change(@NonNull String key,
+               @Nullable Object value,
+               long lamport,
+               @NonNull String deviceId) {
+            this.key = key;
+            this.value = value;
+            this.lamport = lamport;
+            this.deviceId = deviceId;
+        }
+    }
+}
@@ -5,34 +5,253 @@ import android.content.SharedPreferences;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Type;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
 
 public abstract class PreferenceHandler {
+    /**
+     * Mode flag that makes the handler use a store which can be read and written by several processes at once, instead of the platform's store.
+     * Changes made by the other processes are noticed on the next read, through a cheap version check. Combine it with the other mode flags
+     * (which are ignored by this store) as usual. Note that the data lives in a separate file, not in the platform's store of the same name.
+     */
+    public static final int MODE_MULTI_PROCESS_SAFE = 0x40000000;
+
+    // keys starting with this are written by the library itself, and are never considered orphaned
+    static final String INTERNAL_KEY_PREFIX = "preference_store_";
+    // key of the stored schema version, managed by the migration engine
+    static final String SCHEMA_VERSION_KEY = INTERNAL_KEY_PREFIX + "schema_version";
+    // key of the keys (and types) decoded during the last recorded startup, managed by the startup prefetcher
+    static final String STARTUP_ACCESSES_KEY = INTERNAL_KEY_PREFIX + "startup_accesses";
+    // directory (under the files directory) of the multi process stores
+    private static final String MULTI_PROCESS_DIRECTORY = "preference_store";
+    // directory (under the files directory) of the blobs of the values diverted by the size budgets
+    private static final String BLOB_DIRECTORY = "preference_store_blobs";
+    // separates the expiry time from the payload of an expiring preference
+    private static final char EXPIRY_SEPARATOR = '|';
+    // kinds of the recorded startup accesses
+    private static final char ACCESS_KIND_UNBOUNDED = 'U';
+    private static final char ACCESS_KIND_EXPIRING = 'E';
+    // key of the lock that orders the counter writes of all the handlers of a store
+    private static final String COUNTERS_LOCK_KEY = INTERNAL_KEY_PREFIX + "counters";
+    // locks of the atomic updates and of the expiring values (against the sweeper), by store name and key, shared by all the handlers,
+    // so that handlers of the same file exclude each other. One small object per key that was ever locked, they are never dropped
+    private static final ConcurrentHashMap<String, Object> KEY_LOCKS = new ConcurrentHashMap<>();
+    // change counters of the stores, by store name and kind of file, shared by all the handlers, bumped after every write that does not go
+    // through the read cache of the writing handler, so that the read caches of the other handlers of the same file notice it
+    private static final ConcurrentHashMap<String, AtomicLong> STORE_GENERATIONS = new ConcurrentHashMap<>();
+
+    // shared by the background jobs (expiry sweeping, counter persisting) of all the handlers
+    private static ScheduledExecutorService backgroundExecutor;
+    // shared by the startup prefetchers of all the handlers, its threads die when idle
+    private static ThreadPoolExecutor prefetchExecutor;
+    // times the operations of the handlers constructed while it is installed, null otherwise
+    private static volatile BlockingDetector blockingDetector;
+    // records the operations of the handlers constructed while it is installed, null otherwise
+    private static volatile AccessTracer accessTracer;
+
     private final String preferenceName;
+    private final int mode;
     private final SharedPreferences preferences;
     private final SharedPreferences.Editor preferencesEditor;
+    // views of the store that make up the above, null if not used
+    private final ScheduledSharedPreferences scheduledPreferences;
+    // whether the scheduled view was handed back to its scheduler
+    private final AtomicBoolean scheduledPreferencesReleased = new AtomicBoolean();
+    private final BudgetedSharedPreferences budgetedPreferences;
+
+    // keys of the initialized expiring preferences, checked by the sweeper
+    private final Set<String> expiringKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private ScheduledFuture<?> expirySweeper;
+
+    // keys of the declared (or initialized) preferences, and prefixes of the dynamic keys, kept by compaction
+    private final Set<String> declaredKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> allowedKeyPrefixes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // declared (or initialized) bounded preferences, by key, so that imported values can be validated
+    private final ConcurrentHashMap<String, BoundedPreference<?>> boundedPreferences = new ConcurrentHashMap<>();
+
+    // copy of the store while the read cache is enabled, null otherwise. Updated per key on our own writes, and reloaded on other changes
+    private volatile ConcurrentHashMap<String, Object> readCache;
+    // generation of the store the read cache is current with, guarded by the read cache lock for writing
+    private volatile long readCacheGeneration;
+    private final Object readCacheLock = new Object();
+    // change counter of the store, shared with the other handlers of the same file
+    private final AtomicLong storeGeneration;
+    // held strongly here, the underlying store only keeps a weak reference to it
+    private final SharedPreferences.OnSharedPreferenceChangeListener readCacheListener =
+        new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                if (key != null) {
+                    refreshReadCache(key);
+                } else {
+                    // the store was cleared
+                    refreshReadCache();
+                }
+            }
+        };
+
+    // compiled table of the declared preferences while frozen, null otherwise
+    private volatile FrozenPreferenceTable frozenTable;
+    private final SharedPreferences.OnSharedPreferenceChangeListener frozenTableListener =
+        new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                // a change is observed, recompile
+                refreshFrozenTable();
+            }
+        };
+
+    // in-memory state of the counter preferences used so far, holding the increments made through this handler
+    private final ConcurrentHashMap<String, CounterState> counters = new ConcurrentHashMap<>();
+
+    // values decoded ahead of time by the startup prefetcher, each handed out once
+    private final ConcurrentHashMap<String, PrefetchedValue> prefetchedValues = new ConcurrentHashMap<>();
+    // kinds and types of the values decoded so far, by key, while recording, null otherwise
+    private volatile ConcurrentHashMap<String, String> recordedAccesses;
+
+    // lazily computed defaults, by key, each built at most once
+    private final ConcurrentHashMap<String, SuppliedDefault> suppliedDefaults = new ConcurrentHashMap<>();
+
+    // the blocking detector installed at construction, null if none
+    private final BlockingDetector detector;
+    // the access tracer installed at construction, null if none
+    private final AccessTracer tracer;
+
+    // versions the changes for syncing, null if not enabled
+    private final ChangeLog changeLog;
+    // merge rules of the synced preferences, by key
+    private final ConcurrentHashMap<String, PreferenceMergeRule> mergeRules = new ConcurrentHashMap<>();
+
+    // encrypts the values of the sensitive preferences, null if not set
+    private volatile PreferenceKeyProvider keyProvider;
 
     public PreferenceHandler(@NonNull Context context,
                              @NonNull String preferenceName,
                              int mode,
                              boolean edit) {
-        this.preferences = context.getSharedPreferences(
+        this(
+            context,
+            preferenceName,
+            mode,
+            edit,
+            null,
+            PreferenceWriteScheduler.Priority.USER_VISIBLE
+        );
+    }
+
+    /**
+     * Create a handler whose writes are scheduled by the specified write scheduler, instead of the platform's <b>QueuedWork</b>.
+     *
+     * @param writeScheduler Scheduler of the writes, usually {@link PreferenceWriteScheduler#getDefault()}. If null, writes are applied as usual.
+     * @param writePriority  Priority of the writes made through this handler.
+     */
+    public PreferenceHandler(@NonNull Context context,
+                             @NonNull String preferenceName,
+                             int mode,
+                             boolean edit,
+                             @Nullable PreferenceWriteScheduler writeScheduler,
+                             @NonNull PreferenceWriteScheduler.Priority writePriority) {
+        BlockingDetector detector = (this.detector = blockingDetector);
+        long startTime = detector != null ? detector.startTiming() : BlockingDetector.NOT_TIMED;
+
+        // a multi store transaction interrupted by a crash is completed before any store is read
+        PreferenceTransaction.recover(context);
+
+        SharedPreferences preferences = openSharedPreferences(
+            context,
             (this.preferenceName = preferenceName),
-            mode
+            (this.mode = mode)
         );
+        this.storeGeneration = getStoreGeneration(preferenceName, mode);
+        if (detector != null) {
+            // innermost, so that only the writes reaching the store are timed
+            preferences = new MonitoredSharedPreferences(preferences, detector);
+        }
+
+        SharedPreferences.Editor preferencesEditor;
+        if (writeScheduler != null) {
+            ScheduledSharedPreferences scheduledPreferences = (this.scheduledPreferences = writeScheduler.wrap(preferenceName, mode, preferences));
+            preferences = scheduledPreferences;
+            preferencesEditor = edit ? scheduledPreferences.edit(writePriority) : null;
+        } else {
+            this.scheduledPreferences = null;
+            preferencesEditor = edit ? preferences.edit() : null;
+        }
 
-        if (edit) {
-            this.preferencesEditor = this.preferences.edit();
+        SizeBudget sizeBudget = getSizeBudget();
+        if (sizeBudget != null) {
+            // outermost, so that the budget sees the pending writes too, and the diverted values never reach the store
+            BudgetedSharedPreferences budgetedPreferences = (this.budgetedPreferences = new BudgetedSharedPreferences(
+                preferences,
+                sizeBudget,
+                new File(new File(context.getFilesDir(), BLOB_DIRECTORY), preferenceName)
+            ));
+            preferences = budgetedPreferences;
+            preferencesEditor = preferencesEditor != null ? budgetedPreferences.wrap(preferencesEditor) : null;
+        } else {
+            this.budgetedPreferences = null;
+        }
+        String deviceId = getChangeLogDeviceId();
+        if (deviceId != null) {
+            ChangeLog changeLog = (this.changeLog = new ChangeLog(deviceId, preferences));
+            preferencesEditor = preferencesEditor != null ? changeLog.wrap(preferencesEditor) : null;
         } else {
-            this.preferencesEditor = null;
+            this.changeLog = null;
         }
 
+        AccessTracer tracer = (this.tracer = accessTracer);
+        if (tracer != null && preferencesEditor != null) {
+            // outermost, so that the operations are recorded as requested
+            preferencesEditor = new TracedEditor(preferencesEditor, tracer, preferenceName);
+        }
+        this.preferences = preferences;
+        this.preferencesEditor = preferencesEditor;
+
+        migratePreferenceValues();
         initializePreferenceValues(context);
+
+        if (detector != null) {
+            detector.stopTiming(startTime, BlockingReport.Operation.INITIALIZE, preferenceName);
+        }
     }
 
     /**
@@ -40,6 +259,46 @@ public abstract class PreferenceHandler {
      */
     public abstract void initializePreferenceValues(@NonNull Context context);
 
+    /**
+     * Declare the schema migrations of this store by overriding this method. The latest target version among the returned steps is the current schema version.
+     * <br>
+     * On construction (in editor mode, and before {@link #initializePreferenceValues(Context)}), the steps with target versions above the stored schema version
+     * are run in ascending order on a staged copy of the store, and their combined result is written along with the new schema version at once.
+     * If the store is already at the current schema version, this costs a single int read.
+     *
+     * @return the migration steps, in any order. Target versions must be unique.
+     */
+    @NonNull
+    public PreferenceMigration[] getMigrations() {
+        return new PreferenceMigration[0];
+    }
+
+    /**
+     * Declare the size budget of this store by overriding this method. It is called once, on construction.
+     * <br>
+     * If a budget is declared, the sizes of all the entries are loaded on construction, and every write is checked against the budget before it is applied.
+     *
+     * @return the size budget, or null (the default) to write without checking sizes.
+     * @see #getFootprintReport()
+     */
+    @Nullable
+    public SizeBudget getSizeBudget() {
+        return null;
+    }
+
+    /**
+     * Enable the change log of this store by overriding this method to return a stable id of this device (or installation). It is called once, on construction.
+     * <br>
+     * While enabled, every change made through this handler is versioned, so that the changes can be synced with the stores of other devices
+     * with {@link #getChangesSince(long)} and {@link #applyChanges(PreferenceDelta)}. Values written before enabling are not synced until they change.
+     *
+     * @return the device id, or null (the default) to keep the change log disabled.
+     */
+    @Nullable
+    public String getChangeLogDeviceId() {
+        return null;
+    }
+
 
     //////////
     // getters
@@ -58,7 +317,7 @@ public abstract class PreferenceHandler {
      */
     public boolean getPreferenceValue(@NonNull BoundedPreference<Boolean> preference,
                                       @NonNull boolean... defaultOverride) {
-        return preferences.getBoolean(
+        return readBoolean(
             preference.getKey(),
             defaultOverride.length > 0 ? defaultOverride[0] : preference.getDefaultValue()
         );
@@ -75,7 +334,7 @@ public abstract class PreferenceHandler {
      */
     public int getPreferenceValue(@NonNull BoundedPreference<Integer> preference,
                                   @NonNull int... defaultOverride) {
-        return preferences.getInt(
+        return readInt(
             preference.getKey(),
             defaultOverride.length > 0 ? defaultOverride[0] : preference.getDefaultValue()
         );
@@ -92,7 +351,7 @@ public abstract class PreferenceHandler {
      */
     public long getPreferenceValue(@NonNull BoundedPreference<Long> preference,
                                    @NonNull long... defaultOverride) {
-        return preferences.getLong(
+        return readLong(
             preference.getKey(),
             defaultOverride.length > 0 ? defaultOverride[0] : preference.getDefaultValue()
         );
@@ -109,7 +368,7 @@ public abstract class PreferenceHandler {
      */
     public float getPreferenceValue(@NonNull BoundedPreference<Float> preference,
                                     @NonNull float... defaultOverride) {
-        return preferences.getFloat(
+        return readFloat(
             preference.getKey(),
             defaultOverride.length > 0 ? defaultOverride[0] : preference.getDefaultValue()
         );
@@ -127,9 +386,12 @@ public abstract class PreferenceHandler {
     @NonNull
     public String getPreferenceValue(@NonNull BoundedPreference<String> preference,
                                      @NonNull String... defaultOverride) {
-        return preferences.getString(
-            preference.getKey(),
-            defaultOverride.length > 0 ? defaultOverride[0] : preference.getDefaultValue()
+        // return the instance from the value list, so that the same instance is returned on every read
+        return preference.getCanonicalValue(
+            readString(
+                preference.getKey(),
+                defaultOverride.length > 0 ? defaultOverride[0] : preference.getDefaultValue()
+            )
         );
     }
 
@@ -145,9 +407,12 @@ public abstract class PreferenceHandler {
     @NonNull
     public Set<String> getPreferenceValue(@NonNull BoundedPreference<Set<String>> preference,
                                           @NonNull Set<String>... defaultOverride) {
-        return preferences.getStringSet(
-            preference.getKey(),
-            defaultOverride.length > 0 ? defaultOverride[0] : preference.getDefaultValue()
+        // return the instance from the value list, so that the same instance is returned on every read
+        return preference.getCanonicalValue(
+            readStringSet(
+                preference.getKey(),
+                defaultOverride.length > 0 ? defaultOverride[0] : preference.getDefaultValue()
+            )
         );
     }
 
@@ -156,23 +421,100 @@ public abstract class PreferenceHandler {
      *
      * @param preference The preference from which we want our value.
      * @param typeToken  {@link TypeToken} of the return type.
-     * @return If the key exists, returns its value, otherwise the default of the specified bounded preference will be returned.
+     * @return If the key exists, returns its value (the same instance from the value list of the preference on every call), otherwise returns null.
      */
     @Nullable
     public <T extends Serializable> T getPreferenceValue(@NonNull BoundedPreference<T> preference,
                                                          @NonNull TypeToken<T> typeToken) {
         String json = null;
         try {
-            json = preferences.getString(preference.getKey(), null);
+            json = readString(preference.getKey(), null);
         } catch (Exception e) {
             e.printStackTrace();
         }
         if (json != null) {
+            // stored values are the encoded forms of the values in the value list, so there is nothing to decode
+            T value = preference.getValueOfJson(json);
+            if (value != null) {
+                return value;
+            }
+            // the value list has changed since the value was stored
             return new Gson().fromJson(json, typeToken.getType());
         }
         return null;
     }
 
+    // constrained
+
+    /**
+     * Get value of the specified preference.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Optional value to override the actual return from underlying {@link SharedPreferences} instance.
+     *                        Although it is declared as a vararg, you should pass at most one value. Others will be discarded.
+     * @return If the key exists, returns its value. If the key doesn't exist and <b>defaultOverride</b> is specified,
+     * <b>defaultOverride[0]</b> is returned, otherwise the default of the specified constrained preference will be returned.
+     */
+    public int getPreferenceValue(@NonNull ConstrainedPreference<Integer> preference,
+                                  @NonNull int... defaultOverride) {
+        return readInt(
+            preference.getKey(),
+            defaultOverride.length > 0 ? defaultOverride[0] : preference.getDefaultValue()
+        );
+    }
+
+    /**
+     * Get value of the specified preference.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Optional value to override the actual return from underlying {@link SharedPreferences} instance.
+     *                        Although it is declared as a vararg, you should pass at most one value. Others will be discarded.
+     * @return If the key exists, returns its value. If the key doesn't exist and <b>defaultOverride</b> is specified,
+     * <b>defaultOverride[0]</b> is returned, otherwise the default of the specified constrained preference will be returned.
+     */
+    public long getPreferenceValue(@NonNull ConstrainedPreference<Long> preference,
+                                   @NonNull long... defaultOverride) {
+        return readLong(
+            preference.getKey(),
+            defaultOverride.length > 0 ? defaultOverride[0] : preference.getDefaultValue()
+        );
+    }
+
+    /**
+     * Get value of the specified preference.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Optional value to override the actual return from underlying {@link SharedPreferences} instance.
+     *                        Although it is declared as a vararg, you should pass at most one value. Others will be discarded.
+     * @return If the key exists, returns its value. If the key doesn't exist and <b>defaultOverride</b> is specified,
+     * <b>defaultOverride[0]</b> is returned, otherwise the default of the specified constrained preference will be returned.
+     */
+    public float getPreferenceValue(@NonNull ConstrainedPreference<Float> preference,
+                                    @NonNull float... defaultOverride) {
+        return readFloat(
+            preference.getKey(),
+            defaultOverride.length > 0 ? defaultOverride[0] : preference.getDefaultValue()
+        );
+    }
+
+    /**
+     * Get value of the specified preference.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Optional value to override the actual return from underlying {@link SharedPreferences} instance.
+     *                        Although it is declared as a vararg, you should pass at most one value. Others will be discarded.
+     * @return If the key exists, returns its value. If the key doesn't exist and <b>defaultOverride</b> is specified,
+     * <b>defaultOverride[0]</b> is returned, otherwise the default of the specified constrained preference will be returned.
+     */
+    @NonNull
+    public String getPreferenceValue(@NonNull ConstrainedPreference<String> preference,
+                                     @NonNull String... defaultOverride) {
+        return readString(
+            preference.getKey(),
+            defaultOverride.length > 0 ? defaultOverride[0] : preference.getDefaultValue()
+        );
+    }
+
     // unbounded
 
     /**
@@ -183,7 +525,7 @@ public abstract class PreferenceHandler {
      * @return If the key exists, returns its value, else, otherwise returns <b>defaultOverride</b>.
      */
     public boolean getPreferenceValue(@NonNull UnBoundedPreference<Boolean> preference, boolean defaultOverride) {
-        return preferences.getBoolean(
+        return readBoolean(
             preference.getKey(),
             defaultOverride
         );
@@ -197,7 +539,7 @@ public abstract class PreferenceHandler {
      * @return If the key exists, returns its value, else, otherwise returns <b>defaultOverride</b>.
      */
     public int getPreferenceValue(@NonNull UnBoundedPreference<Integer> preference, int defaultOverride) {
-        return preferences.getInt(
+        return readInt(
             preference.getKey(),
             defaultOverride
         );
@@ -211,7 +553,7 @@ public abstract class PreferenceHandler {
      * @return If the key exists, returns its value, else, otherwise returns <b>defaultOverride</b>.
      */
     public Long getPreferenceValue(@NonNull UnBoundedPreference<Long> preference, long defaultOverride) {
-        return preferences.getLong(
+        return readLong(
             preference.getKey(),
             defaultOverride
         );
@@ -225,7 +567,7 @@ public abstract class PreferenceHandler {
      * @return If the key exists, returns its value, else, otherwise returns <b>defaultOverride</b>.
      */
     public float getPreferenceValue(@NonNull UnBoundedPreference<Float> preference, float defaultOverride) {
-        return preferences.getFloat(
+        return readFloat(
             preference.getKey(),
             defaultOverride
         );
@@ -241,7 +583,7 @@ public abstract class PreferenceHandler {
     @Nullable
     public String getPreferenceValue(@NonNull UnBoundedPreference<String> preference,
                                      @NonNull String defaultOverride) {
-        return preferences.getString(
+        return readString(
             preference.getKey(),
             defaultOverride
         );
@@ -257,7 +599,7 @@ public abstract class PreferenceHandler {
     @Nullable
     public Set<String> getPreferenceValue(@NonNull UnBoundedPreference<Set<String>> preference,
                                           @Nullable Set<String> defaultOverride) {
-        return preferences.getStringSet(
+        return readStringSet(
             preference.getKey(),
             defaultOverride
         );
@@ -275,12 +617,272 @@ public abstract class PreferenceHandler {
                                                          @NonNull TypeToken<T> typeToken) {
         String json = null;
         try {
-            json = preferences.getString(preference.getKey(), null);
+            json = readString(preference.getKey(), null);
         } catch (Exception e) {
             e.printStackTrace();
         }
         if (json != null) {
-            return new Gson().fromJson(json, typeToken.getType());
+            return decodeJson(
+                preference.getKey(),
+                json,
+                0,
+                typeToken.getType()
+            );
+        }
+        return null;
+    }
+
+    /**
+     * Get value of the specified preference, or its lazily computed default. Reading a present preference never builds the default.
+     * <br>
+     * Values of the types with native storage (<b>Boolean</b>, <b>Integer</b>, <b>Long</b>, <b>Float</b>, <b>String</b> and <b>Set&lt;String&gt;</b>) are read natively,
+     * values of other types are decoded from json.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param typeToken       {@link TypeToken} of the return type.
+     * @param defaultSupplier Builds the value to return if the preference is not present. It is called at most once per handler and key,
+     *                        and its result is returned for that key from then on.
+     * @return If the key exists, returns its value, otherwise returns the default.
+     */
+    @NonNull
+    public <T> T getPreferenceValueOrCompute(@NonNull UnBoundedPreference<T> preference,
+                                             @NonNull TypeToken<T> typeToken,
+                                             @NonNull DefaultSupplier<T> defaultSupplier) {
+        T value = null;
+        try {
+            Class<?> rawType = typeToken.getRawType();
+            if (isNativeType(rawType)) {
+                value = readValue(preference.getKey(), rawType, null);
+            } else {
+                String json = readString(preference.getKey(), null);
+                if (json != null) {
+                    value = decodeJson(
+                        preference.getKey(),
+                        json,
+                        0,
+                        typeToken.getType()
+                    );
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return value != null ? value : getSuppliedDefault(preference.getKey(), defaultSupplier);
+    }
+
+    // expiring
+
+    /**
+     * Get value of the specified preference. The stored payload is decoded only if the value has not expired yet.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param typeToken       {@link TypeToken} of the return type.
+     * @param defaultOverride Value to return if the preference is not present, or if its value has expired.
+     * @return If the key exists and its value has not expired, returns its value, otherwise returns <b>defaultOverride</b>.
+     */
+    @Nullable
+    public <T extends Serializable> T getPreferenceValue(@NonNull ExpiringPreference<T> preference,
+                                                         @NonNull TypeToken<T> typeToken,
+                                                         @Nullable T defaultOverride) {
+        String entry = null;
+        try {
+            entry = readString(preference.getKey(), null);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (entry != null) {
+            int separatorIndex = entry.indexOf(EXPIRY_SEPARATOR);
+            // only a single timestamp comparison before we touch the payload
+            if (parseExpiryTime(entry, separatorIndex) > System.currentTimeMillis()) {
+                return decodeJson(
+                    preference.getKey(),
+                    entry,
+                    separatorIndex + 1,
+                    typeToken.getType()
+                );
+            }
+        }
+        return defaultOverride;
+    }
+
+    /**
+     * Get value of the specified preference, or its lazily computed default. Reading a present, unexpired preference never builds the default.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param typeToken       {@link TypeToken} of the return type.
+     * @param defaultSupplier Builds the value to return if the preference is not present, or if its value has expired.
+     *                        It is called at most once per handler and key, and its result is returned for that key from then on.
+     * @return If the key exists and its value has not expired, returns its value, otherwise returns the default.
+     */
+    @NonNull
+    public <T extends Serializable> T getPreferenceValueOrCompute(@NonNull ExpiringPreference<T> preference,
+                                                                  @NonNull TypeToken<T> typeToken,
+                                                                  @NonNull DefaultSupplier<T> defaultSupplier) {
+        T value = getPreferenceValue(preference, typeToken, null);
+        return value != null ? value : getSuppliedDefault(preference.getKey(), defaultSupplier);
+    }
+
+    /**
+     * Get the time (in milliseconds since epoch) at which the value of the specified preference expires.
+     *
+     * @param preference The preference whose expiry time we want.
+     * @return If the key exists, returns the expiry time of its value (which may already be in the past), otherwise returns 0.
+     */
+    public long getExpiryTime(@NonNull ExpiringPreference<?> preference) {
+        String entry = null;
+        try {
+            entry = readString(preference.getKey(), null);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (entry != null) {
+            return Math.max(0, parseExpiryTime(entry, entry.indexOf(EXPIRY_SEPARATOR)));
+        }
+        return 0;
+    }
+
+    // array
+
+    /**
+     * Get value of the specified preference. The stored value is decoded straight into a primitive array.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Value to return if the preference is not present.
+     * @return If the key exists, returns its value, else, otherwise returns <b>defaultOverride</b>.
+     * @throws ClassCastException if the stored value is not an array of the requested type.
+     */
+    @Nullable
+    public int[] getPreferenceValue(@NonNull ArrayPreference<int[]> preference,
+                                    @Nullable int[] defaultOverride) {
+        String encoded = readString(preference.getKey(), null);
+        if (encoded != null) {
+            return PackedArrays.decodeIntArray(encoded);
+        }
+        return defaultOverride;
+    }
+
+    /**
+     * Get value of the specified preference. The stored value is decoded straight into a primitive array.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Value to return if the preference is not present.
+     * @return If the key exists, returns its value, else, otherwise returns <b>defaultOverride</b>.
+     * @throws ClassCastException if the stored value is not an array of the requested type.
+     */
+    @Nullable
+    public long[] getPreferenceValue(@NonNull ArrayPreference<long[]> preference,
+                                     @Nullable long[] defaultOverride) {
+        String encoded = readString(preference.getKey(), null);
+        if (encoded != null) {
+            return PackedArrays.decodeLongArray(encoded);
+        }
+        return defaultOverride;
+    }
+
+    /**
+     * Get value of the specified preference. The stored value is decoded straight into a primitive array.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Value to return if the preference is not present.
+     * @return If the key exists, returns its value, else, otherwise returns <b>defaultOverride</b>.
+     * @throws ClassCastException if the stored value is not an array of the requested type.
+     */
+    @Nullable
+    public float[] getPreferenceValue(@NonNull ArrayPreference<float[]> preference,
+                                      @Nullable float[] defaultOverride) {
+        String encoded = readString(preference.getKey(), null);
+        if (encoded != null) {
+            return PackedArrays.decodeFloatArray(encoded);
+        }
+        return defaultOverride;
+    }
+
+    /**
+     * Get value of the specified preference. The stored value is decoded straight into a primitive array.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Value to return if the preference is not present.
+     * @return If the key exists, returns its value, else, otherwise returns <b>defaultOverride</b>.
+     * @throws ClassCastException if the stored value is not an array of the requested type.
+     */
+    @Nullable
+    public double[] getPreferenceValue(@NonNull ArrayPreference<double[]> preference,
+                                       @Nullable double[] defaultOverride) {
+        String encoded = readString(preference.getKey(), null);
+        if (encoded != null) {
+            return PackedArrays.decodeDoubleArray(encoded);
+        }
+        return defaultOverride;
+    }
+
+    /**
+     * Get value of the specified preference. The stored value is decoded straight into a primitive array.
+     *
+     * @param preference      The preference from which we want our value.
+     * @param defaultOverride Value to return if the preference is not present.
+     * @return If the key exists, returns its value, else, otherwise returns <b>defaultOverride</b>.
+     * @throws ClassCastException if the stored value is not an array of the requested type.
+     */
+    @Nullable
+    public byte[] getPreferenceValue(@NonNull ArrayPreference<byte[]> preference,
+                                     @Nullable byte[] defaultOverride) {
+        String encoded = readString(preference.getKey(), null);
+        if (encoded != null) {
+            return PackedArrays.decodeByteArray(encoded);
+        }
+        return defaultOverride;
+    }
+
+    // counter
+
+    /**
+     * Get value of the specified counter preference, including the increments made through this handler that are not persisted yet.
+     *
+     * @param preference The preference from which we want our value.
+     * @return current value of the counter, or 0 if it was never incremented.
+     */
+    public long getPreferenceValue(@NonNull CounterPreference preference) {
+        CounterState state = counters.get(preference.getKey());
+        if (state != null) {
+            // the persisted value and the pending increments, as of the same write
+            synchronized (state) {
+                return preferences.getLong(preference.getKey(), 0) + state.counter.sum() - state.persistedValue;
+            }
+        }
+        return readLong(
+            preference.getKey(),
+            0
+        );
+    }
+
+    // sensitive
+
+    /**
+     * Get value of the specified preference. The stored value is decrypted with the key of the key provider of this handler.
+     *
+     * @param preference The preference from which we want our value.
+     * @param typeToken  {@link TypeToken} of the return type.
+     * @return If the key exists, returns its value, otherwise returns null.
+     * @throws RuntimeException if no key provider is set, if the stored value can not be decrypted with the current key (or was tampered with).
+     */
+    @Nullable
+    public <T extends Serializable> T getPreferenceValue(@NonNull SensitivePreference<T> preference,
+                                                         @NonNull TypeToken<T> typeToken) throws RuntimeException {
+        String encryptedJson = null;
+        try {
+            encryptedJson = readString(preference.getKey(), null);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (encryptedJson != null) {
+            return new Gson().fromJson(
+                ValueCipher.decrypt(
+                    requireKeyProvider().getSecretKey(),
+                    preference.getKey(),
+                    encryptedJson
+                ),
+                typeToken.getType()
+            );
         }
         return null;
     }
@@ -316,6 +918,8 @@ public abstract class PreferenceHandler {
                 );
                 // apply change inside in-memory preference object and schedule commit
                 preferencesEditor.apply();
+                // keep the read cache in sync with our own writes
+                refreshReadCache(preference.getKey());
                 // return the set value
                 return selectedValue;
             } else {
@@ -352,6 +956,8 @@ public abstract class PreferenceHandler {
                 );
                 // apply change inside in-memory preference object and schedule commit
                 preferencesEditor.apply();
+                // keep the read cache in sync with our own writes
+                refreshReadCache(preference.getKey());
                 // return the set value
                 return selectedValue;
             } else {
@@ -388,6 +994,8 @@ public abstract class PreferenceHandler {
                 );
                 // apply change inside in-memory preference object and schedule commit
                 preferencesEditor.apply();
+                // keep the read cache in sync with our own writes
+                refreshReadCache(preference.getKey());
                 // return the set value
                 return selectedValue;
             } else {
@@ -424,6 +1032,8 @@ public abstract class PreferenceHandler {
                 );
                 // apply change inside in-memory preference object and schedule commit
                 preferencesEditor.apply();
+                // keep the read cache in sync with our own writes
+                refreshReadCache(preference.getKey());
                 // return the set value
                 return selectedValue;
             } else {
@@ -460,6 +1070,8 @@ public abstract class PreferenceHandler {
                 );
                 // apply change inside in-memory preference object and schedule commit
                 preferencesEditor.apply();
+                // keep the read cache in sync with our own writes
+                refreshReadCache(preference.getKey());
                 // return the set value
                 return selectedValue;
             } else {
@@ -496,6 +1108,8 @@ public abstract class PreferenceHandler {
                 );
                 // apply change inside in-memory preference object and schedule commit
                 preferencesEditor.apply();
+                // keep the read cache in sync with our own writes
+                refreshReadCache(preference.getKey());
                 // return the set value
                 return selectedValue;
             } else {
@@ -532,6 +1146,8 @@ public abstract class PreferenceHandler {
                 );
                 // apply change inside in-memory preference object and schedule commit
                 preferencesEditor.apply();
+                // keep the read cache in sync with our own writes
+                refreshReadCache(preference.getKey());
                 // return the set value
                 return selectedValue;
             } else {
@@ -539,6 +1155,125 @@ public abstract class PreferenceHandler {
             }
         }
     }
+
+    // constrained
+
+    /**
+     * Set the specified value to the specified preference.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode, if the specified value is unsupported by the specified preference.
+     */
+    @NonNull
+    public Integer setPreferenceValue(@NonNull ConstrainedPreference<Integer> preference,
+                                      @NonNull Integer value) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        } else if (preference.accepts(value)) {
+            preferencesEditor.putInt(
+                preference.getKey(),
+                value
+            );
+            // apply change inside in-memory preference object and schedule commit
+            preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
+            // return the set value
+            return value;
+        } else {
+            throw new RuntimeException("Request to insert an unsupported value.");
+        }
+    }
+
+    /**
+     * Set the specified value to the specified preference.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode, if the specified value is unsupported by the specified preference.
+     */
+    @NonNull
+    public Long setPreferenceValue(@NonNull ConstrainedPreference<Long> preference,
+                                   @NonNull Long value) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        } else if (preference.accepts(value)) {
+            preferencesEditor.putLong(
+                preference.getKey(),
+                value
+            );
+            // apply change inside in-memory preference object and schedule commit
+            preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
+            // return the set value
+            return value;
+        } else {
+            throw new RuntimeException("Request to insert an unsupported value.");
+        }
+    }
+
+    /**
+     * Set the specified value to the specified preference.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode, if the specified value is unsupported by the specified preference.
+     */
+    @NonNull
+    public Float setPreferenceValue(@NonNull ConstrainedPreference<Float> preference,
+                                    @NonNull Float value) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        } else if (preference.accepts(value)) {
+            preferencesEditor.putFloat(
+                preference.getKey(),
+                value
+            );
+            // apply change inside in-memory preference object and schedule commit
+            preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
+            // return the set value
+            return value;
+        } else {
+            throw new RuntimeException("Request to insert an unsupported value.");
+        }
+    }
+
+    /**
+     * Set the specified value to the specified preference.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode, if the specified value is unsupported by the specified preference.
+     */
+    @NonNull
+    public String setPreferenceValue(@NonNull ConstrainedPreference<String> preference,
+                                     @NonNull String value) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        } else if (preference.accepts(value)) {
+            preferencesEditor.putString(
+                preference.getKey(),
+                value
+            );
+            // apply change inside in-memory preference object and schedule commit
+            preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
+            // return the set value
+            return value;
+        } else {
+            throw new RuntimeException("Request to insert an unsupported value.");
+        }
+    }
+
     // unbounded
 
     /**
@@ -561,6 +1296,8 @@ public abstract class PreferenceHandler {
             );
             // apply change inside in-memory preference object and schedule commit
             preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
             // return the set value
             return value;
         }
@@ -586,6 +1323,8 @@ public abstract class PreferenceHandler {
             );
             // apply change inside in-memory preference object and schedule commit
             preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
             // return the set value
             return value;
         }
@@ -611,6 +1350,8 @@ public abstract class PreferenceHandler {
             );
             // apply change inside in-memory preference object and schedule commit
             preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
             // return the set value
             return value;
         }
@@ -636,6 +1377,8 @@ public abstract class PreferenceHandler {
             );
             // apply change inside in-memory preference object and schedule commit
             preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
             // return the set value
             return value;
         }
@@ -661,6 +1404,8 @@ public abstract class PreferenceHandler {
             );
             // apply change inside in-memory preference object and schedule commit
             preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
             // return the set value
             return value;
         }
@@ -686,6 +1431,8 @@ public abstract class PreferenceHandler {
             );
             // apply change inside in-memory preference object and schedule commit
             preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
             // return the set value
             return value;
         }
@@ -711,179 +1458,360 @@ public abstract class PreferenceHandler {
             );
             // apply change inside in-memory preference object and schedule commit
             preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
             // return the set value
             return value;
         }
     }
 
-    // initializers
+    // expiring
 
     /**
-     * Initialize the bounded preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     * Set the specified value to the specified preference. The value expires after the default lifetime of the preference.
      *
-     * @param preference      The preference which we are initializing.
-     * @param overrideDefault Optional value to override the default of the specified bounded preference.
-     *                        If it is not provided, the default value of the specified bounded preference will be used to initialize the preference.
-     * @return the same bounded preference that was passed in.
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode.
      */
     @NonNull
-    public BoundedPreference<Boolean> initializePreference(@NonNull BoundedPreference<Boolean> preference,
-                                                           @NonNull Boolean... overrideDefault) throws RuntimeException {
-        // if already available, do not overwrite
-        if (contains(preference)) return preference;
-
-        Boolean defaultValue = preference.getDefaultValue();
-        if (overrideDefault.length > 0) {
-            // this will not be null here
-            setPreferenceValue(
-                preference,
-                overrideDefault[0]
-            );
-        } else {
-            setPreferenceValue(
-                preference,
-                defaultValue
-            );
-        }
-        return preference;
+    public <T extends Serializable> T setPreferenceValue(@NonNull ExpiringPreference<T> preference,
+                                                         @NonNull T value) throws RuntimeException {
+        return setPreferenceValue(
+            preference,
+            value,
+            preference.getTimeToLiveMillis()
+        );
     }
 
     /**
-     * Initialize the bounded preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     * Set the specified value to the specified preference. The value expires after the specified lifetime.
      *
-     * @param preference      The preference which we are initializing.
-     * @param overrideDefault Optional value to override the default of the specified bounded preference.
-     *                        If it is not provided, the default value of the specified bounded preference will be used to initialize the preference.
-     * @return the same bounded preference that was passed in.
+     * @param preference       The preference which we want to modify (or add).
+     * @param value            Value that we want to apply to the preference.
+     * @param timeToLiveMillis Lifetime (in milliseconds) of the value. Must be greater than zero.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode, if the specified lifetime is not positive.
      */
     @NonNull
-    public BoundedPreference<Integer> initializePreference(@NonNull BoundedPreference<Integer> preference,
-                                                           @NonNull Integer... overrideDefault) throws RuntimeException {
-        // if already available, do not overwrite
-        if (contains(preference)) return preference;
-
-        Integer defaultValue = preference.getDefaultValue();
-        if (overrideDefault.length > 0) {
-            // this will not be null here
-            setPreferenceValue(
-                preference,
-                overrideDefault[0]
-            );
+    public <T extends Serializable> T setPreferenceValue(@NonNull ExpiringPreference<T> preference,
+                                                         @NonNull T value,
+                                                         long timeToLiveMillis) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        } else if (timeToLiveMillis <= 0) {
+            throw new RuntimeException("Time to live must be greater than zero.");
         } else {
-            setPreferenceValue(
-                preference,
-                defaultValue
-            );
+            long expiryTime = System.currentTimeMillis() + timeToLiveMillis;
+            String entry = expiryTime + String.valueOf(EXPIRY_SEPARATOR) + new Gson().toJson(value, TypeToken.get(value.getClass()).getType());
+            // excludes the sweeper, which would otherwise remove the new value if it checked the old one right before
+            synchronized (getKeyLock(preference.getKey())) {
+                preferencesEditor.putString(
+                    preference.getKey(),
+                    entry
+                );
+                // apply change inside in-memory preference object and schedule commit
+                preferencesEditor.apply();
+                // keep the read cache in sync with our own writes
+                refreshReadCache(preference.getKey());
+            }
+            // written values are subject to sweeping
+            expiringKeys.add(preference.getKey());
+            // return the set value
+            return value;
         }
-        return preference;
     }
 
+    // array
+
     /**
-     * Initialize the bounded preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     * Set the specified value to the specified preference. The value is stored in a packed binary form.
      *
-     * @param preference      The preference which we are initializing.
-     * @param overrideDefault Optional value to override the default of the specified bounded preference.
-     *                        If it is not provided, the default value of the specified bounded preference will be used to initialize the preference.
-     * @return the same bounded preference that was passed in.
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode.
      */
     @NonNull
-    public BoundedPreference<Long> initializePreference(@NonNull BoundedPreference<Long> preference,
-                                                        @NonNull Long... overrideDefault) throws RuntimeException {
-        // if already available, do not overwrite
-        if (contains(preference)) return preference;
-
-        Long defaultValue = preference.getDefaultValue();
-        if (overrideDefault.length > 0) {
-            // this will not be null here
-            setPreferenceValue(
-                preference,
-                overrideDefault[0]
-            );
+    public int[] setPreferenceValue(@NonNull ArrayPreference<int[]> preference,
+                                    @NonNull int[] value) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
         } else {
-            setPreferenceValue(
-                preference,
-                defaultValue
+            preferencesEditor.putString(
+                preference.getKey(),
+                PackedArrays.encode(value)
             );
+            // apply change inside in-memory preference object and schedule commit
+            preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
+            // return the set value
+            return value;
         }
-        return preference;
     }
 
     /**
-     * Initialize the bounded preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     * Set the specified value to the specified preference. The value is stored in a packed binary form.
      *
-     * @param preference      The preference which we are initializing.
-     * @param overrideDefault Optional value to override the default of the specified bounded preference.
-     *                        If it is not provided, the default value of the specified bounded preference will be used to initialize the preference.
-     * @return the same bounded preference that was passed in.
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode.
      */
     @NonNull
-    public BoundedPreference<Float> initializePreference(@NonNull BoundedPreference<Float> preference,
-                                                         @NonNull Float... overrideDefault) throws RuntimeException {
-        // if already available, do not overwrite
-        if (contains(preference)) return preference;
-
-        Float defaultValue = preference.getDefaultValue();
-        if (overrideDefault.length > 0) {
-            // this will not be null here
-            setPreferenceValue(
-                preference,
-                overrideDefault[0]
-            );
+    public long[] setPreferenceValue(@NonNull ArrayPreference<long[]> preference,
+                                     @NonNull long[] value) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
         } else {
-            setPreferenceValue(
-                preference,
-                defaultValue
+            preferencesEditor.putString(
+                preference.getKey(),
+                PackedArrays.encode(value)
             );
+            // apply change inside in-memory preference object and schedule commit
+            preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
+            // return the set value
+            return value;
         }
-        return preference;
     }
 
     /**
-     * Initialize the bounded preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     * Set the specified value to the specified preference. The value is stored in a packed binary form.
      *
-     * @param preference      The preference which we are initializing.
-     * @param overrideDefault Optional value to override the default of the specified bounded preference.
-     *                        If it is not provided, the default value of the specified bounded preference will be used to initialize the preference.
-     * @return the same bounded preference that was passed in.
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode.
      */
     @NonNull
-    public BoundedPreference<String> initializePreference(@NonNull BoundedPreference<String> preference,
-                                                          @NonNull String... overrideDefault) throws RuntimeException {
-        // if already available, do not overwrite
-        if (contains(preference)) return preference;
-
-        String defaultValue = preference.getDefaultValue();
-        if (overrideDefault.length > 0) {
-            // this will not be null here
-            setPreferenceValue(
-                preference,
-                overrideDefault[0]
-            );
+    public float[] setPreferenceValue(@NonNull ArrayPreference<float[]> preference,
+                                      @NonNull float[] value) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
         } else {
-            setPreferenceValue(
-                preference,
-                defaultValue
+            preferencesEditor.putString(
+                preference.getKey(),
+                PackedArrays.encode(value)
             );
+            // apply change inside in-memory preference object and schedule commit
+            preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
+            // return the set value
+            return value;
         }
-        return preference;
     }
 
     /**
-     * Initialize the bounded preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     * Set the specified value to the specified preference. The value is stored in a packed binary form.
      *
-     * @param preference      The preference which we are initializing.
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode.
+     */
+    @NonNull
+    public double[] setPreferenceValue(@NonNull ArrayPreference<double[]> preference,
+                                       @NonNull double[] value) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        } else {
+            preferencesEditor.putString(
+                preference.getKey(),
+                PackedArrays.encode(value)
+            );
+            // apply change inside in-memory preference object and schedule commit
+            preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
+            // return the set value
+            return value;
+        }
+    }
+
+    /**
+     * Set the specified value to the specified preference. The value is stored in a packed binary form.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode.
+     */
+    @NonNull
+    public byte[] setPreferenceValue(@NonNull ArrayPreference<byte[]> preference,
+                                     @NonNull byte[] value) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        } else {
+            preferencesEditor.putString(
+                preference.getKey(),
+                PackedArrays.encode(value)
+            );
+            // apply change inside in-memory preference object and schedule commit
+            preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
+            // return the set value
+            return value;
+        }
+    }
+
+    // counter
+
+    /**
+     * Increment the specified counter preference by one. This does not write to the persistent storage on the calling thread.
+     *
+     * @param preference The counter preference which we want to increment.
+     * @throws RuntimeException if not in editor mode.
+     * @see #add(CounterPreference, long)
+     */
+    public void increment(@NonNull CounterPreference preference) throws RuntimeException {
+        add(
+            preference,
+            1
+        );
+    }
+
+    /**
+     * Add the specified amount to the specified counter preference. The change is kept in memory,
+     * and is persisted in the background once the threshold or the interval of the preference is reached, or when {@link #flushCounters()} is called.
+     * Concurrent calls from different threads mostly update different memory cells, so they do not contend with each other.
+     * The increments are added to the persisted value, so the increments made through other handlers of the same store are kept as well.
+     *
+     * @param preference The counter preference which we want to modify.
+     * @param delta      Amount to add. Must not be negative, so that the persisted value never decreases.
+     * @throws RuntimeException if not in editor mode, if the specified amount is negative.
+     */
+    public void add(@NonNull CounterPreference preference,
+                    long delta) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        } else if (delta < 0) {
+            throw new RuntimeException("Counter preferences can not be decreased.");
+        } else {
+            final CounterState state = getCounterState(preference);
+            state.counter.add(delta);
+
+            long threshold = preference.getPersistThreshold();
+            // the increments of all the cells count, and only one persist is scheduled at a time
+            if (threshold > 0 &&
+                state.counter.sum() - state.persistedValue >= threshold &&
+                state.persistScheduled.compareAndSet(false, true)) {
+                getBackgroundExecutor().execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            // increments made from now on may schedule the next persist
+                            state.persistScheduled.set(false);
+                            persistCounter(state);
+                        }
+                    }
+                );
+            }
+        }
+    }
+
+    // sensitive
+
+    /**
+     * Set the specified value to the specified preference. The value is encrypted with the key of the key provider of this handler.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param value      Value that we want to apply to the preference.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode, if no key provider is set, if the encryption fails.
+     */
+    @NonNull
+    public <T extends Serializable> T setPreferenceValue(@NonNull SensitivePreference<T> preference,
+                                                         @NonNull T value) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        } else {
+            preferencesEditor.putString(
+                preference.getKey(),
+                ValueCipher.encrypt(
+                    requireKeyProvider().getSecretKey(),
+                    preference.getKey(),
+                    new Gson().toJson(value, TypeToken.get(value.getClass()).getType())
+                )
+            );
+            // apply change inside in-memory preference object and schedule commit
+            preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            refreshReadCache(preference.getKey());
+            // return the set value
+            return value;
+        }
+    }
+
+    /**
+     * Set the specified values to the specified preferences, with a single write. The key is fetched once, and the cipher of the calling thread
+     * is reused for all the values, so the cost of this grows with the total size of the values only.
+     *
+     * @param values Values that we want to apply, by the preferences which we want to modify (or add).
+     * @throws RuntimeException if not in editor mode, if no key provider is set, if the encryption fails. Nothing is written in that case.
+     */
+    public void setPreferenceValues(@NonNull Map<? extends SensitivePreference<?>, ? extends Serializable> values) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        } else {
+            SecretKey secretKey = requireKeyProvider().getSecretKey();
+            Gson gson = new Gson();
+            // encrypt everything before touching the editor, so that a failure writes nothing
+            Map<String, String> encryptedValues = new LinkedHashMap<>();
+            for (Map.Entry<? extends SensitivePreference<?>, ? extends Serializable> entry : values.entrySet()) {
+                Serializable value = entry.getValue();
+                encryptedValues.put(
+                    entry.getKey().getKey(),
+                    ValueCipher.encrypt(
+                        secretKey,
+                        entry.getKey().getKey(),
+                        gson.toJson(value, TypeToken.get(value.getClass()).getType())
+                    )
+                );
+            }
+            if (encryptedValues.isEmpty()) return;
+
+            for (Map.Entry<String, String> entry : encryptedValues.entrySet()) {
+                // request change
+                preferencesEditor.putString(
+                    entry.getKey(),
+                    entry.getValue()
+                );
+            }
+            // apply all the changes at once and schedule commit
+            preferencesEditor.apply();
+            // keep the read cache in sync with our own writes
+            for (String key : encryptedValues.keySet()) {
+                refreshReadCache(key);
+            }
+        }
+    }
+
+    // initializers
+
+    /**
+     * Initialize the bounded preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     *
+     * @param preference      The preference which we are initializing.
      * @param overrideDefault Optional value to override the default of the specified bounded preference.
      *                        If it is not provided, the default value of the specified bounded preference will be used to initialize the preference.
      * @return the same bounded preference that was passed in.
      */
-    @SafeVarargs
     @NonNull
-    public final BoundedPreference<Set<String>> initializePreference(@NonNull BoundedPreference<Set<String>> preference,
-                                                                     @NonNull Set<String>... overrideDefault) throws RuntimeException {
+    public BoundedPreference<Boolean> initializePreference(@NonNull BoundedPreference<Boolean> preference,
+                                                           @NonNull Boolean... overrideDefault) throws RuntimeException {
+        // initialized preferences are declared, so compaction keeps them
+        declaredKeys.add(preference.getKey());
+        boundedPreferences.put(preference.getKey(), preference);
         // if already available, do not overwrite
         if (contains(preference)) return preference;
 
-        Set<String> defaultValue = preference.getDefaultValue();
+        Boolean defaultValue = preference.getDefaultValue();
         if (overrideDefault.length > 0) {
             // this will not be null here
             setPreferenceValue(
@@ -907,14 +1835,16 @@ public abstract class PreferenceHandler {
      *                        If it is not provided, the default value of the specified bounded preference will be used to initialize the preference.
      * @return the same bounded preference that was passed in.
      */
-    @SafeVarargs
     @NonNull
-    public final <T extends Serializable> BoundedPreference<T> initializePreference(BoundedPreference<T> preference,
-                                                                                    @NonNull T... overrideDefault) throws RuntimeException {
+    public BoundedPreference<Integer> initializePreference(@NonNull BoundedPreference<Integer> preference,
+                                                           @NonNull Integer... overrideDefault) throws RuntimeException {
+        // initialized preferences are declared, so compaction keeps them
+        declaredKeys.add(preference.getKey());
+        boundedPreferences.put(preference.getKey(), preference);
         // if already available, do not overwrite
         if (contains(preference)) return preference;
 
-        T defaultValue = preference.getDefaultValue();
+        Integer defaultValue = preference.getDefaultValue();
         if (overrideDefault.length > 0) {
             // this will not be null here
             setPreferenceValue(
@@ -930,52 +1860,2392 @@ public abstract class PreferenceHandler {
         return preference;
     }
 
-    // removers
-
     /**
-     * Remove the preference from the persistent storage.
+     * Initialize the bounded preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     *
+     * @param preference      The preference which we are initializing.
+     * @param overrideDefault Optional value to override the default of the specified bounded preference.
+     *                        If it is not provided, the default value of the specified bounded preference will be used to initialize the preference.
+     * @return the same bounded preference that was passed in.
      */
-    public void remove(@NonNull BoundedPreference<?> preference) {
-        // if not in editor mode, return immediately.
-        // this will not remove the preference. but the caller is aware about this.
-        // and in this case he wouldn't call any methods that uses the editor anyway - so no worries.
-        if (preferencesEditor == null) return;
+    @NonNull
+    public BoundedPreference<Long> initializePreference(@NonNull BoundedPreference<Long> preference,
+                                                        @NonNull Long... overrideDefault) throws RuntimeException {
+        // initialized preferences are declared, so compaction keeps them
+        declaredKeys.add(preference.getKey());
+        boundedPreferences.put(preference.getKey(), preference);
+        // if already available, do not overwrite
+        if (contains(preference)) return preference;
 
-        // request change
-        preferencesEditor.remove(preference.getKey());
-        // apply change inside in-memory preference object and schedule commit
-        preferencesEditor.apply();
+        Long defaultValue = preference.getDefaultValue();
+        if (overrideDefault.length > 0) {
+            // this will not be null here
+            setPreferenceValue(
+                preference,
+                overrideDefault[0]
+            );
+        } else {
+            setPreferenceValue(
+                preference,
+                defaultValue
+            );
+        }
+        return preference;
     }
 
     /**
-     * Remove the preference from the persistent storage.
+     * Initialize the bounded preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     *
+     * @param preference      The preference which we are initializing.
+     * @param overrideDefault Optional value to override the default of the specified bounded preference.
+     *                        If it is not provided, the default value of the specified bounded preference will be used to initialize the preference.
+     * @return the same bounded preference that was passed in.
      */
-    public void remove(@NonNull UnBoundedPreference<?> preference) {
-        // if not in editor mode, return immediately.
-        // this will not remove the preference. but the caller is aware about this.
-        // and in this case he wouldn't call any methods that uses the editor anyway - so no worries.
-        if (preferencesEditor == null) return;
+    @NonNull
+    public BoundedPreference<Float> initializePreference(@NonNull BoundedPreference<Float> preference,
+                                                         @NonNull Float... overrideDefault) throws RuntimeException {
+        // initialized preferences are declared, so compaction keeps them
+        declaredKeys.add(preference.getKey());
+        boundedPreferences.put(preference.getKey(), preference);
+        // if already available, do not overwrite
+        if (contains(preference)) return preference;
 
-        // request change
-        preferencesEditor.remove(preference.getKey());
-        // apply change inside in-memory preference object and schedule commit
-        preferencesEditor.apply();
+        Float defaultValue = preference.getDefaultValue();
+        if (overrideDefault.length > 0) {
+            // this will not be null here
+            setPreferenceValue(
+                preference,
+                overrideDefault[0]
+            );
+        } else {
+            setPreferenceValue(
+                preference,
+                defaultValue
+            );
+        }
+        return preference;
     }
 
-    // availability check
+    /**
+     * Initialize the bounded preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     *
+     * @param preference      The preference which we are initializing.
+     * @param overrideDefault Optional value to override the default of the specified bounded preference.
+     *                        If it is not provided, the default value of the specified bounded preference will be used to initialize the preference.
+     * @return the same bounded preference that was passed in.
+     */
+    @NonNull
+    public BoundedPreference<String> initializePreference(@NonNull BoundedPreference<String> preference,
+                                                          @NonNull String... overrideDefault) throws RuntimeException {
+        // initialized preferences are declared, so compaction keeps them
+        declaredKeys.add(preference.getKey());
+        boundedPreferences.put(preference.getKey(), preference);
+        // if already available, do not overwrite
+        if (contains(preference)) return preference;
+
+        String defaultValue = preference.getDefaultValue();
+        if (overrideDefault.length > 0) {
+            // this will not be null here
+            setPreferenceValue(
+                preference,
+                overrideDefault[0]
+            );
+        } else {
+            setPreferenceValue(
+                preference,
+                defaultValue
+            );
+        }
+        return preference;
+    }
 
     /**
-     * Whether the preference store contains the specified entry.
+     * Initialize the bounded preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     *
+     * @param preference      The preference which we are initializing.
+     * @param overrideDefault Optional value to override the default of the specified bounded preference.
+     *                        If it is not provided, the default value of the specified bounded preference will be used to initialize the preference.
+     * @return the same bounded preference that was passed in.
      */
-    public boolean contains(@NonNull BoundedPreference<?> preference) {
-        return preferences.contains(preference.getKey());
+    @SafeVarargs
+    @NonNull
+    public final BoundedPreference<Set<String>> initializePreference(@NonNull BoundedPreference<Set<String>> preference,
+                                                                     @NonNull Set<String>... overrideDefault) throws RuntimeException {
+        // initialized preferences are declared, so compaction keeps them
+        declaredKeys.add(preference.getKey());
+        boundedPreferences.put(preference.getKey(), preference);
+        // if already available, do not overwrite
+        if (contains(preference)) return preference;
+
+        Set<String> defaultValue = preference.getDefaultValue();
+        if (overrideDefault.length > 0) {
+            // this will not be null here
+            setPreferenceValue(
+                preference,
+                overrideDefault[0]
+            );
+        } else {
+            setPreferenceValue(
+                preference,
+                defaultValue
+            );
+        }
+        return preference;
     }
 
     /**
-     * Whether the preference store contains the specified entry.
+     * Initialize the bounded preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     *
+     * @param preference      The preference which we are initializing.
+     * @param overrideDefault Optional value to override the default of the specified bounded preference.
+     *                        If it is not provided, the default value of the specified bounded preference will be used to initialize the preference.
+     * @return the same bounded preference that was passed in.
      */
-    public boolean contains(@NonNull UnBoundedPreference<?> preference) {
-        return preferences.contains(preference.getKey());
+    @SafeVarargs
+    @NonNull
+    public final <T extends Serializable> BoundedPreference<T> initializePreference(BoundedPreference<T> preference,
+                                                                                    @NonNull T... overrideDefault) throws RuntimeException {
+        // initialized preferences are declared, so compaction keeps them
+        declaredKeys.add(preference.getKey());
+        // if already available, do not overwrite
+        if (contains(preference)) return preference;
+
+        T defaultValue = preference.getDefaultValue();
+        if (overrideDefault.length > 0) {
+            // this will not be null here
+            setPreferenceValue(
+                preference,
+                overrideDefault[0]
+            );
+        } else {
+            setPreferenceValue(
+                preference,
+                defaultValue
+            );
+        }
+        return preference;
+    }
+
+    /**
+     * Initialize the constrained preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     *
+     * @param preference      The preference which we are initializing.
+     * @param overrideDefault Optional value to override the default of the specified constrained preference.
+     *                        If it is not provided, the default value of the specified constrained preference will be used to initialize the preference.
+     * @return the same constrained preference that was passed in.
+     */
+    @NonNull
+    public ConstrainedPreference<Integer> initializePreference(@NonNull ConstrainedPreference<Integer> preference,
+                                                               @NonNull Integer... overrideDefault) throws RuntimeException {
+        // initialized preferences are declared, so compaction keeps them
+        declaredKeys.add(preference.getKey());
+        // if already available, do not overwrite
+        if (contains(preference)) return preference;
+
+        Integer defaultValue = preference.getDefaultValue();
+        if (overrideDefault.length > 0) {
+            // this will not be null here
+            setPreferenceValue(
+                preference,
+                overrideDefault[0]
+            );
+        } else {
+            setPreferenceValue(
+                preference,
+                defaultValue
+            );
+        }
+        return preference;
+    }
+
+    /**
+     * Initialize the constrained preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     *
+     * @param preference      The preference which we are initializing.
+     * @param overrideDefault Optional value to override the default of the specified constrained preference.
+     *                        If it is not provided, the default value of the specified constrained preference will be used to initialize the preference.
+     * @return the same constrained preference that was passed in.
+     */
+    @NonNull
+    public ConstrainedPreference<Long> initializePreference(@NonNull ConstrainedPreference<Long> preference,
+                                                            @NonNull Long... overrideDefault) throws RuntimeException {
+        // initialized preferences are declared, so compaction keeps them
+        declaredKeys.add(preference.getKey());
+        // if already available, do not overwrite
+        if (contains(preference)) return preference;
+
+        Long defaultValue = preference.getDefaultValue();
+        if (overrideDefault.length > 0) {
+            // this will not be null here
+            setPreferenceValue(
+                preference,
+                overrideDefault[0]
+            );
+        } else {
+            setPreferenceValue(
+                preference,
+                defaultValue
+            );
+        }
+        return preference;
+    }
+
+    /**
+     * Initialize the constrained preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     *
+     * @param preference      The preference which we are initializing.
+     * @param overrideDefault Optional value to override the default of the specified constrained preference.
+     *                        If it is not provided, the default value of the specified constrained preference will be used to initialize the preference.
+     * @return the same constrained preference that was passed in.
+     */
+    @NonNull
+    public ConstrainedPreference<Float> initializePreference(@NonNull ConstrainedPreference<Float> preference,
+                                                             @NonNull Float... overrideDefault) throws RuntimeException {
+        // initialized preferences are declared, so compaction keeps them
+        declaredKeys.add(preference.getKey());
+        // if already available, do not overwrite
+        if (contains(preference)) return preference;
+
+        Float defaultValue = preference.getDefaultValue();
+        if (overrideDefault.length > 0) {
+            // this will not be null here
+            setPreferenceValue(
+                preference,
+                overrideDefault[0]
+            );
+        } else {
+            setPreferenceValue(
+                preference,
+                defaultValue
+            );
+        }
+        return preference;
+    }
+
+    /**
+     * Initialize the constrained preference. This call will return the passed preference immediately (without any further operation) if the preference is already available within the current underlying shared preference.
+     *
+     * @param preference      The preference which we are initializing.
+     * @param overrideDefault Optional value to override the default of the specified constrained preference.
+     *                        If it is not provided, the default value of the specified constrained preference will be used to initialize the preference.
+     * @return the same constrained preference that was passed in.
+     */
+    @NonNull
+    public ConstrainedPreference<String> initializePreference(@NonNull ConstrainedPreference<String> preference,
+                                                              @NonNull String... overrideDefault) throws RuntimeException {
+        // initialized preferences are declared, so compaction keeps them
+        declaredKeys.add(preference.getKey());
+        // if already available, do not overwrite
+        if (contains(preference)) return preference;
+
+        String defaultValue = preference.getDefaultValue();
+        if (overrideDefault.length > 0) {
+            // this will not be null here
+            setPreferenceValue(
+                preference,
+                overrideDefault[0]
+            );
+        } else {
+            setPreferenceValue(
+                preference,
+                defaultValue
+            );
+        }
+        return preference;
+    }
+
+    /**
+     * Initialize the expiring preference. Expiring preferences have no default value, so nothing is written here.
+     * This only declares the preference, and registers it to the expiry sweeper, so that its value is removed from the persistent storage once it expires.
+     *
+     * @param preference The preference which we are initializing.
+     * @return the same expiring preference that was passed in.
+     * @see #startExpirySweeper(long)
+     */
+    @NonNull
+    public <T extends Serializable> ExpiringPreference<T> initializePreference(@NonNull ExpiringPreference<T> preference) {
+        declaredKeys.add(preference.getKey());
+        expiringKeys.add(preference.getKey());
+        return preference;
+    }
+
+    // declarations
+
+    /**
+     * Declare the preference, so that compaction keeps it. Initialized preferences are declared automatically.
+     *
+     * @return the same preference that was passed in.
+     * @see #compact()
+     */
+    @NonNull
+    public <T> BoundedPreference<T> declarePreference(@NonNull BoundedPreference<T> preference) {
+        declaredKeys.add(preference.getKey());
+        boundedPreferences.put(preference.getKey(), preference);
+        return preference;
+    }
+
+    /**
+     * Declare the preference, so that compaction keeps it.
+     *
+     * @return the same preference that was passed in.
+     * @see #compact()
+     */
+    @NonNull
+    public <T> UnBoundedPreference<T> declarePreference(@NonNull UnBoundedPreference<T> preference) {
+        declaredKeys.add(preference.getKey());
+        return preference;
+    }
+
+    /**
+     * Declare the preference, so that compaction keeps it. Initialized preferences are declared automatically.
+     *
+     * @return the same preference that was passed in.
+     * @see #compact()
+     */
+    @NonNull
+    public <T> ConstrainedPreference<T> declarePreference(@NonNull ConstrainedPreference<T> preference) {
+        declaredKeys.add(preference.getKey());
+        return preference;
+    }
+
+    /**
+     * Declare the preference, so that compaction keeps it.
+     *
+     * @return the same preference that was passed in.
+     * @see #compact()
+     */
+    @NonNull
+    public <T> ArrayPreference<T> declarePreference(@NonNull ArrayPreference<T> preference) {
+        declaredKeys.add(preference.getKey());
+        return preference;
+    }
+
+    /**
+     * Declare the preference, so that compaction keeps it. Initialized preferences are declared automatically.
+     *
+     * @return the same preference that was passed in.
+     * @see #compact()
+     */
+    @NonNull
+    public <T> ExpiringPreference<T> declarePreference(@NonNull ExpiringPreference<T> preference) {
+        declaredKeys.add(preference.getKey());
+        return preference;
+    }
+
+    /**
+     * Declare the preference, so that compaction keeps it.
+     *
+     * @return the same preference that was passed in.
+     * @see #compact()
+     */
+    @NonNull
+    public CounterPreference declarePreference(@NonNull CounterPreference preference) {
+        declaredKeys.add(preference.getKey());
+        return preference;
+    }
+
+    /**
+     * Declare the preference, so that compaction keeps it.
+     *
+     * @return the same preference that was passed in.
+     * @see #compact()
+     */
+    @NonNull
+    public <T> SensitivePreference<T> declarePreference(@NonNull SensitivePreference<T> preference) {
+        declaredKeys.add(preference.getKey());
+        return preference;
+    }
+
+    /**
+     * Allow all the keys starting with the specified prefix, so that compaction keeps them.
+     * Use this for dynamic key namespaces, such as per item keys, which can not be declared up front.
+     *
+     * @param prefix Prefix of the dynamic keys.
+     * @see #compact()
+     */
+    public void allowKeyPrefix(@NonNull String prefix) {
+        allowedKeyPrefixes.add(prefix);
+    }
+
+    // removers
+
+    /**
+     * Remove the preference from the persistent storage.
+     */
+    public void remove(@NonNull BoundedPreference<?> preference) {
+        // if not in editor mode, return immediately.
+        // this will not remove the preference. but the caller is aware about this.
+        // and in this case he wouldn't call any methods that uses the editor anyway - so no worries.
+        if (preferencesEditor == null) return;
+
+        // request change
+        preferencesEditor.remove(preference.getKey());
+        // apply change inside in-memory preference object and schedule commit
+        preferencesEditor.apply();
+        // keep the read cache in sync with our own writes
+        refreshReadCache(preference.getKey());
+    }
+
+    /**
+     * Remove the preference from the persistent storage.
+     */
+    public void remove(@NonNull UnBoundedPreference<?> preference) {
+        // if not in editor mode, return immediately.
+        // this will not remove the preference. but the caller is aware about this.
+        // and in this case he wouldn't call any methods that uses the editor anyway - so no worries.
+        if (preferencesEditor == null) return;
+
+        // request change
+        preferencesEditor.remove(preference.getKey());
+        // apply change inside in-memory preference object and schedule commit
+        preferencesEditor.apply();
+        // keep the read cache in sync with our own writes
+        refreshReadCache(preference.getKey());
+    }
+
+    /**
+     * Remove the preference from the persistent storage.
+     */
+    public void remove(@NonNull ConstrainedPreference<?> preference) {
+        // if not in editor mode, return immediately.
+        // this will not remove the preference. but the caller is aware about this.
+        // and in this case he wouldn't call any methods that uses the editor anyway - so no worries.
+        if (preferencesEditor == null) return;
+
+        // request change
+        preferencesEditor.remove(preference.getKey());
+        // apply change inside in-memory preference object and schedule commit
+        preferencesEditor.apply();
+        // keep the read cache in sync with our own writes
+        refreshReadCache(preference.getKey());
+    }
+
+    /**
+     * Remove the preference from the persistent storage.
+     */
+    public void remove(@NonNull ArrayPreference<?> preference) {
+        // if not in editor mode, return immediately.
+        // this will not remove the preference. but the caller is aware about this.
+        // and in this case he wouldn't call any methods that uses the editor anyway - so no worries.
+        if (preferencesEditor == null) return;
+
+        // request change
+        preferencesEditor.remove(preference.getKey());
+        // apply change inside in-memory preference object and schedule commit
+        preferencesEditor.apply();
+        // keep the read cache in sync with our own writes
+        refreshReadCache(preference.getKey());
+    }
+
+    /**
+     * Remove the preference from the persistent storage.
+     */
+    public void remove(@NonNull ExpiringPreference<?> preference) {
+        // if not in editor mode, return immediately.
+        // this will not remove the preference. but the caller is aware about this.
+        // and in this case he wouldn't call any methods that uses the editor anyway - so no worries.
+        if (preferencesEditor == null) return;
+
+        // request change
+        preferencesEditor.remove(preference.getKey());
+        // apply change inside in-memory preference object and schedule commit
+        preferencesEditor.apply();
+        // keep the read cache in sync with our own writes
+        refreshReadCache(preference.getKey());
+    }
+
+    /**
+     * Remove the counter preference from the persistent storage, and reset its in-memory value.
+     * Increments made concurrently with this call may be lost, and those made through other handlers of the same store are added
+     * to the removed value when they are persisted.
+     */
+    public void remove(@NonNull CounterPreference preference) {
+        // if not in editor mode, return immediately.
+        // this will not remove the preference. but the caller is aware about this.
+        // and in this case he wouldn't call any methods that uses the editor anyway - so no worries.
+        if (preferencesEditor == null) return;
+
+        CounterState state = counters.remove(preference.getKey());
+        if (state != null) {
+            synchronized (state) {
+                // stop the in-flight persists of the dropped counter from writing again
+                state.removed = true;
+                if (state.persister != null) {
+                    state.persister.cancel(false);
+                }
+            }
+        }
+        // not in between the read and the write of a counter persist of another handler
+        synchronized (getKeyLock(COUNTERS_LOCK_KEY)) {
+            // request change
+            preferencesEditor.remove(preference.getKey());
+            // apply change inside in-memory preference object and schedule commit
+            preferencesEditor.apply();
+        }
+        // keep the read cache in sync with our own writes
+        refreshReadCache(preference.getKey());
+    }
+
+    /**
+     * Remove the preference from the persistent storage.
+     */
+    public void remove(@NonNull SensitivePreference<?> preference) {
+        // if not in editor mode, return immediately.
+        // this will not remove the preference. but the caller is aware about this.
+        // and in this case he wouldn't call any methods that uses the editor anyway - so no worries.
+        if (preferencesEditor == null) return;
+
+        // request change
+        preferencesEditor.remove(preference.getKey());
+        // apply change inside in-memory preference object and schedule commit
+        preferencesEditor.apply();
+        // keep the read cache in sync with our own writes
+        refreshReadCache(preference.getKey());
+    }
+
+    // availability check
+
+    /**
+     * Whether the preference store contains the specified entry.
+     */
+    public boolean contains(@NonNull BoundedPreference<?> preference) {
+        return readContains(preference.getKey());
+    }
+
+    /**
+     * Whether the preference store contains the specified entry.
+     */
+    public boolean contains(@NonNull UnBoundedPreference<?> preference) {
+        return readContains(preference.getKey());
+    }
+
+    /**
+     * Whether the preference store contains the specified entry.
+     */
+    public boolean contains(@NonNull ConstrainedPreference<?> preference) {
+        return readContains(preference.getKey());
+    }
+
+    /**
+     * Whether the preference store contains the specified entry.
+     */
+    public boolean contains(@NonNull ArrayPreference<?> preference) {
+        return readContains(preference.getKey());
+    }
+
+    /**
+     * Whether the preference store contains the specified entry, and its value has not expired yet.
+     */
+    public boolean contains(@NonNull ExpiringPreference<?> preference) {
+        return getExpiryTime(preference) > System.currentTimeMillis();
+    }
+
+    /**
+     * Whether the preference store contains the specified entry, or the counter has been incremented in memory.
+     */
+    public boolean contains(@NonNull CounterPreference preference) {
+        return counters.containsKey(preference.getKey()) || readContains(preference.getKey());
+    }
+
+    /**
+     * Whether the preference store contains the specified entry.
+     */
+    public boolean contains(@NonNull SensitivePreference<?> preference) {
+        return readContains(preference.getKey());
+    }
+
+    // field access
+
+    /**
+     * Get a single field of the stored model of the specified preference, without decoding the whole model.
+     * The stored json is streamed, subtrees off the path are skipped, and reading stops as soon as the field is decoded.
+     *
+     * @param preference The preference from which we want our field.
+     * @param path       Dot separated path of the field, such as <b>settings.theme.primary</b>. Numeric segments index into arrays.
+     * @param type       Type of the field.
+     * @return If the key and the field exist, returns the value of the field, otherwise returns null.
+     * @throws RuntimeException if the stored value is not valid json.
+     */
+    @Nullable
+    public <V> V getField(@NonNull UnBoundedPreference<? extends Serializable> preference,
+                          @NonNull String path,
+                          @NonNull Class<V> type) throws RuntimeException {
+        String json = null;
+        try {
+            json = readString(preference.getKey(), null);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (json != null) {
+            try {
+                return JsonPaths.readField(json, path, type);
+            } catch (IOException e) {
+                throw new RuntimeException("Stored value is not valid json.", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replace a single field of the stored model of the specified preference, in a single streaming pass over the stored json.
+     * If the parent of the field exists but the field doesn't, the field is added.
+     * <br>
+     * This takes part in the atomic updates of the key.
+     *
+     * @param preference The preference which we want to modify.
+     * @param path       Dot separated path of the field, such as <b>settings.theme.primary</b>. Numeric segments index into arrays.
+     * @param value      New value of the field. Null removes the field.
+     * @return If successful, returns the same value that we passed in, else an exception is thrown.
+     * @throws RuntimeException if not in editor mode, if the key or the parent of the field doesn't exist, if the stored value is not valid json.
+     * @see #update(UnBoundedPreference, Object, ValueUpdater)
+     */
+    @Nullable
+    public <V> V patchField(@NonNull UnBoundedPreference<? extends Serializable> preference,
+                            @NonNull String path,
+                            @Nullable V value) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        } else {
+            synchronized (getKeyLock(preference.getKey())) {
+                String json = readString(preference.getKey(), null);
+                if (json == null) {
+                    throw new RuntimeException("Preference is not present.");
+                }
+                try {
+                    preferencesEditor.putString(
+                        preference.getKey(),
+                        JsonPaths.patchField(json, path, new Gson().toJsonTree(value))
+                    );
+                } catch (IOException e) {
+                    throw new RuntimeException("Stored value is not valid json.", e);
+                }
+                // apply change inside in-memory preference object and schedule commit
+                preferencesEditor.apply();
+                // keep the read cache in sync with our own writes
+                refreshReadCache(preference.getKey());
+            }
+            // return the set value
+            return value;
+        }
+    }
+
+    // atomic updates
+
+    /**
+     * Atomically set the specified value to the specified preference, if its current value (or its default, if it is not present) equals the expected value.
+     * Only Boolean, Integer, Long, Float, String and Set&lt;String&gt; preferences are supported.
+     * <br>
+     * Atomic updates of the same key (in any handler of the same store) exclude each other, while atomic updates of different keys never contend.
+     * Regular setters do not take part in this, so do not mix them with atomic updates on the same key.
+     *
+     * @param preference The preference which we want to modify.
+     * @param expected   Value that the preference must have for the update to happen.
+     * @param newValue   Value that we want to apply to the preference.
+     * @return whether the value was set.
+     * @throws RuntimeException if not in editor mode, if the specified value is unsupported by the specified preference, if the type of the preference is unsupported.
+     */
+    public <T> boolean compareAndSet(@NonNull BoundedPreference<T> preference,
+                                     @NonNull T expected,
+                                     @NonNull T newValue) throws RuntimeException {
+        T selectedValue = preference.findValue(newValue);
+        if (selectedValue == null) {
+            throw new RuntimeException("Request to insert an unsupported value.");
+        }
+        return compareAndSetValue(
+            preference.getKey(),
+            preference.getDefaultValue(),
+            expected,
+            selectedValue
+        );
+    }
+
+    /**
+     * Atomically replace the value of the specified preference with the value computed from its current value (or its default, if it is not present).
+     * Only Boolean, Integer, Long, Float, String and Set&lt;String&gt; preferences are supported.
+     *
+     * @param preference The preference which we want to modify.
+     * @param updater    Computes the new value from the current value. It is called exactly once, while the lock of the key is held.
+     * @return the new value.
+     * @throws RuntimeException if not in editor mode, if the computed value is unsupported by the specified preference, if the type of the preference is unsupported.
+     * @see #compareAndSet(BoundedPreference, Object, Object)
+     */
+    @NonNull
+    public <T> T update(@NonNull final BoundedPreference<T> preference,
+                        @NonNull final ValueUpdater<T> updater) throws RuntimeException {
+        return updateValue(
+            preference.getKey(),
+            preference.getDefaultValue(),
+            new ValueUpdater<T>() {
+                @NonNull
+                @Override
+                public T update(@NonNull T current) {
+                    T selectedValue = preference.findValue(updater.update(current));
+                    if (selectedValue == null) {
+                        throw new RuntimeException("Request to insert an unsupported value.");
+                    }
+                    return selectedValue;
+                }
+            }
+        );
+    }
+
+    /**
+     * Atomically set the specified value to the specified preference, if its current value (or its default, if it is not present) equals the expected value.
+     * Only Integer, Long, Float and String preferences are supported.
+     *
+     * @param preference The preference which we want to modify.
+     * @param expected   Value that the preference must have for the update to happen.
+     * @param newValue   Value that we want to apply to the preference.
+     * @return whether the value was set.
+     * @throws RuntimeException if not in editor mode, if the specified value is unsupported by the specified preference, if the type of the preference is unsupported.
+     * @see #compareAndSet(BoundedPreference, Object, Object)
+     */
+    public <T> boolean compareAndSet(@NonNull ConstrainedPreference<T> preference,
+                                     @NonNull T expected,
+                                     @NonNull T newValue) throws RuntimeException {
+        if (!preference.accepts(newValue)) {
+            throw new RuntimeException("Request to insert an unsupported value.");
+        }
+        return compareAndSetValue(
+            preference.getKey(),
+            preference.getDefaultValue(),
+            expected,
+            newValue
+        );
+    }
+
+    /**
+     * Atomically replace the value of the specified preference with the value computed from its current value (or its default, if it is not present).
+     * Only Integer, Long, Float and String preferences are supported.
+     *
+     * @param preference The preference which we want to modify.
+     * @param updater    Computes the new value from the current value. It is called exactly once, while the lock of the key is held.
+     * @return the new value.
+     * @throws RuntimeException if not in editor mode, if the computed value is unsupported by the specified preference, if the type of the preference is unsupported.
+     * @see #compareAndSet(BoundedPreference, Object, Object)
+     */
+    @NonNull
+    public <T> T update(@NonNull final ConstrainedPreference<T> preference,
+                        @NonNull final ValueUpdater<T> updater) throws RuntimeException {
+        return updateValue(
+            preference.getKey(),
+            preference.getDefaultValue(),
+            new ValueUpdater<T>() {
+                @NonNull
+                @Override
+                public T update(@NonNull T current) {
+                    T newValue = updater.update(current);
+                    if (!preference.accepts(newValue)) {
+                        throw new RuntimeException("Request to insert an unsupported value.");
+                    }
+                    return newValue;
+                }
+            }
+        );
+    }
+
+    /**
+     * Atomically set the specified value to the specified preference, if its current value equals the expected value.
+     * Only Boolean, Integer, Long, Float, String and Set&lt;String&gt; preferences are supported.
+     *
+     * @param preference The preference which we want to modify (or add).
+     * @param expected   Value that the preference must have for the update to happen, or null if it must not be present.
+     * @param newValue   Value that we want to apply to the preference.
+     * @return whether the value was set.
+     * @throws RuntimeException if not in editor mode, if the type of the preference is unsupported.
+     * @see #compareAndSet(BoundedPreference, Object, Object)
+     */
+    public <T> boolean compareAndSet(@NonNull UnBoundedPreference<T> preference,
+                                     @Nullable T expected,
+                                     @NonNull T newValue) throws RuntimeException {
+        return compareAndSetValue(
+            preference.getKey(),
+            null,
+            expected,
+            newValue
+        );
+    }
+
+    /**
+     * Atomically replace the value of the specified preference with the value computed from its current value.
+     * Only Boolean, Integer, Long, Float, String and Set&lt;String&gt; preferences are supported.
+     *
+     * @param preference   The preference which we want to modify (or add).
+     * @param defaultValue Value to pass to the updater if the preference is not present.
+     * @param updater      Computes the new value from the current value. It is called exactly once, while the lock of the key is held.
+     * @return the new value.
+     * @throws RuntimeException if not in editor mode, if the computed value is null, if the type of the preference is unsupported.
+     * @see #compareAndSet(BoundedPreference, Object, Object)
+     */
+    @NonNull
+    public <T> T update(@NonNull UnBoundedPreference<T> preference,
+                        @NonNull T defaultValue,
+                        @NonNull ValueUpdater<T> updater) throws RuntimeException {
+        return updateValue(
+            preference.getKey(),
+            defaultValue,
+            updater
+        );
+    }
+
+    private <T> boolean compareAndSetValue(@NonNull String key,
+                                           @Nullable T defaultValue,
+                                           @Nullable T expected,
+                                           @NonNull T newValue) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        }
+        synchronized (getKeyLock(key)) {
+            T current = readValue(key, newValue.getClass(), defaultValue);
+            if (current == null ? expected != null : !current.equals(expected)) {
+                return false;
+            }
+            writeValue(key, newValue);
+            return true;
+        }
+    }
+
+    @NonNull
+    private <T> T updateValue(@NonNull String key,
+                              @NonNull T defaultValue,
+                              @NonNull ValueUpdater<T> updater) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        }
+        synchronized (getKeyLock(key)) {
+            T current = readValue(key, defaultValue.getClass(), defaultValue);
+            T newValue = updater.update(current);
+            if (newValue == null) {
+                throw new RuntimeException("Request to insert an unsupported value.");
+            }
+            writeValue(key, newValue);
+            return newValue;
+        }
+    }
+
+    @NonNull
+    private Object getKeyLock(@NonNull String key) {
+        // store names can not contain a separator, so the lock keys are unique
+        String lockKey = preferenceName + File.separatorChar + key;
+        Object lock = KEY_LOCKS.get(lockKey);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = KEY_LOCKS.putIfAbsent(lockKey, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Get the memoized default of the specified key, building it with the specified supplier on first use.
+     *
+     * @throws RuntimeException if the supplier returns null. Nothing is memoized then, nor if the supplier throws.
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    private <T> T getSuppliedDefault(@NonNull String key,
+                                     @NonNull DefaultSupplier<T> defaultSupplier) throws RuntimeException {
+        SuppliedDefault suppliedDefault = suppliedDefaults.get(key);
+        if (suppliedDefault == null) {
+            SuppliedDefault newDefault = new SuppliedDefault();
+            suppliedDefault = suppliedDefaults.putIfAbsent(key, newDefault);
+            if (suppliedDefault == null) {
+                suppliedDefault = newDefault;
+            }
+        }
+
+        Object value = suppliedDefault.value;
+        if (value == null) {
+            synchronized (suppliedDefault) {
+                value = suppliedDefault.value;
+                if (value == null) {
+                    value = defaultSupplier.get();
+                    if (value == null) {
+                        throw new RuntimeException("Default supplier of " + key + " returned null.");
+                    }
+                    suppliedDefault.value = value;
+                }
+            }
+        }
+        return (T) value;
+    }
+
+    /**
+     * Whether values of the specified type are stored natively, instead of as json.
+     */
+    private static boolean isNativeType(@NonNull Class<?> type) {
+        return type == Boolean.class ||
+            type == Integer.class ||
+            type == Long.class ||
+            type == Float.class ||
+            type == String.class ||
+            Set.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Read the value of the specified key as the specified type.
+     *
+     * @return the value, or the default value if the key doesn't exist.
+     * @throws RuntimeException if the type is unsupported.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private <T> T readValue(@NonNull String key,
+                            @NonNull Class<?> type,
+                            @Nullable T defaultValue) throws RuntimeException {
+        if (!readContains(key)) {
+            return defaultValue;
+        }
+        if (type == Boolean.class) {
+            return (T) Boolean.valueOf(readBoolean(key, false));
+        } else if (type == Integer.class) {
+            return (T) Integer.valueOf(readInt(key, 0));
+        } else if (type == Long.class) {
+            return (T) Long.valueOf(readLong(key, 0));
+        } else if (type == Float.class) {
+            return (T) Float.valueOf(readFloat(key, 0));
+        } else if (type == String.class) {
+            return (T) readString(key, null);
+        } else if (Set.class.isAssignableFrom(type)) {
+            return (T) readStringSet(key, null);
+        }
+        throw new RuntimeException("Unsupported value type for atomic updates: " + type.getName());
+    }
+
+    private void writeValue(@NonNull String key,
+                            @NonNull Object value) throws RuntimeException {
+        stageValue(key, value);
+        // apply change inside in-memory preference object and schedule commit
+        preferencesEditor.apply();
+        // keep the read cache in sync with our own writes
+        refreshReadCache(key);
+    }
+
+    /**
+     * Put the specified raw value to the editor, without applying it.
+     *
+     * @throws RuntimeException if the value is of an unsupported type.
+     */
+    @SuppressWarnings("unchecked")
+    private void stageValue(@NonNull String key,
+                            @NonNull Object value) throws RuntimeException {
+        if (value instanceof Boolean) {
+            preferencesEditor.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Integer) {
+            preferencesEditor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            preferencesEditor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            preferencesEditor.putFloat(key, (Float) value);
+        } else if (value instanceof String) {
+            preferencesEditor.putString(key, (String) value);
+        } else if (value instanceof Set) {
+            preferencesEditor.putStringSet(key, (Set<String>) value);
+        } else {
+            throw new RuntimeException("Unsupported value type: " + value.getClass().getName());
+        }
+    }
+
+    // footprint
+
+    /**
+     * Get the footprint of the store: the estimated sizes of its entries, per key, per value type, and in total.
+     * If a size budget is declared, the sizes tracked by the budget are reported, otherwise the store is measured now.
+     *
+     * @see #getSizeBudget()
+     */
+    @NonNull
+    public FootprintReport getFootprintReport() {
+        if (budgetedPreferences != null) {
+            return budgetedPreferences.getFootprintReport();
+        }
+
+        Map<String, Integer> entrySizes = new HashMap<>();
+        Map<String, String> entryTypes = new HashMap<>();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            entrySizes.put(entry.getKey(), PreferenceSizes.estimateEntryBytes(entry.getKey(), entry.getValue()));
+            entryTypes.put(entry.getKey(), PreferenceSizes.typeName(entry.getValue()));
+        }
+        return FootprintReport.create(entrySizes, entryTypes, 0);
+    }
+
+    // compaction
+
+    /**
+     * Find the orphaned entries of the store, without removing anything. An entry is orphaned if its key is neither declared,
+     * nor initialized, nor starts with an allowed prefix.
+     *
+     * @return estimated sizes (in bytes) of the orphaned entries, by key, from the largest to the smallest.
+     * @see #compact()
+     */
+    @NonNull
+    public Map<String, Integer> findOrphanedPreferences() {
+        List<Map.Entry<String, Integer>> orphans = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (!isKeyKept(entry.getKey())) {
+                orphans.add(
+                    new AbstractMap.SimpleImmutableEntry<>(
+                        entry.getKey(),
+                        PreferenceSizes.estimateEntryBytes(entry.getKey(), entry.getValue())
+                    )
+                );
+            }
+        }
+        Collections.sort(
+            orphans,
+            new Comparator<Map.Entry<String, Integer>>() {
+                @Override
+                public int compare(Map.Entry<String, Integer> first, Map.Entry<String, Integer> second) {
+                    return Integer.compare(second.getValue(), first.getValue());
+                }
+            }
+        );
+
+        Map<String, Integer> report = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> orphan : orphans) {
+            report.put(orphan.getKey(), orphan.getValue());
+        }
+        return report;
+    }
+
+    /**
+     * Remove all the orphaned entries from the persistent storage, with a single write.
+     * Make sure that all the preferences are declared (or initialized), and all the dynamic key prefixes are allowed before calling this.
+     *
+     * @return estimated sizes (in bytes) of the removed entries, by key, from the largest to the smallest.
+     * @throws RuntimeException if not in editor mode.
+     * @see #findOrphanedPreferences()
+     */
+    @NonNull
+    public Map<String, Integer> compact() throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        } else {
+            Map<String, Integer> orphans = findOrphanedPreferences();
+            if (!orphans.isEmpty()) {
+                for (String key : orphans.keySet()) {
+                    // request change
+                    preferencesEditor.remove(key);
+                }
+                // apply all the changes at once and schedule commit
+                preferencesEditor.apply();
+                refreshReadCache();
+            }
+            return orphans;
+        }
+    }
+
+    private boolean isKeyKept(@NonNull String key) {
+        if (declaredKeys.contains(key) || key.startsWith(INTERNAL_KEY_PREFIX)) {
+            return true;
+        }
+        for (String prefix : allowedKeyPrefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // counter persisting
+
+    /**
+     * Persist the in-memory values of all the counter preferences used so far, with a single write.
+     */
+    public void flushCounters() {
+        // if not in editor mode, return immediately.
+        if (preferencesEditor == null) return;
+
+        boolean changed = false;
+        synchronized (getKeyLock(COUNTERS_LOCK_KEY)) {
+            for (CounterState state : counters.values()) {
+                synchronized (state) {
+                    changed |= stageCounter(preferences, preferencesEditor, state);
+                }
+            }
+            if (changed) {
+                // apply all the changes at once and schedule commit
+                preferencesEditor.apply();
+            }
+        }
+        if (changed) {
+            refreshReadCache();
+        }
+    }
+
+    @NonNull
+    private CounterState getCounterState(@NonNull final CounterPreference preference) {
+        CounterState state = counters.get(preference.getKey());
+        if (state == null) {
+            CounterState newState = new CounterState(preference.getKey());
+            state = counters.putIfAbsent(preference.getKey(), newState);
+            if (state == null) {
+                state = newState;
+                if (preference.getPersistIntervalMillis() > 0) {
+                    synchronized (state) {
+                        state.persister = getBackgroundExecutor().scheduleWithFixedDelay(
+                            new CounterPersister(this, preferences, preferencesEditor, getKeyLock(COUNTERS_LOCK_KEY), storeGeneration, state),
+                            preference.getPersistIntervalMillis(),
+                            preference.getPersistIntervalMillis(),
+                            TimeUnit.MILLISECONDS
+                        );
+                    }
+                }
+            }
+        }
+        return state;
+    }
+
+    private void persistCounter(@NonNull CounterState state) {
+        boolean changed;
+        // counter writes of all the handlers of the store are ordered by the store's lock, so that none of them is overwritten
+        synchronized (getKeyLock(COUNTERS_LOCK_KEY)) {
+            synchronized (state) {
+                changed = stageCounter(preferences, preferencesEditor, state);
+                if (changed) {
+                    // apply change inside in-memory preference object and schedule commit
+                    preferencesEditor.apply();
+                }
+            }
+        }
+        if (changed) {
+            refreshReadCache(state.key);
+        }
+    }
+
+    /**
+     * Add the increments of the counter made since the last write to its persisted value, in the editor. Must be called while holding
+     * the counters lock of the store and the lock of the state, and the editor must be applied before releasing the counters lock.
+     *
+     * @return whether anything was put to the editor.
+     */
+    private static boolean stageCounter(@NonNull SharedPreferences store,
+                                        @NonNull SharedPreferences.Editor editor,
+                                        @NonNull CounterState state) {
+        if (state.removed) {
+            return false;
+        }
+        long value = state.counter.sum();
+        if (value == state.persistedValue) {
+            return false;
+        }
+        editor.putLong(
+            state.key,
+            store.getLong(state.key, 0) + value - state.persistedValue
+        );
+        state.persistedValue = value;
+        return true;
+    }
+
+    // backup
+
+    /**
+     * Export all the entries of the store (except the internal ones) to the specified stream, along with the schema version of the store.
+     * Entries are encoded and written one by one, in a typed and versioned binary format. The stream is flushed, but not closed.
+     *
+     * @param outputStream The stream to write to.
+     * @return the number of exported entries.
+     * @throws IOException if writing fails.
+     * @see #importFrom(InputStream, boolean)
+     */
+    @WorkerThread
+    public int exportTo(@NonNull OutputStream outputStream) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+        BackupFormat.writeHeader(output, getSchemaVersion());
+        int exported = 0;
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(INTERNAL_KEY_PREFIX)) continue;
+
+            if (BackupFormat.writeEntry(output, entry.getKey(), entry.getValue())) {
+                ++exported;
+            }
+        }
+        BackupFormat.writeEnd(output);
+        output.flush();
+        return exported;
+    }
+
+    /**
+     * Export all the entries of the store to the specified channel. The channel is not closed.
+     *
+     * @see #exportTo(OutputStream)
+     */
+    @WorkerThread
+    public int exportTo(@NonNull WritableByteChannel channel) throws IOException {
+        return exportTo(Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Import the entries of a backup from the specified stream. Entries are read one by one and staged, then written all at once with a single apply,
+     * overwriting the entries of the same keys (other entries are kept). Nothing is written if reading fails.
+     * <br>
+     * If the backup was taken at an older schema version, the migration steps are run on the staged entries first. Values of the declared
+     * (or initialized) bounded preferences that are not in their value lists are skipped, and so are the internal entries.
+     *
+     * @param inputStream  The stream to read from. It is not closed.
+     * @param declaredOnly Whether to import only the declared (or initialized) preferences, and the keys starting with the allowed prefixes.
+     * @return the number of imported entries.
+     * @throws IOException      if reading fails, or if the input is not a backup.
+     * @throws RuntimeException if not in editor mode, if the backup was taken at a newer schema version, if a migration step fails.
+     * @see #exportTo(OutputStream)
+     */
+    @WorkerThread
+    public int importFrom(@NonNull InputStream inputStream, boolean declaredOnly) throws IOException, RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        }
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream));
+        int backupVersion = BackupFormat.readHeader(input);
+        int latestVersion = getLatestSchemaVersion();
+        if (backupVersion > latestVersion) {
+            throw new RuntimeException("The backup is of a newer schema version: " + backupVersion);
+        }
+
+        Map<String, Object> entries = new HashMap<>();
+        byte[] tag = new byte[1];
+        String key;
+        while ((key = BackupFormat.readKey(input, tag)) != null) {
+            entries.put(key, BackupFormat.readValue(input, tag[0]));
+        }
+
+        if (backupVersion < latestVersion) {
+            StagedPreferences staged = new StagedPreferences(entries);
+            runMigrations(staged, backupVersion);
+            entries.clear();
+            for (String stagedKey : staged.getKeys()) {
+                entries.put(stagedKey, staged.get(stagedKey));
+            }
+        }
+
+        int imported = 0;
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            if (entry.getKey().startsWith(INTERNAL_KEY_PREFIX)) continue;
+            if (declaredOnly && !isKeyKept(entry.getKey())) continue;
+
+            BoundedPreference<?> boundedPreference = boundedPreferences.get(entry.getKey());
+            if (boundedPreference != null && !isValueOf(boundedPreference, entry.getValue())) continue;
+
+            // request change
+            stageValue(entry.getKey(), entry.getValue());
+            ++imported;
+        }
+        if (imported > 0) {
+            // apply all the changes at once and schedule commit
+            preferencesEditor.apply();
+            refreshReadCache();
+        }
+        return imported;
+    }
+
+    /**
+     * Import the entries of a backup from the specified channel. The channel is not closed.
+     *
+     * @see #importFrom(InputStream, boolean)
+     */
+    @WorkerThread
+    public int importFrom(@NonNull ReadableByteChannel channel, boolean declaredOnly) throws IOException, RuntimeException {
+        return importFrom(Channels.newInputStream(channel), declaredOnly);
+    }
+
+    /**
+     * Whether the specified stored value is (the stored form of) a value in the value list of the specified bounded preference.
+     */
+    static boolean isValueOf(@NonNull BoundedPreference<?> preference, @NonNull Object storedValue) {
+        Object defaultValue = preference.getDefaultValue();
+        boolean nativeValue = defaultValue instanceof Boolean ||
+            defaultValue instanceof Integer ||
+            defaultValue instanceof Long ||
+            defaultValue instanceof Float ||
+            defaultValue instanceof String ||
+            defaultValue instanceof Set;
+        if (nativeValue) {
+            return preference.findValue(storedValue) != null;
+        }
+        // serializable values are stored as json
+        return storedValue instanceof String && preference.getValueOfJson((String) storedValue) != null;
+    }
+
+    // read cache
+
+    /**
+     * Enable or disable the read cache. While enabled, the handler keeps a copy of the whole store, and all the reads
+     * are served from it without taking any lock, so they do not block behind loads or writes, and do not slow down as the number of reader threads grows.
+     * <br>
+     * Writes made through this handler update the copied key only. Changes made otherwise (through other handlers of the same store, by applied
+     * deltas and completed transactions, or reported by the change notifications of the underlying store) make the next read reload the whole copy,
+     * so enable this only for read-mostly stores.
+     *
+     * @param enabled Whether to enable the read cache.
+     */
+    public void setReadCacheEnabled(boolean enabled) {
+        synchronized (readCacheLock) {
+            if (enabled == (readCache != null)) return;
+
+            if (enabled) {
+                preferences.registerOnSharedPreferenceChangeListener(readCacheListener);
+                // taken before copying, so that a change made while copying makes the next read copy again
+                readCacheGeneration = storeGeneration.get();
+                readCache = new ConcurrentHashMap<String, Object>(preferences.getAll());
+            } else {
+                preferences.unregisterOnSharedPreferenceChangeListener(readCacheListener);
+                readCache = null;
+            }
+        }
+    }
+
+    /**
+     * Whether the read cache is enabled.
+     */
+    public boolean isReadCacheEnabled() {
+        return readCache != null;
+    }
+
+    private boolean readBoolean(@NonNull String key, boolean defaultValue) {
+        traceRead(key, TraceFormat.TYPE_BOOLEAN);
+        FrozenPreferenceTable table = frozenTable;
+        if (table != null) {
+            int slot = table.slotOf(key);
+            if (slot >= 0) {
+                return table.getBoolean(slot, defaultValue);
+            }
+        }
+        Map<String, Object> cache = getReadCache();
+        if (cache == null) {
+            return preferences.getBoolean(key, defaultValue);
+        }
+        Boolean value = (Boolean) cache.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private int readInt(@NonNull String key, int defaultValue) {
+        traceRead(key, TraceFormat.TYPE_INT);
+        FrozenPreferenceTable table = frozenTable;
+        if (table != null) {
+            int slot = table.slotOf(key);
+            if (slot >= 0) {
+                return table.getInt(slot, defaultValue);
+            }
+        }
+        Map<String, Object> cache = getReadCache();
+        if (cache == null) {
+            return preferences.getInt(key, defaultValue);
+        }
+        Integer value = (Integer) cache.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private long readLong(@NonNull String key, long defaultValue) {
+        traceRead(key, TraceFormat.TYPE_LONG);
+        FrozenPreferenceTable table = frozenTable;
+        if (table != null) {
+            int slot = table.slotOf(key);
+            if (slot >= 0) {
+                return table.getLong(slot, defaultValue);
+            }
+        }
+        Map<String, Object> cache = getReadCache();
+        if (cache == null) {
+            return preferences.getLong(key, defaultValue);
+        }
+        Long value = (Long) cache.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private float readFloat(@NonNull String key, float defaultValue) {
+        traceRead(key, TraceFormat.TYPE_FLOAT);
+        FrozenPreferenceTable table = frozenTable;
+        if (table != null) {
+            int slot = table.slotOf(key);
+            if (slot >= 0) {
+                return table.getFloat(slot, defaultValue);
+            }
+        }
+        Map<String, Object> cache = getReadCache();
+        if (cache == null) {
+            return preferences.getFloat(key, defaultValue);
+        }
+        Float value = (Float) cache.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Nullable
+    private String readString(@NonNull String key, @Nullable String defaultValue) {
+        AccessTracer tracer = this.tracer;
+        if (tracer == null) {
+            return lookupString(key, defaultValue);
+        }
+        String value = lookupString(key, null);
+        tracer.record(
+            preferenceName,
+            TraceFormat.OP_READ,
+            TraceFormat.TYPE_STRING,
+            key,
+            value != null ? PreferenceSizes.utf8Length(value) : 0
+        );
+        return value != null ? value : defaultValue;
+    }
+
+    @Nullable
+    private String lookupString(@NonNull String key, @Nullable String defaultValue) {
+        FrozenPreferenceTable table = frozenTable;
+        if (table != null) {
+            int slot = table.slotOf(key);
+            if (slot >= 0) {
+                return table.getString(slot, defaultValue);
+            }
+        }
+        Map<String, Object> cache = getReadCache();
+        if (cache == null) {
+            return preferences.getString(key, defaultValue);
+        }
+        String value = (String) cache.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Nullable
+    private Set<String> readStringSet(@NonNull String key, @Nullable Set<String> defaultValue) {
+        AccessTracer tracer = this.tracer;
+        if (tracer == null) {
+            return lookupStringSet(key, defaultValue);
+        }
+        Set<String> value = lookupStringSet(key, null);
+        tracer.record(
+            preferenceName,
+            TraceFormat.OP_READ,
+            TraceFormat.TYPE_STRING_SET,
+            key,
+            value != null ? PreferenceSizes.estimateValueBytes(value) : 0
+        );
+        return value != null ? value : defaultValue;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private Set<String> lookupStringSet(@NonNull String key, @Nullable Set<String> defaultValue) {
+        FrozenPreferenceTable table = frozenTable;
+        if (table != null) {
+            int slot = table.slotOf(key);
+            if (slot >= 0) {
+                return table.getStringSet(slot, defaultValue);
+            }
+        }
+        Map<String, Object> cache = getReadCache();
+        if (cache == null) {
+            return preferences.getStringSet(key, defaultValue);
+        }
+        Set<String> value = (Set<String>) cache.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Record a read of a fixed size value, if tracing.
+     */
+    private void traceRead(@NonNull String key, int type) {
+        AccessTracer tracer = this.tracer;
+        if (tracer != null) {
+            tracer.record(preferenceName, TraceFormat.OP_READ, type, key, TraceFormat.fixedSizeOf(type));
+        }
+    }
+
+    private boolean readContains(@NonNull String key) {
+        FrozenPreferenceTable table = frozenTable;
+        if (table != null) {
+            int slot = table.slotOf(key);
+            if (slot >= 0) {
+                return table.contains(slot);
+            }
+        }
+        Map<String, Object> cache = getReadCache();
+        if (cache == null) {
+            return preferences.contains(key);
+        }
+        return cache.containsKey(key);
+    }
+
+    /**
+     * Get the read cache, reloading it first if the store was changed other than through this handler.
+     *
+     * @return the read cache, or null if it is disabled.
+     */
+    @Nullable
+    private Map<String, Object> getReadCache() {
+        Map<String, Object> cache = readCache;
+        if (cache == null || readCacheGeneration == storeGeneration.get()) {
+            return cache;
+        }
+        synchronized (readCacheLock) {
+            if (readCache == null) return null;
+
+            long generation = storeGeneration.get();
+            if (readCacheGeneration != generation) {
+                readCache = new ConcurrentHashMap<String, Object>(preferences.getAll());
+                readCacheGeneration = generation;
+            }
+            return readCache;
+        }
+    }
+
+    /**
+     * Record a write of the specified key made through this handler, updating the key in the read cache if it is enabled and current,
+     * or else making the next read reload it.
+     */
+    private void refreshReadCache(@NonNull String key) {
+        synchronized (readCacheLock) {
+            ConcurrentHashMap<String, Object> cache = readCache;
+            long generation = storeGeneration.get();
+            // only if nothing else changed the store since the cache was loaded
+            if (cache == null || readCacheGeneration != generation || !storeGeneration.compareAndSet(generation, generation + 1)) {
+                storeGeneration.incrementAndGet();
+                return;
+            }
+
+            // the value is read from the store here (instead of taking the written one), so that racing writers can not publish stale values
+            Object value = null;
+            if (preferences.contains(key)) {
+                Object previous = cache.get(key);
+                try {
+                    if (previous instanceof Boolean) {
+                        value = preferences.getBoolean(key, false);
+                    } else if (previous instanceof Integer) {
+                        value = preferences.getInt(key, 0);
+                    } else if (previous instanceof Long) {
+                        value = preferences.getLong(key, 0);
+                    } else if (previous instanceof Float) {
+                        value = preferences.getFloat(key, 0);
+                    } else if (previous instanceof String) {
+                        value = preferences.getString(key, null);
+                    } else if (previous instanceof Set) {
+                        value = preferences.getStringSet(key, null);
+                    }
+                } catch (ClassCastException e) {
+                    // type of the value has changed
+                    value = null;
+                }
+                if (value == null) {
+                    // type of the value is unknown
+                    value = preferences.getAll().get(key);
+                }
+            }
+
+            if (value != null) {
+                cache.put(key, value);
+            } else {
+                cache.remove(key);
+            }
+            readCacheGeneration = generation + 1;
+        }
+    }
+
+    /**
+     * Record a change of any number of keys, making the next read of every handler of the store reload its read cache.
+     */
+    private void refreshReadCache() {
+        storeGeneration.incrementAndGet();
+    }
+
+    /**
+     * Record a change of the specified store made without a handler, making the next read of its handlers reload their read caches.
+     */
+    static void onStoreChanged(@NonNull String preferenceName, int mode) {
+        getStoreGeneration(preferenceName, mode).incrementAndGet();
+    }
+
+    @NonNull
+    private static AtomicLong getStoreGeneration(@NonNull String preferenceName, int mode) {
+        // store names can not contain a separator, so the keys are unique, and the other mode flags do not change the file
+        String storeKey = preferenceName + File.separatorChar + (mode & MODE_MULTI_PROCESS_SAFE);
+        AtomicLong generation = STORE_GENERATIONS.get(storeKey);
+        if (generation == null) {
+            AtomicLong newGeneration = new AtomicLong();
+            generation = STORE_GENERATIONS.putIfAbsent(storeKey, newGeneration);
+            if (generation == null) {
+                generation = newGeneration;
+            }
+        }
+        return generation;
+    }
+
+    // frozen mode
+
+    /**
+     * Freeze this (read only) handler. A consistent snapshot of the store is taken, and the declared (or initialized) preferences
+     * are compiled into a minimal perfect hash table, with their values in arrays specialized by type. Reads of the declared preferences
+     * are then served from that table, while reads of the other keys go on as usual.
+     * <br>
+     * The table is recompiled when a change of the underlying store is observed, or when {@link #refreshFrozenTable()} is called.
+     * So declare all the preferences before freezing, or refresh after declaring the remaining ones.
+     *
+     * @throws RuntimeException if in editor mode.
+     */
+    public void freeze() throws RuntimeException {
+        if (preferencesEditor != null) {
+            throw new RuntimeException("Only read only handlers can be frozen");
+        }
+        synchronized (frozenTableListener) {
+            if (frozenTable != null) return;
+
+            preferences.registerOnSharedPreferenceChangeListener(frozenTableListener);
+            frozenTable = FrozenPreferenceTable.build(declaredKeys, preferences.getAll());
+        }
+    }
+
+    /**
+     * Unfreeze this handler, and release its table.
+     */
+    public void unfreeze() {
+        synchronized (frozenTableListener) {
+            if (frozenTable == null) return;
+
+            preferences.unregisterOnSharedPreferenceChangeListener(frozenTableListener);
+            frozenTable = null;
+        }
+    }
+
+    /**
+     * Whether this handler is frozen.
+     */
+    public boolean isFrozen() {
+        return frozenTable != null;
+    }
+
+    /**
+     * Take a new snapshot of the store, and recompile the table of the declared preferences. Does nothing if this handler is not frozen.
+     */
+    public void refreshFrozenTable() {
+        synchronized (frozenTableListener) {
+            if (frozenTable == null) return;
+
+            frozenTable = FrozenPreferenceTable.build(declaredKeys, preferences.getAll());
+        }
+    }
+
+    // schema migration
+
+    /**
+     * Get the schema version that the store is at.
+     *
+     * @return the stored schema version, or 0 if no migration was ever run.
+     */
+    public int getSchemaVersion() {
+        return preferences.getInt(
+            SCHEMA_VERSION_KEY,
+            0
+        );
+    }
+
+    private void migratePreferenceValues() throws RuntimeException {
+        // migrations need to write
+        if (preferencesEditor == null) return;
+
+        // fast path - already current
+        int latestVersion = getLatestSchemaVersion();
+        int storedVersion = getSchemaVersion();
+        if (storedVersion >= latestVersion) return;
+
+        StagedPreferences staged = new StagedPreferences(preferences.getAll());
+        runMigrations(staged, storedVersion);
+        // the version is kept out of the staged view, so that steps can not tamper with it
+        staged.remove(SCHEMA_VERSION_KEY);
+        staged.stageChanges(preferencesEditor);
+        preferencesEditor.putInt(
+            SCHEMA_VERSION_KEY,
+            latestVersion
+        );
+        // apply all the changes at once and schedule commit
+        preferencesEditor.apply();
+    }
+
+    /**
+     * Get the current schema version, the latest target version among the migration steps.
+     */
+    private int getLatestSchemaVersion() {
+        PreferenceMigration[] migrations = getMigrations();
+        int latestVersion = 0;
+        for (int i = 0; i < migrations.length; i++) {
+            latestVersion = Math.max(latestVersion, migrations[i].getTargetVersion());
+        }
+        return latestVersion;
+    }
+
+    /**
+     * Run the migration steps with target versions above the specified version on the staged store, in ascending order.
+     *
+     * @throws RuntimeException if target versions are not unique, if a step fails.
+     */
+    private void runMigrations(@NonNull StagedPreferences staged, int fromVersion) throws RuntimeException {
+        PreferenceMigration[] migrations = getMigrations();
+        List<PreferenceMigration> pending = new ArrayList<>();
+        for (int i = 0; i < migrations.length; i++) {
+            if (migrations[i].getTargetVersion() > fromVersion) {
+                pending.add(migrations[i]);
+            }
+        }
+        Collections.sort(
+            pending,
+            new Comparator<PreferenceMigration>() {
+                @Override
+                public int compare(PreferenceMigration first, PreferenceMigration second) {
+                    return Integer.compare(first.getTargetVersion(), second.getTargetVersion());
+                }
+            }
+        );
+
+        for (int i = 0; i < pending.size(); i++) {
+            PreferenceMigration migration = pending.get(i);
+            if (i > 0 && pending.get(i - 1).getTargetVersion() == migration.getTargetVersion()) {
+                throw new RuntimeException("Duplicate migration target version: " + migration.getTargetVersion());
+            }
+            try {
+                migration.migrate(staged);
+            } catch (Exception e) {
+                // nothing is written, an upgrade is retried on the next construction
+                throw new RuntimeException("Migration to version " + migration.getTargetVersion() + " failed.", e);
+            }
+        }
+    }
+
+    // expiry sweeping
+
+    /**
+     * Start removing the expired values of all the initialized (or written) expiring preferences periodically, on a background thread.
+     * Each sweep removes all the expired values with a single write. Calling this while a sweeper is already running replaces that sweeper.
+     *
+     * @param periodMillis Time (in milliseconds) between two consecutive sweeps. Must be greater than zero.
+     * @throws RuntimeException if not in editor mode, if the specified period is not positive.
+     */
+    public synchronized void startExpirySweeper(long periodMillis) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        }
+        if (periodMillis <= 0) {
+            throw new RuntimeException("Sweeping period must be greater than zero.");
+        }
+
+        stopExpirySweeper();
+        expirySweeper = getBackgroundExecutor().scheduleWithFixedDelay(
+            new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sweepExpiredPreferences();
+                    } catch (Exception e) {
+                        // keep the sweeper alive
+                        e.printStackTrace();
+                    }
+                }
+            },
+            periodMillis,
+            periodMillis,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Stop the expiry sweeper, if it is running.
+     */
+    public synchronized void stopExpirySweeper() {
+        if (expirySweeper != null) {
+            expirySweeper.cancel(false);
+            expirySweeper = null;
+        }
+    }
+
+    /**
+     * Remove the expired values of all the initialized (or written) expiring preferences from the persistent storage, with a single write.
+     *
+     * @return number of removed values.
+     */
+    public int sweepExpiredPreferences() {
+        // if not in editor mode, return immediately.
+        if (preferencesEditor == null) return 0;
+
+        // find the expired keys without locking, as most sweeps remove nothing
+        long now = System.currentTimeMillis();
+        List<String> expiredKeys = new ArrayList<>();
+        for (String key : expiringKeys) {
+            if (isExpired(key, now)) {
+                expiredKeys.add(key);
+            }
+        }
+        if (expiredKeys.isEmpty()) return 0;
+
+        // lock in a fixed order, so that concurrent sweeps (by other handlers of the store) can not deadlock
+        Collections.sort(expiredKeys);
+        return removeExpiredPreferences(expiredKeys, 0, now);
+    }
+
+    /**
+     * Remove those of the specified keys that are still expired, with a single write, while holding the locks of all of them
+     * (taken one by one, from the specified index on), so that a value set in between the check and the write is never removed.
+     *
+     * @return number of removed values.
+     */
+    private int removeExpiredPreferences(@NonNull List<String> keys, int index, long now) {
+        if (index < keys.size()) {
+            synchronized (getKeyLock(keys.get(index))) {
+                return removeExpiredPreferences(keys, index + 1, now);
+            }
+        }
+
+        int removed = 0;
+        for (String key : keys) {
+            if (isExpired(key, now)) {
+                // request change
+                preferencesEditor.remove(key);
+                ++removed;
+            }
+        }
+        if (removed > 0) {
+            // apply all the changes at once and schedule commit
+            preferencesEditor.apply();
+            refreshReadCache();
+        }
+        return removed;
+    }
+
+    private boolean isExpired(@NonNull String key, long now) {
+        String entry = null;
+        try {
+            entry = preferences.getString(key, null);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return entry != null && parseExpiryTime(entry, entry.indexOf(EXPIRY_SEPARATOR)) <= now;
+    }
+
+    /**
+     * Parse the expiry time written before the separator of an expiring preference entry, without allocating anything.
+     *
+     * @return the expiry time, or -1 if the entry is malformed.
+     */
+    private static long parseExpiryTime(@NonNull String entry, int separatorIndex) {
+        if (separatorIndex <= 0 || separatorIndex > 18) {
+            return -1;
+        }
+        long expiryTime = 0;
+        for (int i = 0; i < separatorIndex; i++) {
+            char c = entry.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            expiryTime = expiryTime * 10 + (c - '0');
+        }
+        return expiryTime;
+    }
+
+    // startup prefetch
+
+    /**
+     * Enable the startup prefetcher. Call this right after constructing the handler, as early in the process as possible.
+     * <br>
+     * The values (of serializable unbounded, and expiring preferences) decoded during the last recorded startup are loaded and decoded in parallel,
+     * on background threads, so that the first reads of them are served without decoding on the calling thread. Each prefetched value
+     * is handed out once (callers are free to mutate what they get), and is dropped if its stored value changes before it is read.
+     * <br>
+     * Meanwhile, the values decoded during the specified window are recorded, and (in editor mode) persisted at the end of the window
+     * for the next launch. Whatever was prefetched but not read by then is dropped. Calling this more than once does nothing.
+     *
+     * @param recordingWindowMillis Time (in milliseconds) during which the decoded values are recorded. Must be greater than zero.
+     * @throws RuntimeException if the specified window is not positive.
+     */
+    public synchronized void enableStartupPrefetch(long recordingWindowMillis) throws RuntimeException {
+        if (recordingWindowMillis <= 0) {
+            throw new RuntimeException("Recording window must be greater than zero.");
+        }
+        if (recordedAccesses != null) return;
+
+        final ConcurrentHashMap<String, String> recording = new ConcurrentHashMap<>();
+        recordedAccesses = recording;
+
+        String accesses = null;
+        try {
+            accesses = readString(STARTUP_ACCESSES_KEY, null);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (accesses != null) {
+            ClassLoader classLoader = getClass().getClassLoader();
+            for (String access : accesses.split("\n")) {
+                int tabIndex = access.indexOf('\t');
+                if (tabIndex <= 0 || tabIndex + 1 >= access.length()) continue;
+
+                final String key = access.substring(0, tabIndex);
+                final char kind = access.charAt(tabIndex + 1);
+                final Type type = TypeDescriptors.parse(access.substring(tabIndex + 2), classLoader);
+                if (type == null) continue;
+
+                // claim the key first, a read that comes before the decode finishes takes the claim away
+                final PrefetchedValue claim = new PrefetchedValue(null, null, null);
+                if (prefetchedValues.putIfAbsent(key, claim) != null) continue;
+
+                getPrefetchExecutor().execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                prefetchValue(key, kind, type, claim);
+                            } catch (Exception e) {
+                                // stale type or payload, the read decodes it on its own
+                                prefetchedValues.remove(key, claim);
+                            }
+                        }
+                    }
+                );
+            }
+        }
+
+        getBackgroundExecutor().schedule(
+            new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        finishStartupRecording(recording);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            },
+            recordingWindowMillis,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    private void prefetchValue(@NonNull String key,
+                               char kind,
+                               @NonNull Type type,
+                               @NonNull PrefetchedValue claim) {
+        String raw = readString(key, null);
+        int offset = 0;
+        if (raw != null && kind == ACCESS_KIND_EXPIRING) {
+            int separatorIndex = raw.indexOf(EXPIRY_SEPARATOR);
+            offset = parseExpiryTime(raw, separatorIndex) > System.currentTimeMillis() ? separatorIndex + 1 : -1;
+        }
+        if (raw == null || offset < 0) {
+            prefetchedValues.remove(key, claim);
+            return;
+        }
+        Object value = new Gson().fromJson(raw.substring(offset), type);
+        prefetchedValues.replace(key, claim, new PrefetchedValue(raw, type, value));
+    }
+
+    private void finishStartupRecording(@NonNull ConcurrentHashMap<String, String> recording) {
+        recordedAccesses = null;
+        prefetchedValues.clear();
+
+        // if not in editor mode, return immediately.
+        if (preferencesEditor == null) return;
+
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> entry : recording.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(entry.getKey()).append('\t').append(entry.getValue());
+        }
+        String accesses = builder.length() > 0 ? builder.toString() : null;
+        String storedAccesses = readString(STARTUP_ACCESSES_KEY, null);
+        if (accesses == null ? storedAccesses == null : accesses.equals(storedAccesses)) {
+            return;
+        }
+
+        // request change
+        if (accesses != null) {
+            preferencesEditor.putString(
+                STARTUP_ACCESSES_KEY,
+                accesses
+            );
+        } else {
+            preferencesEditor.remove(STARTUP_ACCESSES_KEY);
+        }
+        // apply change inside in-memory preference object and schedule commit
+        preferencesEditor.apply();
+        // keep the read cache in sync with our own writes
+        refreshReadCache(STARTUP_ACCESSES_KEY);
+    }
+
+    /**
+     * Decode the json payload of a stored value, starting at the specified offset, taking the prefetched value instead if there is one
+     * for exactly the same stored value. Records the access while recording.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T decodeJson(@NonNull String key,
+                             @NonNull String raw,
+                             int offset,
+                             @NonNull Type type) {
+        ConcurrentHashMap<String, String> recording = recordedAccesses;
+        if (recording != null && !recording.containsKey(key) && key.indexOf('\n') < 0 && key.indexOf('\t') < 0) {
+            String descriptor = TypeDescriptors.describe(type);
+            if (descriptor != null) {
+                recording.put(key, (offset > 0 ? ACCESS_KIND_EXPIRING : ACCESS_KIND_UNBOUNDED) + descriptor);
+            }
+        }
+
+        if (!prefetchedValues.isEmpty()) {
+            PrefetchedValue prefetched = prefetchedValues.remove(key);
+            // an unfinished claim is dropped, and its decode result with it
+            if (prefetched != null && prefetched.raw != null && prefetched.raw.equals(raw) && prefetched.type.equals(type)) {
+                return (T) prefetched.value;
+            }
+        }
+        long startTime = detector != null ? detector.startTiming() : BlockingDetector.NOT_TIMED;
+        try {
+            return new Gson().fromJson(offset > 0 ? raw.substring(offset) : raw, type);
+        } finally {
+            if (detector != null) {
+                detector.stopTiming(startTime, BlockingReport.Operation.DECODE, key);
+            }
+        }
+    }
+
+    // encryption
+
+    /**
+     * Set the key provider, whose key encrypts the values of the sensitive preferences. All the other preferences are stored in plaintext regardless.
+     *
+     * @param keyProvider The key provider, or null to remove it.
+     * @see SensitivePreference
+     */
+    public void setKeyProvider(@Nullable PreferenceKeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+    }
+
+    @NonNull
+    private PreferenceKeyProvider requireKeyProvider() throws RuntimeException {
+        PreferenceKeyProvider provider = keyProvider;
+        if (provider == null) {
+            throw new RuntimeException("No key provider is set");
+        }
+        return provider;
+    }
+
+    // sync
+
+    /**
+     * Get the current position of the change log, which grows with every write made through this handler, and with every applied delta.
+     *
+     * @throws RuntimeException if the change log is not enabled.
+     */
+    public long getChangeLogSequence() throws RuntimeException {
+        return requireChangeLog().getSequence();
+    }
+
+    /**
+     * Get the changes made after the specified position of the change log, with the latest value (or removal) and version of each changed key.
+     *
+     * @param sequence The position a peer has already seen, usually the {@link PreferenceDelta#getToSequence()} of the last delta sent to it, or 0 for everything.
+     * @throws RuntimeException if the change log is not enabled.
+     */
+    @NonNull
+    public PreferenceDelta getChangesSince(long sequence) throws RuntimeException {
+        return getChangesSince(sequence, null);
+    }
+
+    /**
+     * Get the changes made after the specified position of the change log, leaving out the changes made by the specified peer, which it already has.
+     *
+     * @param sequence     The position the peer has already seen, or 0 for everything.
+     * @param peerDeviceId Device id of the peer the changes are for. May be null.
+     * @throws RuntimeException if the change log is not enabled.
+     */
+    @NonNull
+    public PreferenceDelta getChangesSince(long sequence, @Nullable String peerDeviceId) throws RuntimeException {
+        return requireChangeLog().getChangesSince(preferences, sequence, peerDeviceId);
+    }
+
+    /**
+     * Apply the changes of a remote store, with a single write. A remote change replaces the local value if its version is newer (last writer wins),
+     * unless a merge rule is set for its key, in which case the merged value is written. Values not supported by a declared bounded preference are skipped.
+     *
+     * @param delta Changes of a remote store, from its {@link #getChangesSince(long)}.
+     * @return the number of changed keys.
+     * @throws RuntimeException if not in editor mode, or if the change log is not enabled.
+     */
+    public int applyChanges(@NonNull PreferenceDelta delta) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        }
+        int applied = requireChangeLog().apply(preferences, delta, mergeRules, boundedPreferences);
+        if (applied > 0) {
+            refreshReadCache();
+        }
+        return applied;
+    }
+
+    /**
+     * Set the rule that merges the local and the remote values of the specified key, instead of keeping the last written one.
+     *
+     * @param key       Key of the preference.
+     * @param mergeRule The rule, or null to go back to last writer wins.
+     */
+    public void setMergeRule(@NonNull String key, @Nullable PreferenceMergeRule mergeRule) {
+        if (mergeRule != null) {
+            mergeRules.put(key, mergeRule);
+        } else {
+            mergeRules.remove(key);
+        }
+    }
+
+    @NonNull
+    private ChangeLog requireChangeLog() throws RuntimeException {
+        if (changeLog == null) {
+            throw new RuntimeException("The change log is not enabled");
+        }
+        return changeLog;
+    }
+
+    // diagnostics
+
+    /**
+     * Install the blocking detector, which times the operations of the handlers constructed afterwards. Install it before constructing any
+     * handler (for example, in <b>Application.onCreate()</b>), and only in debug or testing builds.
+     *
+     * @param detector The detector, or null to stop timing the operations of the handlers constructed afterwards.
+     */
+    public static void setBlockingDetector(@Nullable BlockingDetector detector) {
+        blockingDetector = detector;
+    }
+
+    /**
+     * Install the access tracer, which records the operations of the handlers constructed afterwards. Install it before constructing any
+     * handler, and only while collecting a trace.
+     *
+     * @param tracer The tracer, or null to stop recording the operations of the handlers constructed afterwards.
+     */
+    public static void setAccessTracer(@Nullable AccessTracer tracer) {
+        accessTracer = tracer;
+    }
+
+    // releasing
+
+    /**
+     * Release the in-memory state of this handler, after persisting everything it holds: stop the expiry sweeper and the counter persisters,
+     * persist the counters, write the pending changes of the write scheduler (if any), and drop the read cache and the frozen table.
+     * <br>
+     * This is meant to be called when the handler is not going to be used anymore, usually by {@link PreferenceHandlerPool}. The handler
+     * stays usable, but its counters are then persisted only by {@link #flushCounters()}, and {@link PreferenceWriteScheduler#flushAll(long)}
+     * does not wait for its writes anymore.
+     */
+    @WorkerThread
+    public void release() {
+        stopExpirySweeper();
+        for (CounterState state : counters.values()) {
+            synchronized (state) {
+                if (state.persister != null) {
+                    state.persister.cancel(false);
+                    state.persister = null;
+                }
+            }
+        }
+        flushCounters();
+
+        setReadCacheEnabled(false);
+        unfreeze();
+        prefetchedValues.clear();
+        suppliedDefaults.clear();
+
+        if (scheduledPreferences != null) {
+            // write now, instead of waiting for the scheduler
+            scheduledPreferences.flush();
+            if (scheduledPreferencesReleased.compareAndSet(false, true)) {
+                // so that the scheduler does not keep the views of released stores
+                scheduledPreferences.getScheduler().release(scheduledPreferences);
+            }
+        }
+    }
+
+    /**
+     * Open the underlying store of the specified name and mode, without any of the views of the handlers.
+     */
+    @NonNull
+    static SharedPreferences openSharedPreferences(@NonNull Context context,
+                                                   @NonNull String preferenceName,
+                                                   int mode) {
+        if ((mode & MODE_MULTI_PROCESS_SAFE) != 0) {
+            return MultiProcessSharedPreferences.open(
+                new File(
+                    new File(context.getFilesDir(), MULTI_PROCESS_DIRECTORY),
+                    preferenceName + ".mps"
+                )
+            );
+        }
+        return context.getSharedPreferences(preferenceName, mode);
+    }
+
+    /**
+     * Get the name of the store.
+     */
+    @NonNull
+    String getPreferenceName() {
+        return preferenceName;
+    }
+
+    /**
+     * Get the mode the store was opened with.
+     */
+    int getMode() {
+        return mode;
+    }
+
+    /**
+     * Write the changes of the specified staged copy of the store, with a single synchronous write. With a write scheduler, the pending changes
+     * of the store are written along with them.
+     *
+     * @return true only if the changes were written to the disk, false if the write failed.
+     * @throws RuntimeException if not in editor mode.
+     */
+    @WorkerThread
+    boolean commitStaged(@NonNull StagedPreferences staged) throws RuntimeException {
+        if (preferencesEditor == null) {
+            throw new RuntimeException("You are not in editor mode");
+        }
+        if (!staged.stageChanges(preferencesEditor)) {
+            return true;
+        }
+        boolean committed = preferencesEditor.commit();
+        refreshReadCache();
+        return committed;
+    }
+
+    /**
+     * Get the underlying store, bypassing the read cache and the frozen table.
+     */
+    @NonNull
+    SharedPreferences getSharedPreferences() {
+        return preferences;
+    }
+
+    private static synchronized ThreadPoolExecutor getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+            prefetchExecutor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                5,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, "PreferenceStore-Prefetch-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }
+            );
+            prefetchExecutor.allowCoreThreadTimeOut(true);
+        }
+        return prefetchExecutor;
+    }
+
+    static synchronized ScheduledExecutorService getBackgroundExecutor() {
+        if (backgroundExecutor == null) {
+            backgroundExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, "PreferenceStore-Background");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }
+            );
+        }
+        return backgroundExecutor;
+    }
+
+    /**
+     * In-memory state of a counter preference: the increments made through a handler, and how many of them are persisted.
+     * Fields other than the counter are guarded by the lock of the state.
+     */
+    private static final class CounterState {
+        private final String key;
+        private final StripedCounter counter = new StripedCounter(0);
+        // also read without the lock, to check the threshold
+        private volatile long persistedValue;
+        private boolean removed;
+        private ScheduledFuture<?> persister;
+        // whether a threshold persist is scheduled and has not started yet
+        private final AtomicBoolean persistScheduled = new AtomicBoolean();
+
+        private CounterState(@NonNull String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Periodic persister of a counter. It holds the handler weakly, so that a handler dropped without being released can still be collected:
+     * the persister then writes the counter one last time (nothing can increment it anymore), and stops.
+     */
+    private static final class CounterPersister implements Runnable {
+        private final WeakReference<PreferenceHandler> handlerReference;
+        private final SharedPreferences store;
+        private final SharedPreferences.Editor editor;
+        private final Object countersLock;
+        private final AtomicLong storeGeneration;
+        private final CounterState state;
+
+        private CounterPersister(@NonNull PreferenceHandler handler,
+                                 @NonNull SharedPreferences store,
+                                 @NonNull SharedPreferences.Editor editor,
+                                 @NonNull Object countersLock,
+                                 @NonNull AtomicLong storeGeneration,
+                                 @NonNull CounterState state) {
+            this.handlerReference = new WeakReference<>(handler);
+            this.store = store;
+            this.editor = editor;
+            this.countersLock = countersLock;
+            this.storeGeneration = storeGeneration;
+            this.state = state;
+        }
+
+        @Override
+        public void run() {
+            PreferenceHandler handler = handlerReference.get();
+            if (handler != null) {
+                handler.persistCounter(state);
+                return;
+            }
+            synchronized (countersLock) {
+                synchronized (state) {
+                    if (stageCounter(store, editor, state)) {
+                        // apply change inside in-memory preference object and schedule commit
+                        editor.apply();
+                        storeGeneration.incrementAndGet();
+                    }
+                    if (state.persister != null) {
+                        state.persister.cancel(false);
+                        state.persister = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A value decoded ahead of time, along with the stored value and the type it was decoded from. All null while its decode is in progress.
+     */
+    private static final class PrefetchedValue {
+        private final String raw;
+        private final Type type;
+        private final Object value;
+
+        private PrefetchedValue(@Nullable String raw, @Nullable Type type, @Nullable Object value) {
+            this.raw = raw;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Memoized default value of a key, null until it is built. Built while holding the lock of the holder.
+     */
+    private static final class SuppliedDefault {
+        private volatile Object value;
     }
 
     // others - if any
@@ -0,0 +1,295 @@
+package com.buggysofts.preferencestore;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of handlers of dynamically named stores (such as one store per account), which keeps at most a fixed number of them open.
+ * <br>
+ * When the pool is full, the least recently used handler is evicted: its pending writes are flushed, and its in-memory state
+ * (read cache, frozen table, counters, scheduled jobs) is released on a background thread. Getting an evicted store again waits for that
+ * release to finish, so the new handler always starts from what the evicted one persisted. Register the pool with
+ * <b>Context.registerComponentCallbacks()</b> to also evict on memory trim signals.
+ * <br>
+ * Handlers are constructed outside of the lock of the pool, so constructing one (which loads its store) never delays getting the others.
+ * <br>
+ * Note that the platform keeps its own copy of every store loaded in the process, which can not be released through any public API.
+ */
+
+public class PreferenceHandlerPool<H extends PreferenceHandler> implements ComponentCallbacks2 {
+    private final int maxSize;
+    private final HandlerFactory<H> factory;
+    // in access order, the least recently used first, all guarded by this
+    private final LinkedHashMap<String, Entry<H>> handlers = new LinkedHashMap<>(16, 0.75f, true);
+    // evicted handlers whose release is in progress, by store name
+    private final Map<String, Entry<H>> releasing = new HashMap<>();
+
+    /**
+     * Create a handler pool.
+     * <br>
+     *
+     * @param maxSize Maximum number of open handlers. Must be greater than zero.
+     * @param factory Factory that constructs the handler of a store.
+     * @throws RuntimeException if any contract violation is found.
+     */
+    public PreferenceHandlerPool(@IntRange(from = 1) int maxSize,
+                                 @NonNull HandlerFactory<H> factory) {
+        this.maxSize = maxSize;
+        this.factory = factory;
+
+        if (maxSize <= 0) {
+            throw new RuntimeException("Maximum size must be greater than zero.");
+        }
+        if (factory == null) {
+            throw new RuntimeException("Factory must not be null.");
+        }
+    }
+
+    /**
+     * Get the handler of the specified store, constructing it if it is not open. This may evict the least recently used handler.
+     * Concurrent calls for a store that is being constructed wait for it, calls for other stores do not.
+     *
+     * @param storeName Name of the store.
+     * @return the handler.
+     * @throws RuntimeException if the factory fails to construct the handler. Nothing is kept then, the next call tries again.
+     */
+    @NonNull
+    public H get(@NonNull String storeName) throws RuntimeException {
+        Entry<H> entry;
+        Entry<H> previousEntry = null;
+        boolean open;
+        synchronized (this) {
+            entry = handlers.get(storeName);
+            open = entry != null;
+            if (!open) {
+                entry = new Entry<>();
+                handlers.put(storeName, entry);
+                previousEntry = releasing.get(storeName);
+            }
+        }
+        if (open) {
+            // constructed, or being constructed by another thread
+            H handler = entry.awaitConstructed();
+            if (handler == null) {
+                throw new RuntimeException("Failed to construct the handler.", entry.getFailure());
+            }
+            return handler;
+        }
+
+        H handler;
+        try {
+            if (previousEntry != null) {
+                // the evicted handler of the store must persist its state before the new one loads it
+                previousEntry.awaitReleased();
+            }
+            handler = factory.create(storeName);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (handlers.get(storeName) == entry) {
+                    handlers.remove(storeName);
+                }
+            }
+            entry.setHandler(null, e);
+            throw e;
+        }
+        entry.setHandler(handler, null);
+
+        List<Entry<H>> evicted;
+        synchronized (this) {
+            evicted = trimTo(maxSize);
+        }
+        release(evicted);
+        return handler;
+    }
+
+    /**
+     * Evict the handler of the specified store, if it is open.
+     */
+    public void evict(@NonNull String storeName) {
+        List<Entry<H>> evicted = new ArrayList<>(1);
+        synchronized (this) {
+            Entry<H> entry = handlers.remove(storeName);
+            if (entry != null) {
+                releasing.put(storeName, entry);
+                evicted.add(entry);
+            }
+        }
+        release(evicted);
+    }
+
+    /**
+     * Evict the least recently used handlers, until at most the specified number of handlers are open.
+     */
+    public void trim(@IntRange(from = 0) int size) {
+        List<Entry<H>> evicted;
+        synchronized (this) {
+            evicted = trimTo(size);
+        }
+        release(evicted);
+    }
+
+    /**
+     * Get the number of open handlers.
+     */
+    public synchronized int size() {
+        return handlers.size();
+    }
+
+    // memory signals
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            trim(0);
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            // keep only the store in use
+            trim(1);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trim(maxSize / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        trim(0);
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        // nothing to do
+    }
+
+    /**
+     * Remove the least recently used entries until at most the specified number are left, and mark them as releasing. Must be called while holding the lock of the pool.
+     */
+    @NonNull
+    private List<Entry<H>> trimTo(int size) {
+        List<Entry<H>> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Entry<H>>> iterator = handlers.entrySet().iterator();
+        while (handlers.size() > size && iterator.hasNext()) {
+            Map.Entry<String, Entry<H>> entry = iterator.next();
+            releasing.put(entry.getKey(), entry.getValue());
+            evicted.add(entry.getValue());
+            iterator.remove();
+        }
+        return evicted;
+    }
+
+    private void release(@NonNull final List<Entry<H>> evicted) {
+        if (evicted.isEmpty()) return;
+
+        // flushing writes, keep it off the calling thread
+        PreferenceHandler.getBackgroundExecutor().execute(
+            new Runnable() {
+                @Override
+                public void run() {
+                    for (Entry<H> entry : evicted) {
+                        try {
+                            H handler = entry.awaitConstructed();
+                            if (handler != null) {
+                                handler.release();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            entry.setReleased();
+                            synchronized (PreferenceHandlerPool.this) {
+                                Iterator<Entry<H>> iterator = releasing.values().iterator();
+                                while (iterator.hasNext()) {
+                                    if (iterator.next() == entry) {
+                                        iterator.remove();
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        );
+    }
+
+    /**
+     * A handler of the pool, which may still be under construction, or under release.
+     */
+    private static final class Entry<H> {
+        // all guarded by this
+        private boolean constructed;
+        private H handler;
+        private RuntimeException failure;
+        private boolean released;
+
+        private synchronized void setHandler(@Nullable H handler, @Nullable RuntimeException failure) {
+            this.handler = handler;
+            this.failure = failure;
+            this.constructed = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait until the construction of the handler is over.
+         *
+         * @return the handler, or null if its construction failed.
+         */
+        @Nullable
+        private synchronized H awaitConstructed() {
+            boolean interrupted = false;
+            while (!constructed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return handler;
+        }
+
+        @Nullable
+        private synchronized RuntimeException getFailure() {
+            return failure;
+        }
+
+        private synchronized void setReleased() {
+            this.released = true;
+            notifyAll();
+        }
+
+        private synchronized void awaitReleased() {
+            boolean interrupted = false;
+            while (!released) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Constructs the handler of a store.
+     */
+    public interface HandlerFactory<H extends PreferenceHandler> {
+        /**
+         * Construct the handler of the specified store. This is called on the thread requesting the handler.
+         */
+        @NonNull
+        H create(@NonNull String storeName);
+    }
+}
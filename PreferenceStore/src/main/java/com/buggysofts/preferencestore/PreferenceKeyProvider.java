@@ -0,0 +1,19 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Provides the key that encrypts the values of the {@link SensitivePreference}s, usually an AES key kept in the Android keystore.
+ */
+
+public interface PreferenceKeyProvider {
+    /**
+     * Get the AES key. This is called once per read, or once per (batch) write, so cache the key instead of loading it on every call.
+     *
+     * @return the key.
+     */
+    @NonNull
+    SecretKey getSecretKey();
+}
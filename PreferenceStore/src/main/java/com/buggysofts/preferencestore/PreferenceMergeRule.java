@@ -0,0 +1,28 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Merges the local and a remote value of a preference, for {@link PreferenceHandler}'s change log sync, instead of keeping the last written one.
+ * Values are raw, as returned by the underlying store (a Boolean, Integer, Long, Float, String or Set of String), and null stands for a removed value.
+ * It is called while a lock is held, so it should be quick and free of side effects.
+ * <br>
+ * Each change of a device is merged once, in the order the device made its changes, but the changes of different devices arrive in any order,
+ * and merged values that differ from both values are sent back to the peers, which merge them again. So a rule must be idempotent
+ * (merging a value into itself, or into a merge that already contains it, gives the same value), commutative and associative, like a maximum
+ * or a set union. A sum, for instance, is not, and keeps growing as merged values go back and forth.
+ */
+
+public interface PreferenceMergeRule {
+    /**
+     * Merge the values.
+     *
+     * @param key    Key of the preference.
+     * @param local  The local value, or null if it is not present.
+     * @param remote The remote value, or null if it was removed.
+     * @return the merged value, or null to remove the preference.
+     */
+    @Nullable
+    Object merge(@NonNull String key, @Nullable Object local, @Nullable Object remote);
+}
@@ -0,0 +1,46 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * A single step of the schema migration of a preference store. Each step upgrades the store to its target version,
+ * and the steps whose target versions are above the stored schema version are run in ascending order of their target versions.
+ * <br>
+ * All the steps of an upgrade operate on the same {@link StagedPreferences} view, and their combined result is written at once after the last step.
+ *
+ * @see PreferenceHandler#getMigrations()
+ */
+
+public abstract class PreferenceMigration {
+    private final int targetVersion;
+
+    /**
+     * Create a migration step.
+     * <br>
+     *
+     * @param targetVersion The schema version that the store is at after this step. Must be greater than zero.
+     * @throws RuntimeException if any contract violation is found.
+     */
+    public PreferenceMigration(@IntRange(from = 1) int targetVersion) {
+        this.targetVersion = targetVersion;
+
+        if (targetVersion <= 0) {
+            throw new RuntimeException("Target version must be greater than zero.");
+        }
+    }
+
+    /**
+     * Upgrade the staged preferences from the previous schema version to the target version of this step.
+     *
+     * @param preferences Staged view of the store. Changes made to it are written only after all the steps are completed successfully.
+     */
+    public abstract void migrate(@NonNull StagedPreferences preferences);
+
+    /**
+     * Get the schema version that the store is at after this step.
+     */
+    public int getTargetVersion() {
+        return targetVersion;
+    }
+}
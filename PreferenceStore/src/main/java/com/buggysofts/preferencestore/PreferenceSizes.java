@@ -0,0 +1,86 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+
+/**
+ * Estimates of how many bytes preference entries take in the persistent storage.
+ * The estimates count the UTF-8 encoded key and value texts, and ignore the constant per entry markup.
+ */
+
+final class PreferenceSizes {
+    private PreferenceSizes() {
+    }
+
+    /**
+     * Get the estimated size of an entry.
+     *
+     * @param key   Key of the entry.
+     * @param value Value of the entry, as returned by the underlying store.
+     */
+    static int estimateEntryBytes(@NonNull String key, @Nullable Object value) {
+        return utf8Length(key) + estimateValueBytes(value);
+    }
+
+    /**
+     * Get the estimated size of a value, as returned by the underlying store.
+     */
+    static int estimateValueBytes(@Nullable Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return utf8Length((String) value);
+        } else if (value instanceof Collection) {
+            int size = 0;
+            for (Object item : (Collection<?>) value) {
+                size += estimateValueBytes(item);
+            }
+            return size;
+        } else {
+            return utf8Length(String.valueOf(value));
+        }
+    }
+
+    /**
+     * Get the name of the type of a value, as returned by the underlying store, as shown in the footprint reports.
+     */
+    @NonNull
+    static String typeName(@Nullable Object value) {
+        if (value instanceof Boolean) {
+            return "Boolean";
+        } else if (value instanceof Integer) {
+            return "Integer";
+        } else if (value instanceof Long) {
+            return "Long";
+        } else if (value instanceof Float) {
+            return "Float";
+        } else if (value instanceof Collection) {
+            return "Set";
+        } else {
+            return "String";
+        }
+    }
+
+    /**
+     * Get the UTF-8 encoded length of the specified text, without encoding it.
+     */
+    static int utf8Length(@NonNull CharSequence text) {
+        int length = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
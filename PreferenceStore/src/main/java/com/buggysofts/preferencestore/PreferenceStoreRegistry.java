@@ -0,0 +1,153 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A registry of the preference handlers of an app, which constructs them (i.e. loads their files and initializes their values) in parallel.
+ * <br>
+ * Register the factories of all the handlers, and call {@link #warmUp()} as early as possible in the process start.
+ * After that, {@link #get(Class)} hands out the ready instances, and blocks only if the requested handler is still being constructed.
+ * A handler which is requested before the warm-up reaches it is constructed on the calling thread instead.
+ */
+
+public class PreferenceStoreRegistry {
+    private final int maxThreads;
+    private final Map<Class<? extends PreferenceHandler>, FutureTask<? extends PreferenceHandler>> stores = new LinkedHashMap<>();
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Create a preference store registry.
+     * <br>
+     *
+     * @param maxThreads Maximum number of handlers constructed at the same time. Must be greater than zero.
+     * @throws RuntimeException if any contract violation is found.
+     */
+    public PreferenceStoreRegistry(@IntRange(from = 1) int maxThreads) {
+        this.maxThreads = maxThreads;
+
+        if (maxThreads <= 0) {
+            throw new RuntimeException("Maximum thread count must be greater than zero.");
+        }
+    }
+
+    /**
+     * Register the factory of a handler. If the warm-up has already started, construction of the handler starts immediately.
+     *
+     * @param type    Class of the handler, used to request it later.
+     * @param factory Factory that constructs the handler. It is called at most once.
+     * @throws RuntimeException if a handler of the same class is already registered.
+     */
+    public synchronized <H extends PreferenceHandler> void register(@NonNull Class<H> type,
+                                                                    @NonNull final HandlerFactory<H> factory) throws RuntimeException {
+        if (stores.containsKey(type)) {
+            throw new RuntimeException("A handler of this class is already registered: " + type.getName());
+        }
+        FutureTask<H> task = new FutureTask<>(
+            new Callable<H>() {
+                @Override
+                public H call() {
+                    return factory.create();
+                }
+            }
+        );
+        stores.put(type, task);
+        if (executor != null) {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Start constructing all the registered handlers in parallel, on background threads. Calling this more than once has no further effect.
+     */
+    public synchronized void warmUp() {
+        if (executor != null) return;
+
+        executor = new ThreadPoolExecutor(
+            maxThreads,
+            maxThreads,
+            1,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PreferenceStore-WarmUp-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+        );
+        // let the threads go once the warm-up is over
+        executor.allowCoreThreadTimeOut(true);
+        for (FutureTask<? extends PreferenceHandler> task : stores.values()) {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Get the ready instance of a registered handler. If the handler is still being constructed, this blocks until it is ready.
+     * If its construction has not started yet, it is constructed on the calling thread.
+     *
+     * @param type Class of the handler, as registered.
+     * @return the handler.
+     * @throws RuntimeException if no handler of the specified class is registered, if the construction of the handler failed, if interrupted while waiting.
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    public <H extends PreferenceHandler> H get(@NonNull Class<H> type) throws RuntimeException {
+        FutureTask<H> task;
+        synchronized (this) {
+            task = (FutureTask<H>) stores.get(type);
+        }
+        if (task == null) {
+            throw new RuntimeException("No handler of this class is registered: " + type.getName());
+        }
+
+        // does nothing if the construction has already started elsewhere
+        task.run();
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Construction of the handler failed: " + type.getName(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the handler: " + type.getName(), e);
+        }
+    }
+
+    /**
+     * Whether the handler of the specified class has been constructed (successfully or not).
+     */
+    public boolean isReady(@NonNull Class<? extends PreferenceHandler> type) {
+        FutureTask<? extends PreferenceHandler> task;
+        synchronized (this) {
+            task = stores.get(type);
+        }
+        return task != null && task.isDone();
+    }
+
+    /**
+     * Constructs a handler.
+     */
+    public interface HandlerFactory<H extends PreferenceHandler> {
+        /**
+         * Construct the handler. This may be called on a background thread.
+         */
+        @NonNull
+        H create();
+    }
+}
@@ -0,0 +1,423 @@
+package com.buggysofts.preferencestore;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * An atomic update of several preference stores.
+ * <br>
+ * Stage the changes of each store with {@link #stage(PreferenceHandler)}, then {@link #commit()} them. Each store is written once.
+ * If the changes touch more than one store, they are first written to a journal, so that if the process dies before all the stores are written,
+ * the next start of the process completes the transaction (before any store is read). A transaction that dies before its journal is complete is discarded.
+ * The journal is deleted only once every store has reported its write as durable. A store whose write failed is written again right away, and if that
+ * fails too, by the next commit of a transaction in the process, or on the next start. A journal records the values the changed keys had when they were
+ * staged, and completing it only touches the keys that still have those values (or the committed ones), so that the changes made after a failed commit
+ * are not overwritten.
+ * <br>
+ * A transaction is completed straight into the underlying stores, as it happens before any handler is built. The size budgets of the handlers
+ * (see {@link PreferenceHandler#getSizeBudget()}) are not enforced on the completed changes, although their sizes are accounted for when the budgets
+ * load, and the changes are not versioned in the change logs (see {@link PreferenceHandler#getChangeLogDeviceId()}), so peers only receive them
+ * once they are written again.
+ * <br>
+ * The changes overwrite whatever was written to the same keys between staging and committing. This is not thread safe.
+ */
+
+public final class PreferenceTransaction {
+    // directory (under the files directory) of the journals of the transactions
+    private static final String JOURNAL_DIRECTORY = "preference_store_journal";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x5053544a;
+    private static final int FORMAT_VERSION = 2;
+
+    // commits are serialized, so that the journals are replayed in commit order
+    private static final Object COMMIT_LOCK = new Object();
+    // guarded by the commit lock
+    private static boolean recovered;
+    // whether a commit of this process left its journal behind, guarded by the commit lock
+    private static boolean journalsPending;
+
+    private final Context context;
+    private final Map<String, Participant> participants = new LinkedHashMap<>();
+    private boolean committed;
+
+    /**
+     * Create a transaction.
+     *
+     * @param context Context of the stores, used to find the journal directory.
+     */
+    public PreferenceTransaction(@NonNull Context context) {
+        this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+    }
+
+    /**
+     * Get the staged copy of the store of the specified handler, taking a snapshot of the store on the first call for the handler.
+     * Changes made to the returned copy are written when the transaction is committed.
+     *
+     * @param handler A handler in editor mode.
+     * @throws RuntimeException if the transaction is already committed, or if another handler of the same store is already staged.
+     */
+    @NonNull
+    public StagedPreferences stage(@NonNull PreferenceHandler handler) throws RuntimeException {
+        if (committed) {
+            throw new RuntimeException("The transaction is already committed.");
+        }
+        Participant participant = participants.get(handler.getPreferenceName());
+        if (participant == null) {
+            participant = new Participant(
+                handler,
+                new StagedPreferences(handler.getSharedPreferences().getAll())
+            );
+            participants.put(handler.getPreferenceName(), participant);
+        } else if (participant.handler != handler) {
+            throw new RuntimeException("Another handler of this store is already staged: " + handler.getPreferenceName());
+        }
+        return participant.staged;
+    }
+
+    /**
+     * Write the staged changes of all the stores, each store with a single write, and either all of them or none.
+     *
+     * @throws RuntimeException if the transaction is already committed, if a handler is not in editor mode,
+     *                          or if a store could not be written, even when retried, in which case the transaction is completed later.
+     */
+    @WorkerThread
+    public void commit() throws RuntimeException {
+        if (committed) {
+            throw new RuntimeException("The transaction is already committed.");
+        }
+        committed = true;
+
+        Map<String, Participant> changed = new LinkedHashMap<>();
+        for (Map.Entry<String, Participant> participant : participants.entrySet()) {
+            if (!participant.getValue().staged.getChangedEntries().isEmpty() ||
+                !participant.getValue().staged.getRemovedKeys().isEmpty()) {
+                changed.put(participant.getKey(), participant.getValue());
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        synchronized (COMMIT_LOCK) {
+            if (journalsPending) {
+                // the stores may be writable again, and the journals are applied before this one
+                journalsPending = false;
+                replayJournals(context);
+            }
+            // a single file is written atomically anyway
+            File journal = changed.size() > 1 ? writeJournal(changed) : null;
+
+            // the journal is needed until every store is durably written
+            boolean written = true;
+            for (Participant participant : changed.values()) {
+                // retried once right away, a failed write may be transient
+                if (!participant.handler.commitStaged(participant.staged) &&
+                    !participant.handler.commitStaged(participant.staged)) {
+                    written = false;
+                }
+            }
+            if (!written) {
+                journalsPending |= journal != null;
+                throw new RuntimeException("Some of the stores could not be written, the transaction is completed later.");
+            }
+            if (journal != null) {
+                journal.delete();
+            }
+        }
+    }
+
+    // recovery
+
+    /**
+     * Complete the journaled transactions, and discard the incomplete ones. Only the first call in the process has any effect.
+     */
+    static void recover(@NonNull Context context) {
+        synchronized (COMMIT_LOCK) {
+            if (recovered) return;
+            recovered = true;
+            replayJournals(context);
+        }
+    }
+
+    /**
+     * Complete the journaled transactions, and discard the incomplete ones. The changes are written straight into the underlying stores,
+     * bypassing the size budgets and the change logs of the handlers, except for the keys changed since staging.
+     */
+    static void replayJournals(@NonNull Context context) {
+        synchronized (COMMIT_LOCK) {
+            File[] files = getJournalDirectory(context).listFiles();
+            if (files == null) return;
+            // in commit order
+            Arrays.sort(
+                files,
+                new Comparator<File>() {
+                    @Override
+                    public int compare(File first, File second) {
+                        return Long.compare(first.lastModified(), second.lastModified());
+                    }
+                }
+            );
+            for (File file : files) {
+                if (file.getName().endsWith(JOURNAL_SUFFIX)) {
+                    try {
+                        if (!replayJournal(context, file)) {
+                            // kept for the next attempt
+                            journalsPending = true;
+                            continue;
+                        }
+                    } catch (IOException e) {
+                        // can not be completed, as it can not be read
+                        e.printStackTrace();
+                    }
+                }
+                file.delete();
+            }
+        }
+    }
+
+    // journal
+
+    /**
+     * Write the journal of the specified changes durably, and mark it complete.
+     *
+     * @return the complete journal.
+     */
+    @NonNull
+    private File writeJournal(@NonNull Map<String, Participant> changed) throws RuntimeException {
+        File directory = getJournalDirectory(context);
+        String name = UUID.randomUUID().toString();
+        File temporary = new File(directory, name + TEMPORARY_SUFFIX);
+        File journal = new File(directory, name + JOURNAL_SUFFIX);
+
+        FileOutputStream output = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("Could not create " + directory);
+            }
+            byte[] content = encodeJournal(changed);
+            CRC32 checksum = new CRC32();
+            checksum.update(content, 0, content.length);
+
+            output = new FileOutputStream(temporary);
+            output.write(content);
+            new DataOutputStream(output).writeLong(checksum.getValue());
+            // the journal must be on the disk before it is marked complete
+            output.getFD().sync();
+        } catch (IOException e) {
+            closeQuietly(output);
+            temporary.delete();
+            throw new RuntimeException("Could not write the transaction journal.", e);
+        }
+        closeQuietly(output);
+
+        // the commit point
+        if (!temporary.renameTo(journal)) {
+            temporary.delete();
+            throw new RuntimeException("Could not write the transaction journal.");
+        }
+        return journal;
+    }
+
+    @NonNull
+    private static byte[] encodeJournal(@NonNull Map<String, Participant> changed) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(content);
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeInt(changed.size());
+        for (Participant participant : changed.values()) {
+            BackupFormat.writeString(output, participant.handler.getPreferenceName());
+            output.writeInt(participant.handler.getMode());
+            for (Map.Entry<String, Object> entry : participant.staged.getChangedEntries().entrySet()) {
+                BackupFormat.writeEntry(output, entry.getKey(), entry.getValue());
+            }
+            BackupFormat.writeEnd(output);
+            // values as of staging, of the keys that existed
+            Set<String> removedKeys = participant.staged.getRemovedKeys();
+            for (String key : participant.staged.getChangedEntries().keySet()) {
+                Object originalValue = participant.staged.getOriginalValue(key);
+                if (originalValue != null) {
+                    BackupFormat.writeEntry(output, key, originalValue);
+                }
+            }
+            for (String key : removedKeys) {
+                BackupFormat.writeEntry(output, key, participant.staged.getOriginalValue(key));
+            }
+            BackupFormat.writeEnd(output);
+            output.writeInt(removedKeys.size());
+            for (String key : removedKeys) {
+                BackupFormat.writeString(output, key);
+            }
+        }
+        output.flush();
+        return content.toByteArray();
+    }
+
+    /**
+     * Write all the changes of the specified journal to their stores, each store with a single write. A key is left alone if its current value
+     * is neither the one it had when it was staged nor the committed one, as it was changed after the transaction.
+     *
+     * @return false if a store could not be written.
+     * @throws IOException if the journal is malformed or corrupt, in which case nothing is written.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean replayJournal(@NonNull Context context, @NonNull File journal) throws IOException {
+        byte[] content = new byte[(int) journal.length()];
+        FileInputStream fileInput = new FileInputStream(journal);
+        try {
+            new DataInputStream(fileInput).readFully(content);
+        } finally {
+            closeQuietly(fileInput);
+        }
+        if (content.length < 8) {
+            throw new IOException("Corrupt transaction journal: " + journal);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(content, 0, content.length - 8);
+        if (ByteBuffer.wrap(content, content.length - 8, 8).getLong() != checksum.getValue()) {
+            throw new IOException("Corrupt transaction journal: " + journal);
+        }
+
+        // read it all before writing anything
+        Map<SharedPreferences, SharedPreferences.Editor> editors = new LinkedHashMap<>();
+        Map<String, Integer> storeModes = new LinkedHashMap<>();
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(content, 0, content.length - 8));
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a transaction journal: " + journal);
+        }
+        int formatVersion = input.readInt();
+        if (formatVersion > FORMAT_VERSION) {
+            throw new IOException("Not a transaction journal: " + journal);
+        }
+        int storeCount = input.readInt();
+        byte[] tag = new byte[1];
+        for (int i = 0; i < storeCount; i++) {
+            String storeName = BackupFormat.readString(input);
+            int storeMode = input.readInt();
+            storeModes.put(storeName, storeMode);
+            SharedPreferences store = PreferenceHandler.openSharedPreferences(context, storeName, storeMode);
+            SharedPreferences.Editor editor = editors.get(store);
+            if (editor == null) {
+                editors.put(store, (editor = store.edit()));
+            }
+            Map<String, Object> changedEntries = readEntries(input, tag);
+            // journals of the first format have no staged values, their changes are written unconditionally
+            Map<String, Object> originalEntries = formatVersion >= 2 ? readEntries(input, tag) : null;
+            Map<String, ?> current = store.getAll();
+            for (Map.Entry<String, Object> entry : changedEntries.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if (originalEntries != null && !isUnchangedSince(current.get(key), originalEntries.get(key), value)) {
+                    continue;
+                }
+                if (value instanceof Boolean) {
+                    editor.putBoolean(key, (Boolean) value);
+                } else if (value instanceof Integer) {
+                    editor.putInt(key, (Integer) value);
+                } else if (value instanceof Long) {
+                    editor.putLong(key, (Long) value);
+                } else if (value instanceof Float) {
+                    editor.putFloat(key, (Float) value);
+                } else if (value instanceof String) {
+                    editor.putString(key, (String) value);
+                } else {
+                    editor.putStringSet(key, (Set<String>) value);
+                }
+            }
+            int removedCount = input.readInt();
+            for (int j = 0; j < removedCount; j++) {
+                String key = BackupFormat.readString(input);
+                if (originalEntries == null || isUnchangedSince(current.get(key), originalEntries.get(key), null)) {
+                    editor.remove(key);
+                }
+            }
+        }
+
+        // the changes are the final values, writing them again is harmless
+        boolean written = true;
+        for (SharedPreferences.Editor editor : editors.values()) {
+            written &= editor.commit();
+        }
+        // for the read caches of the live handlers
+        for (Map.Entry<String, Integer> storeMode : storeModes.entrySet()) {
+            PreferenceHandler.onStoreChanged(storeMode.getKey(), storeMode.getValue());
+        }
+        return written;
+    }
+
+    @NonNull
+    private static Map<String, Object> readEntries(@NonNull DataInputStream input, @NonNull byte[] tag) throws IOException {
+        Map<String, Object> entries = new LinkedHashMap<>();
+        String key;
+        while ((key = BackupFormat.readKey(input, tag)) != null) {
+            entries.put(key, BackupFormat.readValue(input, tag[0]));
+        }
+        return entries;
+    }
+
+    /**
+     * Whether a key still has the value it had when staged, or the committed value (null for absent), so completing the transaction
+     * does not overwrite a later change.
+     */
+    private static boolean isUnchangedSince(@Nullable Object currentValue,
+                                            @Nullable Object stagedValue,
+                                            @Nullable Object committedValue) {
+        return equal(currentValue, stagedValue) || equal(currentValue, committedValue);
+    }
+
+    private static boolean equal(@Nullable Object first, @Nullable Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    @NonNull
+    private static File getJournalDirectory(@NonNull Context context) {
+        return new File(context.getFilesDir(), JOURNAL_DIRECTORY);
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A store taking part in a transaction, and its staged copy.
+     */
+    private static final class Participant {
+        private final PreferenceHandler handler;
+        private final StagedPreferences staged;
+
+        private Participant(@NonNull PreferenceHandler handler,
+                            @NonNull StagedPreferences staged) {
+            this.handler = handler;
+            this.staged = staged;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.buggysofts.preferencestore;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A write scheduler shared by preference handlers, which takes their disk writes off the platform's <b>QueuedWork</b>.
+ * <br>
+ * Changes of the handlers that use a scheduler are visible to reads immediately, and are merged per file (only the latest value of each key is written).
+ * The merged changes of a file are written on the dedicated I/O thread of the scheduler, right away for {@link Priority#USER_VISIBLE} changes,
+ * and after the configured delay for {@link Priority#BACKGROUND} changes. Since nothing is queued on <b>QueuedWork</b>, lifecycle transitions
+ * never block on these writes, so call {@link #flushAll(long)} at the points where losing the pending changes is not acceptable (e.g. <b>onStop()</b>).
+ * <br>
+ * If the number of pending changes exceeds the configured limit, the thread making further changes writes its file itself, before returning.
+ *
+ * @see PreferenceHandler#PreferenceHandler(android.content.Context, String, int, boolean, PreferenceWriteScheduler, Priority)
+ */
+
+public final class PreferenceWriteScheduler {
+    private static PreferenceWriteScheduler defaultScheduler;
+
+    private final int maxPendingWrites;
+    private final long backgroundDelayMillis;
+    private final ScheduledExecutorService ioExecutor;
+    private final Map<String, ScheduledSharedPreferences> stores = new HashMap<>();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
+    /**
+     * Create a write scheduler with its own I/O thread.
+     * <br>
+     *
+     * @param maxPendingWrites      Number of pending changes (over all files) above which writers are made to write themselves. Must be greater than zero.
+     * @param backgroundDelayMillis Time (in milliseconds) for which background priority changes are held back, to be merged with further changes.
+     * @throws RuntimeException if any contract violation is found.
+     */
+    public PreferenceWriteScheduler(@IntRange(from = 1) int maxPendingWrites,
+                                    @IntRange(from = 0) long backgroundDelayMillis) {
+        this.maxPendingWrites = maxPendingWrites;
+        this.backgroundDelayMillis = backgroundDelayMillis;
+
+        if (maxPendingWrites <= 0) {
+            throw new RuntimeException("Maximum pending write count must be greater than zero.");
+        }
+        if (backgroundDelayMillis < 0) {
+            throw new RuntimeException("Background delay must not be negative.");
+        }
+
+        this.ioExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PreferenceStore-IO");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+        );
+    }
+
+    /**
+     * Get the default scheduler, which allows 1024 pending changes, and holds background changes back for 2 seconds.
+     */
+    @NonNull
+    public static synchronized PreferenceWriteScheduler getDefault() {
+        if (defaultScheduler == null) {
+            defaultScheduler = new PreferenceWriteScheduler(1024, 2000);
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * Write the pending changes of all the files, and wait for the writes to complete.
+     *
+     * @param timeoutMillis Maximum time (in milliseconds) to wait.
+     * @return whether all the pending changes were written within the timeout. The writes go on in the background if they time out,
+     * and the changes whose writes failed stay pending.
+     */
+    public boolean flushAll(long timeoutMillis) {
+        Future<Boolean> flush = ioExecutor.submit(
+            new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    boolean written = true;
+                    for (ScheduledSharedPreferences store : getStores()) {
+                        written &= store.flush();
+                    }
+                    return written;
+                }
+            }
+        );
+        try {
+            return flush.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to write pending changes.", e.getCause());
+        }
+    }
+
+    /**
+     * Get the number of changes (over all files) that are not written yet.
+     */
+    public int getPendingWriteCount() {
+        return pendingWrites.get();
+    }
+
+    /**
+     * Get the scheduled view of the specified store. All the handlers of the same file share the same view, until they release it.
+     * Stores of the same name opened with different modes (such as {@link PreferenceHandler#MODE_MULTI_PROCESS_SAFE}, which uses a file
+     * of its own) get views of their own.
+     *
+     * @see #release(ScheduledSharedPreferences)
+     */
+    @NonNull
+    synchronized ScheduledSharedPreferences wrap(@NonNull String name,
+                                                 int mode,
+                                                 @NonNull SharedPreferences preferences) {
+        // store names can not contain a separator, so the keys are unique
+        String storeKey = name + File.separatorChar + mode;
+        ScheduledSharedPreferences store = stores.get(storeKey);
+        if (store == null) {
+            store = new ScheduledSharedPreferences(this, storeKey, preferences);
+            stores.put(storeKey, store);
+        }
+        ++store.users;
+        return store;
+    }
+
+    /**
+     * Called by a handler that does not use the specified view anymore. The view is dropped once none of the handlers that got it uses it.
+     * A dropped view still writes the changes applied through it, but {@link #flushAll(long)} does not wait for them.
+     */
+    synchronized void release(@NonNull ScheduledSharedPreferences store) {
+        if (stores.get(store.getStoreKey()) == store && --store.users == 0) {
+            stores.remove(store.getStoreKey());
+        }
+    }
+
+    /**
+     * Called by the stores after changes are merged into their pending changes.
+     *
+     * @param addedWrites Number of keys that became pending with the changes.
+     */
+    void onChangesApplied(@NonNull final ScheduledSharedPreferences store,
+                          @NonNull Priority priority,
+                          int addedWrites) {
+        if (pendingWrites.addAndGet(addedWrites) > maxPendingWrites) {
+            // back pressure, the writer pays for the write
+            store.flush();
+            return;
+        }
+        if (store.markScheduled(priority)) {
+            Runnable write = new Runnable() {
+                @Override
+                public void run() {
+                    store.flush();
+                }
+            };
+            if (priority == Priority.USER_VISIBLE || backgroundDelayMillis == 0) {
+                ioExecutor.execute(write);
+            } else {
+                ioExecutor.schedule(write, backgroundDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Called by the stores after pending changes are written.
+     */
+    void onChangesWritten(int writtenWrites) {
+        pendingWrites.addAndGet(-writtenWrites);
+    }
+
+    @NonNull
+    private synchronized List<ScheduledSharedPreferences> getStores() {
+        return new ArrayList<>(stores.values());
+    }
+
+    /**
+     * How urgently changes are written.
+     */
+    public enum Priority {
+        /**
+         * Changes that the user would notice if they were lost. Written as soon as the I/O thread gets to them.
+         */
+        USER_VISIBLE,
+        /**
+         * Changes that can wait. Held back for the configured delay, and merged with further changes.
+         */
+        BACKGROUND
+    }
+}
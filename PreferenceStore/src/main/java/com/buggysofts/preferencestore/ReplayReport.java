@@ -0,0 +1,134 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.FloatRange;
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Measurements of a trace replay.
+ *
+ * @see TraceReplayer
+ */
+
+public final class ReplayReport {
+    private final long operationCount;
+    private final long durationNanos;
+    private final long[] readLatencies;
+    private final long[] writeLatencies;
+    private final long allocatedBytes;
+    private final long bytesPut;
+    private final long bytesWritten;
+
+    ReplayReport(long operationCount,
+                 long durationNanos,
+                 @NonNull long[] readLatencies,
+                 @NonNull long[] writeLatencies,
+                 long allocatedBytes,
+                 long bytesPut,
+                 long bytesWritten) {
+        this.operationCount = operationCount;
+        this.durationNanos = durationNanos;
+        this.readLatencies = readLatencies;
+        this.writeLatencies = writeLatencies;
+        this.allocatedBytes = allocatedBytes;
+        this.bytesPut = bytesPut;
+        this.bytesWritten = bytesWritten;
+    }
+
+    /**
+     * Get the number of replayed operations.
+     */
+    public long getOperationCount() {
+        return operationCount;
+    }
+
+    /**
+     * Get the wall clock duration (in nanoseconds) of the replay.
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Get the throughput of the replay, in operations per second.
+     */
+    public double getThroughput() {
+        return durationNanos > 0 ? operationCount * 1e9 / durationNanos : 0;
+    }
+
+    /**
+     * Get a percentile of the latencies (in nanoseconds) of the reads.
+     *
+     * @param percentile The percentile, 50 for the median, 100 for the maximum.
+     * @return the latency, or 0 if no read was replayed.
+     */
+    public long getReadLatencyNanos(@FloatRange(from = 0, to = 100) double percentile) {
+        return percentileOf(readLatencies, percentile);
+    }
+
+    /**
+     * Get a percentile of the latencies (in nanoseconds) of the writes (applies and commits).
+     *
+     * @param percentile The percentile, 50 for the median, 100 for the maximum.
+     * @return the latency, or 0 if no write was replayed.
+     */
+    public long getWriteLatencyNanos(@FloatRange(from = 0, to = 100) double percentile) {
+        return percentileOf(writeLatencies, percentile);
+    }
+
+    /**
+     * Get the number of bytes allocated by the replaying threads, or -1 if the runtime can not measure it (as on Android).
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Get the total size of the values put by the replay.
+     */
+    public long getBytesPut() {
+        return bytesPut;
+    }
+
+    /**
+     * Get the number of bytes the target wrote to the persistent storage during the replay, or -1 if the target does not tell.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private static long percentileOf(@NonNull long[] sortedLatencies, double percentile) {
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, Math.min(sortedLatencies.length - 1, index))];
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(
+            Locale.US,
+            "%d operations in %.1f ms (%.0f ops/s), reads p50/p90/p99/p99.9/max %d/%d/%d/%d/%d ns, " +
+                "writes p50/p90/p99/p99.9/max %d/%d/%d/%d/%d ns, %d bytes allocated, %d bytes put, %d bytes written",
+            operationCount,
+            durationNanos / 1e6,
+            getThroughput(),
+            getReadLatencyNanos(50),
+            getReadLatencyNanos(90),
+            getReadLatencyNanos(99),
+            getReadLatencyNanos(99.9),
+            getReadLatencyNanos(100),
+            getWriteLatencyNanos(50),
+            getWriteLatencyNanos(90),
+            getWriteLatencyNanos(99),
+            getWriteLatencyNanos(99.9),
+            getWriteLatencyNanos(100),
+            allocatedBytes,
+            bytesPut,
+            bytesWritten
+        );
+    }
+}
@@ -0,0 +1,427 @@
+package com.buggysofts.preferencestore;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A view of a store that keeps applied changes pending in memory (visible to all reads through this view),
+ * and writes them to the underlying store in merged batches, as scheduled by a {@link PreferenceWriteScheduler}.
+ */
+
+final class ScheduledSharedPreferences implements SharedPreferences {
+    // marks a pending removal
+    private static final Object REMOVED = new Object();
+
+    private final PreferenceWriteScheduler scheduler;
+    // name and mode of the store, which identify its file
+    private final String storeKey;
+    private final SharedPreferences delegate;
+    private final Object lock = new Object();
+    private final Object flushLock = new Object();
+    private final Map<String, Object> pending = new HashMap<>();
+    private final List<OnSharedPreferenceChangeListener> listeners = new CopyOnWriteArrayList<>();
+    // guarded by the lock
+    private boolean immediateWriteScheduled;
+    private boolean delayedWriteScheduled;
+    // number of change notifications of the underlying store still expected for our own writes, by key, guarded by the lock
+    private final Map<String, Integer> expectedEchoes = new HashMap<>();
+    // guarded by the scheduler
+    int users;
+
+    // forwards the changes made elsewhere, held strongly here, the underlying store only keeps a weak reference to it
+    private final OnSharedPreferenceChangeListener delegateListener = new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            if (key != null) {
+                synchronized (lock) {
+                    Integer echoes = expectedEchoes.get(key);
+                    if (echoes != null) {
+                        // our own write, already notified when it was applied
+                        if (echoes > 1) {
+                            expectedEchoes.put(key, echoes - 1);
+                        } else {
+                            expectedEchoes.remove(key);
+                        }
+                        return;
+                    }
+                }
+            }
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                listener.onSharedPreferenceChanged(ScheduledSharedPreferences.this, key);
+            }
+        }
+    };
+
+    ScheduledSharedPreferences(@NonNull PreferenceWriteScheduler scheduler,
+                               @NonNull String storeKey,
+                               @NonNull SharedPreferences delegate) {
+        this.scheduler = scheduler;
+        this.storeKey = storeKey;
+        this.delegate = delegate;
+        delegate.registerOnSharedPreferenceChangeListener(delegateListener);
+    }
+
+    /**
+     * Get the key of the store in its scheduler, made of its name and mode.
+     */
+    @NonNull
+    String getStoreKey() {
+        return storeKey;
+    }
+
+    /**
+     * Get the scheduler of the writes.
+     */
+    @NonNull
+    PreferenceWriteScheduler getScheduler() {
+        return scheduler;
+    }
+
+    // getters
+
+    @Override
+    @NonNull
+    public Map<String, ?> getAll() {
+        synchronized (lock) {
+            Map<String, Object> all = new HashMap<String, Object>(delegate.getAll());
+            for (Map.Entry<String, Object> entry : pending.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    all.remove(entry.getKey());
+                } else {
+                    all.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return all;
+        }
+    }
+
+    @Override
+    @Nullable
+    public String getString(String key, @Nullable String defValue) {
+        synchronized (lock) {
+            if (pending.containsKey(key)) {
+                Object value = pending.get(key);
+                return value != REMOVED ? (String) value : defValue;
+            }
+        }
+        return delegate.getString(key, defValue);
+    }
+
+    @Override
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        synchronized (lock) {
+            if (pending.containsKey(key)) {
+                Object value = pending.get(key);
+                return value != REMOVED ? (Set<String>) value : defValues;
+            }
+        }
+        return delegate.getStringSet(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        synchronized (lock) {
+            if (pending.containsKey(key)) {
+                Object value = pending.get(key);
+                return value != REMOVED ? (Integer) value : defValue;
+            }
+        }
+        return delegate.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        synchronized (lock) {
+            if (pending.containsKey(key)) {
+                Object value = pending.get(key);
+                return value != REMOVED ? (Long) value : defValue;
+            }
+        }
+        return delegate.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        synchronized (lock) {
+            if (pending.containsKey(key)) {
+                Object value = pending.get(key);
+                return value != REMOVED ? (Float) value : defValue;
+            }
+        }
+        return delegate.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        synchronized (lock) {
+            if (pending.containsKey(key)) {
+                Object value = pending.get(key);
+                return value != REMOVED ? (Boolean) value : defValue;
+            }
+        }
+        return delegate.getBoolean(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        synchronized (lock) {
+            if (pending.containsKey(key)) {
+                return pending.get(key) != REMOVED;
+            }
+        }
+        return delegate.contains(key);
+    }
+
+    // editors
+
+    @Override
+    @NonNull
+    public Editor edit() {
+        return edit(PreferenceWriteScheduler.Priority.USER_VISIBLE);
+    }
+
+    /**
+     * Get an editor whose changes are written with the specified priority.
+     */
+    @NonNull
+    Editor edit(@NonNull PreferenceWriteScheduler.Priority priority) {
+        return new ScheduledEditor(priority);
+    }
+
+    // listeners
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        // changes applied through this view are notified on apply, changes made elsewhere are forwarded from the underlying store
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    // writing
+
+    /**
+     * Mark a write of the specified priority as scheduled.
+     *
+     * @return true if the caller has to schedule the write, false if an equally urgent write is already scheduled.
+     */
+    boolean markScheduled(@NonNull PreferenceWriteScheduler.Priority priority) {
+        synchronized (lock) {
+            if (immediateWriteScheduled) {
+                return false;
+            }
+            if (priority == PreferenceWriteScheduler.Priority.USER_VISIBLE) {
+                immediateWriteScheduled = true;
+                return true;
+            }
+            if (delayedWriteScheduled) {
+                return false;
+            }
+            delayedWriteScheduled = true;
+            return true;
+        }
+    }
+
+    /**
+     * Write all the pending changes to the underlying store, with a single commit. If the commit fails, the changes stay pending.
+     *
+     * @return whether the pending changes (if any) were written.
+     */
+    @SuppressWarnings("unchecked")
+    boolean flush() {
+        synchronized (flushLock) {
+            Map<String, Object> batch;
+            synchronized (lock) {
+                immediateWriteScheduled = false;
+                delayedWriteScheduled = false;
+                if (pending.isEmpty()) {
+                    return true;
+                }
+                batch = new HashMap<>(pending);
+            }
+
+            Map<String, ?> stored = delegate.getAll();
+            List<String> changedKeys = new ArrayList<>();
+            Editor editor = delegate.edit();
+            for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                // the underlying store notifies only the keys whose values actually change
+                if (value == REMOVED ? stored.containsKey(key) : !value.equals(stored.get(key))) {
+                    changedKeys.add(key);
+                }
+                if (value == REMOVED) {
+                    editor.remove(key);
+                } else if (value instanceof Boolean) {
+                    editor.putBoolean(key, (Boolean) value);
+                } else if (value instanceof Integer) {
+                    editor.putInt(key, (Integer) value);
+                } else if (value instanceof Long) {
+                    editor.putLong(key, (Long) value);
+                } else if (value instanceof Float) {
+                    editor.putFloat(key, (Float) value);
+                } else if (value instanceof String) {
+                    editor.putString(key, (String) value);
+                } else {
+                    editor.putStringSet(key, (Set<String>) value);
+                }
+            }
+            synchronized (lock) {
+                for (String key : changedKeys) {
+                    Integer echoes = expectedEchoes.get(key);
+                    expectedEchoes.put(key, echoes != null ? echoes + 1 : 1);
+                }
+            }
+            // synchronous, we are on the I/O thread (or paying back pressure)
+            if (!editor.commit()) {
+                // the underlying store took the changes in memory (and notifies them), but failed to write them, so they are written again later
+                return false;
+            }
+
+            int written = 0;
+            synchronized (lock) {
+                // the entries changed again while writing stay pending
+                for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                    if (pending.get(entry.getKey()) == entry.getValue()) {
+                        pending.remove(entry.getKey());
+                        ++written;
+                    }
+                }
+            }
+            scheduler.onChangesWritten(written);
+            return true;
+        }
+    }
+
+    /**
+     * An editor that merges its changes into the pending changes of the store on apply.
+     */
+    private final class ScheduledEditor implements Editor {
+        private final PreferenceWriteScheduler.Priority priority;
+        private final Map<String, Object> changes = new LinkedHashMap<>();
+        private boolean clear;
+
+        private ScheduledEditor(@NonNull PreferenceWriteScheduler.Priority priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putString(String key, @Nullable String value) {
+            changes.put(key, value != null ? value : REMOVED);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putStringSet(String key, @Nullable Set<String> values) {
+            changes.put(key, values != null ? new HashSet<>(values) : REMOVED);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putLong(String key, long value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putFloat(String key, float value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor remove(String key) {
+            changes.put(key, REMOVED);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            apply();
+            return flush();
+        }
+
+        @Override
+        public void apply() {
+            List<String> changedKeys = new ArrayList<>();
+            int addedWrites = 0;
+            synchronized (this) {
+                synchronized (lock) {
+                    if (clear) {
+                        // like the platform editor, clearing happens before the other changes
+                        for (String key : getAll().keySet()) {
+                            if (!pending.containsKey(key)) {
+                                ++addedWrites;
+                            }
+                            pending.put(key, REMOVED);
+                            changedKeys.add(key);
+                        }
+                        clear = false;
+                    }
+                    for (Map.Entry<String, Object> change : changes.entrySet()) {
+                        if (!pending.containsKey(change.getKey())) {
+                            ++addedWrites;
+                        }
+                        pending.put(change.getKey(), change.getValue());
+                        changedKeys.add(change.getKey());
+                    }
+                    changes.clear();
+                }
+            }
+            if (changedKeys.isEmpty()) {
+                return;
+            }
+
+            scheduler.onChangesApplied(ScheduledSharedPreferences.this, priority, addedWrites);
+            for (String key : changedKeys) {
+                for (OnSharedPreferenceChangeListener listener : listeners) {
+                    listener.onSharedPreferenceChanged(ScheduledSharedPreferences.this, key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A preference with an unknown value, which holds sensitive data (such as tokens, or models bearing personal information).
+ * The value is encrypted with AES-GCM before it is written, with the key of the {@link PreferenceKeyProvider} of the handler,
+ * while all the other preferences are still written in plaintext.
+ */
+
+public class SensitivePreference<T> {
+    private final String key;
+    private final String desc;
+
+    /**
+     * Create a sensitive preference.
+     * <br>
+     *
+     * @param keyName Name of the preference. Should be of the form <b>pref_key_*</b>.
+     * @param desc    Description of the preference, its context, purpose & usability, and any other important information. This is not going to be used anywhere, the purpose of this is to remind the user what it is for and how to use it.
+     * @throws RuntimeException if any contract violation is found.
+     */
+    public SensitivePreference(@NonNull String keyName,
+                               @NonNull String desc) {
+        this.key = keyName;
+        this.desc = desc;
+
+        if (key == null) {
+            throw new RuntimeException("Key must not be null.");
+        }
+    }
+
+    /**
+     * Get key string.
+     */
+    @NonNull
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get description string.
+     */
+    @NonNull
+    public String getDescription() {
+        return desc;
+    }
+}
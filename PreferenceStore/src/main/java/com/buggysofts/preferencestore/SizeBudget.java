@@ -0,0 +1,131 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Size budgets of the entries of a store, and of the whole store, with the policy that is applied when a write exceeds them.
+ * Sizes are the estimated encoded sizes (in bytes) of the entries, as counted by the footprint report.
+ *
+ * @see PreferenceHandler#getSizeBudget()
+ * @see FootprintReport
+ */
+
+public final class SizeBudget {
+    /**
+     * What to do with a write that exceeds a budget.
+     */
+    public enum Policy {
+        /**
+         * Write anyway, and report it to the listener.
+         */
+        WARN,
+        /**
+         * Reject the whole write with an exception, and report it to the listener. Nothing of the write is applied.
+         */
+        REJECT,
+        /**
+         * Keep the (string) value in a separate blob file, and store a small reference to it instead, then report it to the listener.
+         * Reads resolve the reference transparently. Values of other types are written anyway.
+         */
+        DIVERT_TO_BLOB
+    }
+
+    private final int defaultKeyBudgetBytes;
+    private final long storeBudgetBytes;
+    private final Policy policy;
+    private final Listener listener;
+    private final ConcurrentHashMap<String, Integer> keyBudgets = new ConcurrentHashMap<>();
+
+    /**
+     * Create a size budget.
+     * <br>
+     *
+     * @param defaultKeyBudgetBytes Budget (in bytes) of each entry, unless set otherwise for its key. Must be greater than zero.
+     * @param storeBudgetBytes      Budget (in bytes) of the whole store. Must be greater than zero.
+     * @param policy                What to do with a write that exceeds a budget.
+     * @param listener              Receives the reports of the exceeded budgets. May be null.
+     * @throws RuntimeException if any contract violation is found.
+     */
+    public SizeBudget(@IntRange(from = 1) int defaultKeyBudgetBytes,
+                      @IntRange(from = 1) long storeBudgetBytes,
+                      @NonNull Policy policy,
+                      @Nullable Listener listener) {
+        this.defaultKeyBudgetBytes = defaultKeyBudgetBytes;
+        this.storeBudgetBytes = storeBudgetBytes;
+        this.policy = policy;
+        this.listener = listener;
+
+        if (defaultKeyBudgetBytes <= 0 || storeBudgetBytes <= 0) {
+            throw new RuntimeException("Budgets must be greater than zero.");
+        }
+        if (policy == null) {
+            throw new RuntimeException("Policy must not be null.");
+        }
+    }
+
+    /**
+     * Set the budget of a single entry, overriding the default budget of the entries.
+     *
+     * @param key         Key of the entry.
+     * @param budgetBytes Budget (in bytes) of the entry. Must be greater than zero.
+     * @throws RuntimeException if the budget is not positive.
+     */
+    public void setKeyBudget(@NonNull String key, @IntRange(from = 1) int budgetBytes) throws RuntimeException {
+        if (budgetBytes <= 0) {
+            throw new RuntimeException("Budgets must be greater than zero.");
+        }
+        keyBudgets.put(key, budgetBytes);
+    }
+
+    /**
+     * Get the budget (in bytes) of the entry of the specified key.
+     */
+    public int getKeyBudget(@NonNull String key) {
+        Integer budget = keyBudgets.get(key);
+        return budget != null ? budget : defaultKeyBudgetBytes;
+    }
+
+    /**
+     * Get the budget (in bytes) of the whole store.
+     */
+    public long getStoreBudget() {
+        return storeBudgetBytes;
+    }
+
+    /**
+     * Get the policy applied to the writes that exceed a budget.
+     */
+    @NonNull
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    @Nullable
+    Listener getListener() {
+        return listener;
+    }
+
+    /**
+     * Receives the reports of the exceeded budgets.
+     */
+    public interface Listener {
+        /**
+         * Called, on the writing thread, for each write that exceeds a budget.
+         *
+         * @param key         Key of the written entry.
+         * @param sizeBytes   Size (in bytes) of the entry, or of the whole store if the store budget was exceeded.
+         * @param budgetBytes The exceeded budget (in bytes).
+         * @param storeBudget Whether the exceeded budget is the budget of the whole store.
+         * @param policy      The policy applied to the write.
+         */
+        void onBudgetExceeded(@NonNull String key,
+                              long sizeBytes,
+                              long budgetBytes,
+                              boolean storeBudget,
+                              @NonNull Policy policy);
+    }
+}
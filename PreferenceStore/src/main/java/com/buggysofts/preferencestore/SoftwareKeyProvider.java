@@ -0,0 +1,52 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A key provider that keeps the key in memory, in place of a hardware backed keystore.
+ * Meant for tests, and for local (JVM) runs where the Android keystore is not available.
+ */
+
+public final class SoftwareKeyProvider implements PreferenceKeyProvider {
+    private final SecretKey secretKey;
+
+    /**
+     * Create a key provider with a new random 256 bit key.
+     *
+     * @throws RuntimeException if AES is not supported.
+     */
+    public SoftwareKeyProvider() throws RuntimeException {
+        try {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(256);
+            this.secretKey = keyGenerator.generateKey();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("AES is not supported.", e);
+        }
+    }
+
+    /**
+     * Create a key provider with the specified key.
+     *
+     * @param keyBytes The raw key, of 16, 24 or 32 bytes.
+     * @throws RuntimeException if the key is not of a valid length.
+     */
+    public SoftwareKeyProvider(@NonNull byte[] keyBytes) throws RuntimeException {
+        if (keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32) {
+            throw new RuntimeException("Key must be 16, 24 or 32 bytes long.");
+        }
+        this.secretKey = new SecretKeySpec(keyBytes, "AES");
+    }
+
+    @NonNull
+    @Override
+    public SecretKey getSecretKey() {
+        return secretKey;
+    }
+}
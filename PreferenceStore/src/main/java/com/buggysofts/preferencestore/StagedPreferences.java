@@ -0,0 +1,200 @@
+package com.buggysofts.preferencestore;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A mutable in-memory copy of a preference store. Changes are collected in memory,
+ * and can be written back to the store with a single write, which only touches the entries that actually changed.
+ * <br>
+ * This is not thread safe.
+ */
+
+public final class StagedPreferences {
+    private final Map<String, ?> original;
+    private final Map<String, Object> staged;
+
+    StagedPreferences(@NonNull Map<String, ?> original) {
+        this.original = original;
+        this.staged = new HashMap<>(original);
+    }
+
+    // getters
+
+    /**
+     * Get all the keys of the staged store.
+     */
+    @NonNull
+    public Set<String> getKeys() {
+        return new HashSet<>(staged.keySet());
+    }
+
+    /**
+     * Whether the staged store contains the specified key.
+     */
+    public boolean contains(@NonNull String key) {
+        return staged.containsKey(key);
+    }
+
+    /**
+     * Get the raw value of the specified key.
+     *
+     * @return the value (a Boolean, Integer, Long, Float, String or Set of String), or null if the key doesn't exist.
+     */
+    @Nullable
+    public Object get(@NonNull String key) {
+        return staged.get(key);
+    }
+
+    /**
+     * Get the value of the specified key, parsed as a json tree. Use this to reshape stored models without declaring their old classes.
+     *
+     * @return the parsed value, or null if the key doesn't exist or is not a String.
+     * @throws RuntimeException if the value is not valid json.
+     */
+    @Nullable
+    public JsonElement getJson(@NonNull String key) {
+        Object value = staged.get(key);
+        if (value instanceof String) {
+            return JsonParser.parseString((String) value);
+        }
+        return null;
+    }
+
+    // setters
+
+    /**
+     * Put the specified value to the specified key.
+     *
+     * @param value A Boolean, Integer, Long, Float, String or Set of String.
+     * @throws RuntimeException if the value is of an unsupported type.
+     */
+    public void put(@NonNull String key,
+                    @NonNull Object value) throws RuntimeException {
+        if (!(value instanceof Boolean
+            || value instanceof Integer
+            || value instanceof Long
+            || value instanceof Float
+            || value instanceof String
+            || value instanceof Set)) {
+            throw new RuntimeException("Unsupported value type: " + value.getClass().getName());
+        }
+        staged.put(key, value);
+    }
+
+    /**
+     * Put the specified json tree to the specified key, as a String.
+     */
+    public void putJson(@NonNull String key,
+                        @NonNull JsonElement value) {
+        staged.put(key, value.toString());
+    }
+
+    /**
+     * Move the value of a key to another key, replacing any existing value of the other key.
+     * Nothing happens if the key doesn't exist.
+     */
+    public void rename(@NonNull String fromKey,
+                       @NonNull String toKey) {
+        if (staged.containsKey(fromKey)) {
+            staged.put(toKey, staged.remove(fromKey));
+        }
+    }
+
+    // removers
+
+    /**
+     * Remove the specified key.
+     */
+    public void remove(@NonNull String key) {
+        staged.remove(key);
+    }
+
+    // others
+
+    /**
+     * Get the value of the specified key in the original store, as of staging.
+     *
+     * @return the value, or null if the key didn't exist.
+     */
+    @Nullable
+    Object getOriginalValue(@NonNull String key) {
+        return original.get(key);
+    }
+
+    /**
+     * Get the keys of the original store that are removed in the staged store.
+     */
+    @NonNull
+    Set<String> getRemovedKeys() {
+        Set<String> removedKeys = new HashSet<>();
+        for (String key : original.keySet()) {
+            if (!staged.containsKey(key)) {
+                removedKeys.add(key);
+            }
+        }
+        return removedKeys;
+    }
+
+    /**
+     * Get the entries of the staged store that are added, or whose values are changed.
+     */
+    @NonNull
+    Map<String, Object> getChangedEntries() {
+        Map<String, Object> changedEntries = new HashMap<>();
+        for (Map.Entry<String, Object> entry : staged.entrySet()) {
+            if (!entry.getValue().equals(original.get(entry.getKey()))) {
+                changedEntries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changedEntries;
+    }
+
+    /**
+     * Put the difference between the original store and the staged store to the specified editor. The editor is not applied.
+     *
+     * @return whether anything was put to the editor.
+     */
+    @SuppressWarnings("unchecked")
+    boolean stageChanges(@NonNull SharedPreferences.Editor editor) {
+        boolean changed = false;
+        for (String key : original.keySet()) {
+            if (!staged.containsKey(key)) {
+                editor.remove(key);
+                changed = true;
+            }
+        }
+        for (Map.Entry<String, Object> entry : staged.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (value.equals(original.get(key))) {
+                continue;
+            }
+            if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(key, (Float) value);
+            } else if (value instanceof String) {
+                editor.putString(key, (String) value);
+            } else {
+                editor.putStringSet(key, (Set<String>) value);
+            }
+            changed = true;
+        }
+        return changed;
+    }
+}
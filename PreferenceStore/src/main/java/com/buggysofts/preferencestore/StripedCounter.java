@@ -0,0 +1,58 @@
+package com.buggysofts.preferencestore;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A long counter split into padded cells, so that threads incrementing it concurrently rarely touch the same cache line.
+ * <br>
+ * This serves the purpose of {@code java.util.concurrent.atomic.LongAdder}, which is not available before API 24.
+ */
+
+class StripedCounter {
+    // number of longs between two cells, so that each cell sits on its own 64 byte cache line
+    private static final int CELL_SPACING = 8;
+    private static final int CELL_COUNT = cellCount();
+
+    private final long base;
+    private final AtomicLongArray cells = new AtomicLongArray(CELL_COUNT * CELL_SPACING);
+
+    /**
+     * @param base Initial value of the counter.
+     */
+    StripedCounter(long base) {
+        this.base = base;
+    }
+
+    /**
+     * Add the specified amount to the cell of the calling thread.
+     *
+     * @return the new value of the calling thread's cell.
+     */
+    long add(long delta) {
+        return cells.addAndGet(cellIndex(), delta);
+    }
+
+    /**
+     * Get the current value of the counter. This is not an atomic snapshot if the counter is concurrently updated.
+     */
+    long sum() {
+        long sum = base;
+        for (int i = 0; i < CELL_COUNT; i++) {
+            sum += cells.get(i * CELL_SPACING);
+        }
+        return sum;
+    }
+
+    private static int cellIndex() {
+        long id = Thread.currentThread().getId();
+        // spread the thread ids, consecutive ids would otherwise share neighbouring cells only
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & (CELL_COUNT - 1)) * CELL_SPACING;
+    }
+
+    private static int cellCount() {
+        int processors = Math.max(1, Runtime.getRuntime().availableProcessors());
+        // next power of two, for cheap masking
+        return Integer.highestOneBit(processors * 2 - 1) << 1;
+    }
+}
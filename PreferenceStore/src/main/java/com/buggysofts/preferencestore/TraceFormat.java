@@ -0,0 +1,117 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Codec of the access traces.
+ * <br>
+ * A trace starts with a header (magic, format version, wall clock start time in milliseconds), followed by the records, and ends with a zero byte.
+ * A record is a byte holding the operation (high nibble) and the value type (low nibble), followed by varints: the time since the previous record
+ * in microseconds, the thread index, the store index and, for the operations on a key, the key index and the value size in bytes.
+ * Threads, stores and keys are numbered in the order of their first appearance, and the first appearance of a store or key is followed by its name.
+ */
+
+final class TraceFormat {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final int MAGIC = 0x50535452;
+    static final int FORMAT_VERSION = 1;
+
+    // operations
+    static final int END = 0;
+    static final int OP_READ = 1;
+    static final int OP_PUT = 2;
+    static final int OP_REMOVE = 3;
+    static final int OP_CLEAR = 4;
+    static final int OP_APPLY = 5;
+    static final int OP_COMMIT = 6;
+
+    // value types
+    static final int TYPE_NONE = 0;
+    static final int TYPE_BOOLEAN = 1;
+    static final int TYPE_INT = 2;
+    static final int TYPE_LONG = 3;
+    static final int TYPE_FLOAT = 4;
+    static final int TYPE_STRING = 5;
+    static final int TYPE_STRING_SET = 6;
+
+    private TraceFormat() {
+    }
+
+    /**
+     * Whether records of the specified operation carry a key and a value size.
+     */
+    static boolean hasKey(int operation) {
+        return operation == OP_READ || operation == OP_PUT || operation == OP_REMOVE;
+    }
+
+    /**
+     * Get the value type of the specified raw value (as returned by the underlying store).
+     */
+    static int typeOf(@NonNull Object value) {
+        if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        } else if (value instanceof Integer) {
+            return TYPE_INT;
+        } else if (value instanceof Long) {
+            return TYPE_LONG;
+        } else if (value instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (value instanceof String) {
+            return TYPE_STRING;
+        } else {
+            return TYPE_STRING_SET;
+        }
+    }
+
+    /**
+     * Get the size in bytes of a value of a fixed size type.
+     */
+    static int fixedSizeOf(int type) {
+        switch (type) {
+            case TYPE_BOOLEAN:
+                return 1;
+            case TYPE_INT:
+            case TYPE_FLOAT:
+                return 4;
+            case TYPE_LONG:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Read an unsigned varint.
+     *
+     * @throws IOException if the varint is malformed.
+     */
+    static long readVarint(@NonNull DataInputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed trace varint");
+    }
+
+    /**
+     * Read a string, as its UTF-8 byte count (varint) followed by the bytes.
+     */
+    @NonNull
+    static String readString(@NonNull DataInputStream input) throws IOException {
+        long length = readVarint(input);
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Malformed trace string");
+        }
+        byte[] bytes = new byte[(int) length];
+        input.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,443 @@
+package com.buggysofts.preferencestore;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays an access trace (recorded by {@link AccessTracer}) against any store backend or configuration, and measures it.
+ * <br>
+ * Each recorded thread is replayed on a thread of its own, either as fast as possible, or at the recorded pace. Values are synthesized
+ * with the recorded types and sizes before the replay starts, so that the measured allocations are those of the backend.
+ * This is meant to be run on a JVM (for example, in a unit test), where allocations can be measured.
+ */
+
+public final class TraceReplayer {
+    private final String[] storeNames;
+    // operations of each recorded thread, in order
+    private final List<Operation[]> threads;
+    private final long operationCount;
+
+    /**
+     * Decode the specified trace.
+     *
+     * @param trace The trace. It is read to the end, but not closed.
+     * @throws IOException if the trace is malformed, or if it is of a newer format.
+     */
+    public TraceReplayer(@NonNull InputStream trace) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(trace));
+        if (input.readInt() != TraceFormat.MAGIC) {
+            throw new IOException("Not an access trace");
+        }
+        int formatVersion = input.readInt();
+        if (formatVersion > TraceFormat.FORMAT_VERSION) {
+            throw new IOException("Unsupported trace format version: " + formatVersion);
+        }
+        // wall clock start time, not needed for replaying
+        input.readLong();
+
+        List<String> stores = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        List<List<Operation>> threadOperations = new ArrayList<>();
+        Map<Long, Object> values = new HashMap<>();
+        long timeMicros = 0;
+        long count = 0;
+        int head;
+        while ((head = input.readUnsignedByte()) != TraceFormat.END) {
+            int operation = head >>> 4;
+            int type = head & 0x0f;
+            timeMicros += TraceFormat.readVarint(input);
+
+            int threadIndex = (int) TraceFormat.readVarint(input);
+            if (threadIndex == threadOperations.size()) {
+                threadOperations.add(new ArrayList<Operation>());
+            } else if (threadIndex > threadOperations.size()) {
+                throw new IOException("Malformed trace thread index");
+            }
+            int storeIndex = readName(input, stores);
+
+            String key = null;
+            int size = 0;
+            if (TraceFormat.hasKey(operation)) {
+                key = keys.get(readName(input, keys));
+                size = (int) TraceFormat.readVarint(input);
+            }
+            threadOperations.get(threadIndex).add(
+                new Operation(
+                    operation,
+                    type,
+                    storeIndex,
+                    key,
+                    size,
+                    operation == TraceFormat.OP_PUT ? synthesizeValue(values, type, size) : null,
+                    timeMicros
+                )
+            );
+            ++count;
+        }
+
+        this.storeNames = stores.toArray(new String[0]);
+        this.threads = new ArrayList<>();
+        for (List<Operation> operations : threadOperations) {
+            threads.add(operations.toArray(new Operation[0]));
+        }
+        this.operationCount = count;
+    }
+
+    /**
+     * Get the number of recorded operations.
+     */
+    public long getOperationCount() {
+        return operationCount;
+    }
+
+    /**
+     * Get the number of recorded threads.
+     */
+    public int getThreadCount() {
+        return threads.size();
+    }
+
+    /**
+     * Replay the trace against the specified target. The stores are opened before the replay starts.
+     *
+     * @param target         The backend or configuration to replay against.
+     * @param preserveTiming Whether to replay the operations at the recorded pace, instead of as fast as possible.
+     * @return the measurements of the replay.
+     * @throws RuntimeException if a replaying thread fails.
+     */
+    @NonNull
+    public ReplayReport replay(@NonNull Target target, final boolean preserveTiming) throws RuntimeException {
+        final SharedPreferences[] stores = new SharedPreferences[storeNames.length];
+        for (int i = 0; i < stores.length; i++) {
+            stores[i] = target.getStore(storeNames[i]);
+        }
+
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final long[][] readLatencies = new long[threads.size()][];
+        final long[][] writeLatencies = new long[threads.size()][];
+        final long[] allocatedBytes = new long[threads.size()];
+        final Throwable[] failures = new Throwable[threads.size()];
+        final long[] startNanos = new long[1];
+        Thread[] replayers = new Thread[threads.size()];
+        for (int i = 0; i < replayers.length; i++) {
+            final int threadIndex = i;
+            readLatencies[i] = new long[threads.get(i).length];
+            writeLatencies[i] = new long[threads.get(i).length];
+            replayers[i] = new Thread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            startGate.await();
+                            long allocatedBefore = getAllocatedBytes();
+                            replayThread(
+                                threads.get(threadIndex),
+                                stores,
+                                preserveTiming,
+                                startNanos[0],
+                                readLatencies[threadIndex],
+                                writeLatencies[threadIndex]
+                            );
+                            long allocatedAfter = getAllocatedBytes();
+                            allocatedBytes[threadIndex] = allocatedBefore >= 0 && allocatedAfter >= 0 ? allocatedAfter - allocatedBefore : -1;
+                        } catch (Throwable t) {
+                            failures[threadIndex] = t;
+                        }
+                    }
+                },
+                "PreferenceStore-Replay-" + i
+            );
+            replayers[i].start();
+        }
+
+        long bytesWrittenBefore = target.getBytesWritten();
+        startNanos[0] = System.nanoTime();
+        startGate.countDown();
+        for (Thread replayer : replayers) {
+            try {
+                replayer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while replaying.", e);
+            }
+        }
+        long durationNanos = System.nanoTime() - startNanos[0];
+        long bytesWrittenAfter = target.getBytesWritten();
+
+        long totalAllocatedBytes = 0;
+        long bytesPut = 0;
+        for (int i = 0; i < replayers.length; i++) {
+            if (failures[i] != null) {
+                throw new RuntimeException("Replaying thread " + i + " failed.", failures[i]);
+            }
+            totalAllocatedBytes = totalAllocatedBytes >= 0 && allocatedBytes[i] >= 0 ? totalAllocatedBytes + allocatedBytes[i] : -1;
+            for (Operation operation : threads.get(i)) {
+                if (operation.operation == TraceFormat.OP_PUT) {
+                    bytesPut += operation.size;
+                }
+            }
+        }
+        return new ReplayReport(
+            operationCount,
+            durationNanos,
+            merge(readLatencies),
+            merge(writeLatencies),
+            totalAllocatedBytes,
+            bytesPut,
+            bytesWrittenBefore >= 0 && bytesWrittenAfter >= 0 ? bytesWrittenAfter - bytesWrittenBefore : -1
+        );
+    }
+
+    /**
+     * Replay the operations of a single thread, recording the latencies of the reads and the writes (zero for the other operations).
+     */
+    private static void replayThread(@NonNull Operation[] operations,
+                                     @NonNull SharedPreferences[] stores,
+                                     boolean preserveTiming,
+                                     long startNanos,
+                                     @NonNull long[] readLatencies,
+                                     @NonNull long[] writeLatencies) {
+        SharedPreferences.Editor[] editors = new SharedPreferences.Editor[stores.length];
+        for (int i = 0; i < operations.length; i++) {
+            Operation operation = operations[i];
+            if (preserveTiming) {
+                long delay = startNanos + operation.timeMicros * 1000 - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+            }
+
+            SharedPreferences store = stores[operation.store];
+            SharedPreferences.Editor editor = editors[operation.store];
+            if (editor == null && operation.operation != TraceFormat.OP_READ) {
+                editor = (editors[operation.store] = store.edit());
+            }
+            long operationStart = System.nanoTime();
+            switch (operation.operation) {
+                case TraceFormat.OP_READ:
+                    read(store, operation);
+                    readLatencies[i] = System.nanoTime() - operationStart;
+                    break;
+                case TraceFormat.OP_PUT:
+                    put(editor, operation);
+                    break;
+                case TraceFormat.OP_REMOVE:
+                    editor.remove(operation.key);
+                    break;
+                case TraceFormat.OP_CLEAR:
+                    editor.clear();
+                    break;
+                case TraceFormat.OP_APPLY:
+                    editor.apply();
+                    writeLatencies[i] = System.nanoTime() - operationStart;
+                    break;
+                case TraceFormat.OP_COMMIT:
+                    editor.commit();
+                    writeLatencies[i] = System.nanoTime() - operationStart;
+                    break;
+                default:
+                    // operations of newer formats
+                    break;
+            }
+        }
+    }
+
+    private static void read(@NonNull SharedPreferences store, @NonNull Operation operation) {
+        switch (operation.type) {
+            case TraceFormat.TYPE_BOOLEAN:
+                store.getBoolean(operation.key, false);
+                break;
+            case TraceFormat.TYPE_INT:
+                store.getInt(operation.key, 0);
+                break;
+            case TraceFormat.TYPE_LONG:
+                store.getLong(operation.key, 0);
+                break;
+            case TraceFormat.TYPE_FLOAT:
+                store.getFloat(operation.key, 0);
+                break;
+            case TraceFormat.TYPE_STRING_SET:
+                store.getStringSet(operation.key, null);
+                break;
+            default:
+                store.getString(operation.key, null);
+                break;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void put(@NonNull SharedPreferences.Editor editor, @NonNull Operation operation) {
+        switch (operation.type) {
+            case TraceFormat.TYPE_BOOLEAN:
+                editor.putBoolean(operation.key, (Boolean) operation.value);
+                break;
+            case TraceFormat.TYPE_INT:
+                editor.putInt(operation.key, (Integer) operation.value);
+                break;
+            case TraceFormat.TYPE_LONG:
+                editor.putLong(operation.key, (Long) operation.value);
+                break;
+            case TraceFormat.TYPE_FLOAT:
+                editor.putFloat(operation.key, (Float) operation.value);
+                break;
+            case TraceFormat.TYPE_STRING_SET:
+                editor.putStringSet(operation.key, (Set<String>) operation.value);
+                break;
+            default:
+                editor.putString(operation.key, (String) operation.value);
+                break;
+        }
+    }
+
+    /**
+     * Get a value of the specified type and size, shared by all the puts of the same type and size.
+     */
+    @NonNull
+    private static Object synthesizeValue(@NonNull Map<Long, Object> values, int type, int size) {
+        long valueKey = ((long) type << 32) | size;
+        Object value = values.get(valueKey);
+        if (value == null) {
+            switch (type) {
+                case TraceFormat.TYPE_BOOLEAN:
+                    value = Boolean.TRUE;
+                    break;
+                case TraceFormat.TYPE_INT:
+                    value = size;
+                    break;
+                case TraceFormat.TYPE_LONG:
+                    value = (long) size;
+                    break;
+                case TraceFormat.TYPE_FLOAT:
+                    value = (float) size;
+                    break;
+                case TraceFormat.TYPE_STRING_SET:
+                    value = Collections.singleton(synthesizeText(size));
+                    break;
+                default:
+                    value = synthesizeText(size);
+                    break;
+            }
+            values.put(valueKey, value);
+        }
+        return value;
+    }
+
+    @NonNull
+    private static String synthesizeText(int size) {
+        char[] text = new char[size];
+        Arrays.fill(text, 'x');
+        return new String(text);
+    }
+
+    private static int readName(@NonNull DataInputStream input, @NonNull List<String> names) throws IOException {
+        int index = (int) TraceFormat.readVarint(input);
+        if (index == names.size()) {
+            names.add(TraceFormat.readString(input));
+        } else if (index > names.size()) {
+            throw new IOException("Malformed trace name index");
+        }
+        return index;
+    }
+
+    /**
+     * Merge the non-zero latencies of all the threads, sorted.
+     */
+    @NonNull
+    private static long[] merge(@NonNull long[][] latencies) {
+        int count = 0;
+        for (long[] threadLatencies : latencies) {
+            for (long latency : threadLatencies) {
+                if (latency > 0) ++count;
+            }
+        }
+        long[] merged = new long[count];
+        int position = 0;
+        for (long[] threadLatencies : latencies) {
+            for (long latency : threadLatencies) {
+                if (latency > 0) merged[position++] = latency;
+            }
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread so far, or -1 if the runtime can not measure it.
+     */
+    private static long getAllocatedBytes() {
+        try {
+            // not available on Android, hence the reflection
+            Object threadBean = Class.forName("java.lang.management.ManagementFactory")
+                .getMethod("getThreadMXBean")
+                .invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A recorded operation.
+     */
+    private static final class Operation {
+        private final int operation;
+        private final int type;
+        private final int store;
+        private final String key;
+        private final int size;
+        private final Object value;
+        private final long timeMicros;
+
+        private Operation(int operation,
+                          int type,
+                          int store,
+                          String key,
+                          int size,
+                          Object value,
+                          long timeMicros) {
+            this.operation = operation;
+            this.type = type;
+            this.store = store;
+            this.key = key;
+            this.size = size;
+            this.value = value;
+            this.timeMicros = timeMicros;
+        }
+    }
+
+    /**
+     * The backend or configuration a trace is replayed against.
+     */
+    public interface Target {
+        /**
+         * Open the store of the specified name, as recorded.
+         */
+        @NonNull
+        SharedPreferences getStore(@NonNull String storeName);
+
+        /**
+         * Get the number of bytes written to the persistent storage so far, by all the stores of this target.
+         *
+         * @return the number of bytes, or -1 if unknown.
+         */
+        long getBytesWritten();
+    }
+}
@@ -0,0 +1,110 @@
+package com.buggysofts.preferencestore;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Set;
+
+/**
+ * An editor that records its operations with an {@link AccessTracer}.
+ */
+
+final class TracedEditor implements SharedPreferences.Editor {
+    private final SharedPreferences.Editor delegate;
+    private final AccessTracer tracer;
+    private final String store;
+
+    TracedEditor(@NonNull SharedPreferences.Editor delegate,
+                 @NonNull AccessTracer tracer,
+                 @NonNull String store) {
+        this.delegate = delegate;
+        this.tracer = tracer;
+        this.store = store;
+    }
+
+    @Override
+    @NonNull
+    public SharedPreferences.Editor putString(String key, @Nullable String value) {
+        if (value != null) {
+            tracer.record(store, TraceFormat.OP_PUT, TraceFormat.TYPE_STRING, key, PreferenceSizes.utf8Length(value));
+        } else {
+            tracer.record(store, TraceFormat.OP_REMOVE, TraceFormat.TYPE_NONE, key, 0);
+        }
+        delegate.putString(key, value);
+        return this;
+    }
+
+    @Override
+    @NonNull
+    public SharedPreferences.Editor putStringSet(String key, @Nullable Set<String> values) {
+        if (values != null) {
+            tracer.record(store, TraceFormat.OP_PUT, TraceFormat.TYPE_STRING_SET, key, PreferenceSizes.estimateValueBytes(values));
+        } else {
+            tracer.record(store, TraceFormat.OP_REMOVE, TraceFormat.TYPE_NONE, key, 0);
+        }
+        delegate.putStringSet(key, values);
+        return this;
+    }
+
+    @Override
+    @NonNull
+    public SharedPreferences.Editor putInt(String key, int value) {
+        tracer.record(store, TraceFormat.OP_PUT, TraceFormat.TYPE_INT, key, TraceFormat.fixedSizeOf(TraceFormat.TYPE_INT));
+        delegate.putInt(key, value);
+        return this;
+    }
+
+    @Override
+    @NonNull
+    public SharedPreferences.Editor putLong(String key, long value) {
+        tracer.record(store, TraceFormat.OP_PUT, TraceFormat.TYPE_LONG, key, TraceFormat.fixedSizeOf(TraceFormat.TYPE_LONG));
+        delegate.putLong(key, value);
+        return this;
+    }
+
+    @Override
+    @NonNull
+    public SharedPreferences.Editor putFloat(String key, float value) {
+        tracer.record(store, TraceFormat.OP_PUT, TraceFormat.TYPE_FLOAT, key, TraceFormat.fixedSizeOf(TraceFormat.TYPE_FLOAT));
+        delegate.putFloat(key, value);
+        return this;
+    }
+
+    @Override
+    @NonNull
+    public SharedPreferences.Editor putBoolean(String key, boolean value) {
+        tracer.record(store, TraceFormat.OP_PUT, TraceFormat.TYPE_BOOLEAN, key, TraceFormat.fixedSizeOf(TraceFormat.TYPE_BOOLEAN));
+        delegate.putBoolean(key, value);
+        return this;
+    }
+
+    @Override
+    @NonNull
+    public SharedPreferences.Editor remove(String key) {
+        tracer.record(store, TraceFormat.OP_REMOVE, TraceFormat.TYPE_NONE, key, 0);
+        delegate.remove(key);
+        return this;
+    }
+
+    @Override
+    @NonNull
+    public SharedPreferences.Editor clear() {
+        tracer.record(store, TraceFormat.OP_CLEAR);
+        delegate.clear();
+        return this;
+    }
+
+    @Override
+    public boolean commit() {
+        tracer.record(store, TraceFormat.OP_COMMIT);
+        return delegate.commit();
+    }
+
+    @Override
+    public void apply() {
+        tracer.record(store, TraceFormat.OP_APPLY);
+        delegate.apply();
+    }
+}
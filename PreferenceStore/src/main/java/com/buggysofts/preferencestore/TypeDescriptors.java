@@ -0,0 +1,105 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact string form of the types we decode values to, so that they can be persisted and resolved again on a later launch.
+ * <br>
+ * A class is written as its name, and a parameterized type as <b>raw&lt;arg,arg&gt;</b>. Other types (wildcards, type variables, generic arrays) are not supported.
+ */
+
+final class TypeDescriptors {
+    private TypeDescriptors() {
+    }
+
+    /**
+     * Describe the specified type.
+     *
+     * @return the descriptor, or null if the type is not supported.
+     */
+    @Nullable
+    static String describe(@NonNull Type type) {
+        StringBuilder builder = new StringBuilder();
+        return describe(type, builder) ? builder.toString() : null;
+    }
+
+    /**
+     * Resolve the type of the specified descriptor.
+     *
+     * @param classLoader Loader of the named classes.
+     * @return the type, or null if the descriptor is malformed, or if a class can not be found.
+     */
+    @Nullable
+    static Type parse(@NonNull String descriptor, @Nullable ClassLoader classLoader) {
+        try {
+            int[] position = new int[1];
+            Type type = parse(descriptor, position, classLoader);
+            return position[0] == descriptor.length() ? type : null;
+        } catch (Exception e) {
+            // unknown class, or a type gson does not accept
+            return null;
+        }
+    }
+
+    private static boolean describe(@NonNull Type type, @NonNull StringBuilder builder) {
+        if (type instanceof Class) {
+            builder.append(((Class<?>) type).getName());
+            return true;
+        }
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterizedType = (ParameterizedType) type;
+            if (!describe(parameterizedType.getRawType(), builder)) {
+                return false;
+            }
+            builder.append('<');
+            Type[] arguments = parameterizedType.getActualTypeArguments();
+            for (int i = 0; i < arguments.length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                if (!describe(arguments[i], builder)) {
+                    return false;
+                }
+            }
+            builder.append('>');
+            return true;
+        }
+        return false;
+    }
+
+    @NonNull
+    private static Type parse(@NonNull String descriptor,
+                              @NonNull int[] position,
+                              @Nullable ClassLoader classLoader) throws ClassNotFoundException {
+        int start = position[0];
+        int end = start;
+        while (end < descriptor.length() && "<,>".indexOf(descriptor.charAt(end)) < 0) {
+            ++end;
+        }
+        Class<?> rawType = Class.forName(descriptor.substring(start, end), false, classLoader);
+        position[0] = end;
+        if (end == descriptor.length() || descriptor.charAt(end) != '<') {
+            return rawType;
+        }
+
+        List<Type> arguments = new ArrayList<>();
+        do {
+            // skip '<' or ','
+            ++position[0];
+            arguments.add(parse(descriptor, position, classLoader));
+        } while (position[0] < descriptor.length() && descriptor.charAt(position[0]) == ',');
+        if (position[0] == descriptor.length() || descriptor.charAt(position[0]) != '>') {
+            throw new IllegalArgumentException("Malformed type descriptor.");
+        }
+        ++position[0];
+        return TypeToken.getParameterized(rawType, arguments.toArray(new Type[0])).getType();
+    }
+}
@@ -0,0 +1,96 @@
+package com.buggysofts.preferencestore;
+
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * AES-GCM encryption of stored values. An encrypted value is the Base64 form of a format byte, the IV, and the ciphertext (with the tag).
+ * The key of the entry is bound to the value as associated data, so a value can not be moved to another key unnoticed.
+ * <br>
+ * Cipher instances are created once per thread, and only reinitialized for each value.
+ */
+
+final class ValueCipher {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final byte FORMAT = 1;
+    private static final int TAG_BITS = 128;
+
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("AES-GCM is not supported.", e);
+            }
+        }
+    };
+
+    private ValueCipher() {
+    }
+
+    /**
+     * Encrypt the specified value of the specified entry.
+     *
+     * @throws RuntimeException if the encryption fails.
+     */
+    @NonNull
+    static String encrypt(@NonNull SecretKey secretKey,
+                          @NonNull String key,
+                          @NonNull String value) throws RuntimeException {
+        try {
+            Cipher cipher = CIPHERS.get();
+            // let the provider pick a random IV, keystore keys do not accept one from the caller
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            cipher.updateAAD(key.getBytes(UTF_8));
+            byte[] iv = cipher.getIV();
+            byte[] plaintext = value.getBytes(UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocate(2 + iv.length + cipher.getOutputSize(plaintext.length));
+            buffer.put(FORMAT).put((byte) iv.length).put(iv);
+            cipher.doFinal(ByteBuffer.wrap(plaintext), buffer);
+            return Base64.encodeToString(buffer.array(), 0, buffer.position(), Base64.NO_WRAP);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Could not encrypt the value.", e);
+        }
+    }
+
+    /**
+     * Decrypt the specified value of the specified entry.
+     *
+     * @throws RuntimeException if the value is malformed, if it was not encrypted with the specified key for the specified entry, or if it was tampered with.
+     */
+    @NonNull
+    static String decrypt(@NonNull SecretKey secretKey,
+                          @NonNull String key,
+                          @NonNull String encryptedValue) throws RuntimeException {
+        byte[] bytes;
+        try {
+            bytes = Base64.decode(encryptedValue, Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Could not decrypt the value.", e);
+        }
+        if (bytes.length < 2 || bytes[0] != FORMAT || bytes.length < 2 + bytes[1]) {
+            throw new RuntimeException("Could not decrypt the value.");
+        }
+        int ivLength = bytes[1];
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(TAG_BITS, bytes, 2, ivLength));
+            cipher.updateAAD(key.getBytes(UTF_8));
+            byte[] plaintext = cipher.doFinal(bytes, 2 + ivLength, bytes.length - 2 - ivLength);
+            return new String(plaintext, UTF_8);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Could not decrypt the value.", e);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A rule that decides which values a {@link ConstrainedPreference} supports.
+ * Implementations should take constant time and memory, and must not depend on mutable state.
+ */
+
+public interface ValueConstraint<T> {
+    /**
+     * Whether the specified value is supported.
+     */
+    boolean accepts(@NonNull T value);
+}
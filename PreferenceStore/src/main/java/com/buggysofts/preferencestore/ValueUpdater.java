@@ -0,0 +1,19 @@
+package com.buggysofts.preferencestore;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Computes the new value of a preference from its current value, for {@link PreferenceHandler}'s atomic updates.
+ * It may be called while a lock is held, so it should be quick and free of side effects.
+ */
+
+public interface ValueUpdater<T> {
+    /**
+     * Compute the new value.
+     *
+     * @param current Current value of the preference (or its default, if it is not present).
+     * @return the new value. Must not be null.
+     */
+    @NonNull
+    T update(@NonNull T current);
+}
@@ -0,0 +1,97 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Packed encoding of the array preferences.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ArrayPreferenceTest {
+    private static final String STORE = "array_test";
+    private static final ArrayPreference<int[]> INTS = new ArrayPreference<>("pref_key_ints", "Ints.");
+    private static final ArrayPreference<long[]> LONGS = new ArrayPreference<>("pref_key_longs", "Longs.");
+    private static final ArrayPreference<float[]> FLOATS = new ArrayPreference<>("pref_key_floats", "Floats.");
+    private static final ArrayPreference<double[]> DOUBLES = new ArrayPreference<>("pref_key_doubles", "Doubles.");
+    private static final ArrayPreference<byte[]> BYTES = new ArrayPreference<>("pref_key_bytes", "Bytes.");
+
+    @Test
+    public void arrays_roundTripThroughTheStore() {
+        PreferenceHandler handler = createHandler();
+        int[] ints = {0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE};
+        long[] longs = {0, -1, Long.MIN_VALUE, Long.MAX_VALUE};
+        float[] floats = {0, -0.5f, Float.NaN, Float.MAX_VALUE, Float.NEGATIVE_INFINITY};
+        double[] doubles = {0, Math.PI, Double.NaN, Double.MIN_VALUE};
+        byte[] bytes = {0, 1, -1, Byte.MIN_VALUE, Byte.MAX_VALUE};
+        handler.setPreferenceValue(INTS, ints);
+        handler.setPreferenceValue(LONGS, longs);
+        handler.setPreferenceValue(FLOATS, floats);
+        handler.setPreferenceValue(DOUBLES, doubles);
+        handler.setPreferenceValue(BYTES, bytes);
+
+        // read back through another handler, from the stored form
+        PreferenceHandler reader = createHandler();
+        assertArrayEquals(ints, reader.getPreferenceValue(INTS, null));
+        assertArrayEquals(longs, reader.getPreferenceValue(LONGS, null));
+        assertArrayEquals(floats, reader.getPreferenceValue(FLOATS, null), 0);
+        assertArrayEquals(doubles, reader.getPreferenceValue(DOUBLES, null), 0);
+        assertArrayEquals(bytes, reader.getPreferenceValue(BYTES, null));
+
+        // and the empty arrays
+        handler.setPreferenceValue(INTS, new int[0]);
+        assertArrayEquals(new int[0], reader.getPreferenceValue(INTS, null));
+        handler.remove(INTS);
+        assertNull(reader.getPreferenceValue(INTS, null));
+    }
+
+    @Test
+    public void encodedArrays_decodeOnlyAsTheirOwnType() {
+        String ints = PackedArrays.encode(new int[]{1, 2, 3, 4});
+        assertArrayEquals(new int[]{1, 2, 3, 4}, PackedArrays.decodeIntArray(ints));
+        // the same number of bytes as two longs, but another tag
+        try {
+            PackedArrays.decodeLongArray(ints);
+            throw new AssertionError("Decoded an int array as a long array");
+        } catch (ClassCastException e) {
+            // expected
+        }
+        try {
+            PackedArrays.decodeFloatArray(ints);
+            throw new AssertionError("Decoded an int array as a float array");
+        } catch (ClassCastException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void otherStoredStrings_areRejected() {
+        PreferenceHandler handler = createHandler();
+        handler.setPreferenceValue(new UnBoundedPreference<String>(INTS.getKey(), "Plain string."), "plain");
+        handler.getPreferenceValue(INTS, null);
+    }
+
+    @Test(expected = RuntimeException.class)
+    @SuppressWarnings("ConstantConditions")
+    public void nullKeys_areRejected() {
+        new ArrayPreference<int[]>(null, "No key.");
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler() {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), STORE, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // nothing to initialize
+            }
+        };
+    }
+}
@@ -0,0 +1,123 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Atomic updates, within and across the handlers of a store.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AtomicUpdateTest {
+    private static final String STORE = "atomic_test";
+    private static final UnBoundedPreference<Integer> HITS = new UnBoundedPreference<>("pref_key_hits", "Number of hits.");
+
+    @Test
+    public void update_losesNoUpdatesAcrossHandlers() throws InterruptedException {
+        final PreferenceHandler[] handlers = {createHandler(), createHandler()};
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final PreferenceHandler handler = handlers[i % handlers.length];
+            threads[i] = new Thread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 500; j++) {
+                            handler.update(
+                                HITS,
+                                0,
+                                new ValueUpdater<Integer>() {
+                                    @NonNull
+                                    @Override
+                                    public Integer update(@NonNull Integer current) {
+                                        return current + 1;
+                                    }
+                                }
+                            );
+                        }
+                    }
+                }
+            );
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2000, handlers[1].getPreferenceValue(HITS, 0));
+    }
+
+    @Test
+    public void compareAndSet_failsOnUnexpectedValue() {
+        PreferenceHandler handler = createHandler();
+        assertTrue(handler.compareAndSet(HITS, null, 1));
+        assertFalse(handler.compareAndSet(HITS, null, 2));
+        assertTrue(handler.compareAndSet(HITS, 1, 2));
+        assertEquals(2, handler.getPreferenceValue(HITS, 0));
+    }
+
+    @Test(timeout = 10000)
+    public void updates_ofDifferentKeysNeverContend() throws InterruptedException {
+        final PreferenceHandler handler = createHandler();
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(
+            new Runnable() {
+                @Override
+                public void run() {
+                    handler.update(
+                        HITS,
+                        0,
+                        new ValueUpdater<Integer>() {
+                            @NonNull
+                            @Override
+                            public Integer update(@NonNull Integer current) {
+                                locked.countDown();
+                                try {
+                                    release.await();
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                                return current + 1;
+                            }
+                        }
+                    );
+                }
+            }
+        );
+        holder.start();
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+        try {
+            // every other key of the store must be updatable while the lock of the first one is held
+            for (int i = 0; i < 256; i++) {
+                assertTrue(handler.compareAndSet(new UnBoundedPreference<Integer>("pref_key_other_" + i, "Other."), null, i));
+            }
+        } finally {
+            release.countDown();
+        }
+        holder.join();
+        assertEquals(1, handler.getPreferenceValue(HITS, 0));
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler() {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), STORE, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // nothing to initialize
+            }
+        };
+    }
+}
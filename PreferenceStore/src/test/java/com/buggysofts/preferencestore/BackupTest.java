@@ -0,0 +1,190 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Export and import of whole stores.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BackupTest {
+    private static final BoundedPreference<String> THEME =
+        new BoundedPreference<>("pref_key_theme", "Theme.", new String[]{"light", "dark"}, 0);
+    private static final UnBoundedPreference<String> NAME = new UnBoundedPreference<>("pref_key_name", "Name.");
+
+    @Test
+    public void entries_roundTripThroughTheBackup() throws IOException {
+        Set<String> tags = new HashSet<>(Arrays.asList("red", "green"));
+        getStore("backup_test_source").edit()
+            .putString(NAME.getKey(), "alice")
+            .putInt("pref_key_count", 3)
+            .putLong("pref_key_time", Long.MAX_VALUE)
+            .putFloat("pref_key_ratio", 0.5f)
+            .putBoolean("pref_key_flag", true)
+            .putStringSet("pref_key_tags", tags)
+            .putString(PreferenceHandler.INTERNAL_KEY_PREFIX + "private", "internal")
+            .commit();
+        byte[] backup = export(createHandler("backup_test_source"));
+
+        getStore("backup_test_target").edit()
+            .putInt("pref_key_count", 1)
+            .putString("pref_key_other", "kept")
+            .commit();
+        assertEquals(6, createHandler("backup_test_target").importFrom(new ByteArrayInputStream(backup), false));
+        Map<String, ?> imported = getStore("backup_test_target").getAll();
+        assertEquals(7, imported.size());
+        assertEquals("alice", imported.get(NAME.getKey()));
+        assertEquals(3, imported.get("pref_key_count"));
+        assertEquals(Long.MAX_VALUE, imported.get("pref_key_time"));
+        assertEquals(0.5f, imported.get("pref_key_ratio"));
+        assertEquals(true, imported.get("pref_key_flag"));
+        assertEquals(tags, imported.get("pref_key_tags"));
+        assertEquals("kept", imported.get("pref_key_other"));
+    }
+
+    @Test
+    public void valuesOutOfBounds_areSkipped() throws IOException {
+        getStore("backup_test_bounds_source").edit()
+            .putString(THEME.getKey(), "blue")
+            .putString(NAME.getKey(), "alice")
+            .commit();
+        byte[] backup = export(createHandler("backup_test_bounds_source"));
+
+        PreferenceHandler target = new PreferenceHandler(ApplicationProvider.getApplicationContext(), "backup_test_bounds_target", Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                initializePreference(THEME);
+            }
+        };
+        assertEquals(1, target.importFrom(new ByteArrayInputStream(backup), false));
+        assertEquals("light", target.getPreferenceValue(THEME));
+        assertEquals("alice", target.getPreferenceValue(NAME, ""));
+    }
+
+    @Test
+    public void undeclaredKeys_areSkippedIfDeclaredOnly() throws IOException {
+        getStore("backup_test_declared_source").edit()
+            .putString(NAME.getKey(), "alice")
+            .putString("pref_key_item_1", "item")
+            .putString("pref_key_old", "old")
+            .commit();
+        byte[] backup = export(createHandler("backup_test_declared_source"));
+
+        PreferenceHandler target = new PreferenceHandler(ApplicationProvider.getApplicationContext(), "backup_test_declared_target", Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                declarePreference(NAME);
+                allowKeyPrefix("pref_key_item_");
+            }
+        };
+        assertEquals(2, target.importFrom(new ByteArrayInputStream(backup), true));
+        assertTrue(getStore("backup_test_declared_target").contains(NAME.getKey()));
+        assertTrue(getStore("backup_test_declared_target").contains("pref_key_item_1"));
+        assertFalse(getStore("backup_test_declared_target").contains("pref_key_old"));
+    }
+
+    @Test
+    public void olderBackups_areMigrated() throws IOException {
+        getStore("backup_test_migration_source").edit()
+            .putString("pref_key_user", "alice")
+            .commit();
+        byte[] backup = export(createHandler("backup_test_migration_source", new RenameMigration(1)));
+
+        // only the steps above the version of the backup run, on the imported entries
+        PreferenceHandler target = createHandler("backup_test_migration_target", new RenameMigration(1), new PreferenceMigration(2) {
+            @Override
+            public void migrate(@NonNull StagedPreferences preferences) {
+                // the store itself is migrated on construction too, before there is anything to upgrade
+                if (preferences.contains(NAME.getKey())) {
+                    preferences.put(NAME.getKey(), ((String) preferences.get(NAME.getKey())).toUpperCase());
+                }
+            }
+        });
+        assertEquals(1, target.importFrom(new ByteArrayInputStream(backup), false));
+        assertEquals("ALICE", target.getPreferenceValue(NAME, ""));
+        assertEquals(2, target.getSchemaVersion());
+
+        // and newer ones are rejected
+        try {
+            createHandler("backup_test_migration_older").importFrom(new ByteArrayInputStream(backup), false);
+            throw new AssertionError("Imported a backup of a newer schema version");
+        } catch (RuntimeException e) {
+            assertFalse(getStore("backup_test_migration_older").contains(NAME.getKey()));
+        }
+    }
+
+    @Test
+    public void truncatedBackups_writeNothing() throws IOException {
+        getStore("backup_test_truncated_source").edit()
+            .putString(NAME.getKey(), "alice")
+            .putInt("pref_key_count", 3)
+            .commit();
+        byte[] backup = export(createHandler("backup_test_truncated_source"));
+
+        PreferenceHandler target = createHandler("backup_test_truncated_target");
+        try {
+            target.importFrom(new ByteArrayInputStream(Arrays.copyOf(backup, backup.length - 3)), false);
+            throw new AssertionError("Imported a truncated backup");
+        } catch (IOException e) {
+            assertTrue(getStore("backup_test_truncated_target").getAll().isEmpty());
+        }
+    }
+
+    @NonNull
+    private static byte[] export(@NonNull PreferenceHandler handler) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        handler.exportTo(output);
+        return output.toByteArray();
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler(@NonNull String store, @NonNull final PreferenceMigration... migrations) {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), store, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // nothing to initialize
+            }
+
+            @NonNull
+            @Override
+            public PreferenceMigration[] getMigrations() {
+                return migrations;
+            }
+        };
+    }
+
+    @NonNull
+    private static SharedPreferences getStore(@NonNull String store) {
+        return ApplicationProvider.getApplicationContext().getSharedPreferences(store, Context.MODE_PRIVATE);
+    }
+
+    private static class RenameMigration extends PreferenceMigration {
+        private RenameMigration(int targetVersion) {
+            super(targetVersion);
+        }
+
+        @Override
+        public void migrate(@NonNull StagedPreferences preferences) {
+            preferences.rename("pref_key_user", NAME.getKey());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregation and rate limiting of the reports of the blocking detector.
+ */
+public class BlockingDetectorTest {
+    private final BlockingQueue<BlockingReport> reports = new LinkedBlockingQueue<>();
+    private final BlockingDetector.Sink sink = new BlockingDetector.Sink() {
+        @Override
+        public void onReport(@NonNull BlockingReport report) {
+            reports.add(report);
+        }
+    };
+
+    @Test
+    public void slowOperations_areAggregatedPerOperationAndKey() throws InterruptedException {
+        BlockingDetector detector = new BlockingDetector(1, 60000, true, sink);
+        detector.addLatencySensitiveThread(Thread.currentThread());
+
+        // the first one is reported right away, with a stack trace starting at the caller
+        detector.stopTiming(startedAgo(5), BlockingReport.Operation.READ, "pref_key_name");
+        BlockingReport first = reports.poll();
+        assertNotNull(first);
+        assertEquals(1, first.getCount());
+        assertEquals(Thread.currentThread().getName(), first.getThreadName());
+        assertEquals(getClass().getName(), first.getStackTrace()[0].getClassName());
+
+        // the following ones are held until the interval is over
+        detector.stopTiming(startedAgo(5), BlockingReport.Operation.READ, "pref_key_name");
+        detector.stopTiming(startedAgo(20), BlockingReport.Operation.READ, "pref_key_name");
+        detector.stopTiming(startedAgo(5), BlockingReport.Operation.READ, "pref_key_name");
+        // but not the ones of other keys and operations
+        detector.stopTiming(startedAgo(5), BlockingReport.Operation.READ, "pref_key_count");
+        detector.stopTiming(startedAgo(5), BlockingReport.Operation.WRITE, "pref_key_name");
+        assertEquals(2, reports.size());
+        reports.clear();
+
+        detector.flush();
+        BlockingReport aggregated = reports.poll();
+        assertNotNull(aggregated);
+        assertNull(reports.poll());
+        assertEquals(BlockingReport.Operation.READ, aggregated.getOperation());
+        assertEquals("pref_key_name", aggregated.getKey());
+        assertEquals(3, aggregated.getCount());
+        assertTrue(aggregated.getMaxDurationNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(aggregated.getTotalDurationNanos() >= TimeUnit.MILLISECONDS.toNanos(30));
+    }
+
+    @Test
+    public void heldOperations_areReportedOnceTheIntervalIsOver() throws InterruptedException {
+        BlockingDetector detector = new BlockingDetector(1, 100, false, sink);
+        detector.addLatencySensitiveThread(Thread.currentThread());
+        detector.stopTiming(startedAgo(5), BlockingReport.Operation.DECODE, "pref_key_profile");
+        assertNotNull(reports.poll());
+
+        long start = System.nanoTime();
+        detector.stopTiming(startedAgo(5), BlockingReport.Operation.DECODE, "pref_key_profile");
+        detector.stopTiming(startedAgo(5), BlockingReport.Operation.DECODE, "pref_key_profile");
+        assertNull(reports.poll());
+        // without any further slow operation
+        BlockingReport delayed = reports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(delayed);
+        assertEquals(2, delayed.getCount());
+        assertNull(delayed.getStackTrace());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+    }
+
+    @Test
+    public void fastOperationsAndOtherThreads_areNotReported() throws InterruptedException {
+        final BlockingDetector detector = new BlockingDetector(50, 0, false, sink);
+        detector.addLatencySensitiveThread(Thread.currentThread());
+        detector.stopTiming(detector.startTiming(), BlockingReport.Operation.READ, "pref_key_name");
+
+        final long[] startTime = new long[1];
+        Thread other = new Thread(
+            new Runnable() {
+                @Override
+                public void run() {
+                    startTime[0] = detector.startTiming();
+                }
+            }
+        );
+        other.start();
+        other.join();
+        assertEquals(BlockingDetector.NOT_TIMED, startTime[0]);
+
+        detector.removeLatencySensitiveThread(Thread.currentThread());
+        assertEquals(BlockingDetector.NOT_TIMED, detector.startTiming());
+        detector.flush();
+        assertTrue(reports.isEmpty());
+    }
+
+    private static long startedAgo(long millis) {
+        return System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
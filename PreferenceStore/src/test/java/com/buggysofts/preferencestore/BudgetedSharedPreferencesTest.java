@@ -0,0 +1,90 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Values diverted to blobs by the size budget, and the deletion of the unreferenced blobs.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BudgetedSharedPreferencesTest {
+    private static final UnBoundedPreference<String> NOTES =
+        new UnBoundedPreference<>("pref_key_notes", "Long notes.");
+
+    @Test
+    public void blobs_surviveTheConstructionOfOtherHandlers() {
+        // holds the reference to the blob back, so that only the first handler knows of it
+        PreferenceWriteScheduler scheduler = new PreferenceWriteScheduler(1024, 60000);
+        PreferenceHandler writer = createHandler("budget_test_handlers", scheduler);
+        String notes = createNotes();
+        writer.setPreferenceValue(NOTES, notes);
+
+        PreferenceHandler other = createHandler("budget_test_handlers", null);
+        assertEquals(notes, writer.getPreferenceValue(NOTES, (String) null));
+
+        assertTrue(scheduler.flushAll(5000));
+        assertEquals(notes, other.getPreferenceValue(NOTES, (String) null));
+    }
+
+    @Test
+    public void unreferencedBlobs_areDeletedByTheFirstHandler() throws IOException {
+        Context context = ApplicationProvider.getApplicationContext();
+        File blobDirectory = new File(new File(context.getFilesDir(), "preference_store_blobs"), "budget_test_orphans");
+        assertTrue(blobDirectory.mkdirs());
+        // written right before a crash, never referenced
+        File orphan = new File(blobDirectory, "orphan");
+        assertTrue(orphan.createNewFile());
+
+        PreferenceHandler handler = createHandler("budget_test_orphans", null);
+        assertFalse(orphan.exists());
+        handler.setPreferenceValue(NOTES, createNotes());
+        assertEquals(1, blobDirectory.listFiles().length);
+    }
+
+    @NonNull
+    private static String createNotes() {
+        StringBuilder notes = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            notes.append("note ").append(i).append('\n');
+        }
+        return notes.toString();
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler(@NonNull String storeName,
+                                                   @Nullable PreferenceWriteScheduler scheduler) {
+        return new PreferenceHandler(
+            ApplicationProvider.getApplicationContext(),
+            storeName,
+            Context.MODE_PRIVATE,
+            true,
+            scheduler,
+            PreferenceWriteScheduler.Priority.BACKGROUND
+        ) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // nothing to initialize
+            }
+
+            @Nullable
+            @Override
+            public SizeBudget getSizeBudget() {
+                return new SizeBudget(64, 64 * 1024, SizeBudget.Policy.DIVERT_TO_BLOB, null);
+            }
+        };
+    }
+}
@@ -0,0 +1,113 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Identity of the values read from bounded preferences.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CanonicalValueTest {
+    private static final String STORE = "canonical_value_test";
+
+    @Test
+    public void strings_areTheInstancesOfTheValueList() {
+        String[] themes = {"light", "dark"};
+        BoundedPreference<String> theme = new BoundedPreference<>("pref_key_theme", "Theme.", themes, 0);
+        // an equal instance, as decoded from the stored file
+        getStore().edit().putString(theme.getKey(), new String("dark")).commit();
+
+        PreferenceHandler handler = createHandler();
+        assertSame(themes[1], handler.getPreferenceValue(theme));
+        assertSame(themes[1], handler.getPreferenceValue(theme));
+        // and the default
+        handler.remove(theme);
+        assertSame(themes[0], handler.getPreferenceValue(theme));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void stringSets_areTheInstancesOfTheValueList() {
+        Set<String>[] layouts = new Set[]{
+            Collections.singleton("list"),
+            new HashSet<>(Arrays.asList("grid", "large"))
+        };
+        BoundedPreference<Set<String>> layout = new BoundedPreference<>("pref_key_layout", "Layout.", layouts, 0);
+        getStore().edit().putStringSet(layout.getKey(), new HashSet<>(Arrays.asList("large", "grid"))).commit();
+
+        assertSame(layouts[1], createHandler().getPreferenceValue(layout));
+    }
+
+    @Test
+    public void models_areTheInstancesOfTheValueList() {
+        Size[] sizes = {new Size(1, 1), new Size(2, 3)};
+        BoundedPreference<Size> size = new BoundedPreference<>("pref_key_size", "Size.", sizes, 0);
+        PreferenceHandler handler = createHandler();
+        handler.setPreferenceValue(size, new Size(2, 3));
+
+        PreferenceHandler reader = createHandler();
+        assertSame(sizes[1], reader.getPreferenceValue(size, TypeToken.get(Size.class)));
+        assertSame(sizes[1], reader.getPreferenceValue(size, TypeToken.get(Size.class)));
+
+        // the value list has changed since the value was written, so it is decoded
+        Size[] otherSizes = {new Size(1, 1)};
+        BoundedPreference<Size> changed = new BoundedPreference<>("pref_key_size", "Size.", otherSizes, 0);
+        Size decoded = reader.getPreferenceValue(changed, TypeToken.get(Size.class));
+        assertEquals(sizes[1], decoded);
+        assertNotSame(sizes[1], decoded);
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler() {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), STORE, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // nothing to initialize
+            }
+        };
+    }
+
+    @NonNull
+    private static SharedPreferences getStore() {
+        return ApplicationProvider.getApplicationContext().getSharedPreferences(STORE, Context.MODE_PRIVATE);
+    }
+
+    private static class Size implements Serializable {
+        private final int width;
+        private final int height;
+
+        private Size(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Size && ((Size) other).width == width && ((Size) other).height == height;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * width + height;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Sync of two stores through their change logs, with the deltas encoded as they would be sent over the network.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ChangeLogTest {
+    private static final UnBoundedPreference<String> NAME = new UnBoundedPreference<>("pref_key_name", "Name.");
+    private static final UnBoundedPreference<String> STALE = new UnBoundedPreference<>("pref_key_stale", "Stale.");
+    private static final UnBoundedPreference<Integer> COUNT = new UnBoundedPreference<>("pref_key_count", "Count.");
+    private static final UnBoundedPreference<Set<String>> TAGS = new UnBoundedPreference<>("pref_key_tags", "Tags.");
+
+    @Test
+    public void changes_roundTripThroughTheEncodedDelta() throws IOException {
+        PreferenceHandler first = createHandler("sync_test_first_a", "a");
+        PreferenceHandler second = createHandler("sync_test_first_b", "b");
+        first.setPreferenceValue(NAME, "alice");
+        first.setPreferenceValue(COUNT, 3);
+        first.setPreferenceValue(STALE, "stale");
+        second.setPreferenceValue(STALE, "stale");
+        first.remove(STALE);
+
+        PreferenceDelta delta = first.getChangesSince(0, "b");
+        PreferenceDelta received = transfer(delta);
+        assertEquals(delta.getFromSequence(), received.getFromSequence());
+        assertEquals(delta.getToSequence(), received.getToSequence());
+        assertEquals(new HashSet<>(Arrays.asList(NAME.getKey(), COUNT.getKey(), STALE.getKey())), received.getKeys());
+
+        assertEquals(3, second.applyChanges(received));
+        assertEquals("alice", second.getPreferenceValue(NAME, ""));
+        assertEquals(3, second.getPreferenceValue(COUNT, 0));
+        // the removal, newer than the local write
+        assertFalse(second.getSharedPreferences().contains(STALE.getKey()));
+
+        // nothing new for the first store, its own changes are not echoed back
+        assertEquals(0, second.getChangesSince(0, "a").size());
+        // but sent on to the others
+        assertEquals(3, second.getChangesSince(0, "c").size());
+        // already applied
+        long sequence = second.getChangeLogSequence();
+        assertEquals(0, second.applyChanges(transfer(delta)));
+        assertEquals(sequence, second.getChangeLogSequence());
+        // nothing changed since the last delta
+        assertEquals(0, first.getChangesSince(delta.getToSequence(), "b").size());
+    }
+
+    @Test
+    public void concurrentChanges_lastWriterWins() throws IOException {
+        PreferenceHandler first = createHandler("sync_test_concurrent_a", "a");
+        PreferenceHandler second = createHandler("sync_test_concurrent_b", "b");
+        // the same clock value, the tie goes to the greater device id
+        first.setPreferenceValue(NAME, "alice");
+        second.setPreferenceValue(NAME, "bob");
+        PreferenceDelta fromFirst = transfer(first.getChangesSince(0, "b"));
+        PreferenceDelta fromSecond = transfer(second.getChangesSince(0, "a"));
+        assertEquals(0, second.applyChanges(fromFirst));
+        assertEquals(1, first.applyChanges(fromSecond));
+        assertEquals("bob", first.getPreferenceValue(NAME, ""));
+        assertEquals("bob", second.getPreferenceValue(NAME, ""));
+
+        // a later change, having seen the other one
+        long sequence = first.getChangeLogSequence();
+        first.setPreferenceValue(NAME, "carol");
+        assertEquals(1, second.applyChanges(transfer(first.getChangesSince(sequence, "b"))));
+        assertEquals("carol", second.getPreferenceValue(NAME, ""));
+    }
+
+    @Test
+    public void mergedValues_areVersionedAsLocalChanges() throws IOException {
+        PreferenceHandler first = createHandler("sync_test_merge_a", "a");
+        PreferenceHandler second = createHandler("sync_test_merge_b", "b");
+        second.setMergeRule(
+            TAGS.getKey(),
+            new PreferenceMergeRule() {
+                @Nullable
+                @Override
+                @SuppressWarnings("unchecked")
+                public Object merge(@NonNull String key, @Nullable Object local, @Nullable Object remote) {
+                    Set<String> union = new HashSet<>();
+                    if (local != null) {
+                        union.addAll((Set<String>) local);
+                    }
+                    if (remote != null) {
+                        union.addAll((Set<String>) remote);
+                    }
+                    return union;
+                }
+            }
+        );
+        first.setPreferenceValue(TAGS, new HashSet<>(Arrays.asList("red", "green")));
+        second.setPreferenceValue(TAGS, new HashSet<>(Arrays.asList("blue")));
+
+        long sequence = second.getChangeLogSequence();
+        PreferenceDelta fromFirst = transfer(first.getChangesSince(0, "b"));
+        assertEquals(1, second.applyChanges(fromFirst));
+        Set<String> union = new HashSet<>(Arrays.asList("red", "green", "blue"));
+        assertEquals(union, second.getPreferenceValue(TAGS, (Set<String>) null));
+
+        // neither value, so it goes back to the first store as a change of the second one, and wins there
+        PreferenceDelta merged = second.getChangesSince(sequence, "a");
+        assertEquals(1, merged.size());
+        assertEquals(1, first.applyChanges(transfer(merged)));
+        assertEquals(union, first.getPreferenceValue(TAGS, (Set<String>) null));
+
+        // merging the same delta again changes nothing
+        assertEquals(0, second.applyChanges(fromFirst));
+        assertEquals(0, second.getChangesSince(second.getChangeLogSequence(), "a").size());
+    }
+
+    @Test
+    public void redeliveredAndOlderChanges_areNotMergedAgain() throws IOException {
+        PreferenceHandler first = createHandler("sync_test_redelivery_a", "a");
+        PreferenceHandler second = createHandler("sync_test_redelivery_b", "b");
+        // not idempotent, so every extra merge would show
+        second.setMergeRule(
+            COUNT.getKey(),
+            new PreferenceMergeRule() {
+                @Nullable
+                @Override
+                public Object merge(@NonNull String key, @Nullable Object local, @Nullable Object remote) {
+                    return (local != null ? (Integer) local : 0) + (remote != null ? (Integer) remote : 0);
+                }
+            }
+        );
+        second.setPreferenceValue(COUNT, 100);
+        first.setPreferenceValue(COUNT, 1);
+        PreferenceDelta older = transfer(first.getChangesSince(0, "b"));
+        long sequence = first.getChangeLogSequence();
+        first.setPreferenceValue(COUNT, 2);
+        PreferenceDelta newer = transfer(first.getChangesSince(sequence, "b"));
+
+        assertEquals(1, second.applyChanges(newer));
+        assertEquals(102, second.getPreferenceValue(COUNT, 0));
+        // delivered again, and an older change of the same device
+        assertEquals(0, second.applyChanges(transfer(newer)));
+        assertEquals(0, second.applyChanges(older));
+        assertEquals(102, second.getPreferenceValue(COUNT, 0));
+    }
+
+    @Test
+    public void losingChanges_writeNothing() throws IOException {
+        PreferenceHandler first = createHandler("sync_test_losing_a", "a");
+        PreferenceHandler second = createHandler("sync_test_losing_b", "b");
+        second.setMergeRule(
+            COUNT.getKey(),
+            new PreferenceMergeRule() {
+                @Nullable
+                @Override
+                public Object merge(@NonNull String key, @Nullable Object local, @Nullable Object remote) {
+                    return local == null ? remote : remote == null ? local : Math.max((Integer) local, (Integer) remote);
+                }
+            }
+        );
+        second.setPreferenceValue(COUNT, 100);
+        for (int i = 1; i <= 3; i++) {
+            first.setPreferenceValue(COUNT, i);
+        }
+
+        long clock = second.getSharedPreferences().getLong(ChangeLog.CLOCK_KEY, 0);
+        long sequence = second.getChangeLogSequence();
+        assertEquals(0, second.applyChanges(transfer(first.getChangesSince(0, "b"))));
+        assertEquals(100, second.getPreferenceValue(COUNT, 0));
+        assertEquals(clock, second.getSharedPreferences().getLong(ChangeLog.CLOCK_KEY, 0));
+        assertEquals(sequence, second.getChangeLogSequence());
+
+        // the seen clock still orders the next local change after the remote ones
+        second.setPreferenceValue(COUNT, 200);
+        second.setMergeRule(COUNT.getKey(), null);
+        assertEquals(0, second.applyChanges(transfer(first.getChangesSince(0, "b"))));
+        assertEquals(1, first.applyChanges(transfer(second.getChangesSince(sequence, "a"))));
+        assertEquals(200, first.getPreferenceValue(COUNT, 0));
+    }
+
+    @NonNull
+    private static PreferenceDelta transfer(@NonNull PreferenceDelta delta) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        delta.writeTo(output);
+        PreferenceDelta received = PreferenceDelta.readFrom(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(delta.size(), received.size());
+        assertTrue(received.getKeys().containsAll(delta.getKeys()));
+        return received;
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler(@NonNull String storeName, @NonNull final String deviceId) {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), storeName, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // nothing to initialize
+            }
+
+            @Nullable
+            @Override
+            public String getChangeLogDeviceId() {
+                return deviceId;
+            }
+        };
+    }
+}
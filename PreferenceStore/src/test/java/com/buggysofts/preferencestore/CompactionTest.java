@@ -0,0 +1,79 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Compaction of the orphaned entries, and the keys it keeps.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CompactionTest {
+    private static final String STORE = "compaction_test";
+    private static final BoundedPreference<String> THEME =
+        new BoundedPreference<>("pref_key_theme", "Theme.", new String[]{"light", "dark"}, 0);
+    private static final UnBoundedPreference<String> NAME = new UnBoundedPreference<>("pref_key_name", "Name.");
+
+    @Test
+    public void orphanedEntries_areRemovedLargestFirst() {
+        getStore().edit()
+            .putString(NAME.getKey(), "alice")
+            .putString("pref_key_item_1", "first item")
+            .putInt(PreferenceHandler.SCHEMA_VERSION_KEY, 1)
+            .putString("pref_key_old_small", "x")
+            .putString("pref_key_old_large", "a much longer value than the other one")
+            .putString("pref_key_old_medium", "medium value")
+            .commit();
+
+        PreferenceHandler handler = new PreferenceHandler(ApplicationProvider.getApplicationContext(), STORE, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                initializePreference(THEME);
+                declarePreference(NAME);
+                allowKeyPrefix("pref_key_item_");
+            }
+        };
+
+        Map<String, Integer> orphans = handler.findOrphanedPreferences();
+        assertEquals(
+            Arrays.asList("pref_key_old_large", "pref_key_old_medium", "pref_key_old_small"),
+            new ArrayList<>(orphans.keySet())
+        );
+        // nothing removed yet
+        assertTrue(getStore().contains("pref_key_old_large"));
+
+        assertEquals(orphans, handler.compact());
+        Map<String, ?> remaining = getStore().getAll();
+        assertEquals(4, remaining.size());
+        // initialized, declared, allowed and internal keys
+        assertEquals("light", remaining.get(THEME.getKey()));
+        assertEquals("alice", remaining.get(NAME.getKey()));
+        assertEquals("first item", remaining.get("pref_key_item_1"));
+        assertEquals(1, remaining.get(PreferenceHandler.SCHEMA_VERSION_KEY));
+
+        // later keys of an allowed prefix too
+        handler.setPreferenceValue(new UnBoundedPreference<String>("pref_key_item_2", "Item."), "second item");
+        assertTrue(handler.compact().isEmpty());
+        assertFalse(getStore().contains("pref_key_old_small"));
+        assertTrue(getStore().contains("pref_key_item_2"));
+    }
+
+    @NonNull
+    private static SharedPreferences getStore() {
+        return ApplicationProvider.getApplicationContext().getSharedPreferences(STORE, Context.MODE_PRIVATE);
+    }
+}
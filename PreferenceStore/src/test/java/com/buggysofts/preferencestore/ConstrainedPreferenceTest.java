@@ -0,0 +1,75 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Constraints of the constrained preferences.
+ */
+public class ConstrainedPreferenceTest {
+    @Test
+    public void longRange_acceptsStepsOfRangesWiderThanLongMax() {
+        ConstrainedPreference<Long> preference = ConstrainedPreference.longRange(
+            "pref_key_offset",
+            "Offset.",
+            Long.MIN_VALUE,
+            Long.MAX_VALUE,
+            3,
+            Long.MIN_VALUE
+        );
+        // MAX - MIN is 2^64 - 1, a multiple of 3
+        assertTrue(preference.accepts(Long.MIN_VALUE));
+        assertTrue(preference.accepts(Long.MAX_VALUE));
+        assertTrue(preference.accepts(Long.MAX_VALUE - 3));
+        assertFalse(preference.accepts(Long.MAX_VALUE - 1));
+        assertFalse(preference.accepts(Long.MIN_VALUE + 1));
+
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            long value = random.nextLong();
+            assertEquals(
+                Long.remainderUnsigned(value - Long.MIN_VALUE, 3) == 0,
+                preference.accepts(value)
+            );
+        }
+    }
+
+    @Test
+    public void longRange_acceptsHugeSteps() {
+        long step = Long.MAX_VALUE - 7;
+        ConstrainedPreference<Long> preference = ConstrainedPreference.longRange(
+            "pref_key_offset",
+            "Offset.",
+            Long.MIN_VALUE,
+            Long.MAX_VALUE,
+            step,
+            Long.MIN_VALUE
+        );
+        assertTrue(preference.accepts(Long.MIN_VALUE + step));
+        assertTrue(preference.accepts(Long.MIN_VALUE + step + step));
+        assertFalse(preference.accepts(Long.MIN_VALUE + step + step + 1));
+        assertFalse(preference.accepts(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void intRange_rejectsValuesOutOfRangeOrStep() {
+        ConstrainedPreference<Integer> preference = ConstrainedPreference.intRange(
+            "pref_key_volume",
+            "Volume.",
+            0,
+            100,
+            5,
+            50
+        );
+        assertTrue(preference.accepts(0));
+        assertTrue(preference.accepts(100));
+        assertFalse(preference.accepts(101));
+        assertFalse(preference.accepts(-5));
+        assertFalse(preference.accepts(7));
+    }
+}
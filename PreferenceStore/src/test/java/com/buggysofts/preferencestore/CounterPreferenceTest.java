@@ -0,0 +1,176 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Batched persistence of the counter preferences.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CounterPreferenceTest {
+    private static final String STORE = "counter_test";
+    private static final CounterPreference LAUNCHES =
+        new CounterPreference("pref_key_launches", "Number of launches.", 0, 0);
+    private static final CounterPreference EVENTS =
+        new CounterPreference("pref_key_events", "Number of events.", 100, 0);
+
+    @Test
+    public void increments_arePersistedOnFlushAndRelease() {
+        PreferenceHandler handler = createHandler();
+        for (int i = 0; i < 10; i++) {
+            handler.increment(LAUNCHES);
+        }
+        assertEquals(10, handler.getPreferenceValue(LAUNCHES));
+        assertEquals(0, getStore().getLong(LAUNCHES.getKey(), 0));
+
+        handler.flushCounters();
+        assertEquals(10, getStore().getLong(LAUNCHES.getKey(), 0));
+
+        handler.add(LAUNCHES, 5);
+        handler.release();
+        assertEquals(15, getStore().getLong(LAUNCHES.getKey(), 0));
+
+        // a new handler continues from the persisted value
+        PreferenceHandler reopened = createHandler();
+        reopened.increment(LAUNCHES);
+        assertEquals(16, reopened.getPreferenceValue(LAUNCHES));
+        reopened.release();
+    }
+
+    @Test
+    public void threshold_countsTheIncrementsOfAllThreads() throws InterruptedException {
+        final PreferenceHandler handler = createHandler();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        // below the threshold on each thread, above it in total
+                        for (int j = 0; j < 30; j++) {
+                            handler.increment(EVENTS);
+                        }
+                    }
+                }
+            );
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (getStore().getLong(EVENTS.getKey(), 0) < 100 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(getStore().getLong(EVENTS.getKey(), 0) >= 100);
+        assertEquals(120, handler.getPreferenceValue(EVENTS));
+        handler.release();
+    }
+
+    @Test
+    public void persistedValue_neverDecreases() throws InterruptedException {
+        final PreferenceHandler handler = createHandler();
+        final long[] lastSeen = new long[1];
+        final boolean[] decreased = new boolean[1];
+        SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                if (EVENTS.getKey().equals(key)) {
+                    synchronized (lastSeen) {
+                        long value = sharedPreferences.getLong(key, 0);
+                        decreased[0] |= value < lastSeen[0];
+                        lastSeen[0] = value;
+                    }
+                }
+            }
+        };
+        getStore().registerOnSharedPreferenceChangeListener(listener);
+
+        Thread flusher = new Thread(
+            new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200; i++) {
+                        handler.flushCounters();
+                    }
+                }
+            }
+        );
+        flusher.start();
+        for (int i = 0; i < 2000; i++) {
+            handler.increment(EVENTS);
+        }
+        flusher.join();
+        handler.release();
+        getStore().unregisterOnSharedPreferenceChangeListener(listener);
+
+        assertEquals(2000, getStore().getLong(EVENTS.getKey(), 0));
+        assertFalse(decreased[0]);
+    }
+
+    @Test
+    public void handlersOfTheSameStore_keepEachOthersIncrements() throws InterruptedException {
+        final PreferenceHandler first = createHandler();
+        final PreferenceHandler second = createHandler();
+        first.add(LAUNCHES, 10);
+        second.add(LAUNCHES, 5);
+        first.flushCounters();
+        second.flushCounters();
+        assertEquals(15, getStore().getLong(LAUNCHES.getKey(), 0));
+        assertEquals(15, first.getPreferenceValue(LAUNCHES));
+
+        // persisting concurrently, each with its own increments pending
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final PreferenceHandler handler = i == 0 ? first : second;
+            threads[i] = new Thread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 500; j++) {
+                            handler.increment(LAUNCHES);
+                            if (j % 10 == 0) {
+                                handler.flushCounters();
+                            }
+                        }
+                    }
+                }
+            );
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        first.release();
+        second.release();
+        assertEquals(1015, getStore().getLong(LAUNCHES.getKey(), 0));
+        assertEquals(1015, createHandler().getPreferenceValue(LAUNCHES));
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler() {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), STORE, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // counters need no initialization
+            }
+        };
+    }
+
+    @NonNull
+    private static SharedPreferences getStore() {
+        return ApplicationProvider.getApplicationContext().getSharedPreferences(STORE, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,136 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Expiry of the expiring preferences, and the expiry sweeper.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExpiringPreferenceTest {
+    private static final ExpiringPreference<String> TOKEN =
+        new ExpiringPreference<>("pref_key_token", "Session token.", 60000);
+    private static final ExpiringPreference<String> CODE =
+        new ExpiringPreference<>("pref_key_code", "One time code.", 60000);
+
+    private PreferenceHandler handler;
+
+    @Before
+    public void setUp() {
+        handler = new PreferenceHandler(ApplicationProvider.getApplicationContext(), "expiring_test", Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                initializePreference(TOKEN);
+                initializePreference(CODE);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        handler.release();
+    }
+
+    @Test
+    public void value_isReadUntilItExpires() throws InterruptedException {
+        handler.setPreferenceValue(TOKEN, "fresh");
+        assertEquals("fresh", handler.getPreferenceValue(TOKEN, new TypeToken<String>() {}, "none"));
+        assertTrue(handler.contains(TOKEN));
+
+        handler.setPreferenceValue(TOKEN, "short lived", 1);
+        waitUntilExpired(TOKEN);
+        assertNull(handler.getPreferenceValue(TOKEN, new TypeToken<String>() {}, null));
+        assertFalse(handler.contains(TOKEN));
+    }
+
+    @Test
+    public void computedDefault_isBuiltOnceAndOnlyForExpiredValues() throws InterruptedException {
+        final AtomicInteger builds = new AtomicInteger();
+        DefaultSupplier<String> supplier = new DefaultSupplier<String>() {
+            @NonNull
+            @Override
+            public String get() {
+                return "computed " + builds.incrementAndGet();
+            }
+        };
+
+        handler.setPreferenceValue(TOKEN, "fresh");
+        assertEquals("fresh", handler.getPreferenceValueOrCompute(TOKEN, new TypeToken<String>() {}, supplier));
+        assertEquals(0, builds.get());
+
+        handler.setPreferenceValue(TOKEN, "short lived", 1);
+        waitUntilExpired(TOKEN);
+        assertEquals("computed 1", handler.getPreferenceValueOrCompute(TOKEN, new TypeToken<String>() {}, supplier));
+        assertEquals("computed 1", handler.getPreferenceValueOrCompute(TOKEN, new TypeToken<String>() {}, supplier));
+        assertEquals(1, builds.get());
+    }
+
+    @Test
+    public void sweep_removesOnlyExpiredValues() throws InterruptedException {
+        handler.setPreferenceValue(TOKEN, "short lived", 1);
+        handler.setPreferenceValue(CODE, "long lived");
+        waitUntilExpired(TOKEN);
+
+        assertEquals(1, handler.sweepExpiredPreferences());
+        assertEquals(0, handler.getExpiryTime(TOKEN));
+        assertEquals("long lived", handler.getPreferenceValue(CODE, new TypeToken<String>() {}, "none"));
+        assertEquals(0, handler.sweepExpiredPreferences());
+    }
+
+    @Test
+    public void sweep_neverRemovesAValueSetConcurrently() throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            handler.setPreferenceValue(TOKEN, "expired", 1);
+            waitUntilExpired(TOKEN);
+
+            Thread sweeper = new Thread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        handler.sweepExpiredPreferences();
+                    }
+                }
+            );
+            sweeper.start();
+            handler.setPreferenceValue(TOKEN, "fresh " + i);
+            sweeper.join();
+
+            assertEquals("fresh " + i, handler.getPreferenceValue(TOKEN, new TypeToken<String>() {}, "none"));
+        }
+    }
+
+    @Test
+    public void sweep_isDisabledWithoutEditor() {
+        PreferenceHandler reader = new PreferenceHandler(ApplicationProvider.getApplicationContext(), "expiring_test", Context.MODE_PRIVATE, false) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                initializePreference(TOKEN);
+            }
+        };
+        assertEquals(0, reader.sweepExpiredPreferences());
+        assertEquals("none", reader.getPreferenceValue(TOKEN, new TypeToken<String>() {}, "none"));
+    }
+
+    private void waitUntilExpired(@NonNull ExpiringPreference<?> preference) throws InterruptedException {
+        while (handler.getExpiryTime(preference) >= System.currentTimeMillis()) {
+            Thread.sleep(1);
+        }
+    }
+}
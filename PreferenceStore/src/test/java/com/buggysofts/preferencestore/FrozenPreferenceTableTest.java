@@ -0,0 +1,99 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compilation of preference values into a frozen table, and their lookup.
+ */
+public class FrozenPreferenceTableTest {
+    @Test
+    public void everyKey_getsASlotOfItsOwn() {
+        List<String> keys = new ArrayList<>();
+        Map<String, Object> snapshot = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            String key = "pref_key_" + i;
+            keys.add(key);
+            snapshot.put(key, i);
+        }
+        Set<String> tags = new HashSet<>(Arrays.asList("red", "green"));
+        keys.addAll(Arrays.asList("pref_key_flag", "pref_key_time", "pref_key_ratio", "pref_key_name", "pref_key_tags"));
+        snapshot.put("pref_key_flag", true);
+        snapshot.put("pref_key_time", 42L);
+        snapshot.put("pref_key_ratio", 0.5f);
+        snapshot.put("pref_key_name", "name");
+        snapshot.put("pref_key_tags", tags);
+
+        FrozenPreferenceTable table = FrozenPreferenceTable.build(keys, snapshot);
+        Set<Integer> slots = new HashSet<>();
+        for (String key : keys) {
+            int slot = table.slotOf(key);
+            assertTrue(slot >= 0);
+            assertTrue(slots.add(slot));
+            assertTrue(table.contains(slot));
+        }
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, table.getInt(table.slotOf("pref_key_" + i), -1));
+        }
+        assertTrue(table.getBoolean(table.slotOf("pref_key_flag"), false));
+        assertEquals(42L, table.getLong(table.slotOf("pref_key_time"), 0));
+        assertEquals(0.5f, table.getFloat(table.slotOf("pref_key_ratio"), 0), 0);
+        assertEquals("name", table.getString(table.slotOf("pref_key_name"), null));
+        assertEquals(tags, table.getStringSet(table.slotOf("pref_key_tags"), null));
+    }
+
+    @Test
+    public void missingKeys_areAbsentOrNotFound() {
+        FrozenPreferenceTable table = FrozenPreferenceTable.build(
+            Arrays.asList("pref_key_name", "pref_key_count"),
+            Collections.singletonMap("pref_key_name", "name")
+        );
+        // declared, but not in the store
+        int slot = table.slotOf("pref_key_count");
+        assertTrue(slot >= 0);
+        assertFalse(table.contains(slot));
+        assertEquals(7, table.getInt(slot, 7));
+        // not declared
+        assertEquals(-1, table.slotOf("pref_key_other"));
+        assertEquals(-1, FrozenPreferenceTable.build(Collections.<String>emptyList(), new HashMap<String, Object>()).slotOf("pref_key_name"));
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void valuesOfAnotherType_areRejected() {
+        FrozenPreferenceTable table = FrozenPreferenceTable.build(
+            Collections.singletonList("pref_key_name"),
+            Collections.singletonMap("pref_key_name", "name")
+        );
+        table.getInt(table.slotOf("pref_key_name"), 0);
+    }
+
+    @Test
+    public void keysOfEqualHashCodes_areLeftOut() {
+        // "Aa" and "BB" share their hash code
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("Aa", 1);
+        snapshot.put("BB", 2);
+        FrozenPreferenceTable table = FrozenPreferenceTable.build(Arrays.asList("Aa", "BB", "pref_key_name"), snapshot);
+
+        int kept = table.slotOf("Aa");
+        assertTrue(kept >= 0);
+        assertEquals(1, table.getInt(kept, 0));
+        // left for the underlying store
+        assertEquals(-1, table.slotOf("BB"));
+        assertNotEquals(-1, table.slotOf("pref_key_name"));
+    }
+}
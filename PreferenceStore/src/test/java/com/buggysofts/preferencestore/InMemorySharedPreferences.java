@@ -0,0 +1,201 @@
+package com.buggysofts.preferencestore;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-memory store for the unit tests, which behaves like the platform store, except that listeners are notified synchronously
+ * on the writing thread. Commits can be made to fail, as failed disk writes do.
+ */
+class InMemorySharedPreferences implements SharedPreferences {
+    private final Map<String, Object> values = new HashMap<>();
+    private final List<OnSharedPreferenceChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean failCommits;
+    private volatile int commitCount;
+
+    /**
+     * Make the following commits report a failed disk write. The changes are still taken in memory, like the platform store does.
+     */
+    void setFailCommits(boolean failCommits) {
+        this.failCommits = failCommits;
+    }
+
+    /**
+     * Get the number of commits (failed or not) so far.
+     */
+    int getCommitCount() {
+        return commitCount;
+    }
+
+    @Override
+    @NonNull
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(values);
+    }
+
+    @Override
+    @Nullable
+    public synchronized String getString(String key, @Nullable String defValue) {
+        return values.containsKey(key) ? (String) values.get(key) : defValue;
+    }
+
+    @Override
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public synchronized Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        return values.containsKey(key) ? (Set<String>) values.get(key) : defValues;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        return values.containsKey(key) ? (Integer) values.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        return values.containsKey(key) ? (Long) values.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(String key, float defValue) {
+        return values.containsKey(key) ? (Float) values.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        return values.containsKey(key) ? (Boolean) values.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    @NonNull
+    public Editor edit() {
+        return new InMemoryEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private final class InMemoryEditor implements Editor {
+        // marks a removal
+        private final Object removed = new Object();
+        private final Map<String, Object> changes = new HashMap<>();
+        private boolean clear;
+
+        @Override
+        @NonNull
+        public synchronized Editor putString(String key, @Nullable String value) {
+            changes.put(key, value != null ? value : removed);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putStringSet(String key, @Nullable Set<String> values) {
+            changes.put(key, values != null ? new HashSet<>(values) : removed);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putLong(String key, long value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putFloat(String key, float value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor remove(String key) {
+            changes.put(key, removed);
+            return this;
+        }
+
+        @Override
+        @NonNull
+        public synchronized Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            apply();
+            ++commitCount;
+            return !failCommits;
+        }
+
+        @Override
+        public void apply() {
+            List<String> changedKeys = new ArrayList<>();
+            synchronized (this) {
+                synchronized (InMemorySharedPreferences.this) {
+                    if (clear) {
+                        values.clear();
+                        clear = false;
+                    }
+                    // like the platform store, only the keys whose values actually change are notified
+                    for (Map.Entry<String, Object> change : changes.entrySet()) {
+                        String key = change.getKey();
+                        if (change.getValue() == removed) {
+                            if (values.remove(key) != null) {
+                                changedKeys.add(key);
+                            }
+                        } else if (!change.getValue().equals(values.put(key, change.getValue()))) {
+                            changedKeys.add(key);
+                        }
+                    }
+                    changes.clear();
+                }
+            }
+            for (String key : changedKeys) {
+                for (OnSharedPreferenceChangeListener listener : listeners) {
+                    listener.onSharedPreferenceChanged(InMemorySharedPreferences.this, key);
+                }
+            }
+        }
+    }
+}
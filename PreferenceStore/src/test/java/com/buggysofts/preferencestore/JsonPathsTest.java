@@ -0,0 +1,100 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.gson.JsonNull;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Streaming reads and patches of single fields of stored models.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class JsonPathsTest {
+    private static final String STORE = "json_paths_test";
+    private static final String DOCUMENT =
+        "{\"name\":\"alice\",\"settings\":{\"theme\":{\"primary\":\"red\"},\"sizes\":[1,2,3]},\"precise\":0.10000000000000000001}";
+
+    @Test
+    public void fields_areReadByTheirPaths() throws IOException {
+        assertEquals("alice", JsonPaths.readField(DOCUMENT, "name", String.class));
+        assertEquals("red", JsonPaths.readField(DOCUMENT, "settings.theme.primary", String.class));
+        assertEquals(Integer.valueOf(2), JsonPaths.readField(DOCUMENT, "settings.sizes.1", Integer.class));
+        // missing members and indices, and paths through leaves
+        assertNull(JsonPaths.readField(DOCUMENT, "settings.theme.secondary", String.class));
+        assertNull(JsonPaths.readField(DOCUMENT, "settings.sizes.3", Integer.class));
+        assertNull(JsonPaths.readField(DOCUMENT, "settings.sizes.first", Integer.class));
+        assertNull(JsonPaths.readField(DOCUMENT, "name.first", String.class));
+    }
+
+    @Test
+    public void existingFields_arePatchedInPlace() throws IOException {
+        String patched = JsonPaths.patchField(DOCUMENT, "settings.theme.primary", new JsonPrimitive("blue"));
+        assertEquals(DOCUMENT.replace("\"red\"", "\"blue\""), patched);
+        patched = JsonPaths.patchField(patched, "settings.sizes.0", new JsonPrimitive(7));
+        assertEquals(DOCUMENT.replace("\"red\"", "\"blue\"").replace("[1,", "[7,"), patched);
+    }
+
+    @Test
+    public void missingLeaves_areAppendedToTheirParents() throws IOException {
+        String patched = JsonPaths.patchField(DOCUMENT, "settings.theme.secondary", new JsonPrimitive("green"));
+        assertEquals(DOCUMENT.replace("\"red\"}", "\"red\",\"secondary\":\"green\"}"), patched);
+        assertEquals("green", JsonPaths.readField(patched, "settings.theme.secondary", String.class));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void missingParents_areRejected() throws IOException {
+        JsonPaths.patchField(DOCUMENT, "settings.layout.columns", new JsonPrimitive(2));
+    }
+
+    @Test
+    public void nullValues_removeTheirFields() throws IOException {
+        String patched = JsonPaths.patchField(DOCUMENT, "name", JsonNull.INSTANCE);
+        assertEquals(DOCUMENT.replace("\"name\":\"alice\",", ""), patched);
+        assertNull(JsonPaths.readField(patched, "name", String.class));
+        // and a missing one is not added
+        assertEquals(DOCUMENT, JsonPaths.patchField(DOCUMENT, "settings.theme.secondary", JsonNull.INSTANCE));
+    }
+
+    @Test
+    public void storedModels_arePatchedThroughTheHandler() {
+        PreferenceHandler handler = new PreferenceHandler(ApplicationProvider.getApplicationContext(), STORE, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // nothing to initialize
+            }
+        };
+        UnBoundedPreference<Profile> profile = new UnBoundedPreference<>("pref_key_profile", "Profile.");
+        handler.setPreferenceValue(profile, new Profile("alice", 30));
+
+        assertEquals("alice", handler.getField(profile, "name", String.class));
+        handler.patchField(profile, "age", 31);
+        handler.patchField(profile, "name", null);
+        Profile patched = handler.getPreferenceValue(profile, TypeToken.get(Profile.class));
+        assertNull(patched.name);
+        assertEquals(31, patched.age);
+    }
+
+    private static class Profile implements Serializable {
+        private final String name;
+        private final int age;
+
+        private Profile(String name, int age) {
+            this.name = name;
+            this.age = age;
+        }
+    }
+}
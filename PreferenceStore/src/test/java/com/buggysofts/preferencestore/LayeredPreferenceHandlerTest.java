@@ -0,0 +1,93 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Resolution of the layered reads, and the precedence of the defaults.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LayeredPreferenceHandlerTest {
+    private static final BoundedPreference<Integer> VOLUME =
+        new BoundedPreference<>("pref_key_volume", "Volume.", new Integer[]{10, 20, 30}, 1);
+    private static final BoundedPreference<String> THEME =
+        new BoundedPreference<>("pref_key_theme", "Theme.", new String[]{"light", "dark"}, 0);
+    private static final UnBoundedPreference<Long> SEEN =
+        new UnBoundedPreference<>("pref_key_seen", "Last seen.");
+
+    private PreferenceHandler user;
+    private PreferenceHandler remote;
+    private LayeredPreferenceHandler layered;
+
+    @Before
+    public void setUp() {
+        user = createHandler("layered_test_user");
+        remote = createHandler("layered_test_remote");
+        layered = new LayeredPreferenceHandler(user, remote);
+        layered.declareDefaults(VOLUME, THEME);
+    }
+
+    @After
+    public void tearDown() {
+        layered.release();
+    }
+
+    @Test
+    public void defaultOverride_winsOverTheDeclaredDefault() {
+        assertEquals(20, layered.getPreferenceValue(VOLUME));
+        assertEquals(30, layered.getPreferenceValue(VOLUME, 30));
+        assertEquals("dark", layered.getPreferenceValue(THEME, "dark"));
+        assertTrue(layered.contains(VOLUME));
+
+        // a value in any layer wins over both
+        remote.setPreferenceValue(VOLUME, 10);
+        assertEquals(10, layered.getPreferenceValue(VOLUME, 30));
+    }
+
+    @Test
+    public void reads_resolveTheTopmostLayer() {
+        remote.setPreferenceValue(THEME, "dark");
+        assertEquals("dark", layered.getPreferenceValue(THEME));
+
+        layered.setPreferenceValue(THEME, "light");
+        assertEquals("light", layered.getPreferenceValue(THEME));
+
+        // revealing the layer below
+        layered.remove(THEME);
+        assertEquals("dark", layered.getPreferenceValue(THEME));
+    }
+
+    @Test
+    public void undeclaredKeys_areFollowed() {
+        assertFalse(layered.contains(SEEN));
+        remote.setPreferenceValue(SEEN, 42L);
+        assertEquals(42L, layered.getPreferenceValue(SEEN, 0L));
+
+        layered.setPreferenceValue(SEEN, 43L);
+        assertEquals(43L, layered.getPreferenceValue(SEEN, 0L));
+        layered.remove(SEEN);
+        assertEquals(42L, layered.getPreferenceValue(SEEN, 0L));
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler(@NonNull String storeName) {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), storeName, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // the declared defaults are the bottom layer
+            }
+        };
+    }
+}
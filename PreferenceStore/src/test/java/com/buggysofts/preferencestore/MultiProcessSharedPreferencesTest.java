@@ -0,0 +1,235 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes of several processes to the same store, and recovery from torn or corrupted files.
+ */
+public class MultiProcessSharedPreferencesTest {
+    private static final int WRITES = 300;
+    private static final int KEYS = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 120000)
+    public void processes_seeEachOthersWrites() throws Exception {
+        File path = new File(folder.getRoot(), "shared.mps");
+        SharedPreferences store = MultiProcessSharedPreferences.open(path);
+
+        List<Process> writers = new ArrayList<>();
+        for (String name : new String[]{"first", "second"}) {
+            writers.add(
+                new ProcessBuilder(
+                    new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+                    "-cp",
+                    System.getProperty("java.class.path"),
+                    Writer.class.getName(),
+                    path.getPath(),
+                    name
+                ).inheritIO().start()
+            );
+        }
+        // concurrently with the other processes, overwriting enough to compact the log several times
+        write(store, "parent");
+        for (Process writer : writers) {
+            assertEquals(0, writer.waitFor());
+        }
+
+        assertWritten(store, "parent", "first", "second");
+        // a fresh load of the whole file
+        assertWritten(MultiProcessSharedPreferences.open(copy(path)), "parent", "first", "second");
+    }
+
+    @Test
+    public void garbagePastTheEndOfTheLog_isIgnored() throws IOException {
+        File path = new File(folder.getRoot(), "torn_append.mps");
+        SharedPreferences store = MultiProcessSharedPreferences.open(path);
+        assertTrue(store.edit().putString("pref_key_name", "value").putInt("pref_key_count", 1).commit());
+
+        // the remains of an append that crashed before publishing its header record
+        File torn = copy(path);
+        OutputStream output = new FileOutputStream(torn, true);
+        try {
+            output.write(new byte[]{'P', 0x7f, 0x7f, 0x7f, 0x7f, 'S'});
+        } finally {
+            output.close();
+        }
+
+        SharedPreferences recovered = MultiProcessSharedPreferences.open(torn);
+        assertEquals("value", recovered.getString("pref_key_name", null));
+        assertTrue(recovered.edit().putInt("pref_key_count", 2).commit());
+        SharedPreferences reloaded = MultiProcessSharedPreferences.open(copy(torn));
+        assertEquals("value", reloaded.getString("pref_key_name", null));
+        assertEquals(2, reloaded.getInt("pref_key_count", 0));
+    }
+
+    @Test
+    public void tornHeaderRecord_leavesTheCurrentVersion() throws IOException {
+        File path = new File(folder.getRoot(), "torn_header.mps");
+        SharedPreferences store = MultiProcessSharedPreferences.open(path);
+        // versions 1 and 2, in the second and the first record
+        assertTrue(store.edit().putInt("pref_key_count", 1).commit());
+        assertTrue(store.edit().putInt("pref_key_count", 2).commit());
+
+        // a crash while publishing version 3 in the second record
+        File torn = copy(path);
+        RandomAccessFile file = new RandomAccessFile(torn, "rw");
+        try {
+            file.seek(MultiProcessSharedPreferences.RECORD_OFFSET + MultiProcessSharedPreferences.RECORD_SIZE);
+            file.write(new byte[MultiProcessSharedPreferences.RECORD_SIZE]);
+            file.seek(MultiProcessSharedPreferences.RECORD_OFFSET + MultiProcessSharedPreferences.RECORD_SIZE + MultiProcessSharedPreferences.VERSION_FIELD);
+            file.write(new byte[]{3, 0, 0, 0, 0, 0, 0, 0});
+        } finally {
+            file.close();
+        }
+        SharedPreferences recovered = MultiProcessSharedPreferences.open(torn);
+        assertEquals(2, recovered.getInt("pref_key_count", 0));
+        assertTrue(recovered.edit().putInt("pref_key_count", 3).commit());
+        assertEquals(3, MultiProcessSharedPreferences.open(copy(torn)).getInt("pref_key_count", 0));
+
+        // a damaged current record, which falls back to the previous version
+        File damaged = copy(path);
+        file = new RandomAccessFile(damaged, "rw");
+        try {
+            file.seek(MultiProcessSharedPreferences.RECORD_OFFSET);
+            file.write(new byte[]{(byte) 0xff, (byte) 0xff});
+        } finally {
+            file.close();
+        }
+        assertEquals(1, MultiProcessSharedPreferences.open(damaged).getInt("pref_key_count", 0));
+    }
+
+    @Test
+    public void corruptedLog_isRecovered() throws IOException {
+        File path = new File(folder.getRoot(), "corrupted.mps");
+        SharedPreferences store = MultiProcessSharedPreferences.open(path);
+        assertTrue(store.edit().putString("pref_key_name", "value").commit());
+
+        // the size of the key of the first record, far past the end of the log
+        File corrupted = copy(path);
+        RandomAccessFile file = new RandomAccessFile(corrupted, "rw");
+        try {
+            file.seek(MultiProcessSharedPreferences.HEADER_SIZE + 1);
+            file.write(new byte[]{0, 0, 0, 0x70});
+        } finally {
+            file.close();
+        }
+
+        // nothing could be read, but the store is usable again
+        SharedPreferences recovered = MultiProcessSharedPreferences.open(corrupted);
+        assertNull(recovered.getString("pref_key_name", null));
+        assertTrue(recovered.edit().putString("pref_key_name", "rewritten").commit());
+        SharedPreferences reloaded = MultiProcessSharedPreferences.open(copy(corrupted));
+        assertEquals("rewritten", reloaded.getString("pref_key_name", null));
+        assertFalse(reloaded.contains("pref_key_count"));
+    }
+
+    @Test
+    public void intactRecordsBeforeACorruptedOne_areSalvaged() throws IOException {
+        File path = new File(folder.getRoot(), "salvaged.mps");
+        SharedPreferences store = MultiProcessSharedPreferences.open(path);
+        assertTrue(store.edit().putString("pref_key_name", "value").commit());
+        assertTrue(store.edit().putInt("pref_key_count", 1).commit());
+        // appended right at the end of the file
+        long lastRecord = path.length();
+        assertTrue(store.edit().putString("pref_key_last", "last").commit());
+
+        // the operation of the last record, read by a process that has just opened the file
+        File corrupted = copy(path);
+        RandomAccessFile file = new RandomAccessFile(corrupted, "rw");
+        try {
+            file.seek(lastRecord);
+            file.write(0x7f);
+        } finally {
+            file.close();
+        }
+
+        SharedPreferences recovered = MultiProcessSharedPreferences.open(corrupted);
+        assertEquals("value", recovered.getString("pref_key_name", null));
+        assertEquals(1, recovered.getInt("pref_key_count", 0));
+        assertFalse(recovered.contains("pref_key_last"));
+        // and republished for the other processes
+        SharedPreferences reloaded = MultiProcessSharedPreferences.open(copy(corrupted));
+        assertEquals("value", reloaded.getString("pref_key_name", null));
+        assertEquals(1, reloaded.getInt("pref_key_count", 0));
+    }
+
+    private static void write(@NonNull SharedPreferences store, @NonNull String name) {
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            padding.append('x');
+        }
+        for (int i = 0; i < WRITES; i++) {
+            boolean written = store.edit()
+                .putString(name + "_" + (i % KEYS), padding.toString() + i)
+                .putInt(name + "_count", i + 1)
+                .commit();
+            if (!written) {
+                throw new RuntimeException("Could not write " + name + " " + i);
+            }
+        }
+    }
+
+    private static void assertWritten(@NonNull SharedPreferences store, @NonNull String... names) {
+        Map<String, ?> all = store.getAll();
+        for (String name : names) {
+            assertEquals(WRITES, all.get(name + "_count"));
+            for (int i = WRITES - KEYS; i < WRITES; i++) {
+                assertTrue(((String) all.get(name + "_" + (i % KEYS))).endsWith("x" + i));
+            }
+        }
+        assertEquals(names.length * (KEYS + 1), all.size());
+    }
+
+    @NonNull
+    private File copy(@NonNull File path) throws IOException {
+        File copy = folder.newFile();
+        InputStream input = new FileInputStream(path);
+        try {
+            OutputStream output = new FileOutputStream(copy);
+            try {
+                byte[] buffer = new byte[8192];
+                for (int read; (read = input.read(buffer)) >= 0; ) {
+                    output.write(buffer, 0, read);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+        return copy;
+    }
+
+    /**
+     * Writes to a store from another process.
+     */
+    public static final class Writer {
+        public static void main(String[] args) {
+            write(MultiProcessSharedPreferences.open(new File(args[0])), args[1]);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Eviction and construction of the pooled handlers.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PreferenceHandlerPoolTest {
+    private static final CounterPreference VISITS =
+        new CounterPreference("pref_key_visits", "Number of visits.", 0, 0);
+
+    @Test
+    public void counters_surviveEviction() {
+        PreferenceHandlerPool<PreferenceHandler> pool = new PreferenceHandlerPool<>(
+            1,
+            new PreferenceHandlerPool.HandlerFactory<PreferenceHandler>() {
+                @NonNull
+                @Override
+                public PreferenceHandler create(@NonNull String storeName) {
+                    return createHandler(storeName);
+                }
+            }
+        );
+        for (int i = 1; i <= 50; i++) {
+            // evicts the other store, whose unpersisted increments must reach the next handler of it
+            pool.get("account_a").increment(VISITS);
+            pool.get("account_b").increment(VISITS);
+            assertEquals(i, pool.get("account_a").getPreferenceValue(VISITS));
+        }
+        pool.trim(0);
+        assertEquals(50, pool.get("account_b").getPreferenceValue(VISITS));
+    }
+
+    @Test(timeout = 10000)
+    public void get_doesNotWaitForTheConstructionOfOtherStores() throws InterruptedException {
+        final CountDownLatch constructing = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final PreferenceHandlerPool<PreferenceHandler> pool = new PreferenceHandlerPool<>(
+            4,
+            new PreferenceHandlerPool.HandlerFactory<PreferenceHandler>() {
+                @NonNull
+                @Override
+                public PreferenceHandler create(@NonNull String storeName) {
+                    if (storeName.equals("slow")) {
+                        constructing.countDown();
+                        try {
+                            proceed.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return createHandler(storeName);
+                }
+            }
+        );
+        PreferenceHandler fast = pool.get("fast");
+
+        final PreferenceHandler[] slow = new PreferenceHandler[2];
+        Thread[] getters = new Thread[2];
+        for (int i = 0; i < getters.length; i++) {
+            final int index = i;
+            getters[i] = new Thread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        slow[index] = pool.get("slow");
+                    }
+                }
+            );
+            getters[i].start();
+        }
+        assertTrue(constructing.await(5, TimeUnit.SECONDS));
+
+        try {
+            assertSame(fast, pool.get("fast"));
+            assertSame(fast, pool.get("fast"));
+        } finally {
+            proceed.countDown();
+        }
+        for (Thread getter : getters) {
+            getter.join();
+        }
+        // constructed once, for both of the concurrent callers
+        assertSame(slow[0], slow[1]);
+        assertEquals(2, pool.size());
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler(@NonNull String storeName) {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), storeName, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // counters need no initialization
+            }
+        };
+    }
+}
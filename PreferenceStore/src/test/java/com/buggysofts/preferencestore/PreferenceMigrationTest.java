@@ -0,0 +1,151 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Order and atomicity of the schema migrations.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PreferenceMigrationTest {
+    @Test
+    public void pendingSteps_runInAscendingOrder() {
+        String store = "migration_test_order";
+        getStore(store).edit().putString("pref_key_user", "alice").commit();
+
+        List<Integer> ran = new ArrayList<>();
+        // declared out of order
+        PreferenceHandler handler = createHandler(store, ran, renameStep(2), putStep(3), putStep(1));
+        assertEquals(3, handler.getSchemaVersion());
+        assertEquals("[1, 2, 3]", ran.toString());
+        assertFalse(getStore(store).contains("pref_key_user"));
+        // renamed by the second step, after the first one had seen it under its old key
+        assertEquals("alice", getStore(store).getString("pref_key_user_name", null));
+        assertEquals(1, getStore(store).getInt("pref_key_step_1", 0));
+
+        // only the newer steps run on the next start
+        ran.clear();
+        createHandler(store, ran, renameStep(2), putStep(3), putStep(1), putStep(4));
+        assertEquals("[4]", ran.toString());
+        ran.clear();
+        createHandler(store, ran, renameStep(2), putStep(3), putStep(1), putStep(4));
+        assertTrue(ran.isEmpty());
+    }
+
+    @Test
+    public void allSteps_areWrittenAtOnce() {
+        final String store = "migration_test_single_write";
+        final List<String> incomplete = new ArrayList<>();
+        SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                // every change is visible along with the others, and the new version
+                if (sharedPreferences.getInt(PreferenceHandler.SCHEMA_VERSION_KEY, 0) != 3
+                    || !sharedPreferences.contains("pref_key_step_1")
+                    || !sharedPreferences.contains("pref_key_step_3")) {
+                    incomplete.add(key);
+                }
+            }
+        };
+        getStore(store).registerOnSharedPreferenceChangeListener(listener);
+        try {
+            createHandler(store, new ArrayList<Integer>(), putStep(1), putStep(2), putStep(3));
+        } finally {
+            getStore(store).unregisterOnSharedPreferenceChangeListener(listener);
+        }
+        assertTrue(incomplete.toString(), incomplete.isEmpty());
+        assertEquals(3, getStore(store).getInt(PreferenceHandler.SCHEMA_VERSION_KEY, 0));
+    }
+
+    @Test
+    public void failedSteps_writeNothing() {
+        String store = "migration_test_failure";
+        PreferenceMigration failing = new PreferenceMigration(2) {
+            @Override
+            public void migrate(@NonNull StagedPreferences preferences) {
+                throw new IllegalStateException("Failing step.");
+            }
+        };
+        try {
+            createHandler(store, new ArrayList<Integer>(), putStep(1), failing);
+            throw new AssertionError("Migration did not fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        // not even the steps before the failing one
+        assertFalse(getStore(store).contains("pref_key_step_1"));
+        assertFalse(getStore(store).contains(PreferenceHandler.SCHEMA_VERSION_KEY));
+    }
+
+    @NonNull
+    private static PreferenceMigration putStep(final int version) {
+        return new PreferenceMigration(version) {
+            @Override
+            public void migrate(@NonNull StagedPreferences preferences) {
+                preferences.put("pref_key_step_" + version, version);
+            }
+        };
+    }
+
+    @NonNull
+    private static PreferenceMigration renameStep(final int version) {
+        return new PreferenceMigration(version) {
+            @Override
+            public void migrate(@NonNull StagedPreferences preferences) {
+                // the earlier steps have run
+                if (!preferences.contains("pref_key_step_1")) {
+                    throw new IllegalStateException("Run before the first step.");
+                }
+                preferences.rename("pref_key_user", "pref_key_user_name");
+            }
+        };
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler(@NonNull String store,
+                                                   @NonNull final List<Integer> ran,
+                                                   @NonNull final PreferenceMigration... migrations) {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), store, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // nothing to initialize
+            }
+
+            @NonNull
+            @Override
+            public PreferenceMigration[] getMigrations() {
+                PreferenceMigration[] recorded = new PreferenceMigration[migrations.length];
+                for (int i = 0; i < migrations.length; i++) {
+                    final PreferenceMigration migration = migrations[i];
+                    recorded[i] = new PreferenceMigration(migration.getTargetVersion()) {
+                        @Override
+                        public void migrate(@NonNull StagedPreferences preferences) {
+                            ran.add(getTargetVersion());
+                            migration.migrate(preferences);
+                        }
+                    };
+                }
+                return recorded;
+            }
+        };
+    }
+
+    @NonNull
+    private static SharedPreferences getStore(@NonNull String store) {
+        return ApplicationProvider.getApplicationContext().getSharedPreferences(store, Context.MODE_PRIVATE);
+    }
+}
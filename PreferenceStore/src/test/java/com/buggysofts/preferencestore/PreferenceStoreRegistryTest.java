@@ -0,0 +1,154 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Construction of the registered handlers, in parallel or on demand.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PreferenceStoreRegistryTest {
+    @Test
+    public void handlersRequestedBeforeTheWarmUp_areConstructedInline() {
+        PreferenceStoreRegistry registry = new PreferenceStoreRegistry(2);
+        final AtomicInteger created = new AtomicInteger();
+        registry.register(
+            FirstHandler.class,
+            new PreferenceStoreRegistry.HandlerFactory<FirstHandler>() {
+                @NonNull
+                @Override
+                public FirstHandler create() {
+                    created.incrementAndGet();
+                    return new FirstHandler();
+                }
+            }
+        );
+        assertFalse(registry.isReady(FirstHandler.class));
+
+        FirstHandler handler = registry.get(FirstHandler.class);
+        assertEquals(Thread.currentThread().getName(), handler.constructingThread);
+        assertTrue(registry.isReady(FirstHandler.class));
+        // once
+        assertSame(handler, registry.get(FirstHandler.class));
+        registry.warmUp();
+        assertSame(handler, registry.get(FirstHandler.class));
+        assertEquals(1, created.get());
+    }
+
+    @Test(timeout = 10000)
+    public void registeredHandlers_areConstructedInParallel() {
+        PreferenceStoreRegistry registry = new PreferenceStoreRegistry(2);
+        // neither construction finishes before both have started
+        final CountDownLatch started = new CountDownLatch(2);
+        registry.register(
+            FirstHandler.class,
+            new PreferenceStoreRegistry.HandlerFactory<FirstHandler>() {
+                @NonNull
+                @Override
+                public FirstHandler create() {
+                    await(started);
+                    return new FirstHandler();
+                }
+            }
+        );
+        registry.warmUp();
+        // registered after the warm-up, constructed right away
+        registry.register(
+            SecondHandler.class,
+            new PreferenceStoreRegistry.HandlerFactory<SecondHandler>() {
+                @NonNull
+                @Override
+                public SecondHandler create() {
+                    await(started);
+                    return new SecondHandler();
+                }
+            }
+        );
+
+        assertTrue(registry.get(FirstHandler.class).constructingThread.startsWith("PreferenceStore-WarmUp-"));
+        assertTrue(registry.get(SecondHandler.class).constructingThread.startsWith("PreferenceStore-WarmUp-"));
+    }
+
+    @Test
+    public void failedConstructions_andUnknownHandlers_areReported() {
+        PreferenceStoreRegistry registry = new PreferenceStoreRegistry(1);
+        final IllegalStateException failure = new IllegalStateException("Failing factory.");
+        registry.register(
+            FirstHandler.class,
+            new PreferenceStoreRegistry.HandlerFactory<FirstHandler>() {
+                @NonNull
+                @Override
+                public FirstHandler create() {
+                    throw failure;
+                }
+            }
+        );
+        try {
+            registry.get(FirstHandler.class);
+            throw new AssertionError("Got a handler whose construction failed");
+        } catch (RuntimeException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertTrue(registry.isReady(FirstHandler.class));
+
+        try {
+            registry.get(SecondHandler.class);
+            throw new AssertionError("Got a handler which is not registered");
+        } catch (RuntimeException e) {
+            assertFalse(registry.isReady(SecondHandler.class));
+        }
+    }
+
+    private static void await(@NonNull CountDownLatch latch) {
+        latch.countDown();
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (latch.getCount() > 0) {
+            throw new IllegalStateException("Constructed one at a time.");
+        }
+    }
+
+    private static class FirstHandler extends PreferenceHandler {
+        private final String constructingThread = Thread.currentThread().getName();
+
+        private FirstHandler() {
+            super(ApplicationProvider.getApplicationContext(), "registry_test_first", Context.MODE_PRIVATE, true);
+        }
+
+        @Override
+        public void initializePreferenceValues(@NonNull Context context) {
+            // nothing to initialize
+        }
+    }
+
+    private static class SecondHandler extends PreferenceHandler {
+        private final String constructingThread = Thread.currentThread().getName();
+
+        private SecondHandler() {
+            super(ApplicationProvider.getApplicationContext(), "registry_test_second", Context.MODE_PRIVATE, true);
+        }
+
+        @Override
+        public void initializePreferenceValues(@NonNull Context context) {
+            // nothing to initialize
+        }
+    }
+}
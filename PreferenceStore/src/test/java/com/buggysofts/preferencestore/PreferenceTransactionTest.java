@@ -0,0 +1,172 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Commits of the multi store transactions, and the completion of the interrupted ones from their journals.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PreferenceTransactionTest {
+    private static final UnBoundedPreference<Integer> BALANCE = new UnBoundedPreference<>("pref_key_balance", "Balance.");
+    private static final UnBoundedPreference<String> NOTE = new UnBoundedPreference<>("pref_key_note", "Note.");
+
+    @Test
+    public void commit_writesEveryStore() {
+        Context context = ApplicationProvider.getApplicationContext();
+        PreferenceTransaction transaction = new PreferenceTransaction(context);
+        transaction.stage(createHandler("transaction_test_from", true)).put(BALANCE.getKey(), 70);
+        transaction.stage(createHandler("transaction_test_to", true)).put(BALANCE.getKey(), 30);
+        transaction.commit();
+
+        assertEquals(70, createHandler("transaction_test_from", false).getPreferenceValue(BALANCE, 0));
+        assertEquals(30, createHandler("transaction_test_to", false).getPreferenceValue(BALANCE, 0));
+        assertEquals(0, countJournals(context));
+    }
+
+    @Test
+    public void interruptedCommit_isCompletedFromItsJournal() {
+        Context context = ApplicationProvider.getApplicationContext();
+        PreferenceTransaction transaction = new PreferenceTransaction(context);
+        transaction.stage(createHandler("transaction_test_from", true)).put(BALANCE.getKey(), 70);
+        // can not be written, like a store that the process died before writing
+        transaction.stage(createHandler("transaction_test_to", false)).put(BALANCE.getKey(), 30);
+        try {
+            transaction.commit();
+            fail("Committed to a handler that is not in editor mode");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(70, createHandler("transaction_test_from", false).getPreferenceValue(BALANCE, 0));
+        assertEquals(0, createHandler("transaction_test_to", false).getPreferenceValue(BALANCE, 0));
+        assertEquals(1, countJournals(context));
+
+        // the next start
+        PreferenceTransaction.replayJournals(context);
+        assertEquals(70, createHandler("transaction_test_from", false).getPreferenceValue(BALANCE, 0));
+        assertEquals(30, createHandler("transaction_test_to", false).getPreferenceValue(BALANCE, 0));
+        assertEquals(0, countJournals(context));
+    }
+
+    @Test
+    public void failedStoreWrite_isRetried() {
+        Context context = ApplicationProvider.getApplicationContext();
+        PreferenceTransaction transaction = new PreferenceTransaction(context);
+        transaction.stage(createHandler("transaction_test_from", true)).put(BALANCE.getKey(), 70);
+        transaction.stage(createFailingHandler("transaction_test_to", 1)).put(BALANCE.getKey(), 30);
+        transaction.commit();
+
+        assertEquals(70, createHandler("transaction_test_from", false).getPreferenceValue(BALANCE, 0));
+        assertEquals(30, createHandler("transaction_test_to", false).getPreferenceValue(BALANCE, 0));
+        assertEquals(0, countJournals(context));
+    }
+
+    @Test
+    public void failedCommit_doesNotOverwriteNewerWrites() {
+        Context context = ApplicationProvider.getApplicationContext();
+        PreferenceTransaction transaction = new PreferenceTransaction(context);
+        transaction.stage(createHandler("transaction_test_from", true)).put(BALANCE.getKey(), 70);
+        StagedPreferences to = transaction.stage(createFailingHandler("transaction_test_to", Integer.MAX_VALUE));
+        to.put(BALANCE.getKey(), 30);
+        to.put(NOTE.getKey(), "transfer");
+        try {
+            transaction.commit();
+            fail("Committed to a store that could not be written");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(1, countJournals(context));
+
+        // written after the failed commit, and before the journal is completed
+        createHandler("transaction_test_from", true).setPreferenceValue(BALANCE, 80);
+        createHandler("transaction_test_to", true).setPreferenceValue(BALANCE, 99);
+
+        // the next commit completes the journal first
+        PreferenceTransaction next = new PreferenceTransaction(context);
+        next.stage(createHandler("transaction_test_other", true)).put(BALANCE.getKey(), 1);
+        next.commit();
+        assertEquals(0, countJournals(context));
+        assertEquals(80, createHandler("transaction_test_from", false).getPreferenceValue(BALANCE, 0));
+        assertEquals(99, createHandler("transaction_test_to", false).getPreferenceValue(BALANCE, 0));
+        assertEquals("transfer", createHandler("transaction_test_to", false).getPreferenceValue(NOTE, ""));
+    }
+
+    @Test
+    public void incompleteAndCorruptJournals_areDiscarded() throws IOException {
+        Context context = ApplicationProvider.getApplicationContext();
+        File directory = getJournalDirectory(context);
+        assertTrue(directory.isDirectory() || directory.mkdirs());
+        // a journal that was never marked complete, and one that was damaged after
+        File incomplete = new File(directory, "incomplete.tmp");
+        File corrupt = new File(directory, "corrupt.journal");
+        FileOutputStream output = new FileOutputStream(incomplete);
+        output.write(new byte[]{0x50, 0x53});
+        output.close();
+        output = new FileOutputStream(corrupt);
+        output.write(new byte[]{0x50, 0x53, 0x54, 0x4a, 0, 0, 0, 1, 0, 0, 0, 2, 1, 2, 3, 4, 5, 6, 7, 8});
+        output.close();
+
+        PreferenceTransaction.replayJournals(context);
+        assertFalse(incomplete.exists());
+        assertFalse(corrupt.exists());
+    }
+
+    private static int countJournals(@NonNull Context context) {
+        File[] files = getJournalDirectory(context).listFiles();
+        return files != null ? files.length : 0;
+    }
+
+    @NonNull
+    private static File getJournalDirectory(@NonNull Context context) {
+        return new File(context.getFilesDir(), "preference_store_journal");
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler(@NonNull String storeName, boolean edit) {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), storeName, Context.MODE_PRIVATE, edit) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // nothing to initialize
+            }
+        };
+    }
+
+    /**
+     * Create a handler whose staged writes fail the specified number of times, without writing anything.
+     */
+    @NonNull
+    private static PreferenceHandler createFailingHandler(@NonNull String storeName, final int failures) {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), storeName, Context.MODE_PRIVATE, true) {
+            private int failed;
+
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // nothing to initialize
+            }
+
+            @Override
+            boolean commitStaged(@NonNull StagedPreferences staged) {
+                if (failed < failures) {
+                    ++failed;
+                    return false;
+                }
+                return super.commitStaged(staged);
+            }
+        };
+    }
+}
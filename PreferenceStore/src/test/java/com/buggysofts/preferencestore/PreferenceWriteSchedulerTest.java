@@ -0,0 +1,106 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scheduled writes, their change notifications and their results.
+ */
+public class PreferenceWriteSchedulerTest {
+    @Test
+    public void listeners_areNotifiedOncePerChange() {
+        PreferenceWriteScheduler scheduler = new PreferenceWriteScheduler(1024, 0);
+        InMemorySharedPreferences store = new InMemorySharedPreferences();
+        ScheduledSharedPreferences view = scheduler.wrap("scheduler_test", Context.MODE_PRIVATE, store);
+        final List<String> notifiedKeys = new ArrayList<>();
+        view.registerOnSharedPreferenceChangeListener(
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    synchronized (notifiedKeys) {
+                        notifiedKeys.add(key);
+                    }
+                }
+            }
+        );
+
+        view.edit().putString("pref_key_name", "first").apply();
+        view.edit().putInt("pref_key_count", 1).apply();
+        assertTrue(scheduler.flushAll(5000));
+        assertEquals("first", store.getString("pref_key_name", null));
+
+        // made elsewhere, notified by the underlying store
+        store.edit().putString("pref_key_name", "second").apply();
+        synchronized (notifiedKeys) {
+            assertEquals(3, notifiedKeys.size());
+            assertEquals("pref_key_name", notifiedKeys.get(0));
+            assertEquals("pref_key_count", notifiedKeys.get(1));
+            assertEquals("pref_key_name", notifiedKeys.get(2));
+        }
+    }
+
+    @Test
+    public void commit_reportsFailedWrites() {
+        PreferenceWriteScheduler scheduler = new PreferenceWriteScheduler(1024, 0);
+        InMemorySharedPreferences store = new InMemorySharedPreferences();
+        ScheduledSharedPreferences view = scheduler.wrap("scheduler_test", Context.MODE_PRIVATE, store);
+
+        store.setFailCommits(true);
+        assertFalse(view.edit().putString("pref_key_name", "value").commit());
+        assertFalse(scheduler.flushAll(5000));
+        // still pending, and written once the store recovers
+        assertEquals(1, scheduler.getPendingWriteCount());
+        assertEquals("value", view.getString("pref_key_name", null));
+
+        store.setFailCommits(false);
+        assertTrue(view.edit().putInt("pref_key_count", 1).commit());
+        assertEquals(0, scheduler.getPendingWriteCount());
+        assertEquals("value", store.getString("pref_key_name", null));
+        assertEquals(1, store.getInt("pref_key_count", 0));
+    }
+
+    @Test
+    public void views_areDroppedOnceReleasedByAllTheirUsers() {
+        PreferenceWriteScheduler scheduler = new PreferenceWriteScheduler(1024, 0);
+        InMemorySharedPreferences store = new InMemorySharedPreferences();
+        ScheduledSharedPreferences first = scheduler.wrap("scheduler_test", Context.MODE_PRIVATE, store);
+        ScheduledSharedPreferences second = scheduler.wrap("scheduler_test", Context.MODE_PRIVATE, store);
+        assertSame(first, second);
+
+        scheduler.release(first);
+        assertSame(first, scheduler.wrap("scheduler_test", Context.MODE_PRIVATE, store));
+        scheduler.release(first);
+        scheduler.release(second);
+        assertNotSame(first, scheduler.wrap("scheduler_test", Context.MODE_PRIVATE, store));
+    }
+
+    @Test
+    public void storesOfTheSameNameWithOtherModes_getViewsOfTheirOwn() {
+        PreferenceWriteScheduler scheduler = new PreferenceWriteScheduler(1024, 0);
+        InMemorySharedPreferences store = new InMemorySharedPreferences();
+        InMemorySharedPreferences multiProcessStore = new InMemorySharedPreferences();
+        ScheduledSharedPreferences view = scheduler.wrap("scheduler_test", Context.MODE_PRIVATE, store);
+        ScheduledSharedPreferences multiProcessView = scheduler.wrap(
+            "scheduler_test",
+            Context.MODE_PRIVATE | PreferenceHandler.MODE_MULTI_PROCESS_SAFE,
+            multiProcessStore
+        );
+        assertNotSame(view, multiProcessView);
+
+        multiProcessView.edit().putString("pref_key_name", "value").apply();
+        assertTrue(scheduler.flushAll(5000));
+        assertEquals("value", multiProcessStore.getString("pref_key_name", null));
+        assertFalse(store.contains("pref_key_name"));
+    }
+}
@@ -0,0 +1,104 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Coherence of the read cache with the writes made through the handler itself, and through other handlers of the same store.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ReadCacheTest {
+    private static final String STORE = "read_cache_test";
+    private static final UnBoundedPreference<String> NAME = new UnBoundedPreference<>("pref_key_name", "Name.");
+    private static final UnBoundedPreference<Integer> COUNT = new UnBoundedPreference<>("pref_key_count", "Count.");
+
+    @Test
+    public void ownWrites_areVisibleRightAway() {
+        PreferenceHandler handler = createHandler();
+        handler.setReadCacheEnabled(true);
+        assertTrue(handler.isReadCacheEnabled());
+
+        handler.setPreferenceValue(NAME, "first");
+        handler.setPreferenceValue(COUNT, 1);
+        assertEquals("first", handler.getPreferenceValue(NAME, ""));
+        assertEquals(1, handler.getPreferenceValue(COUNT, 0));
+
+        handler.setPreferenceValue(NAME, "second");
+        handler.remove(COUNT);
+        assertEquals("second", handler.getPreferenceValue(NAME, ""));
+        assertFalse(handler.contains(COUNT));
+    }
+
+    @Test
+    public void writesThroughOtherHandlers_areVisibleRightAway() throws InterruptedException {
+        PreferenceHandler reader = createHandler();
+        reader.setReadCacheEnabled(true);
+        final PreferenceHandler writer = createHandler();
+        writer.setPreferenceValue(NAME, "first");
+        writer.setPreferenceValue(COUNT, 1);
+        assertEquals("first", reader.getPreferenceValue(NAME, ""));
+
+        // off the main thread, so that the change notifications of the underlying store are still pending
+        runOnOtherThread(
+            new Runnable() {
+                @Override
+                public void run() {
+                    writer.setPreferenceValue(NAME, "second");
+                    writer.remove(COUNT);
+                }
+            }
+        );
+        assertEquals("second", reader.getPreferenceValue(NAME, ""));
+        assertFalse(reader.contains(COUNT));
+
+        // and the reader's own writes after them
+        reader.setPreferenceValue(COUNT, 2);
+        assertEquals(2, reader.getPreferenceValue(COUNT, 0));
+        assertEquals("second", reader.getPreferenceValue(NAME, ""));
+    }
+
+    @Test
+    public void transactionsThroughOtherHandlers_areVisibleRightAway() throws InterruptedException {
+        PreferenceHandler reader = createHandler();
+        reader.setReadCacheEnabled(true);
+        assertEquals("", reader.getPreferenceValue(NAME, ""));
+
+        runOnOtherThread(
+            new Runnable() {
+                @Override
+                public void run() {
+                    PreferenceTransaction transaction = new PreferenceTransaction(ApplicationProvider.getApplicationContext());
+                    transaction.stage(createHandler()).put(NAME.getKey(), "staged");
+                    transaction.commit();
+                }
+            }
+        );
+        assertEquals("staged", reader.getPreferenceValue(NAME, ""));
+    }
+
+    private static void runOnOtherThread(@NonNull Runnable runnable) throws InterruptedException {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        thread.join();
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler() {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), STORE, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // nothing to initialize
+            }
+        };
+    }
+}
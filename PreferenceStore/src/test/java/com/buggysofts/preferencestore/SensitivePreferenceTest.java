@@ -0,0 +1,138 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encryption of the sensitive preferences, with a key provider standing in for the keystore.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SensitivePreferenceTest {
+    private static final String STORE = "sensitive_test";
+    private static final SensitivePreference<String> TOKEN =
+        new SensitivePreference<>("pref_key_token", "Session token.");
+    private static final SensitivePreference<ArrayList<String>> CONTACTS =
+        new SensitivePreference<>("pref_key_contacts", "Recent contacts.");
+    private static final TypeToken<String> TOKEN_TYPE = new TypeToken<String>() {};
+    private static final TypeToken<ArrayList<String>> CONTACTS_TYPE = new TypeToken<ArrayList<String>>() {};
+
+    private final AtomicInteger keyRequests = new AtomicInteger();
+    private final PreferenceKeyProvider keyProvider = new PreferenceKeyProvider() {
+        private final SecretKey secretKey = new SecretKeySpec(new byte[32], "AES");
+
+        @NonNull
+        @Override
+        public SecretKey getSecretKey() {
+            keyRequests.incrementAndGet();
+            return secretKey;
+        }
+    };
+
+    private PreferenceHandler handler;
+
+    @Before
+    public void setUp() {
+        handler = createHandler(keyProvider);
+    }
+
+    @Test
+    public void values_roundTripEncrypted() {
+        handler.setPreferenceValue(TOKEN, "secret token");
+        assertEquals("secret token", handler.getPreferenceValue(TOKEN, TOKEN_TYPE));
+        assertEquals("secret token", createHandler(keyProvider).getPreferenceValue(TOKEN, TOKEN_TYPE));
+
+        String stored = handler.getSharedPreferences().getString(TOKEN.getKey(), null);
+        assertFalse(stored.contains("secret"));
+        // a random IV for every write
+        handler.setPreferenceValue(TOKEN, "secret token");
+        assertFalse(stored.equals(handler.getSharedPreferences().getString(TOKEN.getKey(), null)));
+        assertNull(handler.getPreferenceValue(new SensitivePreference<String>("pref_key_missing", "Missing."), TOKEN_TYPE));
+    }
+
+    @Test
+    public void batchWrites_requestTheKeyOnce() {
+        Map<SensitivePreference<?>, Serializable> values = new LinkedHashMap<>();
+        values.put(TOKEN, "secret token");
+        values.put(CONTACTS, new ArrayList<>(Arrays.asList("alice", "bob")));
+        keyRequests.set(0);
+        handler.setPreferenceValues(values);
+        assertEquals(1, keyRequests.get());
+
+        PreferenceHandler reader = createHandler(keyProvider);
+        assertEquals("secret token", reader.getPreferenceValue(TOKEN, TOKEN_TYPE));
+        assertEquals(Arrays.asList("alice", "bob"), reader.getPreferenceValue(CONTACTS, CONTACTS_TYPE));
+    }
+
+    @Test
+    public void tamperedValues_areRejected() {
+        handler.setPreferenceValue(TOKEN, "secret token");
+        String stored = handler.getSharedPreferences().getString(TOKEN.getKey(), null);
+
+        // a flipped bit of the ciphertext
+        byte[] bytes = Base64.decode(stored, Base64.NO_WRAP);
+        bytes[bytes.length - 20] ^= 1;
+        writeRaw(TOKEN.getKey(), Base64.encodeToString(bytes, Base64.NO_WRAP));
+        assertRejected(createHandler(keyProvider), TOKEN, TOKEN_TYPE);
+
+        // an intact value, moved to another key
+        writeRaw(CONTACTS.getKey(), stored);
+        assertRejected(createHandler(keyProvider), CONTACTS, CONTACTS_TYPE);
+
+        // an intact value, read with another key
+        writeRaw(TOKEN.getKey(), stored);
+        assertRejected(createHandler(new SoftwareKeyProvider()), TOKEN, TOKEN_TYPE);
+        assertEquals("secret token", createHandler(keyProvider).getPreferenceValue(TOKEN, TOKEN_TYPE));
+    }
+
+    private void writeRaw(@NonNull String key, @NonNull String value) {
+        handler.getSharedPreferences().edit().putString(key, value).commit();
+    }
+
+    private static <T extends Serializable> void assertRejected(@NonNull PreferenceHandler reader,
+                                                                @NonNull SensitivePreference<T> preference,
+                                                                @NonNull TypeToken<T> typeToken) {
+        try {
+            reader.getPreferenceValue(preference, typeToken);
+            fail("Decrypted a value that is not the one written to " + preference.getKey());
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler(@NonNull PreferenceKeyProvider keyProvider) {
+        PreferenceHandler handler = new PreferenceHandler(ApplicationProvider.getApplicationContext(), STORE, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // sensitive preferences have no defaults
+            }
+        };
+        handler.setKeyProvider(keyProvider);
+        return handler;
+    }
+}
@@ -0,0 +1,123 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.Serializable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Recording of the values decoded at startup, and their prefetch on the next launch.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StartupPrefetchTest {
+    private static final String STORE = "startup_prefetch_test";
+    private static final UnBoundedPreference<Profile> PROFILE = new UnBoundedPreference<>("pref_key_profile", "Profile.");
+    private static final String PREFETCH_THREAD_PREFIX = "PreferenceStore-Prefetch-";
+
+    @Test(timeout = 10000)
+    public void recordedValues_arePrefetchedOnTheNextLaunch() throws InterruptedException {
+        recordStartup(new Profile("alice"));
+
+        PreferenceHandler handler = createHandler();
+        handler.enableStartupPrefetch(60000);
+        awaitPrefetch();
+        Profile profile = handler.getPreferenceValue(PROFILE, TypeToken.get(Profile.class));
+        assertEquals("alice", profile.name);
+        assertTrue(profile.decodingThread.startsWith(PREFETCH_THREAD_PREFIX));
+
+        // handed out once, later reads decode on their own
+        Profile again = handler.getPreferenceValue(PROFILE, TypeToken.get(Profile.class));
+        assertEquals("alice", again.name);
+        assertEquals(Thread.currentThread().getName(), again.decodingThread);
+        handler.release();
+    }
+
+    @Test(timeout = 10000)
+    public void changedValues_areDecodedAgain() throws InterruptedException {
+        recordStartup(new Profile("alice"));
+
+        PreferenceHandler handler = createHandler();
+        handler.enableStartupPrefetch(60000);
+        awaitPrefetch();
+        // changed after the prefetch
+        createHandler().setPreferenceValue(PROFILE, new Profile("bob"));
+        Profile profile = handler.getPreferenceValue(PROFILE, TypeToken.get(Profile.class));
+        assertEquals("bob", profile.name);
+        assertEquals(Thread.currentThread().getName(), profile.decodingThread);
+        handler.release();
+    }
+
+    /**
+     * Launch once with the recording on, reading the specified profile within the window.
+     */
+    private static void recordStartup(@NonNull Profile profile) throws InterruptedException {
+        getStore().edit().clear().commit();
+        PreferenceHandler handler = createHandler();
+        handler.setPreferenceValue(PROFILE, profile);
+        handler.enableStartupPrefetch(50);
+        assertNotNull(handler.getPreferenceValue(PROFILE, TypeToken.get(Profile.class)));
+        while (!getStore().contains(PreferenceHandler.STARTUP_ACCESSES_KEY)) {
+            Thread.sleep(5);
+        }
+        handler.release();
+        Profile.decodingThreads.clear();
+    }
+
+    private static void awaitPrefetch() throws InterruptedException {
+        while (Profile.decodingThreads.isEmpty()) {
+            Thread.sleep(5);
+        }
+        assertTrue(Profile.decodingThreads.peek().startsWith(PREFETCH_THREAD_PREFIX));
+        // handed over right after the decode
+        Thread.sleep(50);
+    }
+
+    @NonNull
+    private static PreferenceHandler createHandler() {
+        return new PreferenceHandler(ApplicationProvider.getApplicationContext(), STORE, Context.MODE_PRIVATE, true) {
+            @Override
+            public void initializePreferenceValues(@NonNull Context context) {
+                // nothing to initialize
+            }
+        };
+    }
+
+    @NonNull
+    private static SharedPreferences getStore() {
+        return ApplicationProvider.getApplicationContext().getSharedPreferences(STORE, Context.MODE_PRIVATE);
+    }
+
+    private static class Profile implements Serializable {
+        // threads on which instances were decoded
+        private static final Queue<String> decodingThreads = new ConcurrentLinkedQueue<>();
+
+        private final transient String decodingThread;
+        private String name;
+
+        // used by the decoder
+        private Profile() {
+            decodingThread = Thread.currentThread().getName();
+            decodingThreads.add(decodingThread);
+        }
+
+        private Profile(@NonNull String name) {
+            this();
+            this.name = name;
+        }
+    }
+}
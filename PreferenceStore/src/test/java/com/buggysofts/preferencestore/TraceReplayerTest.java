@@ -0,0 +1,107 @@
+package com.buggysofts.preferencestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording of access traces, and their replay against another backend.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TraceReplayerTest {
+    private static final String STORE = "trace_test";
+    private static final UnBoundedPreference<String> NAME = new UnBoundedPreference<>("pref_key_name", "Name.");
+    private static final UnBoundedPreference<String> STALE = new UnBoundedPreference<>("pref_key_stale", "Stale.");
+    private static final UnBoundedPreference<Integer> COUNT = new UnBoundedPreference<>("pref_key_count", "Count.");
+
+    @Test(timeout = 10000)
+    public void recordedTrace_replaysItsOperations() throws InterruptedException, IOException {
+        final CountDownLatch closed = new CountDownLatch(1);
+        ByteArrayOutputStream output = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+        AccessTracer tracer = new AccessTracer(output);
+        PreferenceHandler.setAccessTracer(tracer);
+        try {
+            final PreferenceHandler handler = new PreferenceHandler(ApplicationProvider.getApplicationContext(), STORE, Context.MODE_PRIVATE, true) {
+                @Override
+                public void initializePreferenceValues(@NonNull Context context) {
+                    // nothing to initialize
+                }
+            };
+            handler.setPreferenceValue(STALE, "stale");
+            handler.setPreferenceValue(NAME, "hello world");
+            handler.remove(STALE);
+            // recorded as a thread of its own
+            Thread worker = new Thread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        handler.setPreferenceValue(COUNT, 42);
+                        handler.getPreferenceValue(COUNT, 0);
+                    }
+                }
+            );
+            worker.start();
+            worker.join();
+            assertEquals("hello world", handler.getPreferenceValue(NAME, ""));
+        } finally {
+            PreferenceHandler.setAccessTracer(null);
+            tracer.close();
+        }
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+
+        TraceReplayer replayer = new TraceReplayer(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(2, replayer.getThreadCount());
+
+        final Map<String, InMemorySharedPreferences> stores = new HashMap<>();
+        ReplayReport report = replayer.replay(
+            new TraceReplayer.Target() {
+                @NonNull
+                @Override
+                public SharedPreferences getStore(@NonNull String storeName) {
+                    InMemorySharedPreferences store = new InMemorySharedPreferences();
+                    stores.put(storeName, store);
+                    return store;
+                }
+
+                @Override
+                public long getBytesWritten() {
+                    return -1;
+                }
+            },
+            false
+        );
+
+        assertEquals(replayer.getOperationCount(), report.getOperationCount());
+        // the recorded sizes of the three puts
+        assertTrue(report.getBytesPut() >= "stale".length() + "hello world".length() + 4);
+        // values of the recorded types and sizes, under the recorded keys
+        InMemorySharedPreferences store = stores.get(STORE);
+        assertEquals("hello world".length(), store.getString(NAME.getKey(), "").length());
+        assertFalse(store.contains(STALE.getKey()));
+        assertTrue(store.getAll().get(COUNT.getKey()) instanceof Integer);
+        assertEquals(-1, report.getBytesWritten());
+    }
+}